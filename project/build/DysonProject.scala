@@ -3,6 +3,7 @@ import sbt._
 	class   DysonProject( info : ProjectInfo ) 
 	extends DefaultProject(info)
 	with    TestNGTestingProject 
+	with    JmhBenchmarkingProject 
 	with    Eclipsify
         with    JarJarable 
         {
@@ -30,4 +31,8 @@ import sbt._
 	    val com_noelios_restlet = "com.noelios.restlet" % "com.noelios.restlet" % "1.1.4"  
 	    
 	    //val testng = "org.testng" % "testng" % "5.8"  % "test" classifier "jdk15" 
+
+	    //runs the benchmarks per thread count, writes JSON results to jmhOutputPath
+	    override def jmhMainClass = "com.emarsys.dyson.benchmark.BenchmarkRunner"
+	    override def jmhJvmOptions = List( "-Ddyson.benchmark.results.dir=" + jmhOutputPath.absolutePath )
 }
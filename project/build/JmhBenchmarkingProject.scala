@@ -0,0 +1,89 @@
+import sbt._
+import sbt.Process._
+
+/**
+ * Includes the <code>jmh</code> task which runs the JMH micro benchmarks
+ * contained in <code>src/benchmark/java</code>. The benchmark classes are
+ * generated by JMH's annotation processor while compiling the benchmark
+ * sources (see the <code>benchmark-compile</code> task).
+ *
+ * Additional arguments are passed to JMH, e.g. a regex selecting the
+ * benchmarks to run: <code>jmh MailHeaders</code>
+ *
+ * The main class running the benchmarks can be changed by overriding
+ * <code>jmhMainClass</code>, e.g. in order to run the benchmarks with
+ * several thread counts and to write machine-readable results.
+ * <code>jmhJvmOptions</code> are passed to the benchmarking vm.
+ *
+ * Dyson itself (and its tests) still targets java 1.6, but JMH requires
+ * a java 1.7 (or higher) sdk & vm. Therefore the benchmarks and JMH are
+ * kept in their own source directory and <code>benchmark</code>
+ * configuration, off the compile and test classpaths.
+ */
+trait JmhBenchmarkingProject extends DefaultProject
+{
+    lazy val Benchmark = config( "benchmark" )
+
+    val jmhVersion = "1.21"
+    val jmh_core = "org.openjdk.jmh" % "jmh-core" % jmhVersion % "benchmark->default"
+    val jmh_generator_annprocess = "org.openjdk.jmh" % "jmh-generator-annprocess" % jmhVersion % "benchmark->default"
+
+    def benchmarkSourcePath = "src" / "benchmark" / "java"
+
+    def benchmarkOutputPath = outputPath / "benchmark-classes"
+
+    def jmhOutputPath = outputPath / "jmh"
+
+    def jmhMainClass = "org.openjdk.jmh.Main"
+
+    def jmhJvmOptions : Seq[String] = Nil
+
+    def benchmarkClasspath = {
+        val pathElements = {
+            configurationPath( Configurations.Compile ).descendentsExcept( "*.jar", ".svn" ).getPaths ++
+            configurationPath( Benchmark ).descendentsExcept( "*.jar", ".svn" ).getPaths ++
+            dependencyPath.descendentsExcept( "*.jar", ".svn" ).getPaths ++
+            List(
+                outputPath / "classes",
+                benchmarkOutputPath,
+                scalaLibraryJar.getPath,
+                testResourcesPath
+            )
+        }
+        pathElements.mkString( ":" )
+    }
+
+    lazy val benchmarkCompile = task {
+
+        import sbt.FileUtilities._
+
+        createDirectory( benchmarkOutputPath, log )
+
+        val sources = ( benchmarkSourcePath ** "*.java" ).getPaths
+
+        val command = "javac -source 1.7 -target 1.7 -encoding UTF-8 -d " + benchmarkOutputPath + " -cp " + benchmarkClasspath + " " + sources.mkString( " " )
+
+        log.debug( command )
+
+        val code = command ! log
+
+        if ( code > 0 ) Some( code.toString ) else None
+
+    } dependsOn( compile ) describedAs( "Compiles the JMH benchmarks (java 1.7 or higher)." )
+
+    lazy val jmh = task { args => task {
+
+        import sbt.FileUtilities._
+
+        createDirectory( jmhOutputPath, log )
+
+        val command = "java " + jmhJvmOptions.mkString( " " ) + " -cp " + benchmarkClasspath + " " + jmhMainClass + " " + args.mkString( " " )
+
+        log.debug( command )
+
+        val code = command ! log
+
+        if ( code > 0 ) Some( code.toString ) else None
+
+    } dependsOn( benchmarkCompile ) }
+}
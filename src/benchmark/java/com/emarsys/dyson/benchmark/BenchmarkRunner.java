@@ -0,0 +1,78 @@
+/**
+ *   (c) Copyright 2007-2010 by emarsys eMarketing Systems AG
+ * 
+ *   This file is part of dyson.
+ *
+ *   dyson is free software; you can redistribute it and/or modify
+ *   it under the terms of the GNU Lesser General Public License as published by
+ *   the Free Software Foundation; either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   dyson is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.emarsys.dyson.benchmark;
+
+import java.io.File;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * <p>
+ * Runs the dyson JMH benchmarks once per thread count and writes the 
+ * results of every run as JSON to 
+ * <tt>&lt;results dir&gt;/dyson-t&lt;threads&gt;.json</tt>, 
+ * so they can be compared between builds. The results directory is 
+ * taken from the system property {@value #RESULTS_DIR_PROPERTY} 
+ * (default: {@value #RESULTS_DIR_DEFAULT}).
+ * </p><p>
+ * The arguments are regular JMH command line options (e.g. a regex 
+ * selecting the benchmarks), the thread counts are taken from the 
+ * system property {@value #THREADS_PROPERTY} 
+ * (default: {@value #THREADS_DEFAULT}).
+ * </p>
+ * 
+ * @author <a href="mailto:kulovits@emarsys.com">Michael "kULO" Kulovits</a>
+ */
+public class BenchmarkRunner
+{
+	public static final String RESULTS_DIR_PROPERTY = "dyson.benchmark.results.dir";
+	public static final String RESULTS_DIR_DEFAULT = "./target/jmh";
+	public static final String THREADS_PROPERTY = "dyson.benchmark.threads";
+	public static final String THREADS_DEFAULT = "1,4,16";
+	
+	public static void main( String[] args ) 
+		throws CommandLineOptionException, RunnerException
+	{
+		CommandLineOptions cmdLineOptions = new CommandLineOptions( args );
+		String[] threadCounts = System.getProperty( 
+				THREADS_PROPERTY, THREADS_DEFAULT ).split( "," );
+		
+		File resultsDir = new File( System.getProperty( 
+				RESULTS_DIR_PROPERTY, RESULTS_DIR_DEFAULT ) );
+		resultsDir.mkdirs();
+		
+		for( String threadCount : threadCounts )
+		{
+			int threads = Integer.parseInt( threadCount.trim() );
+			
+			new Runner( new OptionsBuilder()
+			.parent( cmdLineOptions )
+			.threads( threads )
+			.resultFormat( ResultFormatType.JSON )
+			.result( new File( resultsDir, "dyson-t" + threads + ".json" ).getPath() )
+			.build() ).run();
+		}
+	}
+	
+}//class BenchmarkRunner
@@ -0,0 +1,100 @@
+/**
+ *   (c) Copyright 2007-2010 by emarsys eMarketing Systems AG
+ * 
+ *   This file is part of dyson.
+ *
+ *   dyson is free software; you can redistribute it and/or modify
+ *   it under the terms of the GNU Lesser General Public License as published by
+ *   the Free Software Foundation; either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   dyson is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.emarsys.dyson.benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Properties;
+
+import com.emarsys.dyson.DysonConfig;
+import com.emarsys.dyson.DysonServer;
+import com.emarsys.ecommon.io.IOUtil;
+
+/**
+ * Helpers shared by the dyson JMH benchmarks.
+ * 
+ * @author <a href="mailto:kulovits@emarsys.com">Michael "kULO" Kulovits</a>
+ */
+public class DysonBenchmarkSupport
+{
+	/** the base directory for the storage directories of the benchmarks */
+	public static final String DATA_DIR = "./target/jmh/data";
+	
+	/**
+	 * Creates a (not started) {@link DysonServer} storing its mails 
+	 * beneath {@link #DATA_DIR}/<tt>name</tt>.
+	 * 
+	 * @param name - the name of the benchmark's storage directory
+	 * @param settings - additional settings overriding the defaults
+	 * @return the new server, it's up to the caller to 
+	 * 		{@link #dispose(DysonServer) dispose} it
+	 */
+	public static DysonServer newServer( String name, Properties settings ) 
+		throws IOException
+	{
+		File dir = new File( DATA_DIR, name );
+		
+		Properties props = new Properties();
+		props.setProperty( DysonConfig.SERVER_SHUTDOWN_HOOK_ENABLED, "false" );
+		props.setProperty( DysonConfig.SMTP_DISCARD_RECIPIENTS_ENABLED, "false" );
+		props.setProperty( DysonConfig.STORAGE_DIR_INCOMING, 
+				new File( dir, "incoming" ).getPath() );
+		props.setProperty( DysonConfig.STORAGE_DIR_PROCESSED, 
+				new File( dir, "processed" ).getPath() );
+		props.putAll( settings );
+		
+		//the server reads its settings from the system properties
+		System.getProperties().putAll( props );
+		
+		DysonServer server = new DysonServer();
+		server.getStorage().clearIncomingDir();
+		server.getStorage().clearProcessedDir();
+		return server;
+	}
+	
+	/**
+	 * Removes the mails written by the benchmark.
+	 */
+	public static void dispose( DysonServer server ) throws IOException
+	{
+		if( server != null )
+		{
+			server.getStorage().clearIncomingDir();
+			server.getStorage().clearProcessedDir();
+		}
+	}
+	
+	/**
+	 * Writes the passed mail to the passed file (without any conversion).
+	 */
+	public static void writeRaw( byte[] mail, File file ) throws IOException
+	{
+		FileOutputStream out = new FileOutputStream( file );
+		try
+		{
+			out.write( mail );
+		}
+		finally
+		{
+			IOUtil.silentClose( out );
+		}
+	}
+	
+}//class DysonBenchmarkSupport
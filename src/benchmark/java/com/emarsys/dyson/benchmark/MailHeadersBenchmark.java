@@ -0,0 +1,130 @@
+/**
+ *   (c) Copyright 2007-2010 by emarsys eMarketing Systems AG
+ * 
+ *   This file is part of dyson.
+ *
+ *   dyson is free software; you can redistribute it and/or modify
+ *   it under the terms of the GNU Lesser General Public License as published by
+ *   the Free Software Foundation; either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   dyson is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.emarsys.dyson.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMessage.RecipientType;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.emarsys.dyson.storage.MailHeaders;
+
+/**
+ * JMH benchmark comparing the {@link MailHeaders} header scanner with 
+ * parsing a whole {@link MimeMessage} in order to get a mail's 
+ * <tt>To</tt> recipient, as done by the naming scheme tokens.
+ * 
+ * @author <a href="mailto:kulovits@emarsys.com">Michael "kULO" Kulovits</a>
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class MailHeadersBenchmark
+{
+	/**
+	 * the size of the mail's body in bytes: 1KB, 100KB and 10MB
+	 */
+	@Param( { "1024", "102400", "10485760" } )
+	public int mailSize;
+	
+	protected Session session;
+	protected byte[] mail;
+	
+	@Setup
+	public void createMail() throws IOException
+	{
+		this.session = Session.getDefaultInstance( new Properties() );
+		this.mail = newMail( this.mailSize );
+	}
+	
+	/**
+	 * Creates the raw data of a simple multipart mail with 
+	 * a base64 encoded attachment of the passed size.
+	 */
+	public static byte[] newMail( int bodySize ) throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream( bodySize + 1024 );
+		String header = 
+			"Return-Path: <dyson.test@example.com>\r\n" +
+			"Received: from localhost (localhost [127.0.0.1])\r\n" +
+			"\tby dyson with SMTP; Tue, 7 Sep 2010 12:00:00 +0200\r\n" +
+			"From: \"dyson test\" <dyson.test@example.com>\r\n" +
+			"To: \"test recipient\" <test@example.com>\r\n" +
+			"Message-ID: <1234567890.1.1283853600000.JavaMail.dyson@localhost>\r\n" +
+			"Subject: dyson benchmark\r\n" +
+			"Date: Tue, 7 Sep 2010 12:00:00 +0200\r\n" +
+			"MIME-Version: 1.0\r\n" +
+			"Content-Type: multipart/mixed; boundary=\"----=_Part_0\"\r\n" +
+			"\r\n" +
+			"------=_Part_0\r\n" +
+			"Content-Type: application/octet-stream\r\n" +
+			"Content-Transfer-Encoding: base64\r\n" +
+			"\r\n";
+		out.write( header.getBytes( "US-ASCII" ) );
+		
+		byte[] line = 
+			"ZHlzb24gLSBhbiBhYnNvcmJpbmcgU01UUCBzZXJ2ZXIgZHlzb24gLSBhbiBhYnNv\r\n"
+			.getBytes( "US-ASCII" );
+		for( int written = 0; written < bodySize; written += line.length )
+		{
+			out.write( line );
+		}
+		
+		out.write( "------=_Part_0--\r\n".getBytes( "US-ASCII" ) );
+		return out.toByteArray();
+	}
+	
+	@Benchmark
+	public String mimeMessage() throws MessagingException
+	{
+		MimeMessage message = new MimeMessage( 
+				this.session, new ByteArrayInputStream( this.mail ) );
+		return message.getRecipients( RecipientType.TO )[ 0 ].toString();
+	}
+	
+	@Benchmark
+	public String mailHeaders() throws IOException, MessagingException
+	{
+		MailHeaders headers = 
+			MailHeaders.read( new ByteArrayInputStream( this.mail ) );
+		return headers.getFirstToAddress();
+	}
+	
+}//class MailHeadersBenchmark
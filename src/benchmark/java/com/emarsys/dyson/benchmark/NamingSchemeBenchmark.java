@@ -0,0 +1,109 @@
+/**
+ *   (c) Copyright 2007-2010 by emarsys eMarketing Systems AG
+ * 
+ *   This file is part of dyson.
+ *
+ *   dyson is free software; you can redistribute it and/or modify
+ *   it under the terms of the GNU Lesser General Public License as published by
+ *   the Free Software Foundation; either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   dyson is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.emarsys.dyson.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.emarsys.dyson.DysonConfig;
+import com.emarsys.dyson.DysonServer;
+import com.emarsys.dyson.storage.FlexibleMailStorageNamingScheme;
+import com.emarsys.dyson.storage.FlexibleMailStorageNamingScheme.Token;
+
+/**
+ * JMH benchmark of {@link FlexibleMailStorageNamingScheme#getMailFile} 
+ * for several {@link Token} combinations.
+ * 
+ * @author <a href="mailto:kulovits@emarsys.com">Michael "kULO" Kulovits</a>
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class NamingSchemeBenchmark
+{
+	/**
+	 * the configured {@link Token}s, the first one is dyson's default
+	 */
+	@Param( { 
+		"RECIPIENT_DOMAIN,RECIPIENT_NAME,CURRENT_TIMESTAMP",
+		"RECIPIENT_DOMAIN,RECIPIENT_NAME,CURRENT_TIME_MILLIS",
+		"RECIPIENT_DOMAIN",
+		"CURRENT_TIMESTAMP",
+		"CURRENT_TIME_MILLIS" } )
+	public String tokens;
+	
+	/**
+	 * the size of the mail's body in bytes: 1KB and 1MB
+	 */
+	@Param( { "1024", "1048576" } )
+	public int mailSize;
+	
+	protected DysonServer server;
+	protected FlexibleMailStorageNamingScheme namingScheme;
+	protected File processedDir;
+	protected byte[] mail;
+	
+	@Setup
+	public void createNamingScheme() throws IOException
+	{
+		Properties settings = new Properties();
+		settings.setProperty( 
+				DysonConfig.STORAGE_PROCESSED_MAIL_NAMING_SCHEME_TOKENS, 
+				this.tokens );
+		
+		this.server = DysonBenchmarkSupport.newServer( "naming", settings );
+		this.namingScheme = new FlexibleMailStorageNamingScheme( this.server );
+		this.processedDir = 
+			new File( this.server.getStorage().getProcessedDirName() );
+		this.mail = MailHeadersBenchmark.newMail( this.mailSize );
+	}
+	
+	@TearDown
+	public void disposeServer() throws IOException
+	{
+		DysonBenchmarkSupport.dispose( this.server );
+	}
+	
+	@Benchmark
+	public File getMailFile()
+	{
+		return this.namingScheme.getMailFile( 
+				this.processedDir, new ByteArrayInputStream( this.mail ) );
+	}
+	
+}//class NamingSchemeBenchmark
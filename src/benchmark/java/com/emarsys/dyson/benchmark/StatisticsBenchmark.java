@@ -0,0 +1,84 @@
+/**
+ *   (c) Copyright 2007-2010 by emarsys eMarketing Systems AG
+ * 
+ *   This file is part of dyson.
+ *
+ *   dyson is free software; you can redistribute it and/or modify
+ *   it under the terms of the GNU Lesser General Public License as published by
+ *   the Free Software Foundation; either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   dyson is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.emarsys.dyson.benchmark;
+
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.emarsys.dyson.DysonServer;
+import com.emarsys.dyson.DysonStatistics.Latency;
+import com.emarsys.dyson.DysonStatistics.MailEvent;
+
+/**
+ * JMH benchmark of {@link DysonServer#fire(MailEvent)} and 
+ * {@link DysonServer#record(Latency, long)}, which are called by all 
+ * SMTP and storage threads for every mail. Run it with several thread 
+ * counts using the {@link BenchmarkRunner} to see the contention.
+ * 
+ * @author <a href="mailto:kulovits@emarsys.com">Michael "kULO" Kulovits</a>
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class StatisticsBenchmark
+{
+	protected DysonServer server;
+	
+	@Setup
+	public void createServer() throws IOException
+	{
+		this.server = 
+			DysonBenchmarkSupport.newServer( "statistics", new Properties() );
+	}
+	
+	@TearDown
+	public void disposeServer() throws IOException
+	{
+		DysonBenchmarkSupport.dispose( this.server );
+	}
+	
+	@Benchmark
+	public void fire()
+	{
+		this.server.fire( MailEvent.MAIL_HANDLED );
+	}
+	
+	@Benchmark
+	public void record()
+	{
+		this.server.record( Latency.ACCEPTED_TO_STORED, 42 );
+	}
+	
+}//class StatisticsBenchmark
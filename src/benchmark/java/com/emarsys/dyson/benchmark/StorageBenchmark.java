@@ -0,0 +1,205 @@
+/**
+ *   (c) Copyright 2007-2010 by emarsys eMarketing Systems AG
+ * 
+ *   This file is part of dyson.
+ *
+ *   dyson is free software; you can redistribute it and/or modify
+ *   it under the terms of the GNU Lesser General Public License as published by
+ *   the Free Software Foundation; either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   dyson is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.emarsys.dyson.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.emarsys.dyson.Dyson;
+import com.emarsys.dyson.DysonConfig;
+import com.emarsys.dyson.DysonServer;
+import com.emarsys.dyson.storage.DefaultDysonStorage;
+import com.emarsys.dyson.storage.IncomingStorageMessageListener;
+
+/**
+ * <p>
+ * JMH benchmark of the storage's hot paths: writing an incoming mail 
+ * ({@link IncomingStorageMessageListener#writeMailFile}), generating 
+ * its name ({@link IncomingStorageMessageListener#getBaseFileName}) and 
+ * moving it into the processed directory 
+ * ({@link DefaultDysonStorage#doMove}, i.e. the work of a 
+ * {@link DefaultDysonStorage#move} task).
+ * </p><p>
+ * Run it with several thread counts using the {@link BenchmarkRunner}.
+ * </p>
+ * 
+ * @author <a href="mailto:kulovits@emarsys.com">Michael "kULO" Kulovits</a>
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class StorageBenchmark
+{
+	/**
+	 * exposes the protected hot paths of the message listener
+	 */
+	public static class BenchmarkListener extends IncomingStorageMessageListener
+	{
+		public BenchmarkListener( Dyson dyson )
+		{
+			super( dyson );
+		}
+		
+		public void write( byte[] mail, String partFileName ) throws IOException
+		{
+			this.writeMailFile( new ByteArrayInputStream( mail ), partFileName );
+		}
+		
+		public String baseFileName()
+		{
+			return this.getBaseFileName( "from@example.com", "to@example.com" );
+		}
+	}//class BenchmarkListener
+	
+	/**
+	 * exposes the move of a single mail of the default storage, 
+	 * used as {@link DysonConfig#STORAGE_CLASS}
+	 */
+	public static class BenchmarkStorage extends DefaultDysonStorage
+	{
+		public BenchmarkStorage( Dyson dyson )
+		{
+			super( dyson );
+		}
+		
+		public void moveIntoProcessedDir( File mailFile )
+		{
+			this.doMove( mailFile, new File( this.getProcessedDirName() ) );
+		}
+	}//class BenchmarkStorage
+	
+	/**
+	 * the per thread partial mail file written by 
+	 * {@link StorageBenchmark#writeMailFile(PartFile)}
+	 */
+	@State( Scope.Thread )
+	public static class PartFile
+	{
+		private static final AtomicInteger threadCounter = new AtomicInteger();
+		
+		protected File file;
+		
+		@Setup
+		public void createName( StorageBenchmark benchmark )
+		{
+			this.file = new File( 
+					benchmark.server.getStorage().getIncomingDirName(), 
+					"benchmark-" + threadCounter.incrementAndGet() + ".part" );
+		}
+	}//class PartFile
+	
+	/**
+	 * the per thread incoming mail moved by 
+	 * {@link StorageBenchmark#move(IncomingMail)}
+	 */
+	@State( Scope.Thread )
+	public static class IncomingMail
+	{
+		private static final AtomicInteger threadCounter = new AtomicInteger();
+		
+		protected File file;
+		
+		/**
+		 * provides a fresh mail for every invocation
+		 */
+		@Setup( Level.Invocation )
+		public void createIncomingMail( StorageBenchmark benchmark ) 
+			throws IOException
+		{
+			if( this.file == null )
+			{
+				this.file = new File( 
+						benchmark.server.getStorage().getIncomingDirName(), 
+						"benchmark-" + threadCounter.incrementAndGet() + "." + 
+						benchmark.server.getStorage().getMailFileSuffix() );
+			}
+			DysonBenchmarkSupport.writeRaw( benchmark.mail, this.file );
+		}
+	}//class IncomingMail
+	
+	/**
+	 * the size of the mail's body in bytes: 1KB, 100KB and 1MB
+	 */
+	@Param( { "1024", "102400", "1048576" } )
+	public int mailSize;
+	
+	protected DysonServer server;
+	protected BenchmarkListener listener;
+	protected BenchmarkStorage storage;
+	protected byte[] mail;
+	
+	@Setup
+	public void createServer() throws IOException
+	{
+		Properties settings = new Properties();
+		settings.setProperty( DysonConfig.STORAGE_CLASS, 
+				BenchmarkStorage.class.getName() );
+		
+		this.server = DysonBenchmarkSupport.newServer( "storage", settings );
+		this.listener = new BenchmarkListener( this.server );
+		this.storage = (BenchmarkStorage) this.server.getStorage();
+		this.mail = MailHeadersBenchmark.newMail( this.mailSize );
+	}
+	
+	@TearDown
+	public void disposeServer() throws IOException
+	{
+		DysonBenchmarkSupport.dispose( this.server );
+	}
+	
+	@Benchmark
+	public void writeMailFile( PartFile partFile ) throws IOException
+	{
+		this.listener.write( this.mail, partFile.file.getPath() );
+	}
+	
+	@Benchmark
+	public String getBaseFileName()
+	{
+		return this.listener.baseFileName();
+	}
+	
+	@Benchmark
+	public void move( IncomingMail incomingMail )
+	{
+		this.storage.moveIntoProcessedDir( incomingMail.file );
+	}
+	
+}//class StorageBenchmark
@@ -60,6 +60,19 @@ public interface DysonConfig
 	 */
 	String SERVER_PROPERTIES_FILE = "dyson.server.properties.file";
 	
+	/** Identifies this dyson node, e.g. in the names of incoming mail 
+	 *  files. Must be unique among all nodes sharing a storage. */
+	String SERVER_NODE_ID = "dyson.server.node.id";
+	/** Per default (empty value) a random id is generated on start up */
+	String SERVER_NODE_ID_DEFAULT = "";
+	
+	/** Use this concrete statistics implementation. The class has to 
+	 *  implement DysonStatistics and provide a constructor taking the 
+	 *  Dyson instance. */
+	String SERVER_STATISTICS_CLASS = "dyson.server.statistics.class";
+	/** Per default use the lock-free default statistics */
+	String SERVER_STATISTICS_CLASS_DEFAULT = "com.emarsys.dyson.statistics.DefaultDysonStatistics";
+	
 	/** Enables the dyson server to register a hook that calls its stop()
 	 * 	method on the shutdown of the JVM */
 	String SERVER_SHUTDOWN_HOOK_ENABLED = "dyson.server.shutdown.hook.enabled";
@@ -133,21 +146,170 @@ public interface DysonConfig
 	/** Per default use the DysonStorage class itself */
 	String STORAGE_CLASS_DEFAULT = "com.emarsys.dyson.storage.DefaultDysonStorage";
 
+	/** Enables the compression of processed mails: the file storage 
+	 *  deflates the mails (gzip format) while moving them into the 
+	 *  processed directory, the mail files keep their names. Compressed 
+	 *  mails are inflated on the fly when served via REST. */
+	String STORAGE_COMPRESSION_ENABLED = "dyson.storage.compression.enabled";
+	/** Per default processed mails are not compressed */
+	String STORAGE_COMPRESSION_ENABLED_DEFAULT = Boolean.FALSE.toString();
+	
+	/** The deflate level used to compress processed mails, from 
+	 *  <tt>1</tt> (fastest) to <tt>9</tt> (smallest) */
+	String STORAGE_COMPRESSION_LEVEL = "dyson.storage.compression.level";
+	/** Per default compress with level 
+	 *  {@value #STORAGE_COMPRESSION_LEVEL_DEFAULT} */
+	String STORAGE_COMPRESSION_LEVEL_DEFAULT = "6";
+	
+	/** Defines the directory the bodies of deduplicated mails are stored 
+	 *  in (see {@link #STORAGE_DEDUP_ENABLED}). It must neither be nor 
+	 *  lie within the incoming or the processed directory, since the 
+	 *  bodies outlive clearing them. It's locked like these directories 
+	 *  while deduplication is enabled, so it cannot be shared by several 
+	 *  dyson instances. */
+	String STORAGE_DIR_BODIES = "dyson.storage.dir.bodies";
+	/** Storage's default body directory: 
+	 *  {@value #STORAGE_DIR_BODIES_DEFAULT} */
+	String STORAGE_DIR_BODIES_DEFAULT = "/var/tmp/dyson/bodies";
+	
+	/** The maximum number of directories the storage remembers as
+	 *  existing, so mails stored into them don't have to check them again */
+	String STORAGE_DIR_CACHE_CAPACITY = "dyson.storage.dir.cache.capacity";
+	/** Per default remember up to {@value #STORAGE_DIR_CACHE_CAPACITY_DEFAULT} 
+	 *  directories */
+	String STORAGE_DIR_CACHE_CAPACITY_DEFAULT = "4096";
+	
 	/** Defines the storage's incoming directory */
 	String STORAGE_DIR_INCOMING = "dyson.storage.dir.incoming";
 	/** Storage's default incoming directory: 
 	 *  {@value #STORAGE_DIR_INCOMING_DEFAULT} */
 	String STORAGE_DIR_INCOMING_DEFAULT = "/var/tmp/dyson/incoming";
 	
+	/** The number of shards (subdirectories <tt>00</tt>, <tt>01</tt>, ...)
+	 *  of the incoming directory, every shard is processed by its own 
+	 *  delivered mail processor. <tt>1</tt> stores all incoming mails 
+	 *  directly in the incoming directory. */
+	String STORAGE_DIR_INCOMING_SHARDS = "dyson.storage.dir.incoming.shards";
+	/** Per default use {@value #STORAGE_DIR_INCOMING_SHARDS_DEFAULT} shard */
+	String STORAGE_DIR_INCOMING_SHARDS_DEFAULT = "1";
+	
 	/** Defines the storage's directory for already processed mails */
 	String STORAGE_DIR_PROCESSED = "dyson.storage.dir.processed";
 	/** Storage's default directory for already processed mails: 
 	 *  {@value #STORAGE_DIR_PROCESSED_DEFAULT} */
 	String STORAGE_DIR_PROCESSED_DEFAULT = "/var/tmp/dyson/processed";
 	
-	/** Defines the buffer size for the FileOutputStream of the storage */
+	/** Defines the directory partially written mails found in the incoming 
+	 *  directory at start up are moved to if they are quarantined */
+	String STORAGE_DIR_QUARANTINE = "dyson.storage.dir.quarantine";
+	/** Storage's default quarantine directory: 
+	 *  {@value #STORAGE_DIR_QUARANTINE_DEFAULT} */
+	String STORAGE_DIR_QUARANTINE_DEFAULT = "/var/tmp/dyson/quarantine";
+	
+	/** Enables the deduplicating storage mode: the bodies of incoming 
+	 *  mails are hashed while being written and stored only once in the 
+	 *  {@link #STORAGE_DIR_BODIES bodies directory}. The mail 
+	 *  files only hold the mail's headers, preceded by an 
+	 *  <tt>X-Dyson-Body</tt> line referencing the body. Mails are served 
+	 *  with their bodies via REST. */
+	String STORAGE_DEDUP_ENABLED = "dyson.storage.dedup.enabled";
+	/** Per default bodies are not deduplicated */
+	String STORAGE_DEDUP_ENABLED_DEFAULT = Boolean.FALSE.toString();
+	
+	/** The maximum size of a body buffered in memory while hashing it, 
+	 *  larger bodies are written to a temporary file first */
+	String STORAGE_DEDUP_MAX_BUFFERED_BYTES = "dyson.storage.dedup.max.buffered.bytes";
+	/** Per default buffer bodies of up to 
+	 *  {@value #STORAGE_DEDUP_MAX_BUFFERED_BYTES_DEFAULT} bytes */
+	String STORAGE_DEDUP_MAX_BUFFERED_BYTES_DEFAULT = String.valueOf( 1024 * 1024 );
+	
+	/** Enables durable writes: mails are forced to the storage device 
+	 *  before they are acknowledged via SMTP. The fsyncs of concurrently 
+	 *  written mails are batched (group commit). The renames of the mail 
+	 *  files are forced by forcing their directories, which requires a 
+	 *  java 7 (or higher) vm. On older vms renames are not forced, so 
+	 *  durable writes should be combined with completing partially 
+	 *  written mails on recovery (see {@link #STORAGE_RECOVERY_PART_FILES}). */
+	String STORAGE_DURABLE_WRITE_ENABLED = "dyson.storage.durable.write.enabled";
+	/** Per default durable writes are disabled */
+	String STORAGE_DURABLE_WRITE_ENABLED_DEFAULT = Boolean.FALSE.toString();
+	
+	/** The maximum number of mails forced by a single group commit */
+	String STORAGE_DURABLE_WRITE_MAX_BATCH = "dyson.storage.durable.write.max.batch";
+	/** Per default force up to 64 mails at once */
+	String STORAGE_DURABLE_WRITE_MAX_BATCH_DEFAULT = "64";
+	
+	/** The maximum time in milli seconds a group commit waits for further 
+	 *  mails before forcing the mails collected so far */
+	String STORAGE_DURABLE_WRITE_MAX_LATENCY_MILLIS = "dyson.storage.durable.write.max.latency.millis";
+	/** Per default wait up to 
+	 *  {@value #STORAGE_DURABLE_WRITE_MAX_LATENCY_MILLIS_DEFAULT}ms */
+	String STORAGE_DURABLE_WRITE_MAX_LATENCY_MILLIS_DEFAULT = "5";
+	
+	/** The number of mails of a group commit forced concurrently, so 
+	 *  the file system can commit their fsyncs together */
+	String STORAGE_DURABLE_WRITE_FORCE_THREADS = "dyson.storage.durable.write.force.threads";
+	/** Per default force up to 
+	 *  {@value #STORAGE_DURABLE_WRITE_FORCE_THREADS_DEFAULT} mails at the same time */
+	String STORAGE_DURABLE_WRITE_FORCE_THREADS_DEFAULT = "16";
+	
+	/** The kind of executor the storage uses to store incoming mails and 
+	 *  to move delivered mails: either a <tt>BOUNDED</tt> thread pool or 
+	 *  <tt>VIRTUAL</tt> threads (one per task). Virtual threads require 
+	 *  a java 21 (or higher) vm, on older vms dyson falls back to the 
+	 *  bounded thread pool. */
+	String STORAGE_EXECUTOR = "dyson.storage.executor";
+	/** Per default use a bounded thread pool */
+	String STORAGE_EXECUTOR_DEFAULT = "BOUNDED";
+	
+	/** The number of threads the storage's executor keeps alive to store 
+	 *  incoming mails and move delivered mails */
+	String STORAGE_EXECUTOR_CORE_POOL_SIZE = "dyson.storage.executor.core.pool.size";
+	/** Per default keep {@value #STORAGE_EXECUTOR_CORE_POOL_SIZE_DEFAULT} 
+	 *  threads alive */
+	String STORAGE_EXECUTOR_CORE_POOL_SIZE_DEFAULT = "16";
+	
+	/** The maximum number of threads of the storage's executor, 
+	 *  threads exceeding the core pool size are only started if the 
+	 *  executor's queue is full */
+	String STORAGE_EXECUTOR_MAX_POOL_SIZE = "dyson.storage.executor.max.pool.size";
+	/** Per default use up to {@value #STORAGE_EXECUTOR_MAX_POOL_SIZE_DEFAULT} 
+	 *  threads */
+	String STORAGE_EXECUTOR_MAX_POOL_SIZE_DEFAULT = "64";
+	
+	/** The maximum number of storage tasks waiting for execution. 
+	 *  For <tt>VIRTUAL</tt> executors the sum of the max. pool size and 
+	 *  the queue capacity limits the number of pending tasks. */
+	String STORAGE_EXECUTOR_QUEUE_CAPACITY = "dyson.storage.executor.queue.capacity";
+	/** Per default queue up to {@value #STORAGE_EXECUTOR_QUEUE_CAPACITY_DEFAULT} 
+	 *  tasks */
+	String STORAGE_EXECUTOR_QUEUE_CAPACITY_DEFAULT = "1000";
+	
+	/** If the storage's executor is saturated submitting a task (i.e. 
+	 *  accepting a mail in the SMTP DATA phase) blocks up to this timeout 
+	 *  before the task is rejected and the SMTP client gets a temporary 
+	 *  (4xx) failure */
+	String STORAGE_EXECUTOR_SUBMIT_TIMEOUT_MILLIS = "dyson.storage.executor.submit.timeout.millis";
+	/** Per default block for up to 10 seconds */
+	String STORAGE_EXECUTOR_SUBMIT_TIMEOUT_MILLIS_DEFAULT = String.valueOf( 10 * Dates.SECOND_IN_MILLIS );
+	
+	/** The maximum number of idle write buffers kept for reuse by the 
+	 *  storage, should correlate with the number of concurrent writers 
+	 *  (see {@link #STORAGE_EXECUTOR_MAX_POOL_SIZE}) */
+	String STORAGE_FILE_BUFFER_POOL_SIZE = "dyson.storage.file.buffer.pool.size";
+	String STORAGE_FILE_BUFFER_POOL_SIZE_DEFAULT = "64";
+	
+	/** Defines the size of the (pooled) write buffers of the storage */
 	String STORAGE_FILE_BUFFER_SIZE_BYTES = "dyson.storage.file.buffer.size.bytes";
-	String STORAGE_FILE_BUFFER_SIZE_BYTES_DEFAULT = "1024";
+	String STORAGE_FILE_BUFFER_SIZE_BYTES_DEFAULT = "8192";
+	
+	/** The maximum number of delivered mails which are handed off directly 
+	 *  from the message listener to the storage's delivered mail processor 
+	 *  in <tt>EVENT_DRIVEN</tt> mode. If the hand-off queue is full the 
+	 *  processor falls back to scanning the incoming directory. */
+	String STORAGE_HANDOFF_QUEUE_CAPACITY = "dyson.storage.handoff.queue.capacity";
+	/** Per default hand off up to 10000 mails */
+	String STORAGE_HANDOFF_QUEUE_CAPACITY_DEFAULT = "10000";
 	
 	/** Use this MessageListener implementation to handle incoming mail. 
 	 *  The specified class has to be a subclass of MessageListener and
@@ -155,6 +317,19 @@ public interface DysonConfig
 	String STORAGE_INCOMING_MESSAGE_LISTENER_CLASS = "dyson.storage.incoming.message.listener.class";
 	String STORAGE_INCOMING_MESSAGE_LISTENER_CLASS_DEFAULT = "com.emarsys.dyson.storage.IncomingStorageMessageListener";
 
+	/** The width of the time buckets of the processed mail index 
+	 *  used for querying mails by their store time. */
+	String STORAGE_INDEX_BUCKET_MILLIS = "dyson.storage.index.bucket.millis";
+	/** Per default use buckets of one minute */
+	String STORAGE_INDEX_BUCKET_MILLIS_DEFAULT = String.valueOf( Dates.MINUTE_IN_MILLIS );
+	
+	/** The maximum number of mails kept in the in-memory index of the 
+	 *  processed mails, the oldest mails are evicted first. 
+	 *  <tt>0</tt> disables the index. */
+	String STORAGE_INDEX_CAPACITY = "dyson.storage.index.capacity";
+	/** Per default index up to 100000 mails */
+	String STORAGE_INDEX_CAPACITY_DEFAULT = "100000";
+
 	/** Defines the suffix (without the '.') for files that store mails  */
 	String STORAGE_MAIL_FILE_SUFFIX = "dyson.storage.mail.file.suffix";
 	String STORAGE_MAIL_FILE_SUFFIX_DEFAULT = "mail";
@@ -164,6 +339,39 @@ public interface DysonConfig
 	String STORAGE_MAIL_PARTIAL_FILE_SUFFIX = "dyson.storage.mail.partial.file.suffix";
 	String STORAGE_MAIL_PARTIAL_FILE_SUFFIX_DEFAULT = "part";
 	
+	/** The size of the off-heap ring buffer of the memory storage in 
+	 *  bytes, the oldest mails are spilled to segment files in the 
+	 *  processed directory once it's exceeded. The buffer is allocated 
+	 *  as direct memory, so <tt>-XX:MaxDirectMemorySize</tt> may have 
+	 *  to be raised accordingly. */
+	String STORAGE_MEMORY_BUDGET_BYTES = "dyson.storage.memory.budget.bytes";
+	/** Per default keep up to 
+	 *  {@value #STORAGE_MEMORY_BUDGET_BYTES_DEFAULT} bytes in memory */
+	String STORAGE_MEMORY_BUDGET_BYTES_DEFAULT = String.valueOf( 256 * 1024 * 1024 );
+	
+	/** Spill the mails held in memory by the memory storage to the 
+	 *  processed directory when the storage is stopped, otherwise they 
+	 *  are discarded */
+	String STORAGE_MEMORY_SPILL_ON_STOP = "dyson.storage.memory.spill.on.stop";
+	/** Per default spill the mails held in memory on stop */
+	String STORAGE_MEMORY_SPILL_ON_STOP_DEFAULT = Boolean.TRUE.toString();
+	
+	/** The maximum number of delivered mails the storage moves into the 
+	 *  processed directory per batch. The mails of a batch are grouped by 
+	 *  their target directory so every directory is created only once. */
+	String STORAGE_MOVER_BATCH_SIZE = "dyson.storage.mover.batch.size";
+	/** Per default move up to {@value #STORAGE_MOVER_BATCH_SIZE_DEFAULT} 
+	 *  mails per batch */
+	String STORAGE_MOVER_BATCH_SIZE_DEFAULT = "256";
+	
+	/** The number of tasks resolving the storage locations of and 
+	 *  renaming the mails of a batch in parallel, they run on the 
+	 *  storage's executor (see {@link #STORAGE_EXECUTOR}) */
+	String STORAGE_MOVER_WORKERS = "dyson.storage.mover.workers";
+	/** Per default split a batch into 
+	 *  {@value #STORAGE_MOVER_WORKERS_DEFAULT} tasks */
+	String STORAGE_MOVER_WORKERS_DEFAULT = "4";
+	
 	/** Defines the mail storage naming scheme implementation used to
 	 * 	create the final file name for already processed mails */
 	String STORAGE_PROCESSED_MAIL_NAMING_SCHEME_CLASS = "dyson.storage.processed.mail.naming.scheme.class";
@@ -176,5 +384,58 @@ public interface DysonConfig
 	String STORAGE_PROCESSED_MAIL_NAMING_SCHEME_TOKENS = "dyson.storage.processed.mail.naming.scheme.tokens";
 	/** Per default the flexible naming scheme is set to */
 	String STORAGE_PROCESSED_MAIL_NAMING_SCHEME_TOKENS_DEFAULT = "RECIPIENT_DOMAIN,RECIPIENT_NAME,CURRENT_TIMESTAMP";
+	
+	/** Defines how the storage's delivered mail processor learns about new 
+	 *  mails in the incoming directory: either by <tt>POLLING</tt> the 
+	 *  incoming directory periodically or <tt>EVENT_DRIVEN</tt>, i.e. by 
+	 *  being woken up by the message listener as soon as a mail has been 
+	 *  written completely */
+	String STORAGE_PROCESSOR_MODE = "dyson.storage.processor.mode";
+	/** Per default the incoming directory is polled */
+	String STORAGE_PROCESSOR_MODE_DEFAULT = "POLLING";
+	
+	/** The interval in milli seconds the delivered mail processor waits 
+	 *  between two scans of the incoming directory in <tt>POLLING</tt> mode */
+	String STORAGE_PROCESSOR_POLLING_INTERVAL_MILLIS = "dyson.storage.processor.polling.interval.millis";
+	/** Per default poll the incoming directory every second */
+	String STORAGE_PROCESSOR_POLLING_INTERVAL_MILLIS_DEFAULT = String.valueOf( Dates.SECOND_IN_MILLIS );
+	
+	/** The maximum interval in milli seconds between two scans of the 
+	 *  incoming directory in <tt>EVENT_DRIVEN</tt> mode, i.e. the 
+	 *  reconciliation scan serving as safety net for missed events */
+	String STORAGE_PROCESSOR_RECONCILIATION_INTERVAL_MILLIS = "dyson.storage.processor.reconciliation.interval.millis";
+	/** Per default reconcile the incoming directory every 30 seconds */
+	String STORAGE_PROCESSOR_RECONCILIATION_INTERVAL_MILLIS_DEFAULT = String.valueOf( 30 * Dates.SECOND_IN_MILLIS );
+	
+	/** What to do with partially written mails left in the incoming 
+	 *  directory by a crashed dyson: <tt>QUARANTINE</tt> them, i.e. move 
+	 *  them to the quarantine directory, <tt>COMPLETE</tt> them, i.e. 
+	 *  process them as they are, or <tt>DELETE</tt> them. Note that the 
+	 *  mails have already been accepted via SMTP. */
+	String STORAGE_RECOVERY_PART_FILES = "dyson.storage.recovery.part.files";
+	/** Per default partially written mails are quarantined */
+	String STORAGE_RECOVERY_PART_FILES_DEFAULT = "QUARANTINE";
+	
+	/** The maximum time the segment storage waits for further mails 
+	 *  before forcing the appended mails to the storage device, all 
+	 *  mails appended meanwhile are committed by a single fsync */
+	String STORAGE_SEGMENT_COMMIT_INTERVAL_MILLIS = "dyson.storage.segment.commit.interval.millis";
+	/** Per default wait up to {@value #STORAGE_SEGMENT_COMMIT_INTERVAL_MILLIS_DEFAULT}ms */
+	String STORAGE_SEGMENT_COMMIT_INTERVAL_MILLIS_DEFAULT = "2";
+	
+	/** The size after which the segment storage starts a new segment file */
+	String STORAGE_SEGMENT_SIZE_BYTES = "dyson.storage.segment.size.bytes";
+	/** Per default start a new segment after 
+	 *  {@value #STORAGE_SEGMENT_SIZE_BYTES_DEFAULT} bytes */
+	String STORAGE_SEGMENT_SIZE_BYTES_DEFAULT = String.valueOf( 64 * 1024 * 1024 );
+	
+	/** Enables single-pass storage: mails are written to the incoming 
+	 *  directory and then moved straight to their final location in the 
+	 *  processed directory by the message listener, using the headers 
+	 *  captured while writing, instead of being parsed a second time by 
+	 *  the storage's delivered mail processor */
+	String STORAGE_SINGLE_PASS_ENABLED = "dyson.storage.single.pass.enabled";
+	/** Per default single-pass storage is disabled */
+	String STORAGE_SINGLE_PASS_ENABLED_DEFAULT = Boolean.FALSE.toString();
 
 }//interface DysonConfig
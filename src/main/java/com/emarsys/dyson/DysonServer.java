@@ -21,12 +21,14 @@ package com.emarsys.dyson;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
 import java.util.Calendar;
 import java.util.Collection;
 import java.util.LinkedList;
 import java.util.Map;
 import java.util.Properties;
-import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.mail.Session;
 import javax.mail.Transport;
@@ -41,6 +43,7 @@ import org.subethamail.smtp.server.SMTPServer;
 import com.emarsys.ecommon.builder.time.CalendarBuilder;
 import com.emarsys.ecommon.collections.MapUtil;
 import com.emarsys.ecommon.concurrent.Threads;
+import com.emarsys.ecommon.io.IOUtil;
 import com.emarsys.ecommon.mail.JMailProperties;
 import com.emarsys.ecommon.prefs.config.Configuration;
 import com.emarsys.ecommon.prefs.config.ConfigurationBackend;
@@ -95,10 +98,10 @@ public class DysonServer
 	
 	//runtime information
 	protected Calendar startTime = null;
-	protected AtomicInteger nbrOfHandledMails = new AtomicInteger( 0 );
-	protected AtomicInteger nbrOfIncomingMails = new AtomicInteger( 0 );
-	protected AtomicInteger nbrOfDiscardedMails = new AtomicInteger( 0 );
-	protected AtomicInteger nbrOfProcessedMails = new AtomicInteger( 0 );
+	/**
+	 * the statistics the {@link MailEvent}s are counted by
+	 */
+	protected DysonStatistics statistics;
 	
 	//javamail "proxy" to dyson
 	/**
@@ -112,13 +115,14 @@ public class DysonServer
 	 * Creates a new {@link DysonServer} instance.
 	 * </p><p>
 	 * Initializes the server's {@link #initConfig(String[]) config},
-	 * {@link #initStorage() storage}, {@link #initMsgListeners() 
-	 * message listeners} as well as the {@link #initSmtp() SMTP server}.
+	 * {@link #initStatistics() statistics}, {@link #initStorage() storage},
+	 * {@link #initMsgListeners() message listeners} as well as the {@link #initSmtp() SMTP server}.
 	 * </p>
 	 */
 	public DysonServer()
 	{
 		this.initConfig();
+		this.initStatistics();
 		this.initStorage();
 		this.initMsgListeners();
 		this.initSmtp();
@@ -225,8 +229,16 @@ public class DysonServer
 		{
 			try
 			{
-				result = new Properties();
-				result.load( new FileInputStream( propsFileName ) );
+				InputStream in = new FileInputStream( propsFileName );
+				try
+				{
+					result = new Properties();
+					result.load( in );
+				}
+				finally
+				{
+					IOUtil.silentClose( in );
+				}
 			} 
 			catch( FileNotFoundException fnfe )
 			{
@@ -242,6 +254,29 @@ public class DysonServer
 		return result;
 	}
 
+	/**
+	 * <p>
+	 * Instantiates the {@link DysonConfig#SERVER_STATISTICS_CLASS 
+	 * configured} {@link DysonStatistics statistics} implementation. 
+	 * </p><p>
+	 * The configuration must have been initialized already!
+	 * </p>
+	 */
+	protected void initStatistics()
+	{
+		assert this.config != null;
+		
+		String statisticsClassName = this.getConfiguration().get( 
+				DysonConfig.SERVER_STATISTICS_CLASS ).getValue();
+		
+		this.statistics = Classes.instantiator( 
+				DysonStatistics.class, DysonException.class )
+		.forName( statisticsClassName )
+		.useConstructor( Dyson.class )
+		.withParams( this )
+		.newInstance();
+	}
+	
 	/**
 	 * <p>
 	 * {@link DysonStorage#initialize(Configuration) initializes} 
@@ -549,47 +584,68 @@ public class DysonServer
 	 */
 	public Map<String,String> getRuntimeInformation()
 	{
-		return MapUtil.getSortedMap(
-				"start.time", Dates.timestampToString( this.startTime ),
-				"mail.handled.count", this.nbrOfHandledMails.toString(),
-				"mail.discarded.count", this.nbrOfDiscardedMails.toString(),
-				"mail.incoming.count", this.nbrOfIncomingMails.toString(),
-				"mail.processed.count", this.nbrOfProcessedMails.toString()
+		Map<String, String> info = MapUtil.getSortedMap(
+				"start.time", Dates.timestampToString( this.startTime )
 		);
+		
+		info.putAll( this.statistics.getRuntimeInformation() );
+		this.addFileDescriptorInformation( info );
+		info.putAll( this.storage.getRuntimeInformation() );
+		
+		return info;
 	}
 	
 	/**
-	 * @see com.emarsys.dyson.DysonStatistics#fire(com.emarsys.dyson.DysonStatistics.MailEvent)
+	 * Adds the number of open and the maximum number of file descriptors
+	 * of this process to the passed runtime information. 
+	 * Only works in SUN VMs on unix systems, the 
+	 * <tt>com.sun.management.UnixOperatingSystemMXBean</tt> is accessed 
+	 * by reflection so other vms can still load this class.
 	 */
-	public void fire( MailEvent event ) 
+	protected void addFileDescriptorInformation( Map<String, String> info )
 	{
-		int cnt; 
-		//TODO replace with more dynamic event handling
-		//this code has to be changed on every change to MailEvent(s) => ugly
-		//introduce a registry for listeners in DysonStatistics
-		switch( event )
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		
+		try
+		{
+			Class<?> unixOs = Class.forName( 
+					"com.sun.management.UnixOperatingSystemMXBean" );
+			if( unixOs.isInstance( os ) )
+			{
+				info.put( "process.fd.open.count", String.valueOf( 
+						unixOs.getMethod( "getOpenFileDescriptorCount" 
+						).invoke( os ) ) );
+				info.put( "process.fd.max.count", String.valueOf( 
+						unixOs.getMethod( "getMaxFileDescriptorCount" 
+						).invoke( os ) ) );
+			}
+		}
+		catch( ClassNotFoundException cnfe )
+		{
+			//not a SUN vm
+		}
+		catch( Exception ex )
 		{
-		case MAIL_HANDLED:
-			cnt = this.nbrOfHandledMails.getAndIncrement();
-			log.debug( "handled mail #{}", cnt );
-			break;
-		case MAIL_DISCARDED:
-			cnt = this.nbrOfDiscardedMails.getAndIncrement();
-			log.debug( "discarded mail #{}", cnt );
-			break;
-		case MAIL_CAME_IN:
-			cnt = this.nbrOfIncomingMails.getAndIncrement();
-			log.debug( "got incoming mail #{}", cnt );
-			break;
-		case MAIL_PROCESSED:
-			cnt = this.nbrOfProcessedMails.getAndIncrement();
-			log.debug( "processed mail #{}", cnt );
-			break;
-		default:
-			log.warn( "ignoring unknown event: " + event );
+			log.debug( "cannot get file descriptor counts: {}", ex );
 		}
 	}
 	
+	/**
+	 * @see com.emarsys.dyson.DysonStatistics#fire(com.emarsys.dyson.DysonStatistics.MailEvent)
+	 */
+	public void fire( MailEvent event ) 
+	{
+		this.statistics.fire( event );
+	}
+	
+	/**
+	 * @see com.emarsys.dyson.DysonStatistics#record(com.emarsys.dyson.DysonStatistics.Latency, long)
+	 */
+	public void record( Latency latency, long millis )
+	{
+		this.statistics.record( latency, millis );
+	}
+	
 	/**
 	 * <p>
 	 * Initializes a {@link DysonServer} {@link #start()}s it.
@@ -29,30 +29,109 @@ import java.util.Map;
  */
 public interface DysonStatistics
 {
+	/**
+	 * The events counted by the statistics, every event is counted 
+	 * using its {@link #getKey() key} (e.g. <tt>mail.handled.count</tt>).
+	 */
 	enum MailEvent 
 	{ 
 		/**
 		 * Indicates that a new mail is being handled by the 
 		 * {@link Dyson#getSmtpServer() SMTP server}
 		 */
-		MAIL_HANDLED,
+		MAIL_HANDLED( "mail.handled.count" ),
 		/**
 		 * Indicates that a new mail is being discarded by the 
 		 * {@link Dyson#getSmtpServer() SMTP server}
 		 */
-		MAIL_DISCARDED,
+		MAIL_DISCARDED( "mail.discarded.count" ),
 		/**
 		 * Indicates that a new mail has been successfully delivered to the 
 		 * incoming directory by the {@link Dyson#getStorage() storage}
 		 */
-		MAIL_CAME_IN,
+		MAIL_CAME_IN( "mail.incoming.count" ),
 		/**
 		 * Indicates taht a mail has finally been successfully delivered 
 		 * to the processed directory by the {@link Dyson#getStorage() storage}
 		 */
-		MAIL_PROCESSED;
+		MAIL_PROCESSED( "mail.processed.count" ),
+		/**
+		 * Indicates that the body of a mail has been stored by the 
+		 * deduplicating {@link Dyson#getStorage() storage}, since it 
+		 * has not been stored before
+		 */
+		MAIL_BODY_STORED( "mail.body.stored.count" ),
+		/**
+		 * Indicates that the body of a mail has not been stored by the 
+		 * deduplicating {@link Dyson#getStorage() storage}, since an 
+		 * identical body has been stored before
+		 */
+		MAIL_BODY_DEDUPLICATED( "mail.body.deduplicated.count" );
+		
+		private final String key;
+		
+		private MailEvent( String key )
+		{
+			this.key = key;
+		}
+		
+		/**
+		 * @return the key of the event's counter in the 
+		 * 		{@link DysonStatistics#getRuntimeInformation() runtime information}
+		 */
+		public String getKey()
+		{
+			return this.key;
+		}
 	}//enum MailEvent
 	
+	/**
+	 * The latencies recorded by the statistics, the percentiles of every
+	 * latency are reported using its {@link #getKey() key} as prefix 
+	 * (e.g. <tt>mail.latency.stored.p99.millis</tt>).
+	 */
+	enum Latency
+	{
+		/**
+		 * The time between accepting a mail by the 
+		 * {@link Dyson#getSmtpServer() SMTP server} and storing it 
+		 * completely in the incoming directory
+		 */
+		ACCEPTED_TO_STORED( "mail.latency.stored" ),
+		/**
+		 * The time between storing a mail in the incoming directory and 
+		 * delivering it to the processed directory
+		 */
+		STORED_TO_PROCESSED( "mail.latency.processed" ),
+		/**
+		 * The time between accepting a mail by the 
+		 * {@link Dyson#getSmtpServer() SMTP server} and delivering it to 
+		 * the processed directory, i.e. the total latency of the mail
+		 */
+		ACCEPTED_TO_PROCESSED( "mail.latency.total" ),
+		/**
+		 * The time a durably written mail waits for being forced to the 
+		 * storage device by a group commit
+		 */
+		STORED_TO_SYNCED( "mail.latency.synced" );
+		
+		private final String key;
+		
+		private Latency( String key )
+		{
+			this.key = key;
+		}
+		
+		/**
+		 * @return the prefix of the latency's keys in the 
+		 * 		{@link DysonStatistics#getRuntimeInformation() runtime information}
+		 */
+		public String getKey()
+		{
+			return this.key;
+		}
+	}//enum Latency
+	
 	/**
 	 * Indicates the occurence of the passed event.
 	 * 
@@ -60,6 +139,14 @@ public interface DysonStatistics
 	 */
 	void fire( MailEvent event );
 	
+	/**
+	 * Records a measured latency.
+	 * 
+	 * @param latency - the kind of the latency
+	 * @param millis - the measured latency in milliseconds
+	 */
+	void record( Latency latency, long millis );
+	
 	/**
 	 * Returns a {@link Map} containing pairs of {@link String strings}
 	 * about dyson's runtime status quo.
@@ -20,14 +20,26 @@ package com.emarsys.dyson;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.io.FileUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.emarsys.ecommon.concurrent.Threads;
+import com.emarsys.ecommon.io.IOUtil;
 import com.emarsys.ecommon.util.Assertions;
 import com.emarsys.ecommon.util.CollectionToStringBuilder;
 
@@ -63,17 +75,60 @@ public abstract class DysonStorage extends GenericDysonPart
 	private static final Logger log = 
 		LoggerFactory.getLogger( DysonStorage.class );
 	
+	//open a directory as file channel (java 7+), see forceDirectory(File)
+	private static final Method toPathMethod;
+	private static final Method openDirectoryMethod;
+	private static final Object readOpenOptions;
+	
+	static
+	{
+		Method toPath = null;
+		Method open = null;
+		Object options = null;
+		try
+		{
+			Class<?> openOptionClass = Class.forName( "java.nio.file.OpenOption" );
+			options = Array.newInstance( openOptionClass, 1 );
+			Array.set( options, 0, Class.forName( 
+					"java.nio.file.StandardOpenOption" ).getField( "READ" ).get( null ) );
+			toPath = File.class.getMethod( "toPath" );
+			open = FileChannel.class.getMethod( "open", 
+					Class.forName( "java.nio.file.Path" ), options.getClass() );
+		}
+		catch( Exception ex )
+		{
+			log.debug( "directories cannot be forced by this vm: {}", ex );
+			toPath = null;
+			open = null;
+		}
+		toPathMethod = toPath;
+		openDirectoryMethod = open;
+		readOpenOptions = options;
+	}
+	
 	/**
-	 * TODO implement an overall state for the dysonstorage
-	 * possible states (still to discuss):
-	 *  - accepting/idle //running, nothing to do
-	 *  - accepting/processing //running, currentyl (still processing mails)
-	 *  - finishing_up //still processing after a stop request, but not accepting more mails
-	 *  - stopped/not running
+	 * The overall state of a {@link DysonStorage}, 
+	 * see {@link DysonStorage#getState()}.
 	 */
 	public enum State
 	{
-		
+		/**
+		 * running, nothing to do: all delivered mails have been processed
+		 */
+		IDLE,
+		/**
+		 * running, (still) storing or processing mails
+		 */
+		PROCESSING,
+		/**
+		 * still storing or processing mails after a stop request, 
+		 * but not accepting more mails
+		 */
+		FINISHING_UP,
+		/**
+		 * not running
+		 */
+		STOPPED;
 	}//enum State
 	
 	
@@ -94,8 +149,12 @@ public abstract class DysonStorage extends GenericDysonPart
 		return storage;
 	}
 	
+	/** the interval {@link #awaitQuiescence(long, TimeUnit)} checks the state */
+	protected static final long QUIESCENCE_POLLING_MILLIS = 20;
+	
 	//cached settings
 	protected String incomingDirName;
+	protected int incomingShardCount = 1;
 	protected String processedDirName;
 	protected String mailFileSuffix;
 	protected String mailPartialFileSuffix;
@@ -141,6 +200,7 @@ public abstract class DysonStorage extends GenericDysonPart
 		try
 		{
 			Assertions.assertNotEmpty( this.incomingDirName );
+			Assertions.assertTrue( this.incomingShardCount > 0 );
 			Assertions.assertNotEmpty( this.processedDirName );
 			Assertions.assertNotEmpty( this.mailFileSuffix );
 			Assertions.assertNotEmpty( this.mailPartialFileSuffix );
@@ -163,6 +223,57 @@ public abstract class DysonStorage extends GenericDysonPart
 		return this.incomingDirName;
 	}
 	
+	/**
+	 * @return the number of shards of the incoming directory
+	 * @see DysonConfig#STORAGE_DIR_INCOMING_SHARDS
+	 */
+	public int getIncomingShardCount()
+	{
+		return this.incomingShardCount;
+	}
+	
+	/**
+	 * @param shard - the shard (<code>0</code> to 
+	 * 		{@link #getIncomingShardCount()} - 1)
+	 * @return the name of the shard's directory, i.e. the 
+	 * 		{@link #getIncomingDirName() incoming directory} itself 
+	 * 		if it's not sharded
+	 */
+	public String getIncomingDirName( int shard )
+	{
+		if( this.incomingShardCount <= 1 )
+		{
+			return this.incomingDirName;
+		}
+		
+		StringBuilder name = new StringBuilder( this.incomingDirName );
+		name.append( File.separatorChar );
+		String shardName = String.valueOf( shard );
+		int width = Math.max( 2, 
+				String.valueOf( this.incomingShardCount - 1 ).length() );
+		for( int i = shardName.length(); i < width; ++i )
+		{
+			name.append( '0' );
+		}
+		return name.append( shardName ).toString();
+	}
+	
+	/**
+	 * @param fileName - the (unique) name of an incoming mail file
+	 * @return the shard the incoming mail file is stored in
+	 */
+	public int getIncomingShard( String fileName )
+	{
+		if( this.incomingShardCount <= 1 )
+		{
+			return 0;
+		}
+		
+		int hash = fileName.hashCode();
+		hash ^= (hash >>> 16);
+		return (hash & 0x7fffffff) % this.incomingShardCount;
+	}
+	
 	public String getProcessedDirName()
 	{
 		return this.processedDirName;
@@ -173,11 +284,73 @@ public abstract class DysonStorage extends GenericDysonPart
 		return this.getMailFiles( this.getIncomingDirName() );
 	}
 	
+	/**
+	 * @return the files of the processed mails
+	 * @throws UnsupportedOperationException - if this storage does not 
+	 * 	keep each mail in a file of its own, 
+	 * 	see {@link #getProcessedMailNames()}
+	 */
 	public Collection<File> getProcessedMailFiles()
+		throws UnsupportedOperationException
 	{
 		return this.getMailFiles( this.getProcessedDirName() );
 	}
 	
+	/**
+	 * @return the names of the processed mails relative to the 
+	 * 		{@link #getProcessedDirName() processed directory}, i.e. the 
+	 * 		names of the {@link #getProcessedMailFiles() processed mail 
+	 * 		files} per default
+	 * @see #getProcessedMail(String)
+	 */
+	public Collection<String> getProcessedMailNames()
+	{
+		String dirPath = new File( this.getProcessedDirName() ).getPath();
+		Collection<File> files = this.getProcessedMailFiles();
+		List<String> names = new ArrayList<String>( files.size() );
+		for( File file : files )
+		{
+			names.add( file.getPath().substring( dirPath.length() + 1 ) );
+		}
+		return names;
+	}
+	
+	/**
+	 * @return the number of processed mails, i.e. the number of 
+	 * 		{@link #getProcessedMailFiles() processed mail files} per default
+	 */
+	public int getProcessedMailCount()
+	{
+		return this.getProcessedMailFiles().size();
+	}
+	
+	/**
+	 * Looks up a single processed mail by its name.
+	 * 
+	 * @param name - the name of the mail relative to the 
+	 * 		{@link #getProcessedDirName() processed directory}
+	 * @return the mail or <code>null</code> if there's no such mail
+	 * @throws IOException - if the name cannot be resolved
+	 * @throws UnsupportedOperationException - if this storage does not 
+	 * 	support looking up single mails
+	 */
+	public StoredMail getProcessedMail( String name )
+		throws IOException, UnsupportedOperationException
+	{
+		throw new UnsupportedOperationException( 
+				this.getClass().getName() + " does not support " +
+				"looking up single mails" );
+	}
+	
+	/**
+	 * @return the index over the processed mails or <code>null</code> 
+	 * 		if this storage does not index its mails
+	 */
+	public ProcessedMailIndex getProcessedMailIndex()
+	{
+		return null;
+	}
+	
 	@SuppressWarnings("unchecked")
 	protected Collection<File> getMailFiles( String dirName )
 	{
@@ -241,6 +414,66 @@ public abstract class DysonStorage extends GenericDysonPart
 	public abstract void stop();
 
 	
+	/**
+	 * <p>
+	 * Checks whether this storage is quiescent, i.e. there are neither 
+	 * mails being stored nor mails waiting to be processed.
+	 * </p><p>
+	 * The default implementation checks whether the 
+	 * {@link #getIncomingMailFiles() incoming directory} is empty. 
+	 * Subclasses should take their pending tasks into account, too.
+	 * </p>
+	 * @return <code>true</code> if all delivered mails have been processed
+	 */
+	public boolean isQuiescent()
+	{
+		return this.getIncomingMailFiles().isEmpty();
+	}
+	
+	/**
+	 * <p>
+	 * Waits until this storage is {@link #isQuiescent() quiescent} or 
+	 * the timeout elapsed, whatever happens first.
+	 * </p><p>
+	 * Note that mails which are still being received by the SMTP server 
+	 * (i.e. which have not been handed to the storage yet) are not 
+	 * taken into account.
+	 * </p>
+	 * @param timeOut
+	 * @param unit
+	 * @return <code>true</code> if the storage is quiescent, 
+	 * 		<code>false</code> if the timeout elapsed before
+	 */
+	public boolean awaitQuiescence( long timeOut, TimeUnit unit )
+	{
+		long deadline = System.currentTimeMillis() + unit.toMillis( timeOut );
+		
+		while( !this.isQuiescent() )
+		{
+			long remaining = deadline - System.currentTimeMillis(); 
+			if( remaining <= 0 )
+			{
+				return false;
+			}
+			Threads.sleepSilently( (int) Math.min( remaining, QUIESCENCE_POLLING_MILLIS ) );
+		}
+		return true;
+	}
+	
+	/**
+	 * Returns the storage's current {@link State}.
+	 * 
+	 * @return the state, never <code>null</code>
+	 */
+	public State getState()
+	{
+		if( !this.isRunning() )
+		{
+			return State.STOPPED;
+		}
+		return this.isQuiescent() ? State.IDLE : State.PROCESSING;
+	}
+	
 	/**
 	 * waits for this dysonstorage to terminate until the timeout exceeded
 	 * 
@@ -274,8 +507,191 @@ public abstract class DysonStorage extends GenericDysonPart
 	 * @param task
 	 * @throws IllegalStateException - if the storage is not 
 	 * 	{@link #isRunning() running}
+	 * @throws RejectedExecutionException - if the storage is saturated
+	 * 	and cannot accept any further tasks (at the moment)
 	 */
 	public abstract void submitTask( Runnable task )
-		throws IllegalStateException;
+		throws IllegalStateException, RejectedExecutionException;
+	
+	/**
+	 * <p>
+	 * Returns a {@link Map} containing pairs of {@link String strings}
+	 * about the storage's runtime status quo (e.g. gauges for mails 
+	 * currently being processed).
+	 * </p><p>
+	 * Subclasses should add their information to the map returned by
+	 * the super implementation.
+	 * </p>
+	 * @return always a valid, modifiable {@link Map} instance, 
+	 * 		never <code>null</code>.
+	 * @see DysonStatistics#getRuntimeInformation()
+	 */
+	public Map<String, String> getRuntimeInformation()
+	{
+		return new TreeMap<String, String>();
+	}
+	
+	/**
+	 * Checks whether this storage supports (and is configured for) 
+	 * {@link #moveIntoProcessedDir(File, InputStream) moving mails into 
+	 * the processed directory} right after they've been written.
+	 * 
+	 * @return <code>false</code> per default
+	 * @see DysonConfig#STORAGE_SINGLE_PASS_ENABLED
+	 */
+	public boolean isSinglePassEnabled()
+	{
+		return false;
+	}
+	
+	/**
+	 * <p>
+	 * Moves the passed, completely written mail file straight to its final 
+	 * location in the {@link #getProcessedDirName() processed directory}.
+	 * </p><p>
+	 * The final location is resolved using the passed mail headers, 
+	 * so the mail file does not have to be read again.
+	 * </p>
+	 * @param mailFile - the completely written mail file
+	 * @param headers - the header section of the mail
+	 * @return the final mail file in the processed directory
+	 * @throws IOException - if the mail file could not be moved
+	 * @throws UnsupportedOperationException - if single-pass storage is
+	 * 	not {@link #isSinglePassEnabled() supported}
+	 */
+	public File moveIntoProcessedDir( File mailFile, InputStream headers )
+		throws IOException, UnsupportedOperationException
+	{
+		throw new UnsupportedOperationException( 
+				this.getClass().getName() + " does not support " +
+				"single-pass storage" );
+	}
+	
+	/**
+	 * Checks whether this storage stores the received mails itself, 
+	 * i.e. the message listeners pass the mail data to 
+	 * {@link #store(InputStream, long)} instead of writing it to 
+	 * the {@link #getIncomingDirName() incoming directory}.
+	 * 
+	 * @return <code>false</code> per default
+	 */
+	public boolean isDirectStorageEnabled()
+	{
+		return false;
+	}
+	
+	/**
+	 * <p>
+	 * Stores the passed mail data directly at its final location, 
+	 * bypassing the incoming directory.
+	 * </p>
+	 * @param data - the mail data
+	 * @param acceptMillis - the time the mail has been accepted
+	 * @return the name of the stored mail
+	 * @throws IOException - if the mail could not be stored
+	 * @throws UnsupportedOperationException - if direct storage is
+	 * 	not {@link #isDirectStorageEnabled() supported}
+	 */
+	public String store( InputStream data, long acceptMillis )
+		throws IOException, UnsupportedOperationException
+	{
+		throw new UnsupportedOperationException( 
+				this.getClass().getName() + " does not support " +
+				"direct storage" );
+	}
+	
+	/**
+	 * Checks whether received mails have to be durable, i.e. forced to 
+	 * the storage device, before they are acknowledged to the SMTP client.
+	 * 
+	 * @return <code>false</code> per default
+	 * @see DysonConfig#STORAGE_DURABLE_WRITE_ENABLED
+	 */
+	public boolean isDurableWriteEnabled()
+	{
+		return false;
+	}
+	
+	/**
+	 * Forces the content of the passed, completely written mail file 
+	 * to the storage device and blocks until it's done. The default 
+	 * implementation simply forces the channel, concrete storages may 
+	 * batch the forces of concurrently written mails.
+	 * 
+	 * @param channel - the channel of the written mail file
+	 * @throws IOException - if the mail file cannot be forced
+	 */
+	public void force( FileChannel channel ) throws IOException
+	{
+		channel.force( true );
+	}
+	
+	/**
+	 * <p>
+	 * Forces the passed directory, i.e. the mail files renamed into it, 
+	 * to the storage device and blocks until it's done. The directory's 
+	 * channel is {@link #force(FileChannel) forced} like a mail file.
+	 * </p><p>
+	 * Only java 7 (or higher) vms can open a directory as 
+	 * {@link FileChannel}, so the channel is opened by reflection. 
+	 * On older vms directories are not forced at all.
+	 * </p>
+	 * @param dir - the directory to force
+	 * @throws IOException - if the directory cannot be forced
+	 */
+	public void forceDirectory( File dir ) throws IOException
+	{
+		if( openDirectoryMethod == null )
+		{
+			return;
+		}
+		
+		FileChannel channel;
+		try
+		{
+			channel = (FileChannel) openDirectoryMethod.invoke( null, 
+					toPathMethod.invoke( dir ), readOpenOptions );
+		}
+		catch( InvocationTargetException ite )
+		{
+			if( ite.getCause() instanceof IOException )
+			{
+				throw (IOException) ite.getCause();
+			}
+			throw new IOException( "cannot open directory " + dir + 
+					": " + ite.getCause() );
+		}
+		catch( IllegalAccessException iae )
+		{
+			throw new IOException( "cannot open directory " + dir + 
+					": " + iae );
+		}
+		
+		try
+		{
+			this.force( channel );
+		}
+		finally
+		{
+			IOUtil.silentClose( channel );
+		}
+	}
+	
+	/**
+	 * <p>
+	 * Notifies the {@link DysonStorage} that the passed mail file has 
+	 * been written completely to the {@link #getIncomingDirName() 
+	 * incoming directory}.
+	 * </p><p>
+	 * The default implementation does nothing, concrete storages may 
+	 * use this hook to process the mail without having to scan the 
+	 * incoming directory for it.
+	 * </p>
+	 * @param mailFile - the completely written mail file
+	 */
+	public void fireMailDelivered( File mailFile )
+	{
+		//nothing to do per default
+	}
 	
 }//class DysonStorage
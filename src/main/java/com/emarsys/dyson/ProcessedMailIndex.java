@@ -0,0 +1,608 @@
+/**
+ *   (c) Copyright 2007-2010 by emarsys eMarketing Systems AG
+ * 
+ *   This file is part of dyson.
+ *
+ *   dyson is free software; you can redistribute it and/or modify
+ *   it under the terms of the GNU Lesser General Public License as published by
+ *   the Free Software Foundation; either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   dyson is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.emarsys.dyson;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * <p>
+ * In-memory index over the {@link DysonStorage#getProcessedDirName() 
+ * processed mails}, maintained incrementally by the storage whenever a 
+ * mail is stored.
+ * </p><p>
+ * Mails can be looked up by {@link Key recipient, recipient domain, sender 
+ * and Message-ID} as well as by their store time, which is bucketed into 
+ * slots of a configurable width. All lookups are hash (or tree) lookups 
+ * and return pages of the matching mails, newest first.
+ * </p><p>
+ * The index is bounded, the oldest mails are evicted once its capacity 
+ * is exceeded.
+ * </p>
+ * @author <a href="mailto:kulovits@emarsys.com">Michael "kULO" Kulovits</a>
+ * @see DysonConfig#STORAGE_INDEX_CAPACITY
+ * @see DysonConfig#STORAGE_INDEX_BUCKET_MILLIS
+ */
+public class ProcessedMailIndex
+{
+	/**
+	 * The attributes mails are indexed by.
+	 */
+	public enum Key
+	{
+		RECIPIENT( "recipient" ),
+		DOMAIN( "domain" ) 
+		{
+			@Override
+			public String normalize( String value )
+			{
+				String address = super.normalize( value );
+				return address.substring( address.lastIndexOf( '@' ) + 1 );
+			}
+		},
+		SENDER( "sender" ),
+		MESSAGE_ID( "message-id" );
+		
+		private final String name;
+		
+		private Key( String name )
+		{
+			this.name = name;
+		}
+		
+		/**
+		 * @return the external name of the key
+		 */
+		public String getName()
+		{
+			return this.name;
+		}
+		
+		/**
+		 * @return the passed value in the form it's indexed in, i.e. 
+		 * 		trimmed, lower case and without enclosing angle brackets
+		 */
+		public String normalize( String value )
+		{
+			String normalized = value.trim().toLowerCase();
+			if( normalized.length() > 1 && normalized.charAt( 0 ) == '<' && 
+				normalized.charAt( normalized.length() - 1 ) == '>' )
+			{
+				normalized = normalized.substring( 1, normalized.length() - 1 );
+			}
+			return normalized;
+		}
+		
+		/**
+		 * @return the key with the passed external name or 
+		 * 		<code>null</code> if there's no such key
+		 */
+		public static Key forName( String name )
+		{
+			for( Key key : values() )
+			{
+				if( key.name.equalsIgnoreCase( name ) )
+				{
+					return key;
+				}
+			}
+			return null;
+		}
+	}//enum Key
+	
+	/**
+	 * An indexed mail.
+	 */
+	public static class Entry
+	{
+		protected final String name;
+		protected final long storedMillis;
+		protected final String messageId;
+		protected final String sender;
+		protected final List<String> recipients;
+		
+		protected Entry( 
+				String name, long storedMillis, String messageId, 
+				String sender, List<String> recipients )
+		{
+			this.name = name;
+			this.storedMillis = storedMillis;
+			this.messageId = messageId;
+			this.sender = sender;
+			this.recipients = recipients;
+		}
+
+		/**
+		 * @return the name of the mail relative to the processed directory
+		 */
+		public String getName()
+		{
+			return this.name;
+		}
+
+		public long getStoredMillis()
+		{
+			return this.storedMillis;
+		}
+
+		/**
+		 * @return the normalized Message-ID or <code>null</code>
+		 */
+		public String getMessageId()
+		{
+			return this.messageId;
+		}
+
+		/**
+		 * @return the normalized sender address or <code>null</code>
+		 */
+		public String getSender()
+		{
+			return this.sender;
+		}
+
+		/**
+		 * @return the normalized recipient addresses, never <code>null</code>
+		 */
+		public List<String> getRecipients()
+		{
+			return this.recipients;
+		}
+	}//class Entry
+	
+	/**
+	 * A page of a query result.
+	 */
+	public static class Page
+	{
+		protected final List<Entry> entries;
+		protected final int total;
+		
+		protected Page( List<Entry> entries, int total )
+		{
+			this.entries = entries;
+			this.total = total;
+		}
+		
+		/**
+		 * @return the mails on this page, newest first
+		 */
+		public List<Entry> getEntries()
+		{
+			return this.entries;
+		}
+		
+		/**
+		 * @return the number of matching mails on all pages
+		 */
+		public int getTotal()
+		{
+			return this.total;
+		}
+	}//class Page
+	
+	protected final int capacity;
+	protected final long bucketMillis;
+	
+	protected final ReadWriteLock lock = new ReentrantReadWriteLock();
+	/** all entries in insertion order, the oldest are evicted first */
+	protected final ArrayDeque<Entry> entries = new ArrayDeque<Entry>();
+	protected final Map<String, Entry> byName = new HashMap<String, Entry>();
+	protected final Map<Key, Map<String, ArrayDeque<Entry>>> byKey = 
+		new EnumMap<Key, Map<String, ArrayDeque<Entry>>>( Key.class );
+	protected final NavigableMap<Long, ArrayDeque<Entry>> byBucket = 
+		new TreeMap<Long, ArrayDeque<Entry>>();
+	
+	protected final AtomicLong evictionCount = new AtomicLong();
+	
+	/**
+	 * @param capacity - the maximum number of indexed mails
+	 * @param bucketMillis - the width of the time buckets
+	 */
+	public ProcessedMailIndex( int capacity, long bucketMillis )
+	{
+		if( capacity <= 0 || bucketMillis <= 0 )
+		{
+			throw new IllegalArgumentException( "capacity (" + capacity + 
+					") and bucket width (" + bucketMillis + 
+					") have to be positive" );
+		}
+		this.capacity = capacity;
+		this.bucketMillis = bucketMillis;
+		
+		for( Key key : Key.values() )
+		{
+			this.byKey.put( key, new HashMap<String, ArrayDeque<Entry>>() );
+		}
+	}
+	
+	/**
+	 * Adds a mail to the index, replacing a mail with the same name.
+	 * 
+	 * @param name - the name of the mail relative to the processed directory
+	 * @param storedMillis - the time the mail has been stored
+	 * @param messageId - the raw Message-ID or <code>null</code>
+	 * @param sender - the sender address or <code>null</code>
+	 * @param recipients - the recipient addresses
+	 */
+	public void add( 
+			String name, long storedMillis, String messageId, String sender, 
+			Collection<String> recipients )
+	{
+		Entry entry = 
+			newEntry( name, storedMillis, messageId, sender, recipients );
+		
+		this.lock.writeLock().lock();
+		try
+		{
+			Entry replaced = this.byName.put( name, entry );
+			if( replaced != null )
+			{
+				this.entries.removeFirstOccurrence( replaced );
+				this.unlink( replaced );
+			}
+			this.entries.addLast( entry );
+			this.link( entry, false );
+			
+			while( this.entries.size() > this.capacity )
+			{
+				Entry evicted = this.entries.pollFirst();
+				this.byName.remove( evicted.name );
+				this.unlink( evicted );
+				this.evictionCount.incrementAndGet();
+			}
+		}
+		finally
+		{
+			this.lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Adds a mail which is older than all indexed mails, e.g. while the 
+	 * index is rebuilt from the stored mails (newest first) and new mails 
+	 * are {@link #add(String, long, String, String, Collection) added} 
+	 * at the same time. Unlike those it never evicts nor replaces a mail.
+	 * 
+	 * @return <code>false</code> if the index is full, 
+	 * 		i.e. no older mails can be added anymore
+	 * @see #add(String, long, String, String, Collection)
+	 */
+	public boolean addOldest( 
+			String name, long storedMillis, String messageId, String sender, 
+			Collection<String> recipients )
+	{
+		Entry entry = 
+			newEntry( name, storedMillis, messageId, sender, recipients );
+		
+		this.lock.writeLock().lock();
+		try
+		{
+			if( this.entries.size() >= this.capacity )
+			{
+				return false;
+			}
+			if( !this.byName.containsKey( name ) )
+			{
+				this.byName.put( name, entry );
+				this.entries.addFirst( entry );
+				this.link( entry, true );
+			}
+			return true;
+		}
+		finally
+		{
+			this.lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * @return an entry with normalized keys
+	 */
+	protected static Entry newEntry( 
+			String name, long storedMillis, String messageId, String sender, 
+			Collection<String> recipients )
+	{
+		Set<String> normalizedRecipients = 
+			new LinkedHashSet<String>( recipients.size() * 2 );
+		for( String recipient : recipients )
+		{
+			normalizedRecipients.add( Key.RECIPIENT.normalize( recipient ) );
+		}
+		return new Entry( name, storedMillis, 
+				messageId == null ? null : Key.MESSAGE_ID.normalize( messageId ), 
+				sender == null ? null : Key.SENDER.normalize( sender ), 
+				Collections.unmodifiableList( 
+						new ArrayList<String>( normalizedRecipients ) ) );
+	}
+	
+	/**
+	 * adds the entry to the key and bucket maps as their newest or 
+	 * oldest entry, has to be called while holding the write lock
+	 */
+	protected void link( Entry entry, boolean asOldest )
+	{
+		if( entry.sender != null )
+		{
+			push( this.get( Key.SENDER, entry.sender, true ), entry, asOldest );
+		}
+		if( entry.messageId != null )
+		{
+			push( this.get( Key.MESSAGE_ID, entry.messageId, true ), 
+					entry, asOldest );
+		}
+		for( String recipient : entry.recipients )
+		{
+			push( this.get( Key.RECIPIENT, recipient, true ), entry, asOldest );
+			
+			ArrayDeque<Entry> domain = this.get( 
+					Key.DOMAIN, Key.DOMAIN.normalize( recipient ), true );
+			//mails to several recipients of the same domain are listed once
+			if( (asOldest ? domain.peekFirst() : domain.peekLast()) != entry )
+			{
+				push( domain, entry, asOldest );
+			}
+		}
+		
+		Long bucket = this.getBucket( entry.storedMillis );
+		ArrayDeque<Entry> entries = this.byBucket.get( bucket );
+		if( entries == null )
+		{
+			entries = new ArrayDeque<Entry>();
+			this.byBucket.put( bucket, entries );
+		}
+		push( entries, entry, asOldest );
+	}
+	
+	protected static void push( 
+			ArrayDeque<Entry> entries, Entry entry, boolean asOldest )
+	{
+		if( asOldest )
+		{
+			entries.addFirst( entry );
+		}
+		else
+		{
+			entries.addLast( entry );
+		}
+	}
+	
+	/**
+	 * removes the entry from the key and bucket maps, 
+	 * has to be called while holding the write lock
+	 */
+	protected void unlink( Entry entry )
+	{
+		if( entry.sender != null )
+		{
+			this.remove( this.byKey.get( Key.SENDER ), entry.sender, entry );
+		}
+		if( entry.messageId != null )
+		{
+			this.remove( this.byKey.get( Key.MESSAGE_ID ), entry.messageId, entry );
+		}
+		for( String recipient : entry.recipients )
+		{
+			this.remove( this.byKey.get( Key.RECIPIENT ), recipient, entry );
+			this.remove( this.byKey.get( Key.DOMAIN ), 
+					Key.DOMAIN.normalize( recipient ), entry );
+		}
+		this.remove( this.byBucket, this.getBucket( entry.storedMillis ), entry );
+	}
+	
+	protected <K> void remove( 
+			Map<K, ArrayDeque<Entry>> map, K key, Entry entry )
+	{
+		ArrayDeque<Entry> entries = map.get( key );
+		if( entries == null )
+		{
+			return;
+		}
+		//evicted entries are usually the oldest ones
+		if( entries.peekFirst() == entry )
+		{
+			entries.pollFirst();
+		}
+		else
+		{
+			entries.removeFirstOccurrence( entry );
+		}
+		if( entries.isEmpty() )
+		{
+			map.remove( key );
+		}
+	}
+	
+	protected ArrayDeque<Entry> get( Key key, String value, boolean create )
+	{
+		Map<String, ArrayDeque<Entry>> map = this.byKey.get( key );
+		ArrayDeque<Entry> entries = map.get( value );
+		if( entries == null && create )
+		{
+			entries = new ArrayDeque<Entry>();
+			map.put( value, entries );
+		}
+		return entries;
+	}
+	
+	protected Long getBucket( long millis )
+	{
+		return Long.valueOf( millis - ( millis % this.bucketMillis ) );
+	}
+	
+	/**
+	 * Looks up the mails with the passed key value.
+	 * 
+	 * @param key - the attribute to look up
+	 * @param value - the (not necessarily normalized) value
+	 * @param offset - the number of (newest) mails to skip
+	 * @param limit - the maximum number of mails to return
+	 * @return always a valid page, never <code>null</code>
+	 */
+	public Page query( Key key, String value, int offset, int limit )
+	{
+		this.lock.readLock().lock();
+		try
+		{
+			ArrayDeque<Entry> entries = 
+				this.get( key, key.normalize( value ), false );
+			if( entries == null )
+			{
+				return new Page( Collections.<Entry>emptyList(), 0 );
+			}
+			return new Page( 
+					page( entries.descendingIterator(), offset, limit ), 
+					entries.size() );
+		}
+		finally
+		{
+			this.lock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Looks up the mails stored at or after the passed time.
+	 * 
+	 * @param sinceMillis - the earliest store time
+	 * @param offset - the number of (newest) mails to skip
+	 * @param limit - the maximum number of mails to return
+	 * @return always a valid page, never <code>null</code>
+	 */
+	public Page querySince( long sinceMillis, int offset, int limit )
+	{
+		this.lock.readLock().lock();
+		try
+		{
+			List<Entry> result = new ArrayList<Entry>( 
+					Math.max( 0, Math.min( limit, 1024 ) ) );
+			int total = 0;
+			
+			for( ArrayDeque<Entry> bucket : this.byBucket.tailMap( 
+					this.getBucket( sinceMillis ), true ).descendingMap().values() )
+			{
+				Iterator<Entry> iter = bucket.descendingIterator();
+				while( iter.hasNext() )
+				{
+					Entry entry = iter.next();
+					if( entry.storedMillis < sinceMillis )
+					{
+						continue;
+					}
+					if( total >= offset && result.size() < limit )
+					{
+						result.add( entry );
+					}
+					++total;
+				}
+			}
+			return new Page( result, total );
+		}
+		finally
+		{
+			this.lock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * @return up to <code>limit</code> entries of the passed iterator
+	 * 		after skipping <code>offset</code> entries
+	 */
+	protected static List<Entry> page( 
+			Iterator<Entry> iter, int offset, int limit )
+	{
+		List<Entry> result = new ArrayList<Entry>( 
+				Math.max( 0, Math.min( limit, 1024 ) ) );
+		for( int i = 0; iter.hasNext() && result.size() < limit; ++i )
+		{
+			Entry entry = iter.next();
+			if( i >= offset )
+			{
+				result.add( entry );
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * removes all mails from the index
+	 */
+	public void clear()
+	{
+		this.lock.writeLock().lock();
+		try
+		{
+			this.entries.clear();
+			this.byName.clear();
+			for( Map<String, ArrayDeque<Entry>> map : this.byKey.values() )
+			{
+				map.clear();
+			}
+			this.byBucket.clear();
+		}
+		finally
+		{
+			this.lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * @return the number of indexed mails
+	 */
+	public int size()
+	{
+		this.lock.readLock().lock();
+		try
+		{
+			return this.entries.size();
+		}
+		finally
+		{
+			this.lock.readLock().unlock();
+		}
+	}
+	
+	public int getCapacity()
+	{
+		return this.capacity;
+	}
+	
+	/**
+	 * @return the number of mails evicted because the capacity 
+	 * 		has been exceeded
+	 */
+	public long getEvictionCount()
+	{
+		return this.evictionCount.get();
+	}
+	
+}//class ProcessedMailIndex
@@ -0,0 +1,135 @@
+/**
+ *   (c) Copyright 2007-2010 by emarsys eMarketing Systems AG
+ * 
+ *   This file is part of dyson.
+ *
+ *   dyson is free software; you can redistribute it and/or modify
+ *   it under the terms of the GNU Lesser General Public License as published by
+ *   the Free Software Foundation; either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   dyson is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.emarsys.dyson;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * <p>
+ * A read-only handle to a single mail in the 
+ * {@link DysonStorage#getProcessedDirName() processed storage}.
+ * </p><p>
+ * Handles are cheap to create and hold no resources between calls, 
+ * the mail data is {@link #transferTo(long, long, WritableByteChannel) 
+ * transferred} straight from the underlying file channel to the target 
+ * channel without copying it to the heap.
+ * </p>
+ * @author <a href="mailto:kulovits@emarsys.com">Michael "kULO" Kulovits</a>
+ * @see DysonStorage#getProcessedMail(String)
+ */
+public abstract class StoredMail
+{
+	protected final String name;
+	protected final long length;
+	protected final long lastModified;
+	
+	protected StoredMail( String name, long length, long lastModified )
+	{
+		this.name = name;
+		this.length = length;
+		this.lastModified = lastModified;
+	}
+	
+	/**
+	 * @return the name of the mail relative to the processed directory
+	 */
+	public String getName()
+	{
+		return this.name;
+	}
+	
+	/**
+	 * @return the size of the mail in bytes
+	 */
+	public long getLength()
+	{
+		return this.length;
+	}
+	
+	/**
+	 * @return the time the mail has been stored
+	 */
+	public long getLastModified()
+	{
+		return this.lastModified;
+	}
+	
+	/**
+	 * @return an opaque tag which changes whenever the mail's data 
+	 * 		changes, suitable as strong HTTP entity tag
+	 */
+	public String getTag()
+	{
+		return Long.toHexString( this.lastModified ) + '-' + 
+			Long.toHexString( this.length );
+	}
+	
+	/**
+	 * Transfers a range of the mail's data to the passed channel.
+	 * 
+	 * @param position - the offset within the mail
+	 * @param count - the number of bytes to be transferred
+	 * @param target - the target channel
+	 * @return the number of bytes transferred
+	 * @throws IOException - if the mail cannot be read or written
+	 */
+	public abstract long transferTo( 
+			long position, long count, WritableByteChannel target ) 
+		throws IOException;
+	
+	/**
+	 * @return a stream of the mail's data, has to be closed by the caller
+	 * @throws IOException - if the mail cannot be read
+	 */
+	public abstract InputStream openStream() throws IOException;
+	
+	/**
+	 * Transfers <code>count</code> bytes of the passed channel starting at 
+	 * <code>position</code> to <code>target</code>, looping until all 
+	 * bytes have been transferred.
+	 */
+	protected static long transferFully( 
+			FileChannel source, long position, long count, 
+			WritableByteChannel target ) 
+		throws IOException
+	{
+		long transferred = 0;
+		while( transferred < count )
+		{
+			long n = source.transferTo( 
+					position + transferred, count - transferred, target );
+			if( n <= 0 )
+			{
+				break;
+			}
+			transferred += n;
+		}
+		return transferred;
+	}
+	
+	@Override
+	public String toString()
+	{
+		return this.getClass().getSimpleName() + "[" + this.name + "]";
+	}
+	
+}//class StoredMail
@@ -24,7 +24,9 @@ import java.io.IOException;
 import org.restlet.Context;
 import org.restlet.Directory;
 import org.restlet.Restlet;
+import org.restlet.Route;
 import org.restlet.Router;
+import org.restlet.util.Variable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -42,8 +44,18 @@ import com.emarsys.dyson.DysonStorage;
  * 	<li><tt>/info</tt> =&gt; {@link RuntimeInformationResource}</li>
  * 	<li><tt>/storage/incoming</tt> =&gt; 
  * 			{@link DysonStorage#getIncomingDirName() incoming dir}</li>
- *  <li><tt>/storage/incoming</tt> =&gt; 
- * 			{@link DysonStorage#getProcessedDirName() processed dir}</li>
+ *  <li><tt>/storage/processed</tt> =&gt; 
+ * 			{@link DysonStorage#getProcessedDirName() processed dir}, 
+ * 			its mail files are served by the {@link ProcessedMailFilter}</li>
+ * 	<li><tt>/mail/processed</tt> =&gt; {@link ProcessedMailListResource}, 
+ * 			the names of the processed mails of any storage, whereas the 
+ * 			processed dir only shows a segment storage's segment files</li>
+ * 	<li><tt>/mail/processed/{name}</tt> =&gt; {@link StoredMailResource}, 
+ * 			the {@link DysonStorage#getProcessedMail(String) processed mail} 
+ * 			with the passed name</li>
+ * 	<li><tt>/mail/query/{key}/{value}</tt> =&gt; {@link MailQueryResource}, 
+ * 			the processed mails with the passed recipient, domain, sender, 
+ * 			Message-ID or store time</li>
  * </ul>
  * </p>
  * @author kulo
@@ -77,8 +89,29 @@ public class DefaultDysonRestApp extends DysonRestApp
 		
 		router.attach( "/storage/incoming", this.getDirectory( 
 				this.getDyson().getStorage().getIncomingDirName() ) );
-		router.attach( "/storage/processed", this.getDirectory( 
-				this.getDyson().getStorage().getProcessedDirName() ) );
+		//processed mail files may be compressed or deduplicated
+		DysonStorage storage = this.getDyson().getStorage();
+		router.attach( "/storage/processed", new ProcessedMailFilter( 
+				context, this.getDirectory( storage.getProcessedDirName() ), 
+				storage.getMailFileSuffix() ) );
+		
+		router.attach( "/mail/processed", ProcessedMailListResource.class );
+		
+		//mail names are paths relative to the processed dir
+		Route route = router.attach( 
+				"/mail/processed/{" + StoredMailResource.ATTRIBUTE_NAME + "}", 
+				StoredMailResource.class );
+		route.getTemplate().getVariables().put( 
+				StoredMailResource.ATTRIBUTE_NAME, 
+				new Variable( Variable.TYPE_URI_PATH ) );
+		
+		route = router.attach( 
+				"/mail/query/{" + MailQueryResource.ATTRIBUTE_KEY + "}/{" + 
+				MailQueryResource.ATTRIBUTE_VALUE + "}", 
+				MailQueryResource.class );
+		route.getTemplate().getVariables().put( 
+				MailQueryResource.ATTRIBUTE_VALUE, 
+				new Variable( Variable.TYPE_URI_PATH ) );
 	
 		
 		return router;
@@ -0,0 +1,171 @@
+/**
+ *   (c) Copyright 2007-2010 by emarsys eMarketing Systems AG
+ * 
+ *   This file is part of dyson.
+ *
+ *   dyson is free software; you can redistribute it and/or modify
+ *   it under the terms of the GNU Lesser General Public License as published by
+ *   the Free Software Foundation; either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   dyson is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.emarsys.dyson.rest;
+
+import org.restlet.Context;
+import org.restlet.data.Form;
+import org.restlet.data.MediaType;
+import org.restlet.data.Reference;
+import org.restlet.data.Request;
+import org.restlet.data.Response;
+import org.restlet.data.Status;
+import org.restlet.resource.Representation;
+import org.restlet.resource.ResourceException;
+import org.restlet.resource.StringRepresentation;
+import org.restlet.resource.Variant;
+
+import com.emarsys.dyson.ProcessedMailIndex;
+import com.emarsys.dyson.ProcessedMailIndex.Entry;
+import com.emarsys.dyson.ProcessedMailIndex.Key;
+import com.emarsys.dyson.ProcessedMailIndex.Page;
+
+/**
+ * <p>
+ * Queries the {@link ProcessedMailIndex} of the storage.
+ * </p><p>
+ * The route has to define the attributes <tt>{key}</tt>, which is either 
+ * one of the {@link Key#getName() index keys} or <tt>since</tt>, and 
+ * <tt>{value}</tt>, the looked up value or the earliest store time in 
+ * milliseconds respectively. The query parameters <tt>offset</tt> and 
+ * <tt>limit</tt> select the page of the result.
+ * </p><p>
+ * The result lists the total number of matching mails followed by 
+ * one line per mail on the page, newest first: the mail's 
+ * {@link StoredMailResource name}, store time and Message-ID separated 
+ * by tabs.
+ * </p>
+ * @author kulo
+ */
+public class MailQueryResource extends DysonResource
+{
+	public static final String ATTRIBUTE_KEY = "key";
+	public static final String ATTRIBUTE_VALUE = "value";
+	
+	/** the pseudo key for querying by store time */
+	public static final String KEY_SINCE = "since";
+	
+	public static final String PARAM_OFFSET = "offset";
+	public static final String PARAM_LIMIT = "limit";
+	
+	public static final int DEFAULT_LIMIT = 100;
+	public static final int MAX_LIMIT = 1000;
+	
+	protected final String key;
+	protected final String value;
+	
+	public MailQueryResource( 
+			Context context, Request request, Response response )
+	{
+		super( context, request, response );
+		this.key = getAttribute( request, ATTRIBUTE_KEY );
+		this.value = getAttribute( request, ATTRIBUTE_VALUE );
+		getVariants().add( new Variant( MediaType.TEXT_PLAIN ) );
+	}
+	
+	protected static String getAttribute( Request request, String name )
+	{
+		Object value = request.getAttributes().get( name );
+		return value == null ? null : Reference.decode( value.toString() );
+	}
+	
+	@Override
+	public Representation represent( Variant variant ) 
+		throws ResourceException
+	{
+		ProcessedMailIndex index = 
+			this.getDyson().getStorage().getProcessedMailIndex();
+		if( index == null )
+		{
+			throw new ResourceException( Status.CLIENT_ERROR_NOT_FOUND, 
+					"the storage does not index its mails" );
+		}
+		if( this.key == null || this.value == null )
+		{
+			throw new ResourceException( Status.CLIENT_ERROR_BAD_REQUEST );
+		}
+		
+		Form query = this.getRequest().getResourceRef().getQueryAsForm();
+		int offset = getIntParameter( query, PARAM_OFFSET, 0 );
+		int limit = Math.min( 
+				getIntParameter( query, PARAM_LIMIT, DEFAULT_LIMIT ), MAX_LIMIT );
+		
+		Page page;
+		if( KEY_SINCE.equalsIgnoreCase( this.key ) )
+		{
+			page = index.querySince( parseLong( this.value ), offset, limit );
+		}
+		else
+		{
+			Key indexKey = Key.forName( this.key );
+			if( indexKey == null )
+			{
+				throw new ResourceException( Status.CLIENT_ERROR_NOT_FOUND, 
+						"unknown key " + this.key );
+			}
+			page = index.query( indexKey, this.value, offset, limit );
+		}
+		
+		StringBuilder buf = new StringBuilder( 64 + 96 * page.getEntries().size() )
+		.append( "total=" ).append( page.getTotal() ).append( '\n' )
+		.append( "offset=" ).append( offset ).append( '\n' )
+		.append( "limit=" ).append( limit ).append( "\n\n" );
+		
+		for( Entry entry : page.getEntries() )
+		{
+			buf.append( entry.getName() ).append( '\t' )
+			.append( entry.getStoredMillis() ).append( '\t' )
+			.append( entry.getMessageId() != null ? entry.getMessageId() : "" )
+			.append( '\n' );
+		}
+		
+		return new StringRepresentation( buf, MediaType.TEXT_PLAIN );
+	}
+	
+	protected static int getIntParameter( 
+			Form query, String name, int defaultValue ) 
+		throws ResourceException
+	{
+		String value = query == null ? null : query.getFirstValue( name );
+		if( value == null || value.length() == 0 )
+		{
+			return defaultValue;
+		}
+		long parsed = parseLong( value );
+		if( parsed < 0 || parsed > Integer.MAX_VALUE )
+		{
+			throw new ResourceException( Status.CLIENT_ERROR_BAD_REQUEST, 
+					"invalid " + name + ": " + value );
+		}
+		return (int) parsed;
+	}
+	
+	protected static long parseLong( String value ) throws ResourceException
+	{
+		try
+		{
+			return Long.parseLong( value.trim() );
+		}
+		catch( NumberFormatException nfe )
+		{
+			throw new ResourceException( Status.CLIENT_ERROR_BAD_REQUEST, 
+					"not a number: " + value );
+		}
+	}
+	
+}//class MailQueryResource
@@ -0,0 +1,100 @@
+/**
+ *   (c) Copyright 2007-2010 by emarsys eMarketing Systems AG
+ *
+ *   This file is part of dyson.
+ *
+ *   dyson is free software; you can redistribute it and/or modify
+ *   it under the terms of the GNU Lesser General Public License as published by
+ *   the Free Software Foundation; either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   dyson is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.emarsys.dyson.rest;
+
+import org.restlet.Context;
+import org.restlet.Filter;
+import org.restlet.Finder;
+import org.restlet.Restlet;
+import org.restlet.data.Method;
+import org.restlet.data.Request;
+import org.restlet.data.Response;
+
+import com.emarsys.dyson.DysonStorage;
+
+/**
+ * <p>
+ * Serves the mail files requested via the
+ * {@link DysonStorage#getProcessedDirName() processed dir}'s
+ * {@link org.restlet.Directory} by the {@link StoredMailResource}.
+ * </p><p>
+ * The mail files may be {@link DysonStorage#getProcessedMail(String)
+ * compressed or lack their deduplicated bodies}, so serving them as they
+ * are would send raw gzip data or the headers only. All other requests,
+ * e.g. directory listings or modifications, are passed to the directory.
+ * </p>
+ * @author kulo
+ */
+public class ProcessedMailFilter extends Filter
+{
+	protected final Finder mailFinder;
+	protected final String mailFileSuffix;
+
+	/**
+	 * @param context
+	 * @param next - the directory serving the processed dir
+	 * @param mailFileSuffix - the {@link DysonStorage#getMailFileSuffix()
+	 * 		suffix} of the mail files
+	 */
+	public ProcessedMailFilter(
+			Context context, Restlet next, String mailFileSuffix )
+	{
+		super( context, next );
+		this.mailFinder = new Finder( context, StoredMailResource.class );
+		this.mailFileSuffix = "." + mailFileSuffix;
+	}
+
+	/**
+	 * Hands reading requests for mail files over to the 
+	 * {@link StoredMailResource}.
+	 */
+	@Override
+	protected int beforeHandle( Request request, Response response )
+	{
+		if( !Method.GET.equals( request.getMethod() ) && 
+			!Method.HEAD.equals( request.getMethod() ) )
+		{
+			return CONTINUE;
+		}
+		String name = request.getResourceRef().getRemainingPart();
+		if( name == null )
+		{
+			return CONTINUE;
+		}
+		int queryStart = name.indexOf( '?' );
+		if( queryStart >= 0 )
+		{
+			name = name.substring( 0, queryStart );
+		}
+		while( name.startsWith( "/" ) )
+		{
+			name = name.substring( 1 );
+		}
+		if( !name.endsWith( this.mailFileSuffix ) )
+		{
+			return CONTINUE;
+		}
+
+		//the resource decodes the name
+		request.getAttributes().put( StoredMailResource.ATTRIBUTE_NAME, name );
+		this.mailFinder.handle( request, response );
+		return STOP;
+	}
+
+}//class ProcessedMailFilter
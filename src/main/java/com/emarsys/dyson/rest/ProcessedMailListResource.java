@@ -0,0 +1,88 @@
+/**
+ *   (c) Copyright 2007-2010 by emarsys eMarketing Systems AG
+ *
+ *   This file is part of dyson.
+ *
+ *   dyson is free software; you can redistribute it and/or modify
+ *   it under the terms of the GNU Lesser General Public License as published by
+ *   the Free Software Foundation; either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   dyson is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.emarsys.dyson.rest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.restlet.Context;
+import org.restlet.data.Form;
+import org.restlet.data.MediaType;
+import org.restlet.data.Request;
+import org.restlet.data.Response;
+import org.restlet.resource.Representation;
+import org.restlet.resource.ResourceException;
+import org.restlet.resource.StringRepresentation;
+import org.restlet.resource.Variant;
+
+import com.emarsys.dyson.DysonStorage;
+
+/**
+ * <p>
+ * Lists the {@link DysonStorage#getProcessedMailNames() names of the
+ * processed mails}, which works for every storage, whether it keeps
+ * its mails in files, segments or memory.
+ * </p><p>
+ * The query parameters <tt>offset</tt> and <tt>limit</tt> select the
+ * page of the sorted names. The result lists the total number of mails
+ * followed by one {@link StoredMailResource name} per line.
+ * </p>
+ * @author kulo
+ */
+public class ProcessedMailListResource extends DysonResource
+{
+	public ProcessedMailListResource( 
+			Context context, Request request, Response response )
+	{
+		super( context, request, response );
+		getVariants().add( new Variant( MediaType.TEXT_PLAIN ) );
+	}
+	
+	@Override
+	public Representation represent( Variant variant )
+		throws ResourceException
+	{
+		Form query = this.getRequest().getResourceRef().getQueryAsForm();
+		int offset = MailQueryResource.getIntParameter( query, 
+				MailQueryResource.PARAM_OFFSET, 0 );
+		int limit = Math.min( MailQueryResource.getIntParameter( query, 
+				MailQueryResource.PARAM_LIMIT, MailQueryResource.DEFAULT_LIMIT ), 
+				MailQueryResource.MAX_LIMIT );
+		
+		List<String> names = new ArrayList<String>( 
+				this.getDyson().getStorage().getProcessedMailNames() );
+		Collections.sort( names );
+		List<String> page = names.subList( Math.min( offset, names.size() ), 
+				(int) Math.min( (long) offset + limit, names.size() ) );
+		
+		StringBuilder buf = new StringBuilder( 64 + 64 * page.size() )
+		.append( "total=" ).append( names.size() ).append( '\n' )
+		.append( "offset=" ).append( offset ).append( '\n' )
+		.append( "limit=" ).append( limit ).append( "\n\n" );
+		
+		for( String name : page )
+		{
+			buf.append( name ).append( '\n' );
+		}
+		
+		return new StringRepresentation( buf, MediaType.TEXT_PLAIN );
+	}
+
+}//class ProcessedMailListResource
@@ -0,0 +1,114 @@
+/**
+ *   (c) Copyright 2007-2010 by emarsys eMarketing Systems AG
+ * 
+ *   This file is part of dyson.
+ *
+ *   dyson is free software; you can redistribute it and/or modify
+ *   it under the terms of the GNU Lesser General Public License as published by
+ *   the Free Software Foundation; either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   dyson is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.emarsys.dyson.rest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Date;
+
+import org.restlet.data.MediaType;
+import org.restlet.data.Tag;
+import org.restlet.resource.ChannelRepresentation;
+
+import com.emarsys.dyson.StoredMail;
+
+/**
+ * <p>
+ * Representation of a (range of a) {@link StoredMail}.
+ * </p><p>
+ * The mail data is written by 
+ * {@link StoredMail#transferTo(long, long, WritableByteChannel) 
+ * transferring} it from the storage's file channel to the connector's 
+ * channel or stream, so it's neither copied to nor buffered on the heap.
+ * </p>
+ * @author kulo
+ */
+public class StoredMailRepresentation extends ChannelRepresentation
+{
+	protected final StoredMail mail;
+	protected final long offset;
+	protected final long count;
+	
+	/**
+	 * Represents the whole mail.
+	 */
+	public StoredMailRepresentation( StoredMail mail, MediaType mediaType )
+	{
+		this( mail, mediaType, 0, mail.getLength() );
+	}
+	
+	/**
+	 * Represents <code>count</code> bytes of the mail starting at
+	 * <code>offset</code>.
+	 */
+	public StoredMailRepresentation( 
+			StoredMail mail, MediaType mediaType, long offset, long count )
+	{
+		super( mediaType );
+		this.mail = mail;
+		this.offset = offset;
+		this.count = count;
+		
+		this.setSize( count );
+		this.setTag( new Tag( mail.getTag(), false ) );
+		this.setModificationDate( new Date( mail.getLastModified() ) );
+	}
+	
+	@Override
+	public void write( WritableByteChannel channel ) throws IOException
+	{
+		this.mail.transferTo( this.offset, this.count, channel );
+	}
+	
+	@Override
+	public void write( OutputStream out ) throws IOException
+	{
+		this.write( Channels.newChannel( out ) );
+		out.flush();
+	}
+	
+	@Override
+	public ReadableByteChannel getChannel() throws IOException
+	{
+		return Channels.newChannel( this.getStream() );
+	}
+	
+	/**
+	 * Only used by connectors which pull the data instead of having it 
+	 * {@link #write(OutputStream) written}, buffers partial ranges.
+	 */
+	@Override
+	public InputStream getStream() throws IOException
+	{
+		if( this.offset == 0 && this.count == this.mail.getLength() )
+		{
+			return this.mail.openStream();
+		}
+		ByteArrayOutputStream buf = new ByteArrayOutputStream( (int) this.count );
+		this.write( buf );
+		return new ByteArrayInputStream( buf.toByteArray() );
+	}
+	
+}//class StoredMailRepresentation
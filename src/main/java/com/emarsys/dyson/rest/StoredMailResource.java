@@ -0,0 +1,176 @@
+/**
+ *   (c) Copyright 2007-2010 by emarsys eMarketing Systems AG
+ * 
+ *   This file is part of dyson.
+ *
+ *   dyson is free software; you can redistribute it and/or modify
+ *   it under the terms of the GNU Lesser General Public License as published by
+ *   the Free Software Foundation; either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   dyson is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.emarsys.dyson.rest;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.restlet.Context;
+import org.restlet.data.MediaType;
+import org.restlet.data.Range;
+import org.restlet.data.Reference;
+import org.restlet.data.Request;
+import org.restlet.data.Response;
+import org.restlet.data.Status;
+import org.restlet.data.Tag;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.emarsys.dyson.DysonStorage;
+import com.emarsys.dyson.StoredMail;
+
+/**
+ * <p>
+ * Serves a single {@link DysonStorage#getProcessedMail(String) processed 
+ * mail} identified by the <tt>{name}</tt> attribute of its route.
+ * </p><p>
+ * The mail is sent as {@link StoredMailRepresentation}, i.e. transferred 
+ * straight from the storage's file channel. Each mail carries a strong 
+ * entity tag, so pollers can use <tt>If-None-Match</tt>, and single byte 
+ * ranges are answered with <tt>206 Partial Content</tt>.
+ * </p>
+ * @author kulo
+ */
+public class StoredMailResource extends DysonResource
+{
+	private static final Logger log = 
+		LoggerFactory.getLogger( StoredMailResource.class );
+	
+	/** the name of the route attribute holding the mail name */
+	public static final String ATTRIBUTE_NAME = "name";
+	
+	public static final MediaType MEDIA_TYPE_RFC822 = 
+		new MediaType( "message/rfc822" );
+	
+	protected final String name;
+	
+	public StoredMailResource( 
+			Context context, Request request, Response response )
+	{
+		super( context, request, response );
+		Object name = request.getAttributes().get( ATTRIBUTE_NAME );
+		this.name = name != null ? Reference.decode( name.toString() ) : null;
+	}
+	
+	/**
+	 * Looks up the mail and answers with the whole mail, a single range
+	 * of it or an empty response if the client's copy is still current.
+	 */
+	@Override
+	public void handleGet()
+	{
+		StoredMail mail = this.getStoredMail();
+		if( mail == null )
+		{
+			this.getResponse().setStatus( Status.CLIENT_ERROR_NOT_FOUND );
+			return;
+		}
+		
+		if( this.isNoneMatching( mail ) )
+		{
+			this.getResponse().setStatus( Status.REDIRECTION_NOT_MODIFIED );
+			return;
+		}
+		
+		List<Range> ranges = this.getRequest().getRanges();
+		if( ranges == null || ranges.size() != 1 )
+		{
+			//multiple ranges are answered with the whole mail 
+			this.getResponse().setEntity( 
+					new StoredMailRepresentation( mail, MEDIA_TYPE_RFC822 ) );
+			this.getResponse().setStatus( Status.SUCCESS_OK );
+			return;
+		}
+		
+		Range range = ranges.get( 0 );
+		long length = mail.getLength();
+		long offset;
+		long count;
+		if( range.getIndex() == Range.INDEX_LAST )
+		{
+			count = Math.min( range.getSize(), length );
+			offset = length - count;
+		}
+		else
+		{
+			offset = range.getIndex();
+			count = range.getSize() == Range.SIZE_MAX ? 
+					length - offset : 
+					Math.min( range.getSize(), length - offset );
+		}
+		
+		if( offset < 0 || offset >= length || count <= 0 )
+		{
+			this.getResponse().setStatus( 
+					Status.CLIENT_ERROR_REQUESTED_RANGE_NOT_SATISFIABLE );
+			return;
+		}
+		
+		StoredMailRepresentation entity = new StoredMailRepresentation( 
+				mail, MEDIA_TYPE_RFC822, offset, count );
+		entity.setRange( new Range( offset, count ) );
+		this.getResponse().setEntity( entity );
+		this.getResponse().setStatus( Status.SUCCESS_PARTIAL_CONTENT );
+	}
+	
+	/**
+	 * @return the requested mail or <code>null</code> if there's no 
+	 * 		such mail
+	 */
+	protected StoredMail getStoredMail()
+	{
+		if( this.name == null || this.name.length() == 0 )
+		{
+			return null;
+		}
+		try
+		{
+			return this.getDyson().getStorage().getProcessedMail( this.name );
+		}
+		catch( IOException ioe )
+		{
+			log.warn( "cannot look up mail " + this.name, ioe );
+			return null;
+		}
+	}
+	
+	/**
+	 * @return <code>true</code> if one of the request's 
+	 * 		<tt>If-None-Match</tt> tags matches the mail's tag
+	 */
+	protected boolean isNoneMatching( StoredMail mail )
+	{
+		List<Tag> noneMatch = this.getRequest().getConditions().getNoneMatch();
+		if( noneMatch == null || noneMatch.isEmpty() )
+		{
+			return false;
+		}
+		String tag = mail.getTag();
+		for( Tag candidate : noneMatch )
+		{
+			if( Tag.ALL.equals( candidate ) || 
+				tag.equals( candidate.getName() ) )
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+	
+}//class StoredMailResource
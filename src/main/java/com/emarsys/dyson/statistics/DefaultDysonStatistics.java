@@ -0,0 +1,140 @@
+/**
+ *   (c) Copyright 2007-2010 by emarsys eMarketing Systems AG
+ * 
+ *   This file is part of dyson.
+ *
+ *   dyson is free software; you can redistribute it and/or modify
+ *   it under the terms of the GNU Lesser General Public License as published by
+ *   the Free Software Foundation; either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   dyson is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.emarsys.dyson.statistics;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.emarsys.dyson.Dyson;
+import com.emarsys.dyson.DysonConfig;
+import com.emarsys.dyson.DysonStatistics;
+import com.emarsys.dyson.GenericDysonPart;
+
+/**
+ * <p>
+ * The default {@link DysonStatistics} implementation, see 
+ * {@link DysonConfig#SERVER_STATISTICS_CLASS}.
+ * </p><p>
+ * Every {@link MailEvent} is counted by its own {@link StripedCounter}, 
+ * every {@link Latency} is recorded by its own {@link LatencyHistogram}. 
+ * The counters and histograms are registered for all constants of the 
+ * enums, so new events and latencies are picked up automatically. 
+ * Neither {@link #fire(MailEvent) firing} an event nor 
+ * {@link #record(Latency, long) recording} a latency takes a lock.
+ * </p>
+ * 
+ * @author <a href="mailto:kulovits@emarsys.com">Michael "kULO" Kulovits</a>
+ */
+public class DefaultDysonStatistics extends GenericDysonPart 
+	implements DysonStatistics
+{
+	/** the reported latency percentiles */
+	protected static final double[] PERCENTILES = { 50.0, 99.0, 99.9 };
+	protected static final String[] PERCENTILE_NAMES = { "p50", "p99", "p999" };
+	
+	protected final Map<MailEvent, StripedCounter> counters = 
+		new EnumMap<MailEvent, StripedCounter>( MailEvent.class );
+	protected final Map<Latency, LatencyHistogram> histograms = 
+		new EnumMap<Latency, LatencyHistogram>( Latency.class );
+	
+	public DefaultDysonStatistics( Dyson dyson )
+	{
+		super( dyson );
+		
+		for( MailEvent event : MailEvent.values() )
+		{
+			this.counters.put( event, new StripedCounter() );
+		}
+		for( Latency latency : Latency.values() )
+		{
+			this.histograms.put( latency, new LatencyHistogram() );
+		}
+	}
+	
+	/**
+	 * @see com.emarsys.dyson.DysonStatistics#fire(com.emarsys.dyson.DysonStatistics.MailEvent)
+	 */
+	public void fire( MailEvent event )
+	{
+		this.counters.get( event ).increment();
+	}
+	
+	/**
+	 * @see com.emarsys.dyson.DysonStatistics#record(com.emarsys.dyson.DysonStatistics.Latency, long)
+	 */
+	public void record( Latency latency, long millis )
+	{
+		this.histograms.get( latency ).record( millis );
+	}
+	
+	/**
+	 * @param event
+	 * @return the number of fired events of the passed type
+	 */
+	public long getCount( MailEvent event )
+	{
+		return this.counters.get( event ).sum();
+	}
+	
+	/**
+	 * @param latency
+	 * @return the histogram of the passed latency
+	 */
+	public LatencyHistogram getHistogram( Latency latency )
+	{
+		return this.histograms.get( latency );
+	}
+	
+	/**
+	 * Returns the counts of all {@link MailEvent}s and the count, 
+	 * percentiles and maximum of all {@link Latency latencies}.
+	 * 
+	 * @see com.emarsys.dyson.DysonStatistics#getRuntimeInformation()
+	 */
+	public Map<String, String> getRuntimeInformation()
+	{
+		Map<String, String> info = new TreeMap<String, String>();
+		
+		for( Map.Entry<MailEvent, StripedCounter> counter : 
+			this.counters.entrySet() )
+		{
+			info.put( counter.getKey().getKey(), counter.getValue().toString() );
+		}
+		
+		for( Map.Entry<Latency, LatencyHistogram> histogram : 
+			this.histograms.entrySet() )
+		{
+			String prefix = histogram.getKey().getKey();
+			LatencyHistogram values = histogram.getValue();
+			
+			info.put( prefix + ".count", String.valueOf( values.getCount() ) );
+			for( int i = 0; i < PERCENTILES.length; ++i )
+			{
+				info.put( prefix + "." + PERCENTILE_NAMES[ i ] + ".millis", 
+						String.valueOf( 
+								values.getValueAtPercentile( PERCENTILES[ i ] ) ) );
+			}
+			info.put( prefix + ".max.millis", String.valueOf( values.getMax() ) );
+		}
+		
+		return info;
+	}
+	
+}//class DefaultDysonStatistics
@@ -0,0 +1,163 @@
+/**
+ *   (c) Copyright 2007-2010 by emarsys eMarketing Systems AG
+ * 
+ *   This file is part of dyson.
+ *
+ *   dyson is free software; you can redistribute it and/or modify
+ *   it under the terms of the GNU Lesser General Public License as published by
+ *   the Free Software Foundation; either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   dyson is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.emarsys.dyson.statistics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>
+ * A lock-free histogram of latencies (non-negative <tt>long</tt> values, 
+ * e.g. milliseconds) with a fixed memory footprint.
+ * </p><p>
+ * Like <tt>HdrHistogram</tt> it uses log-linear buckets: values below 
+ * {@value #SUB_BUCKET_COUNT} are recorded exactly, larger values are 
+ * recorded in buckets whose width is at most 1/64 of their value, i.e. 
+ * {@link #getValueAtPercentile(double) percentiles} have a relative 
+ * error of less than 2% across the whole <tt>long</tt> range.
+ * </p>
+ * 
+ * @author <a href="mailto:kulovits@emarsys.com">Michael "kULO" Kulovits</a>
+ */
+public class LatencyHistogram
+{
+	/** the number of exactly recorded values, the first bucket "row" */
+	public static final int SUB_BUCKET_COUNT = 128;
+	private static final int SUB_BUCKET_HALF_COUNT = SUB_BUCKET_COUNT / 2;
+	private static final int SUB_BUCKET_BITS = 6;
+	private static final int BUCKET_COUNT = 
+		bucketIndex( Long.MAX_VALUE ) + 1;
+	
+	protected final AtomicLongArray buckets = 
+		new AtomicLongArray( BUCKET_COUNT );
+	protected final StripedCounter count = new StripedCounter();
+	protected final AtomicLong max = new AtomicLong( 0 );
+	
+	/**
+	 * Records the passed value, negative values are recorded as 0.
+	 * 
+	 * @param value
+	 */
+	public void record( long value )
+	{
+		if( value < 0 )
+		{
+			value = 0;
+		}
+		
+		this.buckets.incrementAndGet( bucketIndex( value ) );
+		this.count.increment();
+		
+		long currentMax;
+		while( value > (currentMax = this.max.get()) && 
+				!this.max.compareAndSet( currentMax, value ) )
+		{
+			//retry
+		}
+	}
+	
+	/**
+	 * @return the number of recorded values
+	 */
+	public long getCount()
+	{
+		return this.count.sum();
+	}
+	
+	/**
+	 * @return the maximum recorded value
+	 */
+	public long getMax()
+	{
+		return this.max.get();
+	}
+	
+	/**
+	 * Returns the (highest equivalent) value at the passed percentile.
+	 * 
+	 * @param percentile - between 0.0 and 100.0
+	 * @return the value or 0 if no values have been recorded
+	 */
+	public long getValueAtPercentile( double percentile )
+	{
+		long[] snapshot = new long[ BUCKET_COUNT ];
+		long total = 0;
+		for( int i = 0; i < BUCKET_COUNT; ++i )
+		{
+			snapshot[ i ] = this.buckets.get( i );
+			total += snapshot[ i ];
+		}
+		
+		if( total == 0 )
+		{
+			return 0;
+		}
+		
+		double p = Math.min( Math.max( percentile, 0.0 ), 100.0 );
+		long countAtPercentile = Math.max( 1, 
+				(long) Math.ceil( p / 100.0 * total ) );
+		long seen = 0;
+		
+		for( int i = 0; i < BUCKET_COUNT; ++i )
+		{
+			seen += snapshot[ i ];
+			if( seen >= countAtPercentile )
+			{
+				return Math.min( highestEquivalentValue( i ), this.getMax() );
+			}
+		}
+		return this.getMax();
+	}
+	
+	/**
+	 * Maps a value to its bucket, buckets are contiguous: 
+	 * [0, 127] are exact, afterwards every power of 2 is split into 
+	 * {@value #SUB_BUCKET_HALF_COUNT} equally wide buckets.
+	 */
+	protected static int bucketIndex( long value )
+	{
+		if( value < SUB_BUCKET_COUNT )
+		{
+			return (int) value;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros( value ) - SUB_BUCKET_BITS;
+		return shift * SUB_BUCKET_HALF_COUNT + (int) (value >>> shift);
+	}
+	
+	protected static long lowestEquivalentValue( int index )
+	{
+		if( index < SUB_BUCKET_COUNT )
+		{
+			return index;
+		}
+		int shift = index / SUB_BUCKET_HALF_COUNT - 1;
+		long subBucket = index - shift * SUB_BUCKET_HALF_COUNT;
+		return subBucket << shift;
+	}
+	
+	protected static long highestEquivalentValue( int index )
+	{
+		if( index + 1 >= BUCKET_COUNT )
+		{
+			return Long.MAX_VALUE;
+		}
+		return lowestEquivalentValue( index + 1 ) - 1;
+	}
+	
+}//class LatencyHistogram
@@ -0,0 +1,108 @@
+/**
+ *   (c) Copyright 2007-2010 by emarsys eMarketing Systems AG
+ * 
+ *   This file is part of dyson.
+ *
+ *   dyson is free software; you can redistribute it and/or modify
+ *   it under the terms of the GNU Lesser General Public License as published by
+ *   the Free Software Foundation; either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   dyson is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.emarsys.dyson.statistics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>
+ * A lock-free <tt>long</tt> counter which spreads concurrent updates 
+ * over several padded stripes (cells) to avoid contention on a single 
+ * hot variable, similar to <tt>java.util.concurrent.atomic.LongAdder</tt> 
+ * which is not available in our target JVMs.
+ * </p><p>
+ * {@link #increment() Updates} are cheap, {@link #sum() reading} sums up 
+ * all stripes and is therefore only weakly consistent under concurrent 
+ * updates.
+ * </p>
+ * 
+ * @author <a href="mailto:kulovits@emarsys.com">Michael "kULO" Kulovits</a>
+ */
+public class StripedCounter
+{
+	/** 
+	 * the distance between two used cells, 8 longs = 64 bytes 
+	 * (i.e. a typical cache line) to avoid false sharing 
+	 */
+	private static final int PADDING = 8;
+	
+	protected final AtomicLongArray cells;
+	protected final int mask;
+	
+	/**
+	 * Creates a counter with two stripes per available processor.
+	 */
+	public StripedCounter()
+	{
+		this( 2 * Runtime.getRuntime().availableProcessors() );
+	}
+	
+	/**
+	 * @param stripes - the minimum number of stripes, 
+	 * 		rounded up to the next power of 2
+	 */
+	public StripedCounter( int stripes )
+	{
+		int size = 1;
+		while( size < stripes )
+		{
+			size <<= 1;
+		}
+		this.mask = size - 1;
+		this.cells = new AtomicLongArray( size * PADDING );
+	}
+	
+	public void increment()
+	{
+		this.add( 1 );
+	}
+	
+	public void add( long delta )
+	{
+		this.cells.getAndAdd( this.cellIndex(), delta );
+	}
+	
+	/**
+	 * @return the current sum of all stripes
+	 */
+	public long sum()
+	{
+		long sum = 0;
+		for( int i = 0; i < this.cells.length(); i += PADDING )
+		{
+			sum += this.cells.get( i );
+		}
+		return sum;
+	}
+	
+	/**
+	 * the calling thread's cell, threads are spread by their (sequential) id
+	 */
+	protected int cellIndex()
+	{
+		return ((int) Thread.currentThread().getId() & this.mask) * PADDING;
+	}
+	
+	@Override
+	public String toString()
+	{
+		return String.valueOf( this.sum() );
+	}
+	
+}//class StripedCounter
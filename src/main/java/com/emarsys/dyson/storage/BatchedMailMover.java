@@ -0,0 +1,468 @@
+/**
+ *   (c) Copyright 2007-2010 by emarsys eMarketing Systems AG
+ * 
+ *   This file is part of dyson.
+ *
+ *   dyson is free software; you can redistribute it and/or modify
+ *   it under the terms of the GNU Lesser General Public License as published by
+ *   the Free Software Foundation; either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   dyson is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.emarsys.dyson.storage;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.emarsys.dyson.DysonConfig;
+import com.emarsys.dyson.DysonException;
+import com.emarsys.ecommon.io.IOUtil;
+
+/**
+ * <p>
+ * Moves batches of delivered mails from the incoming directory into the 
+ * processed directory of a {@link DefaultDysonStorage}.
+ * </p><p>
+ * A {@link #moveBatch(List, File) batch} is moved in three steps:
+ * <ol>
+ * 	<li>the storage locations of the mails are resolved by 
+ * 		{@link DysonConfig#STORAGE_MOVER_WORKERS worker} tasks in parallel</li>
+ * 	<li>the mails are grouped by their target directory, mails 
+ * 		resolved to the same or an existing target get a unique one</li>
+ * 	<li>the groups are renamed by the worker tasks in parallel, every 
+ * 		directory is created (or looked up in the storage's 
+ * 		{@link KnownDirectoryCache}) once</li>
+ * </ol>
+ * </p><p>
+ * The mover is shared by the storage's delivered mail processors. 
+ * Its tasks run on the storage's executor (see 
+ * {@link DysonConfig#STORAGE_EXECUTOR}), so moving shares the threads 
+ * (or virtual threads) and the submission bounds with storing the 
+ * incoming mails. Tasks rejected by the executor are run by the 
+ * calling processor itself.
+ * </p><p>
+ * The renaming tasks share the storage's 
+ * {@link DefaultDysonStorage#processedDirLock processed dir lock} 
+ * themselves. The calling processor never holds it while waiting for 
+ * the tasks, since tasks queued behind storing tasks waiting for the 
+ * lock would never run while clearing the processed directory waits 
+ * for it.
+ * </p>
+ * 
+ * @author <a href="mailto:kulovits@emarsys.com">Michael "kULO" Kulovits</a>
+ */
+public class BatchedMailMover
+{
+	private static final Logger log = 
+		LoggerFactory.getLogger( BatchedMailMover.class );
+	
+	/**
+	 * A single mail of a batch.
+	 */
+	protected static class Move
+	{
+		protected final File mail;
+		protected final long storedMillis;
+		protected File target;
+		/** the headers read while resolving the target, if indexed */
+		protected MailHeaders headers;
+		
+		protected Move( File mail )
+		{
+			this.mail = mail;
+			this.storedMillis = mail.lastModified();
+		}
+	}//class Move
+	
+	protected final DefaultDysonStorage storage;
+	protected final int batchSize;
+	protected final int workerCount;
+	protected final ExecutorService executor;
+	
+	protected final AtomicLong batchCount = new AtomicLong( 0 );
+	protected final AtomicLong movedCount = new AtomicLong( 0 );
+	
+	/**
+	 * @param storage - the storage whose mails are moved
+	 * @param executor - the executor running the tasks of the batches
+	 * @param batchSize - the maximum number of mails per batch
+	 * @param workerCount - the number of tasks a batch is split into
+	 */
+	public BatchedMailMover( DefaultDysonStorage storage, 
+			ExecutorService executor, int batchSize, int workerCount )
+	{
+		if( batchSize <= 0 || workerCount <= 0 )
+		{
+			throw new IllegalArgumentException( "invalid batch size (" + 
+					batchSize + ") or worker count (" + workerCount + ")" );
+		}
+		this.storage = storage;
+		this.batchSize = batchSize;
+		this.workerCount = workerCount;
+		this.executor = executor;
+	}
+	
+	/**
+	 * @return the maximum number of mails per {@link #moveBatch(List, File) batch}
+	 */
+	public int getBatchSize()
+	{
+		return this.batchSize;
+	}
+	
+	/**
+	 * Moves the passed mails into the passed directory, blocks until all 
+	 * mails of the batch have been moved.
+	 * 
+	 * @param mails - the mails, at most {@link #getBatchSize()}
+	 * @param toDir - the parent directory of the storage locations
+	 * @return the number of successfully moved mails
+	 */
+	public int moveBatch( List<File> mails, final File toDir )
+	{
+		if( mails.isEmpty() )
+		{
+			return 0;
+		}
+		
+		List<Move> moves = new ArrayList<Move>( mails.size() );
+		for( File mail : mails )
+		{
+			moves.add( new Move( mail ) );
+		}
+		
+		try
+		{
+			this.resolveTargets( moves, toDir );
+			Map<String, List<Move>> movesByDir = this.groupByTargetDir( moves );
+			int moved = this.rename( movesByDir );
+			
+			this.batchCount.incrementAndGet();
+			this.movedCount.addAndGet( moved );
+			log.debug( "moved {} of {} mails", moved, mails.size() );
+			
+			return moved;
+		}
+		catch( InterruptedException ie )
+		{
+			Thread.currentThread().interrupt();
+			log.warn( "interrupted while moving a batch of {} mails", 
+					mails.size() );
+			return 0;
+		}
+	}
+	
+	/**
+	 * resolves the target files of the moves in parallel
+	 */
+	protected void resolveTargets( List<Move> moves, final File toDir ) 
+		throws InterruptedException
+	{
+		List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+		
+		for( final List<Move> slice : this.slice( moves ) )
+		{
+			tasks.add( new Callable<Object>()
+			{
+				public Object call()
+				{
+					for( Move move : slice )
+					{
+						resolveTarget( move, toDir );
+					}
+					return null;
+				}
+			});
+		}
+		
+		this.runAll( tasks );
+	}
+	
+	protected void resolveTarget( Move move, File toDir )
+	{
+		try
+		{
+			if( move.mail.exists() )
+			{
+				InputStream data = new FileInputStream( move.mail );
+				try
+				{
+					HeaderCapturingInputStream headerCapturingData = 
+						new HeaderCapturingInputStream( data );
+					move.target = this.storage.getMailFile( 
+							headerCapturingData, toDir );
+					move.headers = this.storage.getIndexedHeaders( 
+							headerCapturingData );
+				}
+				finally
+				{
+					IOUtil.silentClose( data );
+				}
+			}
+			else
+			{
+				//already moved after being found by a scan
+				//as well as being handed off
+				log.debug( "{} has already been moved", move.mail );
+			}
+		}
+		catch( Exception ex )
+		{
+			log.error( "cannot resolve storage location of " + 
+					move.mail.getAbsolutePath() + ": " + ex, ex );
+		}
+	}
+	
+	/**
+	 * groups the resolved moves by their target directory. Targets 
+	 * shared by several moves of the batch or taken by an existing mail 
+	 * are made {@link DefaultDysonStorage#getUniqueMailFile(File, Set) unique}.
+	 */
+	protected Map<String, List<Move>> groupByTargetDir( List<Move> moves )
+	{
+		Map<String, List<Move>> movesByDir = 
+			new LinkedHashMap<String, List<Move>>();
+		Set<File> targets = new HashSet<File>();
+		
+		for( Move move : moves )
+		{
+			if( move.target == null )
+			{
+				continue;
+			}
+			File target = this.storage.getUniqueMailFile( move.target, targets );
+			if( target != move.target )
+			{
+				log.debug( "{} is already taken, moving {} to {}", 
+						new Object[] { move.target, move.mail, target } );
+				move.target = target;
+			}
+			targets.add( target );
+			
+			String dir = move.target.getParent();
+			List<Move> dirMoves = movesByDir.get( dir );
+			if( dirMoves == null )
+			{
+				dirMoves = new ArrayList<Move>();
+				movesByDir.put( dir, dirMoves );
+			}
+			dirMoves.add( move );
+		}
+		
+		return movesByDir;
+	}
+	
+	/**
+	 * renames the grouped moves in parallel, every task shares the 
+	 * {@link DefaultDysonStorage#processedDirLock} while creating the 
+	 * directories of its moves and renaming them
+	 */
+	protected int rename( Map<String, List<Move>> movesByDir ) 
+		throws InterruptedException
+	{
+		List<List<List<Move>>> slices = new ArrayList<List<List<Move>>>();
+		for( int i = 0; i < this.workerCount; ++i )
+		{
+			slices.add( new ArrayList<List<Move>>() );
+		}
+		
+		//keep the mails of a directory together
+		int i = 0;
+		for( List<Move> dirMoves : movesByDir.values() )
+		{
+			slices.get( i++ % this.workerCount ).add( dirMoves );
+		}
+		
+		final AtomicInteger moved = new AtomicInteger( 0 );
+		List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+		
+		for( final List<List<Move>> slice : slices )
+		{
+			if( slice.isEmpty() )
+			{
+				continue;
+			}
+			tasks.add( new Callable<Object>()
+			{
+				public Object call()
+				{
+					storage.processedDirLock.readLock().lock();
+					try
+					{
+						for( List<Move> dirMoves : slice )
+						{
+							moved.addAndGet( rename( dirMoves ) );
+						}
+					}
+					finally
+					{
+						storage.processedDirLock.readLock().unlock();
+					}
+					return null;
+				}
+			});
+		}
+		
+		this.runAll( tasks );
+		return moved.get();
+	}
+	
+	/**
+	 * submits the tasks to the {@link #executor} one by one and waits 
+	 * for them, the tasks it rejects (since it's saturated or has been 
+	 * shut down) run in the calling thread. Submitted tasks are never 
+	 * cancelled, so a rename is never interrupted.
+	 */
+	protected void runAll( List<Callable<Object>> tasks ) 
+		throws InterruptedException
+	{
+		List<Future<Object>> futures = 
+			new ArrayList<Future<Object>>( tasks.size() );
+		List<Callable<Object>> rejected = new ArrayList<Callable<Object>>();
+		
+		for( Callable<Object> task : tasks )
+		{
+			try
+			{
+				futures.add( this.executor.submit( task ) );
+			}
+			catch( RejectedExecutionException ree )
+			{
+				log.debug( "moving a part of the batch in the calling " +
+						"thread: {}", ree.getMessage() );
+				rejected.add( task );
+			}
+		}
+		
+		for( Callable<Object> task : rejected )
+		{
+			try
+			{
+				task.call();
+			}
+			catch( Exception ex )
+			{
+				log.error( "cannot move mails: " + ex, ex );
+			}
+		}
+		for( Future<Object> future : futures )
+		{
+			try
+			{
+				future.get();
+			}
+			catch( ExecutionException ee )
+			{
+				log.error( "cannot move mails: " + ee.getCause(), 
+						ee.getCause() );
+			}
+		}
+	}
+	
+	/**
+	 * creates the target directory of the passed moves and renames them, 
+	 * the mails are left in place if the directory cannot be created
+	 * 
+	 * @param dirMoves - moves into the same directory
+	 * @return the number of renamed mails
+	 */
+	protected int rename( List<Move> dirMoves )
+	{
+		String dir = dirMoves.get( 0 ).target.getParent();
+		try
+		{
+			this.storage.createDirsIfNotPresent( dir );
+		}
+		catch( DysonException de )
+		{
+			log.error( "cannot move " + dirMoves.size() + " mails: " + de, de );
+			return 0;
+		}
+		
+		int moved = 0;
+		for( Move move : dirMoves )
+		{
+			if( this.rename( move ) )
+			{
+				++moved;
+			}
+		}
+		return moved;
+	}
+	
+	protected boolean rename( Move move )
+	{
+		File target = this.storage.moveMailFile( move.mail, move.target );
+		if( target != null )
+		{
+			move.target = target;
+			log.debug( "successfully moved {} to {}", move.mail, move.target );
+			this.storage.fireMailStored( 
+					move.target, move.headers, move.storedMillis );
+			this.storage.fireMailProcessed( move.mail, move.storedMillis );
+			return true;
+		}
+		
+		this.storage.fireStoringFailed( move.target );
+		log.error( "cannot move {} to {}", 
+				move.mail.getAbsolutePath(), move.target.getAbsolutePath() );
+		return false;
+	}
+	
+	/**
+	 * splits the moves into (at most) one contiguous slice per worker
+	 */
+	protected List<List<Move>> slice( List<Move> moves )
+	{
+		List<List<Move>> slices = new ArrayList<List<Move>>();
+		int sliceSize = (moves.size() + this.workerCount - 1) / this.workerCount;
+		
+		for( int from = 0; from < moves.size(); from += sliceSize )
+		{
+			slices.add( moves.subList( 
+					from, Math.min( from + sliceSize, moves.size() ) ) );
+		}
+		return slices;
+	}
+	
+	/**
+	 * @return the number of moved batches
+	 */
+	public long getBatchCount()
+	{
+		return this.batchCount.get();
+	}
+	
+	/**
+	 * @return the number of moved mails
+	 */
+	public long getMovedCount()
+	{
+		return this.movedCount.get();
+	}
+	
+}//class BatchedMailMover
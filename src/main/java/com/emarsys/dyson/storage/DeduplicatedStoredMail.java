@@ -0,0 +1,137 @@
+/**
+ *   (c) Copyright 2007-2010 by emarsys eMarketing Systems AG
+ * 
+ *   This file is part of dyson.
+ *
+ *   dyson is free software; you can redistribute it and/or modify
+ *   it under the terms of the GNU Lesser General Public License as published by
+ *   the Free Software Foundation; either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   dyson is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.emarsys.dyson.storage;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.channels.WritableByteChannel;
+
+import com.emarsys.dyson.StoredMail;
+import com.emarsys.ecommon.io.IOUtil;
+
+/**
+ * {@link StoredMail} whose body is kept in the {@link MailBodyStore}: the 
+ * mail's headers are served from its mail file, skipping the reference 
+ * line, followed by the referenced body.
+ * 
+ * @author <a href="mailto:kulovits@emarsys.com">Michael "kULO" Kulovits</a>
+ */
+public class DeduplicatedStoredMail extends StoredMail
+{
+	protected final StoredMail headers;
+	protected final File body;
+	protected final int refLineLength;
+	protected final long bodyLength;
+	
+	/**
+	 * @param headers - the mail file holding the reference line 
+	 * 		and the headers
+	 * @param body - the referenced body file
+	 * @param refLineLength - the length of the reference line
+	 * @param bodyLength - the length of the body
+	 */
+	public DeduplicatedStoredMail( 
+			StoredMail headers, File body, int refLineLength, long bodyLength )
+	{
+		super( headers.getName(), 
+				headers.getLength() - refLineLength + bodyLength, 
+				headers.getLastModified() );
+		this.headers = headers;
+		this.body = body;
+		this.refLineLength = refLineLength;
+		this.bodyLength = bodyLength;
+	}
+	
+	/**
+	 * @return the length of the headers, without the reference line
+	 */
+	protected long getHeaderLength()
+	{
+		return this.headers.getLength() - this.refLineLength;
+	}
+
+	@Override
+	public long transferTo( 
+			long position, long count, WritableByteChannel target )
+		throws IOException
+	{
+		long headerLength = this.getHeaderLength();
+		long transferred = 0;
+		
+		if( position < headerLength )
+		{
+			long n = Math.min( count, headerLength - position );
+			transferred = this.headers.transferTo( 
+					this.refLineLength + position, n, target );
+			if( transferred < n )
+			{
+				return transferred;
+			}
+		}
+		
+		long bodyPosition = Math.max( 0, position - headerLength );
+		long bodyCount = Math.min( 
+				count - transferred, this.bodyLength - bodyPosition );
+		if( bodyCount > 0 )
+		{
+			FileInputStream in = new FileInputStream( this.body );
+			try
+			{
+				transferred += transferFully( 
+						in.getChannel(), bodyPosition, bodyCount, target );
+			}
+			finally
+			{
+				IOUtil.silentClose( in );
+			}
+		}
+		return transferred;
+	}
+
+	@Override
+	public InputStream openStream() throws IOException
+	{
+		InputStream headerData = this.headers.openStream();
+		try
+		{
+			long skipped = 0;
+			while( skipped < this.refLineLength )
+			{
+				long n = headerData.skip( this.refLineLength - skipped );
+				if( n <= 0 )
+				{
+					throw new IOException( "truncated mail file " + 
+							this.getName() );
+				}
+				skipped += n;
+			}
+			return new SequenceInputStream( 
+					headerData, new FileInputStream( this.body ) );
+		}
+		catch( IOException ioe )
+		{
+			IOUtil.silentClose( headerData );
+			throw ioe;
+		}
+	}
+	
+}//class DeduplicatedStoredMail
@@ -21,12 +21,32 @@ package com.emarsys.dyson.storage;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.lang.management.ManagementFactory;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.mail.internet.AddressException;
 
 import org.apache.commons.io.FileUtils;
 import org.slf4j.Logger;
@@ -35,12 +55,16 @@ import org.slf4j.LoggerFactory;
 import com.emarsys.dyson.Dyson;
 import com.emarsys.dyson.DysonConfig;
 import com.emarsys.dyson.DysonException;
+import com.emarsys.dyson.DysonStatistics;
 import com.emarsys.dyson.DysonStorage;
 import com.emarsys.dyson.MailStorageFileNamingScheme;
+import com.emarsys.dyson.ProcessedMailIndex;
+import com.emarsys.dyson.StoredMail;
+import com.emarsys.dyson.DysonStatistics.Latency;
 import com.emarsys.dyson.DysonStatistics.MailEvent;
 import com.emarsys.ecommon.concurrent.Threads;
+import com.emarsys.ecommon.io.IOUtil;
 import com.emarsys.ecommon.prefs.config.Configuration;
-import com.emarsys.ecommon.time.Dates;
 import com.emarsys.ecommon.util.Assertions;
 import com.emarsys.ecommon.util.StopableRunnable;
 
@@ -58,7 +82,115 @@ public class DefaultDysonStorage extends DysonStorage
 	public static final String LOCK_FILE_NAME = ".lock";
 	
 	/**
-	 * Processor for the delivered mails in the 
+	 * Defines how the {@link DeliveredMailProcessor} learns about new 
+	 * mails in the incoming directory.
+	 * 
+	 * @see DysonConfig#STORAGE_PROCESSOR_MODE
+	 */
+	public enum ProcessorMode
+	{
+		/**
+		 * Scans the incoming directory periodically every 
+		 * {@link DysonConfig#STORAGE_PROCESSOR_POLLING_INTERVAL_MILLIS}.
+		 */
+		POLLING,
+		/**
+		 * Waits for newly delivered mails being {@link 
+		 * DefaultDysonStorage#fireMailDelivered(File) handed off} via 
+		 * the {@link DeliveredMailProcessor#handOffQueue}. The incoming 
+		 * directory is only scanned on start up, if the hand-off queue 
+		 * overflowed and at least every {@link 
+		 * DysonConfig#STORAGE_PROCESSOR_RECONCILIATION_INTERVAL_MILLIS}
+		 * in order to catch up with missed notifications.
+		 */
+		EVENT_DRIVEN;
+	}//enum ProcessorMode
+	
+	/**
+	 * The kind of executor used as {@link DefaultDysonStorage#storageService}.
+	 * 
+	 * @see DysonConfig#STORAGE_EXECUTOR
+	 */
+	public enum ExecutorMode
+	{
+		/**
+		 * A thread pool bounded by the {@link 
+		 * DysonConfig#STORAGE_EXECUTOR_MAX_POOL_SIZE max. pool size} 
+		 * and {@link DysonConfig#STORAGE_EXECUTOR_QUEUE_CAPACITY queue 
+		 * capacity}.
+		 */
+		BOUNDED,
+		/**
+		 * Runs every task in its own virtual thread (java 21+), 
+		 * the number of pending tasks is still bounded.
+		 */
+		VIRTUAL;
+	}//enum ExecutorMode
+	
+	/**
+	 * <p>
+	 * Handles tasks rejected by the saturated {@link #storageService} by 
+	 * blocking the submitting thread until there's space in the 
+	 * executor's queue again.
+	 * </p><p>
+	 * If the queue is still full after the timeout (or the executor has 
+	 * been shut down, even while waiting) the task is finally rejected by 
+	 * throwing a {@link RejectedExecutionException}.
+	 * </p>
+	 * 
+	 * @author <a href="mailto:kulovits@emarsys.com">Michael "kULO" Kulovits</a>
+	 */
+	protected static class BlockingSubmissionPolicy 
+		implements RejectedExecutionHandler
+	{
+		protected final long timeoutMillis;
+		
+		public BlockingSubmissionPolicy( long timeoutMillis )
+		{
+			this.timeoutMillis = timeoutMillis;
+		}
+		
+		/**
+		 * @see RejectedExecutionHandler#rejectedExecution(Runnable, ThreadPoolExecutor)
+		 */
+		public void rejectedExecution( 
+				Runnable task, ThreadPoolExecutor executor )
+		{
+			if( executor.isShutdown() )
+			{
+				throw new RejectedExecutionException( 
+						"storage executor has been shut down" );
+			}
+			
+			try
+			{
+				boolean queued = executor.getQueue().offer( 
+						task, this.timeoutMillis, TimeUnit.MILLISECONDS );
+				if( !queued )
+				{
+					throw new RejectedExecutionException( 
+							"storage executor is still saturated after " + 
+							this.timeoutMillis + "ms" );
+				}
+				//shut down while waiting, the task would never be run
+				if( executor.isShutdown() && executor.getQueue().remove( task ) )
+				{
+					throw new RejectedExecutionException( 
+							"storage executor has been shut down" );
+				}
+			}
+			catch( InterruptedException ie )
+			{
+				Thread.currentThread().interrupt();
+				throw new RejectedExecutionException( 
+						"interrupted while waiting for the saturated " +
+						"storage executor", ie );
+			}
+		}
+	}//class BlockingSubmissionPolicy
+	
+	/**
+	 * Processor for the delivered mails in a shard of the 
 	 * {@link DysonStorage#incomingDirName incoming folder}.
 	 * 
 	 * @author <a href="mailto:kulovits@emarsys.com">Michael "kULO" Kulovits</a>
@@ -67,6 +199,42 @@ public class DefaultDysonStorage extends DysonStorage
 	{
 		private volatile boolean shouldStop = false;
 		private volatile boolean isRunning = false;
+		
+		/** the processed shard of the incoming directory */
+		protected final int shard;
+		protected final File incomingDir;
+		
+		//hand-off of delivered mails to the processor
+		protected final MailHandOffQueue<File> handOffQueue;
+		protected final AtomicBoolean handOffQueueOverflowed = 
+			new AtomicBoolean( false );
+		
+		/**
+		 * monitor to wait on for new mails in 
+		 * {@link ProcessorMode#EVENT_DRIVEN event driven mode}
+		 */
+		private final Object wakeUpMonitor = new Object();
+		/**
+		 * set on every wake up call, reset before every scan, so
+		 * that notifications during a scan are not lost 
+		 */
+		private boolean hasPendingMails = false;
+		/**
+		 * time of the last scan of the incoming directory
+		 */
+		private long lastScanMillis = 0;
+		
+		/**
+		 * @param shard - the shard of the incoming directory
+		 * @param handOffQueueCapacity - the capacity of the hand-off queue
+		 */
+		public DeliveredMailProcessor( int shard, int handOffQueueCapacity )
+		{
+			this.shard = shard;
+			this.incomingDir = new File( getIncomingDirName( shard ) );
+			this.handOffQueue = 
+				new MailHandOffQueue<File>( handOffQueueCapacity );
+		}
 
 		/**
 		 * 
@@ -75,7 +243,54 @@ public class DefaultDysonStorage extends DysonStorage
 		public synchronized void stop()
 		{
 			this.shouldStop = true;
-			log.info( "stopping delivered mail processor..." );
+			log.info( "stopping delivered mail processor {}...", this.shard );
+			this.wakeUp();
+		}
+		
+		/**
+		 * Wakes up this processor if it's currently waiting 
+		 * for new mails.
+		 */
+		public void wakeUp()
+		{
+			synchronized( this.wakeUpMonitor )
+			{
+				this.hasPendingMails = true;
+				this.wakeUpMonitor.notifyAll();
+			}
+		}
+		
+		/**
+		 * Blocks until there's (probably) something to do in
+		 * the incoming directory, depending on the {@link #processorMode}.
+		 */
+		protected void awaitDeliveredMails()
+		{
+			if( processorMode == ProcessorMode.POLLING )
+			{
+				Threads.sleepSilently( pollingIntervalMillis );
+				return;
+			}
+			
+			synchronized( this.wakeUpMonitor )
+			{
+				try
+				{
+					if( !this.hasPendingMails && !this.shouldStop &&
+							handOffQueue.isEmpty() )
+					{
+						this.wakeUpMonitor.wait( reconciliationIntervalMillis );
+					}
+				}
+				catch( InterruptedException ie )
+				{
+					Thread.currentThread().interrupt();
+				}
+				finally
+				{
+					this.hasPendingMails = false;
+				}
+			}
 		}
 
 		/**
@@ -86,22 +301,48 @@ public class DefaultDysonStorage extends DysonStorage
 		{
 			try
 			{
-				log.info( "started delivered mail processor" );
-				this.isRunning = true;
+				log.info( "started delivered mail processor {}", this.shard );
 
-				while( !this.shouldStop )
+				while( !this.shouldStop && 
+						!Thread.currentThread().isInterrupted() )
 				{
-					moveDeliveredMailsIntoProcessedDir();
-					//TODO use blocking (e.g.: wait and notify) instead of sleeping
-					Threads.sleepSilently( Dates.SECOND_IN_MILLIS );
+					if( this.isScanRequired() )
+					{
+						this.lastScanMillis = System.currentTimeMillis();
+						moveDeliveredMailsIntoProcessedDir( this );
+					}
+					else
+					{
+						moveHandedOffMailsIntoProcessedDir( this );
+					}
+					this.awaitDeliveredMails();
 				}
 			}
 			finally
 			{
 				this.isRunning = false;
-				fireDeliveredMailProcessorStopped();
-				log.info( "stopped delivered mail processor!" );
+				fireDeliveredMailProcessorStopped( this );
+				log.info( "stopped delivered mail processor {}!", this.shard );
+			}
+		}
+
+		/**
+		 * Checks whether the next run has to scan the incoming directory
+		 * instead of only processing the handed off mails.
+		 */
+		protected boolean isScanRequired()
+		{
+			if( processorMode == ProcessorMode.POLLING )
+			{
+				return true;
 			}
+			//reset the overflow flag first, mails rejected afterwards 
+			//will be picked up by the next scan
+			boolean hasOverflowed = handOffQueueOverflowed.getAndSet( false );
+			boolean isReconciliationDue = System.currentTimeMillis() - 
+				this.lastScanMillis >= reconciliationIntervalMillis; 
+			
+			return hasOverflowed || isReconciliationDue;
 		}
 
 		/**
@@ -111,16 +352,100 @@ public class DefaultDysonStorage extends DysonStorage
 		{
 			return isRunning;
 		}
+		
+		/**
+		 * starts this processor in its own thread
+		 */
+		protected void start()
+		{
+			//set before starting the thread, so the storage 
+			//is running as soon as start() returns
+			this.isRunning = true;
+			Thread th = new Thread( this, "DeliveredMailProcessor-" + this.shard );
+			th.start();
+		}
 	}//class DeliveredMailProcessor
 
 	
 	//monitors for synchronization
 	protected final Object lifecycleMonitor = new Object();
-	protected final Object fileCopyMonitor = new Object();
+	/**
+	 * shared by mails being moved into the processed directory, 
+	 * exclusively held while {@link #clearProcessedDir() swapping} it
+	 */
+	protected final ReadWriteLock processedDirLock = 
+		new ReentrantReadWriteLock();
 
 	//worker thread(service)s
 	protected ExecutorService storageService;
-	protected DeliveredMailProcessor deliveredMailProcessor;
+	/** one processor per shard of the incoming directory */
+	protected volatile DeliveredMailProcessor[] deliveredMailProcessors;
+	/** the mover shared by the {@link #deliveredMailProcessors} */
+	protected volatile BatchedMailMover mailMover;
+	
+	/** 
+	 * the mails currently being moved, used to avoid moving a mail twice 
+	 * if it's both handed off and found by a scan of the incoming dir
+	 */
+	protected final Set<File> inFlightMoves = 
+		Collections.newSetFromMap( new ConcurrentHashMap<File, Boolean>() );
+	/**
+	 * the number of {@link #submitTask(Runnable) submitted} tasks which 
+	 * have not been completed yet
+	 */
+	protected final AtomicInteger pendingTasks = new AtomicInteger( 0 );
+	/** the directories known to exist */
+	protected KnownDirectoryCache dirCache;
+	/** deletes the cleared directories in the background */
+	protected DirectoryTrash trash;
+	/** the canonical processed directory, resolved on first lookup */
+	protected volatile File canonicalProcessedDir;
+	/** the index over the processed mails, <code>null</code> if disabled */
+	protected ProcessedMailIndex processedMailIndex;
+	/** 
+	 * incremented whenever the {@link #processedMailIndex} is cleared, 
+	 * stops the {@link #loadProcessedMailIndex() loading} of older mails
+	 */
+	protected final AtomicInteger indexGeneration = new AtomicInteger( 0 );
+	/** recovers the incoming directory before the processors start */
+	protected StartupRecovery recovery;
+	/** batches the fsyncs of durably written mails, 
+	 *  <code>null</code> if durable writes are disabled */
+	protected GroupCommitSyncer syncer;
+	/** compresses the processed mails, 
+	 *  <code>null</code> if compression is disabled */
+	protected MailCompressor compressor;
+	/** resolves the bodies of processed mails, 
+	 *  stores them if deduplication is enabled */
+	protected MailBodyStore bodyStore;
+	
+	/** set while a {@link #collectUnreferencedBodies() collection} 
+	 *  of the bodies is requested, but has not started yet */
+	protected final AtomicBoolean bodyCollectionPending = 
+		new AtomicBoolean( false );
+	/** 
+	 * striped by the target directory, held while a mail is 
+	 * {@link #moveMailFile(File, File) moved} so that it never 
+	 * replaces a mail moved concurrently to the same name 
+	 */
+	protected final Object[] moveLocks = new Object[ MOVE_LOCK_COUNT ];
+	
+	private static final int MOVE_LOCK_COUNT = 64;
+	
+	/** the storage directories locked by this vm */
+	protected static final Set<String> lockedDirs = 
+		Collections.synchronizedSet( new HashSet<String>() );
+	
+	//cached settings
+	protected boolean singlePassEnabled;
+	protected boolean durableWriteEnabled;
+	protected boolean dedupEnabled;
+	protected ProcessorMode processorMode;
+	protected int pollingIntervalMillis;
+	protected int reconciliationIntervalMillis;
+	protected int moverBatchSize;
+	protected int moverWorkers;
+	protected int handOffQueueCapacity;
 
 	/**
 	 * 
@@ -129,6 +454,10 @@ public class DefaultDysonStorage extends DysonStorage
 	public DefaultDysonStorage( Dyson dyson ) 
 	{
 		super( dyson );
+		for( int i = 0; i < this.moveLocks.length; ++i )
+		{
+			this.moveLocks[ i ] = new Object();
+		}
 	}
 
 	/**
@@ -148,7 +477,7 @@ public class DefaultDysonStorage extends DysonStorage
 	 * </p><p>
 	 * This will {@link #startStorageServices() start} the 
 	 * storage services ({@link #storageService}, 
-	 * {@link #deliveredMailProcessor}), too.
+	 * {@link #deliveredMailProcessors}), too.
 	 * </p>
 	 */
 	public void start()
@@ -172,7 +501,7 @@ public class DefaultDysonStorage extends DysonStorage
 	 * Checks whether this dyson storage is (still) running.
 	 * 
 	 * 
-	 * @return if both the {@link #deliveredMailProcessor} thread
+	 * @return if both (any of) the {@link #deliveredMailProcessors} 
 	 * 		as well as the {@link #storageService} is running
 	 * 		(.i.e. {@link ExecutorService#isTerminated() not 
 	 * 		(yet)terminated}) 
@@ -189,10 +518,13 @@ public class DefaultDysonStorage extends DysonStorage
 			{
 				isServiceRunning = true;
 			}
-			if( this.deliveredMailProcessor != null &&
-					this.deliveredMailProcessor.isRunning() )
+			if( this.deliveredMailProcessors != null )
 			{
-				isMailProcessorRunning = true;
+				for( DeliveredMailProcessor processor : 
+					this.deliveredMailProcessors )
+				{
+					isMailProcessorRunning |= processor.isRunning();
+				}
 			}
 
 			return isServiceRunning && isMailProcessorRunning;
@@ -204,7 +536,8 @@ public class DefaultDysonStorage extends DysonStorage
 	 * 
 	 * Sends and asynchronous shutdown request to the 
 	 * {@link #storageService} as well as to the
-	 * {@link #deliveredMailProcessor}.
+	 * {@link #deliveredMailProcessors} and stops the {@link #syncer}, 
+	 * mails still being stored are forced by their storing threads.
 	 * 
 	 */
 	public void stop()
@@ -218,10 +551,20 @@ public class DefaultDysonStorage extends DysonStorage
 				{
 					this.storageService.shutdown();
 				}
-				if( this.deliveredMailProcessor != null ) 
+				if( this.deliveredMailProcessors != null ) 
 				{
-					this.deliveredMailProcessor.stop();
+					for( DeliveredMailProcessor processor : 
+						this.deliveredMailProcessors )
+					{
+						processor.stop();
+					}
 				}
+				if( this.syncer != null )
+				{
+					this.syncer.stop();
+					this.syncer = null;
+				}
+				this.indexGeneration.incrementAndGet();
 				this.unlockStorageDirs();
 			}
 			else
@@ -241,12 +584,35 @@ public class DefaultDysonStorage extends DysonStorage
 		{
 			Configuration config = this.getDyson().getConfiguration();
 			
+			//create the cache of known directories
+			if( this.dirCache == null )
+			{
+				this.dirCache = new KnownDirectoryCache( config.get( 
+						DysonConfig.STORAGE_DIR_CACHE_CAPACITY ).getIntValue() );
+			}
+			//create the index over the processed mails
+			int indexCapacity = config.get( 
+					DysonConfig.STORAGE_INDEX_CAPACITY ).getIntValue();
+			if( this.processedMailIndex == null && indexCapacity > 0 )
+			{
+				this.processedMailIndex = new ProcessedMailIndex( 
+						indexCapacity, config.get( 
+						DysonConfig.STORAGE_INDEX_BUCKET_MILLIS ).getLongValue() );
+			}
+			//start deleting cleared directories in the background
+			if( this.trash == null )
+			{
+				this.trash = new DirectoryTrash( "DirectoryTrash" );
+			}
 			//get directory name for incoming mail
 			if( this.incomingDirName == null )
 			{
 				this.incomingDirName = 
 					config.get( DysonConfig.STORAGE_DIR_INCOMING ).getValue();
-				this.createDirsIfNotPresent( this.incomingDirName );
+				this.incomingShardCount = config.get( 
+						DysonConfig.STORAGE_DIR_INCOMING_SHARDS ).getIntValue();
+				this.createIncomingDirs();
+				this.trash.collectLeftovers( new File( this.incomingDirName ) );
 			}
 			//get directory name for already processed mail
 			if( this.processedDirName == null )
@@ -254,6 +620,7 @@ public class DefaultDysonStorage extends DysonStorage
 				this.processedDirName = 
 					config.get( DysonConfig.STORAGE_DIR_PROCESSED ).getValue();
 				this.createDirsIfNotPresent( this.processedDirName );
+				this.trash.collectLeftovers( new File( this.processedDirName ) );
 			}
 			//get the suffix for mail files
 			if( this.mailFileSuffix == null )
@@ -269,6 +636,69 @@ public class DefaultDysonStorage extends DysonStorage
 					config.get( DysonConfig.STORAGE_MAIL_PARTIAL_FILE_SUFFIX 
 					).getValue();
 			}
+			//single-pass storage
+			this.singlePassEnabled = config.get( 
+					DysonConfig.STORAGE_SINGLE_PASS_ENABLED ).getBooleanValue();
+			//durable writes
+			this.durableWriteEnabled = config.get( 
+					DysonConfig.STORAGE_DURABLE_WRITE_ENABLED ).getBooleanValue();
+			if( this.durableWriteEnabled && this.syncer == null )
+			{
+				this.syncer = new GroupCommitSyncer( "GroupCommitSyncer", 
+						config.get( DysonConfig.STORAGE_DURABLE_WRITE_MAX_BATCH 
+						).getIntValue(), config.get( 
+						DysonConfig.STORAGE_DURABLE_WRITE_MAX_LATENCY_MILLIS 
+						).getIntValue(), config.get( 
+						DysonConfig.STORAGE_DURABLE_WRITE_FORCE_THREADS 
+						).getIntValue() );
+			}
+			//compression of processed mails
+			if( this.compressor == null && config.get( 
+					DysonConfig.STORAGE_COMPRESSION_ENABLED ).getBooleanValue() )
+			{
+				this.compressor = new MailCompressor( config.get( 
+						DysonConfig.STORAGE_COMPRESSION_LEVEL ).getIntValue() );
+			}
+			//deduplication of mail bodies
+			this.dedupEnabled = config.get( 
+					DysonConfig.STORAGE_DEDUP_ENABLED ).getBooleanValue();
+			if( this.bodyStore == null )
+			{
+				this.bodyStore = new MailBodyStore( new File( config.get( 
+						DysonConfig.STORAGE_DIR_BODIES ).getValue() ), 
+						config.get( DysonConfig.STORAGE_DEDUP_MAX_BUFFERED_BYTES 
+						).getIntValue(), this.getDyson().getStatistics() );
+			}
+			//get the recovery of the incoming dir
+			if( this.recovery == null )
+			{
+				this.recovery = new StartupRecovery( this, 
+						StartupRecovery.PartFileRecovery.valueOf( config.get( 
+						DysonConfig.STORAGE_RECOVERY_PART_FILES ).getValue() ), 
+						new File( config.get( 
+						DysonConfig.STORAGE_DIR_QUARANTINE ).getValue() ) );
+			}
+			//get the mode and intervals of the delivered mail processor
+			if( this.processorMode == null )
+			{
+				this.processorMode = ProcessorMode.valueOf( 
+						config.get( DysonConfig.STORAGE_PROCESSOR_MODE 
+						).getValue() );
+				this.pollingIntervalMillis = config.get( 
+						DysonConfig.STORAGE_PROCESSOR_POLLING_INTERVAL_MILLIS 
+						).getIntValue();
+				this.reconciliationIntervalMillis = config.get( 
+						DysonConfig.STORAGE_PROCESSOR_RECONCILIATION_INTERVAL_MILLIS 
+						).getIntValue();
+			}
+			//get the batch size and number of workers of the mail mover
+			this.moverBatchSize = config.get( 
+					DysonConfig.STORAGE_MOVER_BATCH_SIZE ).getIntValue();
+			this.moverWorkers = config.get( 
+					DysonConfig.STORAGE_MOVER_WORKERS ).getIntValue();
+			//get the capacity of the hand-off queues for delivered mails
+			this.handOffQueueCapacity = config.get( 
+					DysonConfig.STORAGE_HANDOFF_QUEUE_CAPACITY ).getIntValue();
 			//setup the naming scheme implementation
 			if( this.namingScheme == null )
 			{
@@ -279,9 +709,25 @@ public class DefaultDysonStorage extends DysonStorage
 		}
 	}
 
+	/**
+	 * Creates the incoming directory and its shards.
+	 * 
+	 * @throws DysonException - if it was not possible to create 
+	 * 		the directories
+	 */
+	protected void createIncomingDirs() throws DysonException
+	{
+		this.createDirsIfNotPresent( this.incomingDirName );
+		for( int shard = 0; shard < this.incomingShardCount; ++shard )
+		{
+			this.createDirsIfNotPresent( this.getIncomingDirName( shard ) );
+		}
+	}
+
 	/**
 	 * Creates the directory with the passed filename if it's not
-	 * already present.
+	 * already present. Directories in the {@link #dirCache} are 
+	 * not checked again.
 	 * 
 	 * @param pathToDir - the path to the directory
 	 * @throws DysonException - if it was not possible to create a
@@ -290,6 +736,12 @@ public class DefaultDysonStorage extends DysonStorage
 	protected void createDirsIfNotPresent( String pathToDir )
 		throws DysonException
 	{
+		KnownDirectoryCache cache = this.dirCache;
+		if( cache != null && cache.contains( pathToDir ) )
+		{
+			return;
+		}
+		
 		File dir = new File( pathToDir );
 		if( !dir.exists() )
 		{
@@ -308,18 +760,102 @@ public class DefaultDysonStorage extends DysonStorage
 			throw new DysonException( 
 					"Was not able to create directory \'" + pathToDir + "\'" );
 		}
+		
+		if( cache != null )
+		{
+			cache.add( pathToDir );
+		}
+	}
+	
+	/**
+	 * Removes the parent directory of the passed file from the 
+	 * {@link #dirCache}, has to be called if storing a mail in it failed 
+	 * since the directory might have been removed meanwhile.
+	 * 
+	 * @param file - the file which could not be stored
+	 */
+	protected void fireStoringFailed( File file )
+	{
+		KnownDirectoryCache cache = this.dirCache;
+		if( cache != null && file != null )
+		{
+			cache.invalidate( file.getParent() );
+		}
 	}
 
+	/**
+	 * Locks the incoming and the processed directory as well as the 
+	 * body directory if deduplication is enabled, since unreferenced 
+	 * bodies are collected by scanning this storage's mails only.
+	 */
 	protected void lockStorageDirs() throws DysonException
 	{
+		String bodiesDirName = null;
+		if( this.dedupEnabled )
+		{
+			bodiesDirName = this.bodyStore.getDir().getPath();
+			this.checkBodiesDir( bodiesDirName );
+			this.createDirsIfNotPresent( bodiesDirName );
+		}
+		
 		this.lock( this.getIncomingDirName() );
 		this.lock( this.getProcessedDirName() );
+		if( bodiesDirName != null )
+		{
+			try
+			{
+				this.lock( bodiesDirName );
+			}
+			catch( DysonException de )
+			{
+				this.unlock( this.getIncomingDirName() );
+				this.unlock( this.getProcessedDirName() );
+				throw de;
+			}
+		}
 	}
 	
 	protected void unlockStorageDirs()
 	{
 		this.unlock( this.getIncomingDirName() );
 		this.unlock( this.getProcessedDirName() );
+		if( this.dedupEnabled )
+		{
+			this.unlock( this.bodyStore.getDir().getPath() );
+		}
+	}
+	
+	/**
+	 * Checks that the body directory neither is nor lies within the 
+	 * incoming or the processed directory, the bodies would be removed 
+	 * along with the mails otherwise.
+	 * 
+	 * @throws DysonException - if the body directory is misplaced
+	 * @see DysonConfig#STORAGE_DIR_BODIES
+	 */
+	protected void checkBodiesDir( String bodiesDirName ) 
+		throws DysonException
+	{
+		try
+		{
+			String bodiesDir = new File( bodiesDirName ).getCanonicalPath();
+			for( String dirName : new String[] { 
+					this.getIncomingDirName(), this.getProcessedDirName() } )
+			{
+				String dir = new File( dirName ).getCanonicalPath();
+				if( bodiesDir.equals( dir ) || 
+						bodiesDir.startsWith( dir + File.separator ) )
+				{
+					throw new DysonException( "body directory " + 
+							bodiesDirName + " must not lie within " + dirName );
+				}
+			}
+		}
+		catch( IOException ioe )
+		{
+			throw new DysonException( "cannot resolve body directory " + 
+					bodiesDirName + ": " + ioe, ioe );
+		}
 	}
 	
 	protected File getLockFileForStorageDir( String storageDirName )
@@ -336,14 +872,25 @@ public class DefaultDysonStorage extends DysonStorage
 			
 			File lockFile = this.getLockFileForStorageDir( storageDirName );
 
+			String canonicalDirName = 
+				new File( storageDirName ).getCanonicalPath();
+			
 			if( lockFile.exists() )
 			{
-				throw new DysonException( 
-						storageDirName + " is already locked by process " + 
-						this.getLockingProcess( lockFile ) );
+				String pid = this.getLockingProcess( lockFile );
+				if( !this.isStaleLock( pid, canonicalDirName ) )
+				{
+					throw new DysonException( 
+							storageDirName + " is already locked by process " + 
+							pid );
+				}
+				log.warn( "removing stale lock of process {} from {}", 
+						pid, storageDirName );
+				FileUtils.forceDelete( lockFile );
 			}
 			
 			this.writeLockFile( lockFile );
+			lockedDirs.add( canonicalDirName );
 		} 
 		catch( IOException ioe ) 
 		{
@@ -356,6 +903,14 @@ public class DefaultDysonStorage extends DysonStorage
 	protected void unlock( String storagDirName )
 	{
 		File lockfile = this.getLockFileForStorageDir( storagDirName );
+		try
+		{
+			lockedDirs.remove( new File( storagDirName ).getCanonicalPath() );
+		}
+		catch( IOException ioe )
+		{
+			log.warn( "cannot resolve {}: {}", storagDirName, ioe );
+		}
 		
 		if( lockfile.exists() )
 		{
@@ -384,6 +939,59 @@ public class DefaultDysonStorage extends DysonStorage
 		return lines.isEmpty() ? "unknown" : lines.get( 0 ).toString();
 	}
 	
+	/**
+	 * <p>
+	 * Checks whether the lock of the passed process has been left behind 
+	 * by a crashed dyson, i.e. whether the locking process is dead.
+	 * </p><p>
+	 * A process is considered dead if the lock has been written by this 
+	 * vm's pid without being held by this vm (e.g. a restarted container 
+	 * reusing the pid) or if the <tt>/proc</tt> file system exists but 
+	 * shows no java process with that pid. If liveness cannot be 
+	 * determined the lock is not considered stale.
+	 * </p>
+	 * @param pid - the pid written to the lock file
+	 * @param canonicalDirName - the canonical name of the locked directory
+	 * @return <code>true</code> if the lock can be removed safely
+	 */
+	protected boolean isStaleLock( String pid, String canonicalDirName )
+	{
+		pid = pid.trim();
+		if( pid.equals( this.getPID() ) )
+		{
+			return !lockedDirs.contains( canonicalDirName );
+		}
+		for( int i = 0; i < pid.length(); ++i )
+		{
+			if( !Character.isDigit( pid.charAt( i ) ) )
+			{
+				return false;
+			}
+		}
+		
+		File proc = new File( "/proc" );
+		if( pid.length() == 0 || !new File( proc, "self" ).exists() )
+		{
+			return false;
+		}
+		File process = new File( proc, pid );
+		if( !process.exists() )
+		{
+			return true;
+		}
+		try
+		{
+			//the pid may have been reused by another program
+			String cmdline = FileUtils.readFileToString( 
+					new File( process, "cmdline" ) );
+			return cmdline.length() > 0 && cmdline.indexOf( "java" ) < 0;
+		}
+		catch( IOException ioe )
+		{
+			return false;
+		}
+	}
+	
 	protected void writeLockFile( File lockFile ) throws IOException
 	{
 		FileUtils.writeStringToFile( lockFile, this.getPID() );
@@ -400,123 +1008,1133 @@ public class DefaultDysonStorage extends DysonStorage
 	
 	/**
 	 * Creates and starts the {@link #storageService 
-	 * storage's executor service} as well as the 
-	 * {@link #deliveredMailProcessor} in its own {@link Thread}.
+	 * storage's executor service}, the {@link #mailMover} as well as 
+	 * one {@link #deliveredMailProcessors delivered mail processor} per 
+	 * shard of the incoming directory, each in its own {@link Thread}.
+	 * The {@link DysonConfig#STORAGE_HANDOFF_QUEUE_CAPACITY} is split 
+	 * among the processors. Bodies left unreferenced are 
+	 * {@link #collectUnreferencedBodies() collected} after recovering 
+	 * the incoming directory.
 	 * 
 	 */
 	protected void startStorageServices()
 	{
+		this.loadProcessedMailIndex();
 		if( this.storageService == null  )
 		{
-			this.storageService = new ThreadPoolExecutor(
-					0, Integer.MAX_VALUE,
-					5L, TimeUnit.SECONDS,
-					new SynchronousQueue<Runnable>());
+			this.storageService = this.newStorageService();
 		}
-		if( this.deliveredMailProcessor == null )
+		if( this.mailMover == null )
 		{
-			this.deliveredMailProcessor = new DeliveredMailProcessor(); 
+			this.mailMover = new BatchedMailMover( this, 
+					this.storageService, this.moverBatchSize, this.moverWorkers );
 		}
-		if( !this.deliveredMailProcessor.isRunning() )
+		if( this.deliveredMailProcessors == null )
 		{
-			Thread th = new Thread( 
-					this.deliveredMailProcessor, "DeliveredMailProcessor" );
-			th.start();
+			this.recoverIncomingDir();
+			
+			int shardCount = this.getIncomingShardCount();
+			int queueCapacity = Math.max( 1, 
+					(this.handOffQueueCapacity + shardCount - 1) / shardCount );
+			
+			DeliveredMailProcessor[] processors = 
+				new DeliveredMailProcessor[ shardCount ];
+			for( int shard = 0; shard < shardCount; ++shard )
+			{
+				processors[ shard ] = 
+					new DeliveredMailProcessor( shard, queueCapacity );
+			}
+			for( DeliveredMailProcessor processor : processors )
+			{
+				processor.start();
+			}
+			this.deliveredMailProcessors = processors;
+			this.collectUnreferencedBodies();
 		}
 	}
 
 	/**
-	 *
+	 * Creates the {@link #storageService} as configured by the 
+	 * {@link DysonConfig#STORAGE_EXECUTOR dyson.storage.executor.*} 
+	 * settings.
+	 * 
+	 * @see ExecutorMode
+	 * @see BlockingSubmissionPolicy
 	 */
-	protected void fireDeliveredMailProcessorStopped()
+	protected ExecutorService newStorageService()
 	{
-		synchronized( this.lifecycleMonitor )
+		Configuration config = this.getDyson().getConfiguration();
+		
+		ExecutorMode mode = ExecutorMode.valueOf( config.get( 
+				DysonConfig.STORAGE_EXECUTOR ).getValue().toUpperCase() );
+		int corePoolSize = config.get( 
+				DysonConfig.STORAGE_EXECUTOR_CORE_POOL_SIZE ).getIntValue();
+		int maxPoolSize = config.get( 
+				DysonConfig.STORAGE_EXECUTOR_MAX_POOL_SIZE ).getIntValue();
+		int queueCapacity = config.get( 
+				DysonConfig.STORAGE_EXECUTOR_QUEUE_CAPACITY ).getIntValue();
+		long submitTimeoutMillis = config.get( 
+				DysonConfig.STORAGE_EXECUTOR_SUBMIT_TIMEOUT_MILLIS ).getLongValue();
+		
+		if( mode == ExecutorMode.VIRTUAL )
 		{
-			this.deliveredMailProcessor = null;
+			ExecutorService virtualThreadExecutor = 
+				this.newVirtualThreadPerTaskExecutor();
+			if( virtualThreadExecutor != null )
+			{
+				log.debug( "creating virtual thread storage executor for " +
+						"up to {} pending tasks", maxPoolSize + queueCapacity );
+				return new SubmissionLimitingExecutorService( 
+						virtualThreadExecutor, maxPoolSize + queueCapacity, 
+						submitTimeoutMillis );
+			}
+			log.warn( "virtual threads are not supported by this vm, " +
+					"falling back to a bounded storage executor" );
 		}
+		
+		log.debug( "creating storage executor with {} to {} threads and " +
+				"a queue capacity of " + queueCapacity, 
+				corePoolSize, maxPoolSize );
+		
+		return new ThreadPoolExecutor(
+				corePoolSize, Math.max( corePoolSize, maxPoolSize ),
+				5L, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>( queueCapacity ),
+				new BlockingSubmissionPolicy( submitTimeoutMillis ) );
 	}
 
 	/**
-	 * <p>
-	 * {@link #move(File, File) Moves} all already delivered mails 
-	 * from the incoming folder to its final storage location in a 
-	 * subfolder of the processed directory.
-	 * </p><p>
-	 * 
-	 * </p>
+	 * Creates a new virtual thread per task executor by reflection since 
+	 * virtual threads are only available in java 21 (or higher) vms.
 	 * 
-	 * @see #move(File, File)
+	 * @return the executor or <code>null</code> if virtual threads 
+	 * 		are not supported
 	 */
-	protected void moveDeliveredMailsIntoProcessedDir()
+	protected ExecutorService newVirtualThreadPerTaskExecutor()
 	{
-		synchronized( this.fileCopyMonitor )
+		try
 		{
-			File processedDir = new File( this.processedDirName );
-
-			for( File mail : this.getIncomingMailFiles() )
-			{
-				this.move( mail, processedDir );
-			}
+			return (ExecutorService) Executors.class.getMethod( 
+					"newVirtualThreadPerTaskExecutor" ).invoke( null );
+		}
+		catch( NoSuchMethodException nsme )
+		{
+			return null;
+		}
+		catch( Exception ex )
+		{
+			log.warn( "cannot create virtual thread executor: " + ex, ex );
+			return null;
 		}
 	}
 
 	/**
+	 * Drops the {@link #mailMover} once all
+	 * {@link #deliveredMailProcessors} using it have stopped.
 	 * 
-	 * @param movee
-	 * @param toDir
+	 * @param stopped - the stopped processor
 	 */
-	protected void move( final File movee, final File toDir )
+	protected void fireDeliveredMailProcessorStopped( 
+			DeliveredMailProcessor stopped )
 	{
-		Runnable mover = new Runnable()
+		synchronized( this.lifecycleMonitor )
 		{
-			public void run()
+			DeliveredMailProcessor[] processors = this.deliveredMailProcessors;
+			if( processors == null )
 			{
-				boolean successful = false;
-				Exception ex = null;
-				File targetFile = null;
-
-				try
+				return;
+			}
+			for( DeliveredMailProcessor processor : processors )
+			{
+				if( processor.isRunning() )
 				{
-					log.debug( "moving {} to {}", 
-							movee.getAbsolutePath(), toDir.getAbsolutePath() );
-
-					targetFile = namingScheme.getMailFile( 
-							toDir, new FileInputStream( movee ) );
-
-					log.debug( "created storage file \'{}\' for \'{}\'",
-							targetFile.getAbsolutePath(), movee.getAbsoluteFile() );
-
-					createDirsIfNotPresent( targetFile.getParent() );
-					successful = movee.renameTo( targetFile );
+					return;
 				}
-				catch( Exception ex2 )
-				{
-					ex = ex2;
-					successful = false;
+			}
+			
+			this.deliveredMailProcessors = null;
+			this.mailMover = null;
+		}
+	}
+
+	/**
+	 * {@link StartupRecovery#recover(List) Recovers} the shards of the 
+	 * incoming directory in parallel, has to be called before the 
+	 * {@link #deliveredMailProcessors} are started.
+	 */
+	protected void recoverIncomingDir()
+	{
+		List<File> shardDirs = new ArrayList<File>( this.incomingShardCount );
+		for( int shard = 0; shard < this.incomingShardCount; ++shard )
+		{
+			shardDirs.add( new File( this.getIncomingDirName( shard ) ) );
+		}
+		this.recovery.recover( shardDirs );
+	}
+	
+	/**
+	 * <p>
+	 * {@link #moveBatch(List, File) Moves} all already delivered mails 
+	 * from the processor's shard of the incoming folder to its final 
+	 * storage location in a subfolder of the processed directory.
+	 * </p><p>
+	 * The mails are moved in batches of at most 
+	 * {@link DysonConfig#STORAGE_MOVER_BATCH_SIZE} mails.
+	 * </p>
+	 * 
+	 * @param processor - the processor of the shard
+	 * @see #moveBatch(List, File)
+	 */
+	protected void moveDeliveredMailsIntoProcessedDir( 
+			DeliveredMailProcessor processor )
+	{
+		File processedDir = new File( this.processedDirName );
+		List<File> batch = new ArrayList<File>( this.moverBatchSize );
+		
+		for( File mail : this.getMailFiles( processor.incomingDir.getPath() ) )
+		{
+			batch.add( mail );
+			if( batch.size() >= this.moverBatchSize )
+			{
+				this.moveBatch( batch, processedDir );
+				batch.clear();
+			}
+		}
+		this.moveBatch( batch, processedDir );
+	}
+
+	/**
+	 * {@link #moveBatch(List, File) Moves} the mails 
+	 * {@link #fireMailDelivered(File) handed off} by the message listeners 
+	 * to the passed processor to their final storage location.
+	 * 
+	 * @param processor - the processor of the shard
+	 * @see DeliveredMailProcessor#handOffQueue
+	 */
+	protected void moveHandedOffMailsIntoProcessedDir( 
+			DeliveredMailProcessor processor )
+	{
+		File processedDir = new File( this.processedDirName );
+		List<File> batch = new ArrayList<File>( this.moverBatchSize );
+		File mail;
+		
+		while( (mail = processor.handOffQueue.poll()) != null )
+		{
+			batch.add( mail );
+			if( batch.size() >= this.moverBatchSize )
+			{
+				this.moveBatch( batch, processedDir );
+				batch.clear();
+			}
+		}
+		this.moveBatch( batch, processedDir );
+	}
+	
+	/**
+	 * Moves the passed batch of mails by the {@link #mailMover}, 
+	 * mails {@link #inFlightMoves already being moved} are skipped.
+	 * 
+	 * @param mails - the mails to move
+	 * @param toDir - the directory to move the mails into
+	 */
+	protected void moveBatch( List<File> mails, File toDir )
+	{
+		List<File> movees = new ArrayList<File>( mails.size() );
+		for( File mail : mails )
+		{
+			if( this.inFlightMoves.add( mail ) )
+			{
+				movees.add( mail );
+			}
+			else
+			{
+				log.debug( "{} is already being moved", mail );
+			}
+		}
+		
+		try
+		{
+			this.moveMails( movees, toDir );
+		}
+		finally
+		{
+			this.inFlightMoves.removeAll( movees );
+		}
+	}
+
+	/**
+	 * Moves the passed mails by the {@link #mailMover}, called by 
+	 * {@link #moveBatch(List, File)}. The {@link #processedDirLock} has 
+	 * to be shared while storing a mail, but must not be held while 
+	 * waiting for tasks of the {@link #storageService}.
+	 * 
+	 * @param mails - the mails to move
+	 * @param toDir - the directory to move the mails into
+	 */
+	protected void moveMails( List<File> mails, File toDir )
+	{
+		this.mailMover.moveBatch( mails, toDir );
+	}
+
+	/**
+	 * 
+	 * @param movee
+	 * @param toDir
+	 */
+	protected void move( final File movee, final File toDir )
+	{
+		if( !this.inFlightMoves.add( movee ) )
+		{
+			log.debug( "{} is already being moved", movee );
+			return;
+		}
+		
+		Runnable mover = new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					if( movee.exists() )
+					{
+						doMove( movee, toDir );
+					}
+					else
+					{
+						//already moved after being found by a scan
+						//as well as being handed off
+						log.debug( "{} has already been moved", movee );
+					}
 				}
+				finally
+				{
+					inFlightMoves.remove( movee );
+				}
+			}
+		};
+
+		try
+		{
+			this.storageService.submit( mover );
+		}
+		catch( RejectedExecutionException ree )
+		{
+			this.inFlightMoves.remove( movee );
+			throw ree;
+		}
+	}
+	
+	/**
+	 * Moves the passed mail file to its final storage location in the 
+	 * passed directory as specified by the {@link #namingScheme}.
+	 * 
+	 * @param movee
+	 * @param toDir
+	 */
+	protected void doMove( File movee, File toDir )
+	{
+		boolean successful = false;
+		Exception ex = null;
+		File targetFile = null;
+		MailHeaders headers = null;
+		long storedMillis = movee.lastModified();
+
+		try
+		{
+			log.debug( "moving {} to {}", 
+					movee.getAbsolutePath(), toDir.getAbsolutePath() );
+
+			InputStream data = new FileInputStream( movee );
+			try
+			{
+				HeaderCapturingInputStream headerCapturingData = 
+					new HeaderCapturingInputStream( data );
+				targetFile = this.getMailFile( headerCapturingData, toDir );
+				headers = this.getIndexedHeaders( headerCapturingData );
+			}
+			finally
+			{
+				IOUtil.silentClose( data );
+			}
 
-				final String from = movee.getAbsolutePath();
-				final String to = (targetFile == null ) 
-						? "null" : targetFile.getAbsolutePath();
+			log.debug( "created storage file \'{}\' for \'{}\'",
+					targetFile.getAbsolutePath(), movee.getAbsoluteFile() );
 
+			this.processedDirLock.readLock().lock();
+			try
+			{
+				createDirsIfNotPresent( targetFile.getParent() );
+				File movedFile = this.moveMailFile( movee, targetFile );
+				successful = movedFile != null;
 				if( successful )
 				{
-					log.debug( "successfully moved {} to {}", from, to );
-					getDyson().getStatistics().fire( MailEvent.MAIL_PROCESSED );
+					targetFile = movedFile;
+				}
+			}
+			finally
+			{
+				this.processedDirLock.readLock().unlock();
+			}
+		}
+		catch( Exception ex2 )
+		{
+			ex = ex2;
+			successful = false;
+		}
+
+		final String from = movee.getAbsolutePath();
+		final String to = (targetFile == null ) 
+				? "null" : targetFile.getAbsolutePath();
+
+		if( successful )
+		{
+			log.debug( "successfully moved {} to {}", from, to );
+			this.fireMailStored( targetFile, headers, storedMillis );
+			this.fireMailProcessed( movee, storedMillis );
+		}
+		else
+		{
+			this.fireStoringFailed( targetFile );
+			log.error( "cannot move " + from + "  to " + to +
+					" (exception: " + ex + ")", ex );
+		}
+	}
+
+	/**
+	 * Moves the passed mail file to its final location in the processed 
+	 * directory, either by renaming it or by writing a 
+	 * {@link #compressor compressed} copy.
+	 * An existing mail is never replaced: if the target is taken, 
+	 * the mail is moved to a {@link #getUniqueMailFile(File, Set) unique} 
+	 * sibling instead.
+	 * 
+	 * @param mail - the mail file in the incoming directory
+	 * @param target - the final location of the mail
+	 * @return the file the mail has been moved to, 
+	 * 		<code>null</code> if it cannot be moved
+	 */
+	protected File moveMailFile( File mail, File target )
+	{
+		synchronized( this.getMoveLock( target ) )
+		{
+			File uniqueTarget = this.getUniqueMailFile( 
+					target, Collections.<File>emptySet() );
+			if( uniqueTarget != target )
+			{
+				log.debug( "{} is already taken, moving {} to {}", 
+						new Object[] { target, mail, uniqueTarget } );
+			}
+			return this.moveMailFileTo( mail, uniqueTarget ) 
+				? uniqueTarget : null;
+		}
+	}
+	
+	/**
+	 * renames or compresses the mail to the (free) target
+	 */
+	protected boolean moveMailFileTo( File mail, File target )
+	{
+		MailCompressor mailCompressor = this.compressor;
+		if( mailCompressor == null )
+		{
+			return mail.renameTo( target );
+		}
+		
+		try
+		{
+			mailCompressor.compress( mail, target, 
+					this.isDurableWriteEnabled() ? this : null );
+			return true;
+		}
+		catch( IOException ioe )
+		{
+			log.warn( "cannot compress {} to {}: {}", 
+					new Object[] { mail, target, ioe } );
+			return false;
+		}
+	}
+	
+	/**
+	 * Returns the passed mail file if it neither exists nor is taken, 
+	 * otherwise the first free sibling named by appending 
+	 * <code>-&lt;n&gt;</code> to the file's base name. 
+	 * The naming scheme's timestamps have millisecond precision only, 
+	 * so mails to the same recipient may share a name.
+	 * 
+	 * @param mailFile - the mail file in the processed directory
+	 * @param taken - the files already claimed but not moved yet
+	 * @return the passed file or a free sibling of it
+	 */
+	protected File getUniqueMailFile( File mailFile, Set<File> taken )
+	{
+		if( !taken.contains( mailFile ) && !mailFile.exists() )
+		{
+			return mailFile;
+		}
+		
+		String name = mailFile.getName();
+		String suffix = "." + this.getMailFileSuffix();
+		if( !name.endsWith( suffix ) )
+		{
+			suffix = "";
+		}
+		String baseName = name.substring( 0, name.length() - suffix.length() );
+		
+		for( int n = 1; ; ++n )
+		{
+			File sibling = new File( mailFile.getParentFile(), 
+					baseName + "-" + n + suffix );
+			if( !taken.contains( sibling ) && !sibling.exists() )
+			{
+				return sibling;
+			}
+		}
+	}
+	
+	/**
+	 * @return the lock for moves into the directory of the passed target
+	 */
+	protected Object getMoveLock( File target )
+	{
+		int hash = target.getParent() == null ? 0 : target.getParent().hashCode();
+		return this.moveLocks[ (hash & 0x7fffffff) % this.moveLocks.length ];
+	}
+	
+	/**
+	 * @see DysonStorage#isSinglePassEnabled()
+	 */
+	@Override
+	public boolean isSinglePassEnabled()
+	{
+		return this.singlePassEnabled;
+	}
+	
+	/**
+	 * @return the store of the mail bodies if deduplication is enabled, 
+	 * 		<code>null</code> otherwise
+	 * @see DysonConfig#STORAGE_DEDUP_ENABLED
+	 */
+	public MailBodyStore getDeduplicatingBodyStore()
+	{
+		return this.dedupEnabled ? this.bodyStore : null;
+	}
+	
+	/**
+	 * <p>
+	 * {@link MailBodyStore#collectGarbage(Collection) Collects} the bodies 
+	 * no longer referenced by any mail in the incoming, quarantine or 
+	 * processed directory in the background, e.g. after clearing them. 
+	 * </p><p>
+	 * Requests made while a collection is pending are merged into it, a 
+	 * request made while a collection is running starts another one after 
+	 * it. Does nothing unless deduplication is enabled (the body directory 
+	 * is only locked by this storage then) or if no body has been stored 
+	 * yet.
+	 * </p>
+	 */
+	protected void collectUnreferencedBodies()
+	{
+		final MailBodyStore bodies = this.bodyStore;
+		if( !this.dedupEnabled || bodies == null || 
+				!bodies.getDir().isDirectory() || 
+				!this.bodyCollectionPending.compareAndSet( false, true ) )
+		{
+			return;
+		}
+		
+		final List<File> mailDirs = new ArrayList<File>( 3 );
+		mailDirs.add( new File( this.incomingDirName ) );
+		if( this.recovery != null )
+		{
+			mailDirs.add( this.recovery.getQuarantineDir() );
+		}
+		mailDirs.add( new File( this.processedDirName ) );
+		
+		Thread th = new Thread( new Runnable()
+		{
+			public void run()
+			{
+				bodyCollectionPending.set( false );
+				bodies.collectGarbage( mailDirs );
+			}
+		}, "MailBodyCollector" );
+		th.setDaemon( true );
+		th.setPriority( Thread.MIN_PRIORITY );
+		th.start();
+	}
+	
+	/**
+	 * @see DysonStorage#isDurableWriteEnabled()
+	 */
+	@Override
+	public boolean isDurableWriteEnabled()
+	{
+		return this.durableWriteEnabled;
+	}
+	
+	/**
+	 * Forces the passed mail file by the storage's 
+	 * {@link GroupCommitSyncer} and records the 
+	 * {@link Latency#STORED_TO_SYNCED} latency.
+	 * 
+	 * @see DysonStorage#force(FileChannel)
+	 */
+	@Override
+	public void force( FileChannel channel ) throws IOException
+	{
+		GroupCommitSyncer groupCommitSyncer = this.syncer;
+		if( groupCommitSyncer == null )
+		{
+			super.force( channel );
+			return;
+		}
+		
+		long start = System.currentTimeMillis();
+		groupCommitSyncer.sync( channel );
+		this.getDyson().getStatistics().record( Latency.STORED_TO_SYNCED, 
+				System.currentTimeMillis() - start );
+	}
+	
+	/**
+	 * @see DysonStorage#moveIntoProcessedDir(File, InputStream)
+	 */
+	@Override
+	public File moveIntoProcessedDir( File mailFile, InputStream headers )
+		throws IOException
+	{
+		if( !this.isSinglePassEnabled() )
+		{
+			throw new UnsupportedOperationException( 
+					"single-pass storage is disabled" );
+		}
+		
+		HeaderCapturingInputStream headerCapturingData = 
+			new HeaderCapturingInputStream( headers );
+		File targetFile = this.namingScheme.getMailFile( 
+				new File( this.processedDirName ), headerCapturingData );
+		
+		log.debug( "moving {} straight to {}", mailFile, targetFile );
+		
+		this.processedDirLock.readLock().lock();
+		try
+		{
+			this.createDirsIfNotPresent( targetFile.getParent() );
+			File movedFile = this.moveMailFile( mailFile, targetFile );
+			if( movedFile == null )
+			{
+				this.fireStoringFailed( targetFile );
+				throw new IOException( "cannot move " + 
+						mailFile.getAbsolutePath() + " to " + 
+						targetFile.getAbsolutePath() );
+			}
+			targetFile = movedFile;
+		}
+		finally
+		{
+			this.processedDirLock.readLock().unlock();
+		}
+		
+		long storedMillis = System.currentTimeMillis();
+		if( headerCapturingData.isComplete() )
+		{
+			this.fireMailStored( this.getProcessedMailName( targetFile ), 
+					MailHeaders.read( headerCapturingData.getHeaders() ), 
+					storedMillis );
+		}
+		else
+		{
+			this.fireMailStored( targetFile, storedMillis );
+		}
+		this.fireMailProcessed( mailFile, storedMillis );
+		return targetFile;
+	}
+	
+	/**
+	 * Adds the passed mail file, which has just been stored in the 
+	 * processed directory, to the {@link #processedMailIndex}. 
+	 * Its headers are only read from the file if they have not been 
+	 * {@link #getIndexedHeaders(HeaderCapturingInputStream) captured} 
+	 * before.
+	 * 
+	 * @param mailFile - the mail file in the processed directory
+	 * @param headers - the captured headers of the mail or 
+	 * 		<code>null</code>
+	 * @param storedMillis - the time the mail has been stored
+	 */
+	protected void fireMailStored( 
+			File mailFile, MailHeaders headers, long storedMillis )
+	{
+		if( headers == null )
+		{
+			this.fireMailStored( mailFile, storedMillis );
+		}
+		else
+		{
+			this.fireMailStored( this.getProcessedMailName( mailFile ), 
+					headers, storedMillis );
+		}
+	}
+	
+	/**
+	 * Adds the passed mail file, which has just been stored in the 
+	 * processed directory, to the {@link #processedMailIndex}. 
+	 * Its headers are read from the file.
+	 * 
+	 * @param mailFile - the mail file in the processed directory
+	 * @param storedMillis - the time the mail has been stored
+	 */
+	protected void fireMailStored( File mailFile, long storedMillis )
+	{
+		if( this.processedMailIndex == null )
+		{
+			return;
+		}
+		
+		InputStream data = null;
+		try
+		{
+			data = MailCompressor.open( mailFile );
+			this.fireMailStored( this.getProcessedMailName( mailFile ), 
+					MailHeaders.read( data ), storedMillis );
+		}
+		catch( IOException ioe )
+		{
+			log.warn( "cannot index mail {}: {}", mailFile, ioe );
+		}
+		finally
+		{
+			IOUtil.silentClose( data );
+		}
+	}
+	
+	/**
+	 * Adds the passed mail to the {@link #processedMailIndex}.
+	 * 
+	 * @param name - the name of the mail relative to the processed 
+	 * 		directory
+	 * @param headers - the headers of the mail
+	 * @param storedMillis - the time the mail has been stored
+	 */
+	protected void fireMailStored( 
+			String name, MailHeaders headers, long storedMillis )
+	{
+		ProcessedMailIndex index = this.processedMailIndex;
+		if( index == null )
+		{
+			return;
+		}
+		index.add( name, storedMillis, headers.getMessageId(), 
+				getSender( headers ), headers.getRecipientAddresses() );
+	}
+	
+	/**
+	 * Adds a mail older than all indexed mails while 
+	 * {@link #loadProcessedMailIndex() loading} the index, 
+	 * unless the index has been cleared since the loading started.
+	 * 
+	 * @param generation - the {@link #indexGeneration} the loading 
+	 * 		started with
+	 * @return <code>false</code> if no further mails are to be loaded
+	 * @see ProcessedMailIndex#addOldest(String, long, String, String, Collection)
+	 */
+	protected boolean fireMailLoaded( int generation, 
+			String name, MailHeaders headers, long storedMillis )
+	{
+		ProcessedMailIndex index = this.processedMailIndex;
+		if( index == null )
+		{
+			return false;
+		}
+		
+		//the index is cleared while holding the lock exclusively
+		this.processedDirLock.readLock().lock();
+		try
+		{
+			return generation == this.indexGeneration.get() && 
+				index.addOldest( name, storedMillis, headers.getMessageId(), 
+						getSender( headers ), headers.getRecipientAddresses() );
+		}
+		finally
+		{
+			this.processedDirLock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * @return the first sender address of the passed headers or 
+	 * 		<code>null</code>
+	 */
+	protected static String getSender( MailHeaders headers )
+	{
+		try
+		{
+			return headers.getFirstFromAddress();
+		}
+		catch( AddressException ae )
+		{
+			return null;
+		}
+	}
+	
+	/**
+	 * @return the name of the passed file relative to the processed 
+	 * 		directory
+	 */
+	protected String getProcessedMailName( File mailFile )
+	{
+		String path = mailFile.getPath();
+		String dirPath = new File( this.processedDirName ).getPath();
+		
+		if( path.startsWith( dirPath ) && path.length() > dirPath.length() )
+		{
+			return path.substring( dirPath.length() + 1 );
+		}
+		return path;
+	}
+	
+	/**
+	 * <p>
+	 * (Re)builds the {@link #processedMailIndex} from the mails already 
+	 * in the processed directory, e.g. after a restart.
+	 * </p><p>
+	 * The mails are {@link #loadProcessedMails(int) loaded} by a 
+	 * background thread, so the storage accepts mails right away. 
+	 * Mails stored meanwhile are indexed as newer than all loaded ones.
+	 * </p>
+	 */
+	protected void loadProcessedMailIndex()
+	{
+		ProcessedMailIndex index = this.processedMailIndex;
+		if( index == null )
+		{
+			return;
+		}
+		
+		final int generation;
+		this.processedDirLock.writeLock().lock();
+		try
+		{
+			generation = this.indexGeneration.incrementAndGet();
+			index.clear();
+		}
+		finally
+		{
+			this.processedDirLock.writeLock().unlock();
+		}
+		
+		Thread loader = new Thread( "ProcessedMailIndexLoader" )
+		{
+			@Override
+			public void run()
+			{
+				long start = System.currentTimeMillis();
+				try
+				{
+					loadProcessedMails( generation );
 				}
-				else
+				catch( Exception ex )
 				{
-					log.error( "cannot move " + from + "  to " + to +
-							" (exception: " + ex + ")", ex );
+					log.error( "cannot load the processed mail index: " + 
+							ex, ex );
 				}
+				log.info( "indexed {} processed mails in {}ms", 
+						processedMailIndex.size(), 
+						System.currentTimeMillis() - start );
 			}
 		};
-
-		this.storageService.submit( mover );
+		loader.setDaemon( true );
+		loader.start();
 	}
-
+	
+	/**
+	 * <p>
+	 * {@link #fireMailLoaded(int, String, MailHeaders, long) Loads} the 
+	 * newest processed mails, newest first, until the index is full.
+	 * </p><p>
+	 * The modification time of each mail file is read once before 
+	 * sorting, only the files of the loaded mails are opened.
+	 * </p>
+	 * 
+	 * @param generation - the {@link #indexGeneration} of the index 
+	 * 		being loaded
+	 */
+	protected void loadProcessedMails( int generation )
+	{
+		Collection<File> files = this.getProcessedMailFiles();
+		final File[] mailFiles = files.toArray( new File[ files.size() ] );
+		final long[] modified = new long[ mailFiles.length ];
+		Integer[] order = new Integer[ mailFiles.length ];
+		for( int i = 0; i < mailFiles.length; ++i )
+		{
+			modified[ i ] = mailFiles[ i ].lastModified();
+			order[ i ] = i;
+		}
+		Arrays.sort( order, new Comparator<Integer>() 
+		{
+			public int compare( Integer i1, Integer i2 )
+			{
+				long m1 = modified[ i1 ], m2 = modified[ i2 ];
+				return m1 > m2 ? -1 : m1 == m2 ? 0 : 1;
+			}
+		});
+		
+		for( Integer i : order )
+		{
+			InputStream data = null;
+			try
+			{
+				data = MailCompressor.open( mailFiles[ i ] );
+				if( !this.fireMailLoaded( generation, 
+						this.getProcessedMailName( mailFiles[ i ] ), 
+						MailHeaders.read( data ), modified[ i ] ) )
+				{
+					return;
+				}
+			}
+			catch( IOException ioe )
+			{
+				//e.g. removed by clearing the processed dir
+				log.debug( "cannot index mail {}: {}", mailFiles[ i ], ioe );
+			}
+			finally
+			{
+				IOUtil.silentClose( data );
+			}
+		}
+	}
+	
+	/**
+	 * @see DysonStorage#getProcessedMailIndex()
+	 */
+	@Override
+	public ProcessedMailIndex getProcessedMailIndex()
+	{
+		return this.processedMailIndex;
+	}
+	
+	/**
+	 * Fires {@link MailEvent#MAIL_PROCESSED} and records the 
+	 * {@link Latency#STORED_TO_PROCESSED} and 
+	 * {@link Latency#ACCEPTED_TO_PROCESSED} latencies.
+	 * 
+	 * @param incomingMail - the mail's (former) file in the incoming 
+	 * 		directory, its name contains the accept time
+	 * @param storedMillis - the time the mail has been stored in the 
+	 * 		incoming directory (i.e. the mail file's modification time) 
+	 */
+	protected void fireMailProcessed( File incomingMail, long storedMillis )
+	{
+		this.fireMailProcessed( 
+				IncomingFileNameGenerator.parseAcceptTime( incomingMail.getName() ), 
+				storedMillis );
+	}
+	
+	/**
+	 * Fires {@link MailEvent#MAIL_PROCESSED} and records the latencies 
+	 * of a mail accepted and stored at the passed times.
+	 * 
+	 * @param acceptMillis - the accept time or <code>-1</code> if unknown
+	 * @param storedMillis - the store time or <code>0</code> if unknown
+	 */
+	protected void fireMailProcessed( long acceptMillis, long storedMillis )
+	{
+		DysonStatistics statistics = this.getDyson().getStatistics();
+		long now = System.currentTimeMillis();
+		
+		statistics.fire( MailEvent.MAIL_PROCESSED );
+		if( storedMillis > 0 )
+		{
+			statistics.record( Latency.STORED_TO_PROCESSED, now - storedMillis );
+		}
+		if( acceptMillis > 0 )
+		{
+			statistics.record( Latency.ACCEPTED_TO_PROCESSED, now - acceptMillis );
+		}
+	}
+	
+	/**
+	 * Resolves the final storage location of a mail using the 
+	 * {@link #namingScheme}. The passed stream captures the headers 
+	 * read by the naming scheme, so they can be 
+	 * {@link #getIndexedHeaders(HeaderCapturingInputStream) indexed} 
+	 * without reading the mail again.
+	 * 
+	 * @param data - the data of the mail file in the incoming directory, 
+	 * 		closed by the caller
+	 * @param toDir - the parent directory of the storage location
+	 * @return the final storage location of the mail
+	 */
+	protected File getMailFile( HeaderCapturingInputStream data, File toDir )
+	{
+		return this.namingScheme.getMailFile( toDir, data );
+	}
+	
+	/**
+	 * @return the headers captured while 
+	 * 		{@link #getMailFile(HeaderCapturingInputStream, File) resolving} 
+	 * 		the storage location of a mail, <code>null</code> if the 
+	 * 		{@link #processedMailIndex} is disabled or the headers are 
+	 * 		incomplete
+	 * @throws IOException - if the captured headers cannot be read
+	 */
+	protected MailHeaders getIndexedHeaders( HeaderCapturingInputStream data )
+		throws IOException
+	{
+		if( this.processedMailIndex == null || !data.isComplete() )
+		{
+			return null;
+		}
+		return MailHeaders.read( data.getHeaders() );
+	}
+	
+	/**
+	 * Returns the storage's runtime information, i.e. the gauges for 
+	 * the {@link #inFlightMoves mails being moved}, the hand-off queues 
+	 * of the {@link #deliveredMailProcessors} and the {@link #storageService}.
+	 * 
+	 * @see DysonStorage#getRuntimeInformation()
+	 */
+	@Override
+	public Map<String, String> getRuntimeInformation()
+	{
+		Map<String, String> info = super.getRuntimeInformation();
+		
+		info.put( "storage.state", this.getState().name() );
+		info.put( "storage.task.pending.count", 
+				String.valueOf( this.pendingTasks.get() ) );
+		info.put( "storage.move.inflight.count", 
+				String.valueOf( this.inFlightMoves.size() ) );
+		info.put( "storage.incoming.shard.count", 
+				String.valueOf( this.getIncomingShardCount() ) );
+		DeliveredMailProcessor[] processors = this.deliveredMailProcessors;
+		if( processors != null )
+		{
+			int handOffQueueSize = 0;
+			for( DeliveredMailProcessor processor : processors )
+			{
+				handOffQueueSize += processor.handOffQueue.size();
+			}
+			info.put( "storage.handoff.queue.size", 
+					String.valueOf( handOffQueueSize ) );
+		}
+		BatchedMailMover mover = this.mailMover;
+		if( mover != null )
+		{
+			info.put( "storage.mover.batch.count", 
+					String.valueOf( mover.getBatchCount() ) );
+			info.put( "storage.mover.moved.count", 
+					String.valueOf( mover.getMovedCount() ) );
+		}
+		DirectoryTrash directoryTrash = this.trash;
+		if( directoryTrash != null )
+		{
+			info.put( "storage.trash.pending.count", 
+					String.valueOf( directoryTrash.getPendingCount() ) );
+			info.put( "storage.trash.deleted.file.count", 
+					String.valueOf( directoryTrash.getDeletedFileCount() ) );
+			info.put( "storage.trash.deleted.dir.count", 
+					String.valueOf( directoryTrash.getDeletedDirCount() ) );
+			File currentDir = directoryTrash.getCurrentDir();
+			if( currentDir != null )
+			{
+				info.put( "storage.trash.current.dir", currentDir.getPath() );
+			}
+		}
+		StartupRecovery startupRecovery = this.recovery;
+		if( startupRecovery != null )
+		{
+			info.put( "storage.recovery.mail.count", 
+					String.valueOf( startupRecovery.getMailCount() ) );
+			info.put( "storage.recovery.part.file.count", 
+					String.valueOf( startupRecovery.getPartFileCount() ) );
+			info.put( "storage.recovery.duration.millis", 
+					String.valueOf( startupRecovery.getDurationMillis() ) );
+		}
+		GroupCommitSyncer groupCommitSyncer = this.syncer;
+		if( groupCommitSyncer != null )
+		{
+			info.put( "storage.fsync.batch.count", 
+					String.valueOf( groupCommitSyncer.getBatchCount() ) );
+			info.put( "storage.fsync.synced.mail.count", 
+					String.valueOf( groupCommitSyncer.getSyncedCount() ) );
+			info.put( "storage.fsync.mails.per.batch", 
+					String.valueOf( groupCommitSyncer.getAverageBatchSize() ) );
+			info.put( "storage.fsync.mails.per.batch.max", 
+					String.valueOf( groupCommitSyncer.getMaxBatchSize() ) );
+			info.put( "storage.fsync.batch.micros.avg", 
+					String.valueOf( groupCommitSyncer.getAverageBatchMicros() ) );
+		}
+		MailCompressor mailCompressor = this.compressor;
+		if( mailCompressor != null )
+		{
+			info.put( "storage.compression.level", 
+					String.valueOf( mailCompressor.getLevel() ) );
+			info.put( "storage.compression.mail.count", 
+					String.valueOf( mailCompressor.getCompressedCount() ) );
+			info.put( "storage.compression.raw.bytes", 
+					String.valueOf( mailCompressor.getRawBytes() ) );
+			info.put( "storage.compression.stored.bytes", 
+					String.valueOf( mailCompressor.getStoredBytes() ) );
+		}
+		MailBodyStore bodies = this.bodyStore;
+		if( bodies != null && this.dedupEnabled )
+		{
+			long stored = bodies.getStoredBytes();
+			info.put( "storage.dedup.mail.count", 
+					String.valueOf( bodies.getMailCount() ) );
+			info.put( "storage.dedup.deduplicated.count", 
+					String.valueOf( bodies.getDeduplicatedCount() ) );
+			info.put( "storage.dedup.raw.bytes", 
+					String.valueOf( bodies.getRawBytes() ) );
+			info.put( "storage.dedup.stored.bytes", String.valueOf( stored ) );
+			info.put( "storage.dedup.collected.count", 
+					String.valueOf( bodies.getCollectedCount() ) );
+			info.put( "storage.dedup.ratio", String.valueOf( stored > 0 ? 
+					Math.round( 100d * bodies.getRawBytes() / stored ) / 100d : 0 ) );
+		}
+		ProcessedMailIndex index = this.processedMailIndex;
+		if( index != null )
+		{
+			info.put( "storage.index.size", String.valueOf( index.size() ) );
+			info.put( "storage.index.eviction.count", 
+					String.valueOf( index.getEvictionCount() ) );
+		}
+		KnownDirectoryCache cache = this.dirCache;
+		if( cache != null )
+		{
+			info.put( "storage.dir.cache.size", 
+					String.valueOf( cache.size() ) );
+			info.put( "storage.dir.cache.hit.count", 
+					String.valueOf( cache.getHitCount() ) );
+			info.put( "storage.dir.cache.miss.count", 
+					String.valueOf( cache.getMissCount() ) );
+		}
+		
+		ExecutorService service = this.storageService;
+		if( service instanceof ThreadPoolExecutor )
+		{
+			ThreadPoolExecutor executor = (ThreadPoolExecutor) service;
+			info.put( "storage.executor.active.count", 
+					String.valueOf( executor.getActiveCount() ) );
+			info.put( "storage.executor.pool.size", 
+					String.valueOf( executor.getPoolSize() ) );
+			info.put( "storage.executor.queue.size", 
+					String.valueOf( executor.getQueue().size() ) );
+		}
+		
+		return info;
+	}
+	
 	/**
-	 * Removes all files from the incoming directory.
+	 * <p>
+	 * Removes all files from the incoming directory by 
+	 * {@link #swapDir(File) swapping} it for an empty one, 
+	 * the shard directories are recreated.
+	 * </p><p>
+	 * If the directory cannot be swapped it's cleaned in place.
+	 * The bodies only referenced by the removed mails are 
+	 * {@link #collectUnreferencedBodies() collected} afterwards.
+	 * </p>
 	 * 
 	 * TODO implement locking with the {@link IncomingStorageMessageListener}s
 	 * @throws IOException 
@@ -524,22 +2142,204 @@ public class DefaultDysonStorage extends DysonStorage
 	public void clearIncomingDir() throws IOException
 	{
 		log.info( "cleaning incoming dir \'{}\'", this.incomingDirName );
-		FileUtils.cleanDirectory( new File( this.incomingDirName) );
+		
+		File incomingDir = new File( this.incomingDirName );
+		if( this.swapDir( incomingDir ) == null )
+		{
+			log.warn( "cannot swap incoming dir \'{}\', cleaning " +
+					"it in place", this.incomingDirName );
+			this.cleanDirectoryExceptLockFile( incomingDir );
+			this.dirCache.invalidateAll();
+		}
+		this.createIncomingDirs();
+		this.collectUnreferencedBodies();
 	}
 
 	/**
-	 * Removes all files from the processed directory.
+	 * Resolves the passed name against the processed directory, names 
+	 * leading outside of it or to files other than mail files are 
+	 * rejected.
+	 * 
+	 * @see DysonStorage#getProcessedMail(String)
+	 */
+	@Override
+	public StoredMail getProcessedMail( String name ) throws IOException
+	{
+		File dir = this.canonicalProcessedDir;
+		if( dir == null )
+		{
+			dir = new File( this.processedDirName ).getCanonicalFile();
+			this.canonicalProcessedDir = dir;
+		}
+		File file = new File( dir, name ).getCanonicalFile();
+		
+		if( !file.getPath().startsWith( dir.getPath() + File.separator ) || 
+			!file.getName().endsWith( "." + this.mailFileSuffix ) ||
+			!file.isFile() )
+		{
+			return null;
+		}
+		return this.bodyStore.resolve( new FileStoredMail( name, file ) );
+	}
+	
+	/**
+	 * <p>
+	 * Removes all files from the processed directory by 
+	 * {@link #swapDir(File) swapping} it for an empty one while holding 
+	 * the {@link #processedDirLock} exclusively, which only waits for 
+	 * the mails currently being moved. 
+	 * </p><p>
+	 * If the directory cannot be swapped it's cleaned in place while 
+	 * holding the lock.
+	 * </p><p>
+	 * The mail bodies are kept outside of the processed directory, since 
+	 * mails still in the incoming directory may reference them. Bodies 
+	 * only referenced by the removed mails are 
+	 * {@link #collectUnreferencedBodies() collected} afterwards.
+	 * </p>
 	 * @throws IOException 
 	 */
 	public void clearProcessedDir() throws IOException
 	{
-		synchronized( this.fileCopyMonitor )
+		log.info( "cleaning processed dir \'{}\'", this.processedDirName);
+		
+		File processedDir = new File( this.processedDirName );
+		
+		this.processedDirLock.writeLock().lock();
+		try
+		{
+			if( this.processedMailIndex != null )
+			{
+				this.indexGeneration.incrementAndGet();
+				this.processedMailIndex.clear();
+			}
+			if( this.swapDir( processedDir ) == null )
+			{
+				log.warn( "cannot swap processed dir \'{}\', cleaning " +
+						"it in place", this.processedDirName );
+				this.cleanDirectoryExceptLockFile( processedDir );
+				this.dirCache.invalidateAll();
+			}
+		}
+		finally
+		{
+			this.processedDirLock.writeLock().unlock();
+		}
+		this.collectUnreferencedBodies();
+	}
+	
+	/**
+	 * Moves the passed directory to the {@link #trash}, which deletes 
+	 * it in the background, and recreates it empty. The storage's lock 
+	 * file is moved into the new directory and the {@link #dirCache} 
+	 * is invalidated.
+	 * 
+	 * @param dir - the directory to swap
+	 * @return the trash directory or <code>null</code> 
+	 * 		if the directory could not be renamed
+	 * @throws DysonException - if the new directory cannot be created
+	 */
+	protected File swapDir( File dir ) throws DysonException
+	{
+		File trashDir = this.trash.moveToTrash( dir );
+		if( trashDir == null )
+		{
+			return null;
+		}
+		
+		this.dirCache.invalidateAll();
+		this.createDirsIfNotPresent( dir.getPath() );
+		
+		File lockFile = this.getLockFileForStorageDir( trashDir.getPath() );
+		if( lockFile.exists() && !lockFile.renameTo( 
+				this.getLockFileForStorageDir( dir.getPath() ) ) )
+		{
+			log.warn( "cannot move lock file {} back into {}", lockFile, dir );
+		}
+		this.trash.dispose( trashDir );
+		
+		log.debug( "swapped \'{}\' for an empty dir", dir );
+		return trashDir;
+	}
+	
+	/**
+	 * Removes all files from the passed directory except 
+	 * the storage's {@link #LOCK_FILE_NAME lock file}.
+	 * 
+	 * @param dir - the directory to clean
+	 * @throws IOException - if a file cannot be removed
+	 */
+	protected void cleanDirectoryExceptLockFile( File dir ) throws IOException
+	{
+		File[] files = dir.listFiles();
+		if( files == null )
 		{
-			log.info( "cleaning processed dir \'{}\'", this.processedDirName);
-			FileUtils.cleanDirectory( new File( this.processedDirName ) ); 
+			throw new IOException( "cannot list files of " + dir );
+		}
+		for( File file : files )
+		{
+			if( !LOCK_FILE_NAME.equals( file.getName() ) )
+			{
+				FileUtils.forceDelete( file );
+			}
 		}
 	}
 
+	/**
+	 * Hands off the passed mail file to the 
+	 * {@link #deliveredMailProcessors delivered mail processor} of its 
+	 * shard and wakes it up if it's running in 
+	 * {@link ProcessorMode#EVENT_DRIVEN event driven mode}.
+	 * 
+	 * @see DysonStorage#fireMailDelivered(File)
+	 */
+	@Override
+	public void fireMailDelivered( File mailFile )
+	{
+		DeliveredMailProcessor[] processors = this.deliveredMailProcessors;
+		if( this.processorMode != ProcessorMode.EVENT_DRIVEN || 
+				processors == null )
+		{
+			//will be picked up by the first scan after a (re)start
+			return;
+		}
+		
+		DeliveredMailProcessor processor = 
+			processors[ this.getIncomingShard( mailFile ) ];
+		if( !processor.handOffQueue.offer( mailFile ) )
+		{
+			log.debug( "hand-off queue is full, {} will be picked up " +
+					"by the next scan of the incoming dir", mailFile );
+			processor.handOffQueueOverflowed.set( true );
+		}
+		processor.wakeUp();
+	}
+	
+	/**
+	 * @param mailFile - a mail file in the incoming directory
+	 * @return the shard of the incoming directory holding the mail file
+	 */
+	protected int getIncomingShard( File mailFile )
+	{
+		if( this.getIncomingShardCount() <= 1 )
+		{
+			return 0;
+		}
+		try
+		{
+			int shard = Integer.parseInt( mailFile.getParentFile().getName() );
+			if( shard >= 0 && shard < this.getIncomingShardCount() )
+			{
+				return shard;
+			}
+		}
+		catch( NumberFormatException nfe )
+		{
+			//not stored in a shard directory
+		}
+		return 0;
+	}
+	
 	/**
 	 * @see DysonStorage#awaitTermination(int, TimeUnit)
 	 */
@@ -550,10 +2350,15 @@ public class DefaultDysonStorage extends DysonStorage
 	}
 
 	/**
+	 * <p>
+	 * Blocks for up to {@link DysonConfig#STORAGE_EXECUTOR_SUBMIT_TIMEOUT_MILLIS}
+	 * if the {@link #storageService} is saturated.
+	 * </p>
 	 * @see DysonStorage#submitTask(Runnable)
 	 */
 	@Override
-	public void submitTask( Runnable task ) throws IllegalStateException 
+	public void submitTask( final Runnable task ) 
+		throws IllegalStateException, RejectedExecutionException
 	{
 		if( !this.isRunning() )
 		{
@@ -561,7 +2366,74 @@ public class DefaultDysonStorage extends DysonStorage
 					"cannot submit task, storage is not running!" );
 		}
 		
-		this.storageService.submit( task );
+		this.pendingTasks.incrementAndGet();
+		try
+		{
+			this.storageService.submit( new Runnable()
+			{
+				public void run()
+				{
+					try
+					{
+						task.run();
+					}
+					finally
+					{
+						pendingTasks.decrementAndGet();
+					}
+				}
+			});
+		}
+		catch( RejectedExecutionException ree )
+		{
+			this.pendingTasks.decrementAndGet();
+			throw ree;
+		}
+	}
+	
+	/**
+	 * The storage is quiescent if there are neither 
+	 * {@link #submitTask(Runnable) submitted tasks} (i.e. mails being 
+	 * stored), nor {@link #inFlightMoves moves in progress}, 
+	 * nor handed off or incoming mails waiting to be processed.
+	 * 
+	 * @see DysonStorage#isQuiescent()
+	 */
+	@Override
+	public boolean isQuiescent()
+	{
+		DeliveredMailProcessor[] processors = this.deliveredMailProcessors;
+		if( processors != null )
+		{
+			for( DeliveredMailProcessor processor : processors )
+			{
+				if( !processor.handOffQueue.isEmpty() )
+				{
+					return false;
+				}
+			}
+		}
+		return this.pendingTasks.get() == 0 && 
+			this.inFlightMoves.isEmpty() &&
+			super.isQuiescent();
+	}
+	
+	/**
+	 * Additionally reports {@link State#FINISHING_UP} while the 
+	 * {@link #storageService} completes its tasks after a stop request. 
+	 * 
+	 * @see DysonStorage#getState()
+	 */
+	@Override
+	public State getState()
+	{
+		ExecutorService service = this.storageService;
+		if( !this.isRunning() && service != null && 
+				service.isShutdown() && !service.isTerminated() )
+		{
+			return State.FINISHING_UP;
+		}
+		return super.getState();
 	}
 	
 }//class DefaultDysonStorage
@@ -0,0 +1,277 @@
+/**
+ *   (c) Copyright 2007-2010 by emarsys eMarketing Systems AG
+ * 
+ *   This file is part of dyson.
+ *
+ *   dyson is free software; you can redistribute it and/or modify
+ *   it under the terms of the GNU Lesser General Public License as published by
+ *   the Free Software Foundation; either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   dyson is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.emarsys.dyson.storage;
+
+import java.io.File;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.emarsys.ecommon.util.StopableRunnable;
+
+/**
+ * <p>
+ * Clears directories by {@link #moveToTrash(File) renaming} them to a 
+ * hidden sibling trash directory, which is {@link #dispose(File) deleted} 
+ * in the background by a low-priority daemon thread afterwards.
+ * </p><p>
+ * Renaming a directory is atomic and fast regardless of the number of 
+ * files it contains, so the caller only has to recreate an empty 
+ * directory instead of waiting for all files being deleted. Trash 
+ * directories left over by a previous run can be 
+ * {@link #collectLeftovers(File) collected} on start up.
+ * </p>
+ * 
+ * @author <a href="mailto:kulovits@emarsys.com">Michael "kULO" Kulovits</a>
+ */
+public class DirectoryTrash implements StopableRunnable
+{
+	private static final Logger log = 
+		LoggerFactory.getLogger( DirectoryTrash.class );
+	
+	/** separates the trashed directory's name from the trash epoch */
+	public static final String TRASH_DIR_INFIX = ".trash-";
+	
+	protected final BlockingQueue<File> trashDirs = 
+		new LinkedBlockingQueue<File>();
+	/** the number of times a directory has been moved to the trash */
+	protected final AtomicLong epoch = new AtomicLong( 0 );
+	
+	protected final AtomicLong deletedFileCount = new AtomicLong( 0 );
+	protected final AtomicLong deletedDirCount = new AtomicLong( 0 );
+	protected volatile File currentDir;
+	
+	private volatile boolean shouldStop = false;
+	private volatile boolean isRunning = false;
+	
+	/**
+	 * Creates the trash and starts its daemon thread.
+	 * 
+	 * @param name - the name of the deleting thread
+	 */
+	public DirectoryTrash( String name )
+	{
+		this.isRunning = true;
+		Thread th = new Thread( this, name );
+		th.setDaemon( true );
+		th.setPriority( Thread.MIN_PRIORITY );
+		th.start();
+	}
+	
+	/**
+	 * Renames the passed directory to a new trash directory next to it,
+	 * which has to be {@link #dispose(File) disposed} by the caller 
+	 * (after taking out the files to keep).
+	 * 
+	 * @param dir - the directory to move to the trash
+	 * @return the trash directory or <code>null</code> if the directory
+	 * 		cannot be renamed (e.g. it's a mount point)
+	 */
+	public File moveToTrash( File dir )
+	{
+		File parentDir = dir.getAbsoluteFile().getParentFile();
+		if( parentDir == null )
+		{
+			return null;
+		}
+		
+		File trashDir = new File( parentDir, this.getTrashDirPrefix( dir ) + 
+				this.epoch.incrementAndGet() + "-" + System.currentTimeMillis() );
+		if( !dir.renameTo( trashDir ) )
+		{
+			return null;
+		}
+		
+		log.debug( "moved \'{}\' to trash \'{}\'", dir, trashDir );
+		return trashDir;
+	}
+	
+	/**
+	 * Deletes the passed trash directory in the background.
+	 * 
+	 * @param trashDir - the directory {@link #moveToTrash(File) moved to the trash}
+	 */
+	public void dispose( File trashDir )
+	{
+		this.trashDirs.add( trashDir );
+	}
+	
+	/**
+	 * Deletes the trash directories of the passed directory left over by 
+	 * previous runs, e.g. because the vm exited before they were deleted.
+	 * 
+	 * @param dir - the directory whose trash directories are collected
+	 */
+	public void collectLeftovers( File dir )
+	{
+		File parentDir = dir.getAbsoluteFile().getParentFile();
+		File[] siblings = parentDir == null ? null : parentDir.listFiles();
+		if( siblings == null )
+		{
+			return;
+		}
+		
+		String prefix = this.getTrashDirPrefix( dir );
+		for( File sibling : siblings )
+		{
+			if( sibling.isDirectory() && sibling.getName().startsWith( prefix ) &&
+					!this.trashDirs.contains( sibling ) )
+			{
+				log.info( "collecting left over trash \'{}\'", sibling );
+				this.trashDirs.add( sibling );
+			}
+		}
+	}
+	
+	protected String getTrashDirPrefix( File dir )
+	{
+		return "." + dir.getAbsoluteFile().getName() + TRASH_DIR_INFIX;
+	}
+	
+	/**
+	 * @see java.lang.Runnable#run()
+	 */
+	public void run()
+	{
+		try
+		{
+			while( !this.shouldStop )
+			{
+				File trashDir = this.trashDirs.take();
+				if( this.shouldStop )
+				{
+					break;
+				}
+				this.currentDir = trashDir;
+				try
+				{
+					long deletedBefore = this.deletedFileCount.get();
+					this.deleteTree( trashDir );
+					log.info( "deleted trash \'{}\' ({} files)", trashDir, 
+							this.deletedFileCount.get() - deletedBefore );
+				}
+				finally
+				{
+					this.currentDir = null;
+				}
+			}
+		}
+		catch( InterruptedException ie )
+		{
+			Thread.currentThread().interrupt();
+		}
+		finally
+		{
+			this.isRunning = false;
+		}
+	}
+	
+	/**
+	 * deletes the passed file or directory tree, counting the deleted 
+	 * files and directories, failures are logged and skipped
+	 */
+	protected void deleteTree( File file )
+	{
+		File[] children = file.listFiles();
+		if( children != null )
+		{
+			for( File child : children )
+			{
+				if( this.shouldStop )
+				{
+					return;
+				}
+				this.deleteTree( child );
+			}
+		}
+		
+		boolean isDir = children != null;
+		if( !file.delete() )
+		{
+			log.warn( "cannot delete \'{}\'", file );
+		}
+		else if( isDir )
+		{
+			this.deletedDirCount.incrementAndGet();
+		}
+		else
+		{
+			this.deletedFileCount.incrementAndGet();
+		}
+	}
+	
+	/**
+	 * Stops deleting after the current file, the remaining trash 
+	 * directories can be {@link #collectLeftovers(File) collected} later.
+	 * 
+	 * @see StopableRunnable#stop()
+	 */
+	public void stop()
+	{
+		this.shouldStop = true;
+		//wake up the deleting thread
+		this.trashDirs.add( new File( "" ) );
+	}
+	
+	/**
+	 * @return if the deleting thread is running
+	 */
+	public boolean isRunning()
+	{
+		return this.isRunning;
+	}
+	
+	/**
+	 * @return the number of trash directories (still) to delete, 
+	 * 		including the one currently being deleted
+	 */
+	public int getPendingCount()
+	{
+		return this.trashDirs.size() + (this.currentDir != null ? 1 : 0);
+	}
+	
+	/**
+	 * @return the trash directory currently being deleted 
+	 * 		or <code>null</code>
+	 */
+	public File getCurrentDir()
+	{
+		return this.currentDir;
+	}
+	
+	/**
+	 * @return the number of deleted files
+	 */
+	public long getDeletedFileCount()
+	{
+		return this.deletedFileCount.get();
+	}
+	
+	/**
+	 * @return the number of deleted directories
+	 */
+	public long getDeletedDirCount()
+	{
+		return this.deletedDirCount.get();
+	}
+	
+}//class DirectoryTrash
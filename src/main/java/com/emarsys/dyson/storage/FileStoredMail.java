@@ -0,0 +1,143 @@
+/**
+ *   (c) Copyright 2007-2010 by emarsys eMarketing Systems AG
+ * 
+ *   This file is part of dyson.
+ *
+ *   dyson is free software; you can redistribute it and/or modify
+ *   it under the terms of the GNU Lesser General Public License as published by
+ *   the Free Software Foundation; either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   dyson is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.emarsys.dyson.storage;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import com.emarsys.dyson.StoredMail;
+import com.emarsys.ecommon.io.IOUtil;
+
+/**
+ * {@link StoredMail} backed by a single mail file. The file is opened 
+ * per transfer, so the handle does not hold a file descriptor. 
+ * {@link MailCompressor Compressed} mail files are inflated on the fly.
+ * 
+ * @author <a href="mailto:kulovits@emarsys.com">Michael "kULO" Kulovits</a>
+ */
+public class FileStoredMail extends StoredMail
+{
+	protected final File file;
+	protected final boolean isCompressed;
+	
+	public FileStoredMail( String name, File file ) throws IOException
+	{
+		this( name, file, MailCompressor.readRawLength( file ) );
+	}
+	
+	/**
+	 * @param rawLength - the raw length of the compressed mail file, 
+	 * 		<code>-1</code> if it's not compressed
+	 */
+	protected FileStoredMail( String name, File file, long rawLength )
+	{
+		super( name, rawLength < 0 ? file.length() : rawLength, 
+				file.lastModified() );
+		this.file = file;
+		this.isCompressed = rawLength >= 0;
+	}
+	
+	public File getFile()
+	{
+		return this.file;
+	}
+	
+	/**
+	 * @return <code>true</code> if the mail file is compressed
+	 */
+	public boolean isCompressed()
+	{
+		return this.isCompressed;
+	}
+
+	@Override
+	public long transferTo( 
+			long position, long count, WritableByteChannel target )
+		throws IOException
+	{
+		if( this.isCompressed )
+		{
+			return this.inflateTo( position, count, target );
+		}
+		
+		FileInputStream in = new FileInputStream( this.file );
+		try
+		{
+			return transferFully( in.getChannel(), position, count, target );
+		}
+		finally
+		{
+			IOUtil.silentClose( in );
+		}
+	}
+	
+	/**
+	 * inflates the compressed mail file skipping everything before 
+	 * the requested range
+	 */
+	protected long inflateTo( 
+			long position, long count, WritableByteChannel target )
+		throws IOException
+	{
+		InputStream in = MailCompressor.open( this.file, true );
+		try
+		{
+			long skipped = 0;
+			while( skipped < position )
+			{
+				long n = in.skip( position - skipped );
+				if( n <= 0 )
+				{
+					return 0;
+				}
+				skipped += n;
+			}
+			
+			byte[] buf = new byte[ (int) Math.min( 8192, Math.max( count, 1 ) ) ];
+			long transferred = 0;
+			int read;
+			while( transferred < count && (read = in.read( buf, 0, 
+					(int) Math.min( buf.length, count - transferred ) )) >= 0 )
+			{
+				ByteBuffer chunk = ByteBuffer.wrap( buf, 0, read );
+				while( chunk.hasRemaining() )
+				{
+					target.write( chunk );
+				}
+				transferred += read;
+			}
+			return transferred;
+		}
+		finally
+		{
+			IOUtil.silentClose( in );
+		}
+	}
+
+	@Override
+	public InputStream openStream() throws IOException
+	{
+		return MailCompressor.open( this.file, this.isCompressed );
+	}
+	
+}//class FileStoredMail
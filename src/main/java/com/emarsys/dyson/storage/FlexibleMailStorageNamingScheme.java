@@ -19,17 +19,12 @@
 package com.emarsys.dyson.storage;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Properties;
 
-import javax.mail.Address;
-import javax.mail.MessagingException;
-import javax.mail.Session;
 import javax.mail.internet.AddressException;
-import javax.mail.internet.MimeMessage;
-import javax.mail.internet.MimeMessage.RecipientType;
 
 import com.emarsys.dyson.Dyson;
 import com.emarsys.dyson.DysonConfig;
@@ -64,7 +59,7 @@ public class FlexibleMailStorageNamingScheme
 		CURRENT_TIMESTAMP
 		{
 			@Override
-			public String toPath( MimeMessage mail )
+			public String toPath( MailHeaders mail )
 			{
 				return Dates.timestampToString( 
 						CalendarBuilder.getInstance() );
@@ -77,7 +72,7 @@ public class FlexibleMailStorageNamingScheme
 		CURRENT_TIME_MILLIS
 		{
 			@Override
-			public String toPath( MimeMessage mail ) 
+			public String toPath( MailHeaders mail ) 
 			{
 				return String.valueOf(
 						TimeBuilder.getInstance().currentTimeMillis() );
@@ -91,7 +86,7 @@ public class FlexibleMailStorageNamingScheme
 		RECIPIENT_NAME
 		{
 			@Override 
-			public String toPath( MimeMessage mail )
+			public String toPath( MailHeaders mail )
 			{
 				final String rcpt = this.getToRecipient( mail );
 				return rcpt == null ? "unknown" : 
@@ -105,7 +100,7 @@ public class FlexibleMailStorageNamingScheme
 		RECIPIENT_DOMAIN
 		{
 			@Override
-			public String toPath( MimeMessage mail )
+			public String toPath( MailHeaders mail )
 			{
 				try
 				{
@@ -117,7 +112,7 @@ public class FlexibleMailStorageNamingScheme
 				{
 					throw new DysonException( 
 							"cannot get recipeint mail domain from mail " +
-							MessageUtil.toString( mail ) + ": " + e, e );
+							mail + ": " + e, e );
 				}
 			}
 		};
@@ -126,33 +121,28 @@ public class FlexibleMailStorageNamingScheme
 		/**
 		 * Turns this token into a part of a storage file path.
 		 * 
-		 * @param mail
+		 * @param mail - the headers of the mail
 		 */
-		public abstract String toPath( MimeMessage mail );
+		public abstract String toPath( MailHeaders mail );
 		
 		/**
 		 * 
 		 * @param mail
 		 * @return
 		 */
-		protected String getToRecipient( MimeMessage mail )
+		protected String getToRecipient( MailHeaders mail )
 		{
 			try
 			{
-				String rcpt = null;
-				Address[] toRcpts = mail.getRecipients( RecipientType.TO );
-				if( toRcpts != null && toRcpts.length >= 1 )
-				{
-					rcpt = MessageUtil.getValidEmailAddress( 
-							toRcpts[0].toString() );
-				}
-				return rcpt;
+				String rcpt = mail.getFirstToAddress();
+				return rcpt == null ? null : 
+					MessageUtil.getValidEmailAddress( rcpt );
 			}
-			catch( MessagingException e )
+			catch( AddressException e )
 			{
 				throw new DysonException( 
 						"error on getting to recipient for mail " +
-						MessageUtil.toString( mail ) + ": " + e, e );
+						mail + ": " + e, e );
 			}
 		}
 		
@@ -185,7 +175,7 @@ public class FlexibleMailStorageNamingScheme
 			try
 			{
 				StringBuilder path = new StringBuilder();
-				MimeMessage mail = new MimeMessage( session, this.data );
+				MailHeaders mail = MailHeaders.read( this.data );
 
 				for( Token token : this.tokens )
 				{
@@ -194,7 +184,7 @@ public class FlexibleMailStorageNamingScheme
 
 				return path.toString();
 			}
-			catch( MessagingException e )
+			catch( IOException e )
 			{
 				throw new DysonException( 
 						"error on getting filename for mail: " + e, e );
@@ -204,8 +194,6 @@ public class FlexibleMailStorageNamingScheme
 	
 	
 	//cached fields
-	protected final Session session = 
-		Session.getDefaultInstance( new Properties() );
 	protected List<Token> configuredTokens = 
 		this.getConfiguredTokens();
 	
@@ -0,0 +1,431 @@
+/**
+ *   (c) Copyright 2007-2010 by emarsys eMarketing Systems AG
+ * 
+ *   This file is part of dyson.
+ *
+ *   dyson is free software; you can redistribute it and/or modify
+ *   it under the terms of the GNU Lesser General Public License as published by
+ *   the Free Software Foundation; either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   dyson is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.emarsys.dyson.storage;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.emarsys.dyson.DysonConfig;
+import com.emarsys.ecommon.util.StopableRunnable;
+
+/**
+ * <p>
+ * Batches the fsyncs of concurrently written mail files (group commit).
+ * </p><p>
+ * Threads {@link #sync(FileChannel) syncing} a file are blocked until 
+ * the syncer's daemon thread has forced the file. The thread collects 
+ * files until either {@link DysonConfig#STORAGE_DURABLE_WRITE_MAX_BATCH 
+ * max. batch} files are waiting or the first of them has waited 
+ * {@link DysonConfig#STORAGE_DURABLE_WRITE_MAX_LATENCY_MILLIS max. latency}
+ * milliseconds and forces them concurrently by up to 
+ * {@link DysonConfig#STORAGE_DURABLE_WRITE_FORCE_THREADS force threads}. 
+ * Journaling file systems (e.g. ext4, xfs) commit the fsyncs pending at 
+ * the same time with a single journal commit, whereas forcing the files 
+ * one after another waits for a journal commit per file.
+ * </p><p>
+ * Once the syncer is {@link #stop() stopped} files are forced by the 
+ * syncing threads themselves.
+ * </p>
+ * @author <a href="mailto:kulovits@emarsys.com">Michael "kULO" Kulovits</a>
+ */
+public class GroupCommitSyncer implements StopableRunnable
+{
+	private static final Logger log = 
+		LoggerFactory.getLogger( GroupCommitSyncer.class );
+	
+	/**
+	 * A file waiting for being forced.
+	 */
+	protected static class SyncRequest
+	{
+		protected final FileChannel channel;
+		protected boolean isDone = false;
+		protected IOException failure;
+		
+		protected SyncRequest( FileChannel channel )
+		{
+			this.channel = channel;
+		}
+	}//class SyncRequest
+	
+	protected final int maxBatch;
+	protected final long maxLatencyNanos;
+	/** forces the files of a batch besides the syncer's own thread */
+	protected final ExecutorService forceService;
+	
+	/** guards {@link #pending}, waited on by both sides */
+	protected final Object monitor = new Object();
+	protected List<SyncRequest> pending = new ArrayList<SyncRequest>();
+	/** the time the oldest pending request has been added */
+	protected long oldestPendingNanos;
+	
+	protected final AtomicLong batchCount = new AtomicLong( 0 );
+	protected final AtomicLong syncedCount = new AtomicLong( 0 );
+	protected final AtomicLong batchNanos = new AtomicLong( 0 );
+	protected volatile int maxBatchSize;
+	
+	private volatile boolean shouldStop = false;
+	private volatile boolean isRunning = false;
+	
+	/**
+	 * Creates the syncer and starts its daemon thread.
+	 * 
+	 * @param name - the name of the syncing thread
+	 * @param maxBatch - the maximum number of files forced at once
+	 * @param maxLatencyMillis - the maximum time a file waits for 
+	 * 		further files
+	 * @param forceThreads - the number of files of a batch forced 
+	 * 		concurrently
+	 */
+	public GroupCommitSyncer( final String name, int maxBatch, 
+			int maxLatencyMillis, int forceThreads )
+	{
+		if( maxBatch <= 0 || maxLatencyMillis < 0 || forceThreads <= 0 )
+		{
+			throw new IllegalArgumentException( "invalid max. batch (" + 
+					maxBatch + "), max. latency (" + maxLatencyMillis + 
+					") or force threads (" + forceThreads + ")" );
+		}
+		this.maxBatch = maxBatch;
+		this.maxLatencyNanos = TimeUnit.MILLISECONDS.toNanos( maxLatencyMillis );
+		
+		//the syncer's own thread forces a file of each batch, too
+		int poolSize = Math.min( forceThreads, maxBatch ) - 1;
+		this.forceService = poolSize <= 0 ? null : 
+			Executors.newFixedThreadPool( poolSize, new ThreadFactory()
+			{
+				private final AtomicInteger count = new AtomicInteger();
+				
+				public Thread newThread( Runnable r )
+				{
+					Thread th = new Thread( r, name + "-" + 
+							this.count.incrementAndGet() );
+					th.setDaemon( true );
+					return th;
+				}
+			});
+		
+		this.isRunning = true;
+		Thread th = new Thread( this, name );
+		th.setDaemon( true );
+		th.start();
+	}
+	
+	/**
+	 * Forces the passed file's content and metadata to the storage device 
+	 * and blocks until it's done.
+	 * 
+	 * @param channel - the channel of the written file
+	 * @throws IOException - if the file cannot be forced
+	 */
+	public void sync( FileChannel channel ) throws IOException
+	{
+		SyncRequest request = new SyncRequest( channel );
+		
+		synchronized( this.monitor )
+		{
+			if( !this.isRunning )
+			{
+				channel.force( true );
+				return;
+			}
+			if( this.pending.isEmpty() )
+			{
+				this.oldestPendingNanos = System.nanoTime();
+			}
+			this.pending.add( request );
+			this.monitor.notifyAll();
+			
+			boolean interrupted = false;
+			while( !request.isDone )
+			{
+				try
+				{
+					this.monitor.wait();
+				}
+				catch( InterruptedException ie )
+				{
+					interrupted = true;
+				}
+			}
+			if( interrupted )
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+		
+		if( request.failure != null )
+		{
+			throw request.failure;
+		}
+	}
+	
+	public void run()
+	{
+		try
+		{
+			List<SyncRequest> batch;
+			while( (batch = this.awaitBatch()) != null )
+			{
+				this.force( batch );
+			}
+		}
+		finally
+		{
+			List<SyncRequest> left;
+			synchronized( this.monitor )
+			{
+				//later requests are forced by their threads
+				this.isRunning = false;
+				left = this.pending;
+				this.pending = new ArrayList<SyncRequest>();
+			}
+			//force what is left
+			if( !left.isEmpty() )
+			{
+				this.force( left );
+			}
+			if( this.forceService != null )
+			{
+				this.forceService.shutdown();
+			}
+			log.debug( "group commit syncer stopped" );
+		}
+	}
+	
+	/**
+	 * Waits until a batch is complete, i.e. it's full or its oldest 
+	 * request waited for the max. latency, and takes it out.
+	 * 
+	 * @return the batch or <code>null</code> if the syncer has been stopped
+	 */
+	protected List<SyncRequest> awaitBatch()
+	{
+		synchronized( this.monitor )
+		{
+			try
+			{
+				while( !this.shouldStop )
+				{
+					if( this.pending.isEmpty() )
+					{
+						this.monitor.wait();
+						continue;
+					}
+					long waitNanos = this.oldestPendingNanos + 
+						this.maxLatencyNanos - System.nanoTime();
+					if( this.pending.size() >= this.maxBatch || waitNanos <= 0 )
+					{
+						return this.takeBatch();
+					}
+					TimeUnit.NANOSECONDS.timedWait( this.monitor, waitNanos );
+				}
+			}
+			catch( InterruptedException ie )
+			{
+				log.warn( "group commit syncer has been interrupted" );
+			}
+			return null;
+		}
+	}
+	
+	/**
+	 * takes out up to {@link #maxBatch} pending requests, 
+	 * has to be called while holding the {@link #monitor}
+	 */
+	protected List<SyncRequest> takeBatch()
+	{
+		List<SyncRequest> batch;
+		if( this.pending.size() <= this.maxBatch )
+		{
+			batch = this.pending;
+			this.pending = new ArrayList<SyncRequest>( batch.size() );
+		}
+		else
+		{
+			List<SyncRequest> taken = this.pending.subList( 0, this.maxBatch );
+			batch = new ArrayList<SyncRequest>( taken );
+			taken.clear();
+			this.oldestPendingNanos = System.nanoTime();
+		}
+		return batch;
+	}
+	
+	/**
+	 * forces the files of the passed batch concurrently 
+	 * and wakes up their threads
+	 */
+	protected void force( List<SyncRequest> batch )
+	{
+		long start = System.nanoTime();
+		final CountDownLatch forced = new CountDownLatch( batch.size() );
+		for( int i = 1; i < batch.size(); ++i )
+		{
+			final SyncRequest request = batch.get( i );
+			Runnable task = new Runnable()
+			{
+				public void run()
+				{
+					try
+					{
+						forceQuietly( request );
+					}
+					finally
+					{
+						forced.countDown();
+					}
+				}
+			};
+			if( this.forceService == null )
+			{
+				task.run();
+			}
+			else
+			{
+				this.forceService.execute( task );
+			}
+		}
+		this.forceQuietly( batch.get( 0 ) );
+		forced.countDown();
+		this.awaitUninterruptibly( forced );
+		
+		this.batchNanos.addAndGet( System.nanoTime() - start );
+		this.batchCount.incrementAndGet();
+		this.syncedCount.addAndGet( batch.size() );
+		if( batch.size() > this.maxBatchSize )
+		{
+			this.maxBatchSize = batch.size();
+		}
+		
+		synchronized( this.monitor )
+		{
+			for( SyncRequest request : batch )
+			{
+				request.isDone = true;
+			}
+			this.monitor.notifyAll();
+		}
+	}
+	
+	/**
+	 * waits for the passed latch, restores the interrupted status 
+	 * if the waiting thread has been interrupted
+	 */
+	protected void awaitUninterruptibly( CountDownLatch latch )
+	{
+		boolean interrupted = false;
+		while( latch.getCount() > 0 )
+		{
+			try
+			{
+				latch.await();
+			}
+			catch( InterruptedException ie )
+			{
+				interrupted = true;
+			}
+		}
+		if( interrupted )
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	protected void forceQuietly( SyncRequest request )
+	{
+		try
+		{
+			request.channel.force( true );
+		}
+		catch( IOException ioe )
+		{
+			request.failure = ioe;
+		}
+	}
+	
+	public void stop()
+	{
+		this.shouldStop = true;
+		synchronized( this.monitor )
+		{
+			this.monitor.notifyAll();
+		}
+	}
+	
+	public boolean isRunning()
+	{
+		return this.isRunning;
+	}
+	
+	/**
+	 * @return the number of forced batches
+	 */
+	public long getBatchCount()
+	{
+		return this.batchCount.get();
+	}
+	
+	/**
+	 * @return the number of files forced in batches
+	 */
+	public long getSyncedCount()
+	{
+		return this.syncedCount.get();
+	}
+	
+	/**
+	 * @return the size of the largest batch
+	 */
+	public int getMaxBatchSize()
+	{
+		return this.maxBatchSize;
+	}
+	
+	/**
+	 * @return the average number of files per batch
+	 */
+	public long getAverageBatchSize()
+	{
+		long batches = this.batchCount.get();
+		return batches > 0 ? this.syncedCount.get() / batches : 0;
+	}
+	
+	/**
+	 * @return the average time forcing a batch took in micro seconds
+	 */
+	public long getAverageBatchMicros()
+	{
+		long batches = this.batchCount.get();
+		return batches > 0 ? 
+			TimeUnit.NANOSECONDS.toMicros( this.batchNanos.get() ) / batches : 0;
+	}
+	
+}//class GroupCommitSyncer
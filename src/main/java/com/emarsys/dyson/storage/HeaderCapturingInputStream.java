@@ -0,0 +1,138 @@
+/**
+ *   (c) Copyright 2007-2010 by emarsys eMarketing Systems AG
+ * 
+ *   This file is part of dyson.
+ *
+ *   dyson is free software; you can redistribute it and/or modify
+ *   it under the terms of the GNU Lesser General Public License as published by
+ *   the Free Software Foundation; either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   dyson is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.emarsys.dyson.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * <p>
+ * An {@link InputStream} that captures the header section of the
+ * mail read through it, i.e. all bytes up to and including the 
+ * first empty line.
+ * </p><p>
+ * Used to resolve a mail's storage path while the mail is being
+ * written without having to read the mail file a second time.
+ * </p>
+ * 
+ * @author <a href="mailto:kulovits@emarsys.com">Michael "kULO" Kulovits</a>
+ */
+public class HeaderCapturingInputStream extends FilterInputStream
+{
+	/** Per default capture at most 64KB of headers */
+	public static final int DEFAULT_MAX_HEADER_SIZE = 64 * 1024;
+	
+	protected final ByteArrayOutputStream headers;
+	protected final int maxHeaderSize;
+	
+	/** 
+	 * the number of consecutive line feeds seen, ignoring carriage 
+	 * returns, 2 means the end of the headers has been reached 
+	 */
+	protected int lineFeeds = 0;
+	protected boolean isComplete = false;
+	
+	/**
+	 * @param in - the mail data
+	 */
+	public HeaderCapturingInputStream( InputStream in )
+	{
+		this( in, DEFAULT_MAX_HEADER_SIZE );
+	}
+	
+	/**
+	 * @param in - the mail data
+	 * @param maxHeaderSize - the maximum number of header bytes to capture
+	 */
+	public HeaderCapturingInputStream( InputStream in, int maxHeaderSize )
+	{
+		super( in );
+		this.maxHeaderSize = maxHeaderSize;
+		this.headers = new ByteArrayOutputStream( 
+				Math.min( 1024, maxHeaderSize ) );
+	}
+	
+	/**
+	 * @see java.io.FilterInputStream#read()
+	 */
+	@Override
+	public int read() throws IOException
+	{
+		int b = super.read();
+		if( b >= 0 && !this.isComplete )
+		{
+			this.capture( (byte) b );
+		}
+		return b;
+	}
+	
+	/**
+	 * @see java.io.FilterInputStream#read(byte[], int, int)
+	 */
+	@Override
+	public int read( byte[] buf, int off, int len ) throws IOException
+	{
+		int read = super.read( buf, off, len );
+		for( int i = 0; i < read && !this.isComplete; ++i )
+		{
+			this.capture( buf[ off + i ] );
+		}
+		return read;
+	}
+	
+	/**
+	 * Captures the passed byte and detects the end of the headers.
+	 */
+	protected void capture( byte b )
+	{
+		this.headers.write( b );
+		
+		if( b == '\n' )
+		{
+			++this.lineFeeds;
+		}
+		else if( b != '\r' )
+		{
+			this.lineFeeds = 0;
+		}
+		
+		this.isComplete = this.lineFeeds >= 2 || 
+			this.headers.size() >= this.maxHeaderSize;
+	}
+	
+	/**
+	 * @return <code>true</code> if the end of the headers has been read
+	 */
+	public boolean isComplete()
+	{
+		return this.isComplete;
+	}
+	
+	/**
+	 * @return a new {@link InputStream} containing the captured headers
+	 */
+	public InputStream getHeaders()
+	{
+		return new ByteArrayInputStream( this.headers.toByteArray() );
+	}
+	
+}//class HeaderCapturingInputStream
@@ -0,0 +1,170 @@
+/**
+ *   (c) Copyright 2007-2010 by emarsys eMarketing Systems AG
+ * 
+ *   This file is part of dyson.
+ *
+ *   dyson is free software; you can redistribute it and/or modify
+ *   it under the terms of the GNU Lesser General Public License as published by
+ *   the Free Software Foundation; either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   dyson is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.emarsys.dyson.storage;
+
+import java.security.SecureRandom;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.emarsys.dyson.DysonConfig;
+import com.emarsys.ecommon.time.Dates;
+
+/**
+ * <p>
+ * Generates unique, monotonic base names for incoming mail files.
+ * </p><p>
+ * A name consists of the accept timestamp 
+ * (formatted as {@link Dates#FORMAT_TIMESTAMP} in UTC, so the names do 
+ * not jump back when daylight saving time ends), the 
+ * {@link DysonConfig#SERVER_NODE_ID node id} and a zero-padded 
+ * per-node sequence number, e.g. 
+ * <tt>2010-08-29_14:05:00:123_3f9c2a71d0b4_000000000042</tt>.
+ * </p><p>
+ * The sequence number guarantees uniqueness on a node without any 
+ * locking, the node id guarantees uniqueness among nodes sharing a 
+ * storage. Since the timestamp and the sequence are both monotonic the 
+ * lexicographical order of the names is the arrival order of the 
+ * mails, and the accept time can be {@link #parseAcceptTime(String) 
+ * parsed} from a name again.
+ * </p>
+ * 
+ * @author <a href="mailto:kulovits@emarsys.com">Michael "kULO" Kulovits</a>
+ */
+public class IncomingFileNameGenerator
+{
+	/** the number of digits of the zero-padded sequence number */
+	public static final int SEQUENCE_DIGITS = 12;
+	private static final String PADDING = "000000000000";
+	
+	/** {@link Dates#FORMAT_TIMESTAMP} is shared, hence a copy per thread */
+	private static final ThreadLocal<DateFormat> TIMESTAMP_FORMAT = 
+		new ThreadLocal<DateFormat>()
+		{
+			@Override
+			protected DateFormat initialValue()
+			{
+				DateFormat format = (DateFormat) Dates.FORMAT_TIMESTAMP.clone();
+				format.setTimeZone( TimeZone.getTimeZone( "UTC" ) );
+				return format;
+			}
+		};
+	private static final int TIMESTAMP_LENGTH = 
+		TIMESTAMP_FORMAT.get().format( new Date( 0 ) ).length();
+	
+	protected final String nodeId;
+	protected final AtomicLong sequence = new AtomicLong( 0 );
+	
+	/**
+	 * @param nodeId - the node's id, if <code>null</code> or empty a 
+	 * 		{@link #newRandomNodeId() random id} is used
+	 */
+	public IncomingFileNameGenerator( String nodeId )
+	{
+		if( nodeId == null || nodeId.trim().length() == 0 )
+		{
+			nodeId = newRandomNodeId();
+		}
+		if( nodeId.indexOf( '_' ) >= 0 || nodeId.indexOf( '/' ) >= 0 )
+		{
+			throw new IllegalArgumentException( 
+					"node id must neither contain '_' nor '/': " + nodeId );
+		}
+		this.nodeId = nodeId;
+	}
+	
+	/**
+	 * @return a new unique name using the current time as accept time
+	 */
+	public String nextName()
+	{
+		return this.nextName( System.currentTimeMillis() );
+	}
+	
+	/**
+	 * @param acceptTimeMillis - the time the mail has been accepted
+	 * @return a new unique name
+	 */
+	public String nextName( long acceptTimeMillis )
+	{
+		String seq = String.valueOf( this.sequence.incrementAndGet() );
+		StringBuilder buf = new StringBuilder( 48 )
+		.append( TIMESTAMP_FORMAT.get().format( new Date( acceptTimeMillis ) ) )
+		.append( '_' ).append( this.nodeId ).append( '_' );
+		if( seq.length() < SEQUENCE_DIGITS )
+		{
+			buf.append( PADDING, 0, SEQUENCE_DIGITS - seq.length() );
+		}
+		return buf.append( seq ).toString();
+	}
+	
+	/**
+	 * @return the id of this node
+	 */
+	public String getNodeId()
+	{
+		return this.nodeId;
+	}
+	
+	/**
+	 * Parses the accept time from the passed mail file name 
+	 * (which may contain a path and a suffix).
+	 * 
+	 * @param fileName - a name generated by an 
+	 * 		{@link IncomingFileNameGenerator}
+	 * @return the accept time in millis or <code>-1</code> if the 
+	 * 		passed name has not been generated by this class
+	 */
+	public static long parseAcceptTime( String fileName )
+	{
+		int start = fileName.lastIndexOf( '/' ) + 1;
+		int length = TIMESTAMP_LENGTH;
+		
+		if( fileName.length() < start + length )
+		{
+			return -1;
+		}
+		
+		try
+		{
+			return TIMESTAMP_FORMAT.get().parse( 
+					fileName.substring( start, start + length ) ).getTime();
+		}
+		catch( ParseException pe )
+		{
+			return -1;
+		}
+	}
+	
+	/**
+	 * The process id is no node id, since it's the same (e.g. 1) for 
+	 * dysons running in different containers sharing a storage.
+	 * 
+	 * @return a random node id of 12 hex digits
+	 */
+	protected static String newRandomNodeId()
+	{
+		String id = Long.toHexString( 
+				new SecureRandom().nextLong() & 0xffffffffffffL );
+		return PADDING.substring( 0, 12 - id.length() ) + id;
+	}
+	
+}//class IncomingFileNameGenerator
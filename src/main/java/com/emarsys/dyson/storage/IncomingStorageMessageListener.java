@@ -19,11 +19,12 @@
 package com.emarsys.dyson.storage;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.PrintStream;
-import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.regex.Pattern;
 
 import org.slf4j.Logger;
@@ -35,13 +36,12 @@ import com.emarsys.dyson.Dyson;
 import com.emarsys.dyson.DysonConfig;
 import com.emarsys.dyson.DysonMessageListener;
 import com.emarsys.dyson.DysonServer;
+import com.emarsys.dyson.DysonStatistics;
 import com.emarsys.dyson.DysonStorage;
+import com.emarsys.dyson.DysonStatistics.Latency;
 import com.emarsys.dyson.DysonStatistics.MailEvent;
-import com.emarsys.ecommon.builder.time.DateBuilder;
 import com.emarsys.ecommon.io.IOUtil;
-import com.emarsys.ecommon.io.NewlineOutputStream;
 import com.emarsys.ecommon.prefs.config.Configuration;
-import com.emarsys.ecommon.time.Dates;
 
 /**
  * <p>
@@ -61,8 +61,8 @@ public class IncomingStorageMessageListener extends DysonMessageListener
 	private static Logger log = 
 		LoggerFactory.getLogger( IncomingStorageMessageListener.class );
 	
-	protected final Random random;
-	protected final int bufferSize;
+	protected final IncomingFileNameGenerator nameGenerator;
+	protected final MailFileWriter writer;
 	/**
 	 * 
 	 */
@@ -76,9 +76,11 @@ public class IncomingStorageMessageListener extends DysonMessageListener
 		super( dyson );
 		
 		Configuration config = this.dyson.getConfiguration(); 
-		this.random = new Random();
-		this.bufferSize = config.get( 
-				DysonConfig.STORAGE_FILE_BUFFER_SIZE_BYTES ).getIntValue();
+		this.nameGenerator = new IncomingFileNameGenerator( 
+				config.get( DysonConfig.SERVER_NODE_ID ).getValue() );
+		this.writer = new MailFileWriter( 
+				config.get( DysonConfig.STORAGE_FILE_BUFFER_SIZE_BYTES ).getIntValue(),
+				config.get( DysonConfig.STORAGE_FILE_BUFFER_POOL_SIZE ).getIntValue() );
 		
 		if( config.get( 
 				DysonConfig.SMTP_DISCARD_RECIPIENTS_ENABLED ).getBooleanValue() )
@@ -119,38 +121,183 @@ public class IncomingStorageMessageListener extends DysonMessageListener
 			return;
 		}
 
-		Runnable storingTask = new Runnable()
+		//the name is determined at accept time to keep the arrival order
+		final long acceptMillis = System.currentTimeMillis();
+		final String baseFileName = this.getBaseFileName( from, recipient );
+		
+		final Callable<Void> storing = new Callable<Void>()
 		{
-			public void run()
+			public Void call() throws Exception
 			{
 				try
 				{
-					String baseFileName, partFileName, mailFileName;
-					
-					baseFileName= getBaseFileName( from, recipient );
-					partFileName =  baseFileName + 
-						getDyson().getStorage().getMailPartialFileSuffix();
-					mailFileName = baseFileName + "." +
-						getDyson().getStorage().getMailFileSuffix();
-					
-					writeMailFile( data, partFileName );
-					renameMailFile( partFileName, mailFileName );
-					getDyson().getStatistics().fire( MailEvent.MAIL_CAME_IN );
+					store( baseFileName, data, acceptMillis );
+					return null;
 				}
-				catch( Exception ex )
+				finally
 				{
-					log.error( "cannot store mail: from \"" + from + 
-							"\", to \"" + recipient + "\": " + ex, ex );
+					IOUtil.silentClose( data );
 				}
 			}
 		};
+		
+		Runnable storingTask;
+		FutureTask<Void> durableStoringTask = null;
+		if( this.getDyson().getStorage().isDurableWriteEnabled() )
+		{
+			//the mail is acknowledged only after it has been forced
+			durableStoringTask = new FutureTask<Void>( storing );
+			storingTask = durableStoringTask;
+		}
+		else
+		{
+			storingTask = new Runnable()
+			{
+				public void run()
+				{
+					try
+					{
+						storing.call();
+					}
+					catch( Exception ex )
+					{
+						log.error( "cannot store mail: from \"" + from + 
+								"\", to \"" + recipient + "\": " + ex, ex );
+					}
+				}
+			};
+		}
 
-		this.getDyson().getStorage().submitTask( storingTask );
+		try
+		{
+			this.getDyson().getStorage().submitTask( storingTask );
+		}
+		catch( RejectedExecutionException ree )
+		{
+			//results in a temporary failure (4xx) for the SMTP client
+			log.warn( "rejected mail to \"{}\" from \"{}\": storage " +
+					"is saturated", recipient, from );
+			throw new IOException( 
+					"cannot store mail, storage is saturated: " + ree );
+		}
+		
+		if( durableStoringTask != null )
+		{
+			this.awaitDurable( durableStoringTask, from, recipient );
+		}
+	}
+	
+	/**
+	 * Stores the mail: either {@link DysonStorage#store(InputStream, long) 
+	 * directly}, {@link #storeSinglePass(InputStream, String, long) in a 
+	 * single pass} or by writing it to the incoming directory.
+	 * 
+	 * @param baseFileName - the base file name of the mail
+	 * @param data - the mail data
+	 * @param acceptMillis - the time the mail has been accepted
+	 * @throws IOException - if the mail cannot be stored
+	 */
+	protected void store( 
+			String baseFileName, InputStream data, long acceptMillis )
+		throws IOException
+	{
+		DysonStorage storage = this.getDyson().getStorage();
+		
+		if( storage.isDirectStorageEnabled() )
+		{
+			storage.store( data, acceptMillis );
+			this.fireMailCameIn( acceptMillis );
+		}
+		else
+		{
+			//the body must not be collected before the mail file is in place
+			MailBodyStore bodies = this.getDeduplicatingBodyStore();
+			if( bodies != null )
+			{
+				bodies.beginReferencing();
+			}
+			try
+			{
+				this.storeMailFile( baseFileName, data, acceptMillis );
+			}
+			finally
+			{
+				if( bodies != null )
+				{
+					bodies.endReferencing();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Writes the mail to the incoming directory and either 
+	 * {@link #storeSinglePass(InputStream, String, long) moves} it 
+	 * straight into the processed directory or delivers it.
+	 * 
+	 * @param baseFileName - the base file name of the mail
+	 * @param data - the mail data
+	 * @param acceptMillis - the time the mail has been accepted
+	 * @throws IOException - if the mail cannot be stored
+	 */
+	protected void storeMailFile( 
+			String baseFileName, InputStream data, long acceptMillis )
+		throws IOException
+	{
+		DysonStorage storage = this.getDyson().getStorage();
+		
+		if( storage.isSinglePassEnabled() )
+		{
+			this.storeSinglePass( data, baseFileName, acceptMillis );
+		}
+		else
+		{
+			String partFileName = 
+				baseFileName + storage.getMailPartialFileSuffix();
+			this.writeMailFile( data, partFileName );
+			this.renameMailFile( partFileName, 
+					baseFileName + "." + storage.getMailFileSuffix() );
+			this.fireMailCameIn( acceptMillis );
+		}
+	}
+	
+	/**
+	 * Waits until the passed storing task has durably stored the mail.
+	 * 
+	 * @param durableStoringTask
+	 * @param from
+	 * @param recipient
+	 * @throws IOException - if the mail cannot be stored, results in a 
+	 * 		temporary failure (4xx) for the SMTP client
+	 */
+	protected void awaitDurable( 
+			FutureTask<Void> durableStoringTask, String from, String recipient )
+		throws IOException
+	{
+		try
+		{
+			durableStoringTask.get();
+		}
+		catch( ExecutionException ee )
+		{
+			log.error( "cannot store mail: from \"" + from + "\", to \"" + 
+					recipient + "\": " + ee.getCause(), ee.getCause() );
+			throw new IOException( 
+					"cannot store mail durably: " + ee.getCause() );
+		}
+		catch( InterruptedException ie )
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException( 
+					"interrupted while storing mail durably: " + ie );
+		}
 	}
 	
 	/**
-	 * the random number should correlate 
-	 * with the number of maximum listener threads
+	 * Returns a unique base file name (without suffix) in the 
+	 * {@link DysonStorage#getIncomingShard(String) shard} of the incoming 
+	 * directory, generated by the listener's 
+	 * {@link IncomingFileNameGenerator}.
 	 * 
 	 * @param from
 	 * @param recipient
@@ -158,52 +305,124 @@ public class IncomingStorageMessageListener extends DysonMessageListener
 	 */
 	protected String getBaseFileName( String from, String recipient )
 	{
-		int maxNbrOfConcurrentListeners = 
-			this.getDyson().getConfiguration().get( 
-					DysonConfig.SMTP_MAX_CONNECTIONS ).getIntValue();
-		StringBuilder buf = new StringBuilder()
-		.append( this.getDyson().getStorage().getIncomingDirName() )
-		.append( '/' ).append( Dates.format( 
-				DateBuilder.getInstance(), Dates.FORMAT_TIMESTAMP ) )
-		.append('_').append( random.nextInt( maxNbrOfConcurrentListeners ) ); 
-		return buf.toString();
+		DysonStorage storage = this.getDyson().getStorage();
+		String name = this.nameGenerator.nextName();
+		
+		return storage.getIncomingDirName( storage.getIncomingShard( name ) ) + 
+			'/' + name;
 	}
 	
 	/**
+	 * Writes the mail data with normalized newlines to the passed 
+	 * partial file using the listener's pooled {@link MailFileWriter}. 
+	 * If the storage deduplicates mail bodies, the body is passed to its 
+	 * {@link MailBodyStore} instead, the caller has to 
+	 * {@link MailBodyStore#beginReferencing() begin referencing} it.
 	 * 
 	 * @param data
 	 * @param partFileName
-	 * @throws IOException
+	 * @throws IOException - if the mail cannot be written completely
 	 */
 	protected void writeMailFile( InputStream data, String partFileName ) 
 		throws IOException
 	{
 		log.debug( "writing mail to \'{}\'", partFileName  );
 		
-		int len;
-		byte buf[] = new byte[ bufferSize ];
+		DysonStorage storage = this.getDyson().getStorage();
+		this.writer.write( data, new File( partFileName ), 
+				storage.isDurableWriteEnabled() ? storage : null, 
+				this.getDeduplicatingBodyStore() );
+	}
+	
+	/**
+	 * @return the storage's store of the mail bodies if it deduplicates 
+	 * 		them, <code>null</code> otherwise
+	 */
+	protected MailBodyStore getDeduplicatingBodyStore()
+	{
+		DysonStorage storage = this.getDyson().getStorage();
+		return storage instanceof DefaultDysonStorage ? 
+				((DefaultDysonStorage) storage).getDeduplicatingBodyStore() : null;
+	}
+	
+	/**
+	 * <p>
+	 * Writes the mail to its partial file and {@link 
+	 * DysonStorage#moveIntoProcessedDir(File, InputStream) moves} it 
+	 * straight into the processed directory afterwards.
+	 * </p><p>
+	 * The mail's headers are captured while writing, so the storage 
+	 * does not have to read the mail file a second time in order to 
+	 * resolve its final location.
+	 * </p><p>
+	 * If the completely written mail cannot be moved, it's 
+	 * {@link #renameMailFile(String, String) delivered} to the incoming 
+	 * directory instead, so the delivered mail processor retries moving it.
+	 * </p>
+	 * @param data
+	 * @param baseFileName - the base file name of the mail
+	 * @param acceptMillis - the time the mail has been accepted
+	 * @throws IOException
+	 */
+	protected void storeSinglePass( 
+			InputStream data, String baseFileName, long acceptMillis )
+		throws IOException
+	{
+		DysonStorage storage = this.getDyson().getStorage();
+		String partFileName = baseFileName + storage.getMailPartialFileSuffix();
+		HeaderCapturingInputStream headerCapturingData = 
+			new HeaderCapturingInputStream( data );
 		
-		FileOutputStream fos = 
-			new FileOutputStream( partFileName, false );
-		NewlineOutputStream nos = 
-			new NewlineOutputStream( fos );
-		PrintStream ps = new PrintStream( nos );
-
-		while( (len = data.read( buf ) ) > 0 )
+		this.writeMailFile( headerCapturingData, partFileName );
+		this.fireMailCameIn( acceptMillis );
+		File partFile = new File( partFileName );
+		File mailFile;
+		try
 		{
-			ps.write( buf, 0, len );
+			mailFile = storage.moveIntoProcessedDir( 
+					partFile, headerCapturingData.getHeaders() );
 		}
-
-		ps.flush();
-		IOUtil.silentClose( ps );
+		catch( Exception ex )
+		{
+			if( !partFile.exists() )
+			{
+				//moved, but failed afterwards (e.g. while indexing it)
+				log.warn( "moved \'{}\' into the processed dir, but: {}", 
+						partFileName, ex );
+				return;
+			}
+			log.warn( "cannot move \'{}\' into the processed dir, " +
+					"delivering it to the incoming dir: {}", partFileName, ex );
+			this.renameMailFile( partFileName, 
+					baseFileName + "." + storage.getMailFileSuffix() );
+			return;
+		}
+		this.forceRename( mailFile );
+	}
+	
+	/**
+	 * Fires {@link MailEvent#MAIL_CAME_IN} and records the 
+	 * {@link Latency#ACCEPTED_TO_STORED} latency.
+	 * 
+	 * @param acceptMillis - the time the mail has been accepted
+	 */
+	protected void fireMailCameIn( long acceptMillis )
+	{
+		DysonStatistics statistics = this.getDyson().getStatistics();
+		
+		statistics.fire( MailEvent.MAIL_CAME_IN );
+		statistics.record( Latency.ACCEPTED_TO_STORED, 
+				System.currentTimeMillis() - acceptMillis );
 	}
 	
 	/**
 	 * 
 	 * @param partFileName
 	 * @param mailFileName
+	 * @throws IOException - if the file cannot be renamed
 	 */
 	protected void renameMailFile( String partFileName, String mailFileName )
+		throws IOException
 	{
 		log.debug( "renaming \'{}\' to \'{}\'", partFileName, mailFileName  );
 		
@@ -211,10 +430,32 @@ public class IncomingStorageMessageListener extends DysonMessageListener
 		File mailFile = new File( mailFileName );
 		boolean successfullyRenamed = partFile.renameTo( mailFile );
 		
-		if( !successfullyRenamed )
+		if( successfullyRenamed )
+		{
+			this.forceRename( mailFile );
+			this.getDyson().getStorage().fireMailDelivered( mailFile );
+		}
+		else
+		{
+			throw new IOException( "could not rename file \'" + partFile + 
+					"\' to \'" + mailFile + "\'" );
+		}
+	}
+	
+	/**
+	 * Forces the directory of the passed, just renamed mail file if 
+	 * {@link DysonStorage#isDurableWriteEnabled() durable writes} are 
+	 * enabled, so the rename survives a crash just like the mail's content.
+	 * 
+	 * @param mailFile - the renamed mail file
+	 * @throws IOException - if the directory cannot be forced
+	 */
+	protected void forceRename( File mailFile ) throws IOException
+	{
+		DysonStorage storage = this.getDyson().getStorage();
+		if( storage.isDurableWriteEnabled() )
 		{
-			log.error( "could not rename file \'{}\' to \'{}\'",
-					partFile, mailFile );
+			storage.forceDirectory( mailFile.getAbsoluteFile().getParentFile() );
 		}
 	}
 	
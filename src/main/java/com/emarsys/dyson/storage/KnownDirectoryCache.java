@@ -0,0 +1,211 @@
+/**
+ *   (c) Copyright 2007-2010 by emarsys eMarketing Systems AG
+ * 
+ *   This file is part of dyson.
+ *
+ *   dyson is free software; you can redistribute it and/or modify
+ *   it under the terms of the GNU Lesser General Public License as published by
+ *   the Free Software Foundation; either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   dyson is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.emarsys.dyson.storage;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * A bounded cache of directories which are known to exist and to be 
+ * readable and writable, used to avoid checking the directory of every 
+ * stored mail with several file system calls.
+ * </p><p>
+ * The cache is split into segments, each holding up to its share of the 
+ * capacity and evicting its least recently used directory when it's full.
+ * Lookups in different segments don't block each other.
+ * </p><p>
+ * Cached directories are not verified again, so the cache has to be
+ * {@link #invalidateAll() invalidated} whenever directories may have been 
+ * removed.
+ * </p>
+ * 
+ * @author <a href="mailto:kulovits@emarsys.com">Michael "kULO" Kulovits</a>
+ */
+public class KnownDirectoryCache
+{
+	protected static final int SEGMENT_COUNT = 16;
+	
+	/**
+	 * A segment of the cache evicting its least recently used entry.
+	 */
+	protected static class Segment extends LinkedHashMap<String, Boolean>
+	{
+		private static final long serialVersionUID = 1L;
+		
+		protected final int capacity;
+		
+		protected Segment( int capacity )
+		{
+			super( 16, 0.75f, true );
+			this.capacity = capacity;
+		}
+		
+		@Override
+		protected boolean removeEldestEntry( Map.Entry<String, Boolean> eldest )
+		{
+			return this.size() > this.capacity;
+		}
+	}//class Segment
+	
+	protected final Segment[] segments;
+	protected final int capacity;
+	protected final AtomicLong hitCount = new AtomicLong( 0 );
+	protected final AtomicLong missCount = new AtomicLong( 0 );
+	
+	/**
+	 * @param capacity - the maximum number of cached directories
+	 */
+	public KnownDirectoryCache( int capacity )
+	{
+		if( capacity <= 0 )
+		{
+			throw new IllegalArgumentException( 
+					"invalid directory cache capacity: " + capacity );
+		}
+		this.capacity = capacity;
+		
+		int segmentCount = Math.min( SEGMENT_COUNT, capacity );
+		this.segments = new Segment[ segmentCount ];
+		for( int i = 0; i < segmentCount; ++i )
+		{
+			//spread the remainder over the first segments
+			int segmentCapacity = capacity / segmentCount + 
+				(i < capacity % segmentCount ? 1 : 0);
+			this.segments[ i ] = new Segment( segmentCapacity );
+		}
+	}
+	
+	protected Segment segmentFor( String pathToDir )
+	{
+		int hash = pathToDir.hashCode();
+		hash ^= (hash >>> 16);
+		return this.segments[ (hash & 0x7fffffff) % this.segments.length ];
+	}
+	
+	/**
+	 * @param pathToDir - the path to the directory
+	 * @return if the directory is known to exist, 
+	 * 		counted as cache hit or miss
+	 */
+	public boolean contains( String pathToDir )
+	{
+		Segment segment = this.segmentFor( pathToDir );
+		boolean isKnown;
+		synchronized( segment )
+		{
+			//get() instead of containsKey() updates the access order
+			isKnown = segment.get( pathToDir ) != null;
+		}
+		
+		if( isKnown )
+		{
+			this.hitCount.incrementAndGet();
+		}
+		else
+		{
+			this.missCount.incrementAndGet();
+		}
+		return isKnown;
+	}
+	
+	/**
+	 * Remembers the passed directory as existing.
+	 * 
+	 * @param pathToDir - the path to the verified directory
+	 */
+	public void add( String pathToDir )
+	{
+		Segment segment = this.segmentFor( pathToDir );
+		synchronized( segment )
+		{
+			segment.put( pathToDir, Boolean.TRUE );
+		}
+	}
+	
+	/**
+	 * Forgets the passed directory, e.g. after moving a mail into it failed.
+	 * 
+	 * @param pathToDir - the path to the directory
+	 */
+	public void invalidate( String pathToDir )
+	{
+		Segment segment = this.segmentFor( pathToDir );
+		synchronized( segment )
+		{
+			segment.remove( pathToDir );
+		}
+	}
+	
+	/**
+	 * Forgets all directories.
+	 */
+	public void invalidateAll()
+	{
+		for( Segment segment : this.segments )
+		{
+			synchronized( segment )
+			{
+				segment.clear();
+			}
+		}
+	}
+	
+	/**
+	 * @return the number of cached directories
+	 */
+	public int size()
+	{
+		int size = 0;
+		for( Segment segment : this.segments )
+		{
+			synchronized( segment )
+			{
+				size += segment.size();
+			}
+		}
+		return size;
+	}
+	
+	/**
+	 * @return the maximum number of cached directories
+	 */
+	public int getCapacity()
+	{
+		return this.capacity;
+	}
+	
+	/**
+	 * @return the number of lookups of known directories
+	 */
+	public long getHitCount()
+	{
+		return this.hitCount.get();
+	}
+	
+	/**
+	 * @return the number of lookups of unknown directories
+	 */
+	public long getMissCount()
+	{
+		return this.missCount.get();
+	}
+	
+}//class KnownDirectoryCache
@@ -0,0 +1,732 @@
+/**
+ *   (c) Copyright 2007-2010 by emarsys eMarketing Systems AG
+ * 
+ *   This file is part of dyson.
+ *
+ *   dyson is free software; you can redistribute it and/or modify
+ *   it under the terms of the GNU Lesser General Public License as published by
+ *   the Free Software Foundation; either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   dyson is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.emarsys.dyson.storage;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.emarsys.dyson.DysonConfig;
+import com.emarsys.dyson.DysonStatistics;
+import com.emarsys.dyson.DysonStorage;
+import com.emarsys.dyson.StoredMail;
+import com.emarsys.dyson.DysonStatistics.MailEvent;
+import com.emarsys.ecommon.io.IOUtil;
+
+/**
+ * <p>
+ * Content-addressed store of mail bodies used by the deduplicating 
+ * storage mode (see {@link DysonConfig#STORAGE_DEDUP_ENABLED}).
+ * </p><p>
+ * While a mail is written its body is passed to a {@link BodyWriter}, 
+ * which hashes it (SHA-1) and stores it only if there's no body with the 
+ * same hash yet. The mail file itself only holds the mail's headers, 
+ * preceded by a fixed size reference line 
+ * (<tt>X-Dyson-Body: &lt;hash&gt; &lt;length&gt;</tt>) pointing to the 
+ * body. {@link #resolve(FileStoredMail) Resolved} mails are served with 
+ * their bodies, without the reference line.
+ * </p><p>
+ * Small bodies are buffered in memory while hashing, so a duplicate body 
+ * is never written at all.
+ * </p><p>
+ * Bodies are kept in their own directory (see 
+ * {@link DysonConfig#STORAGE_DIR_BODIES}), since they are referenced by 
+ * mails in the incoming as well as in the processed directory. They are 
+ * not cleared along with the mails, but {@link #collectGarbage(Collection) 
+ * collected} once no mail references them any more. Writers of 
+ * referencing mails have to {@link #beginReferencing() announce} 
+ * themselves, so the collection never removes a body which is about to 
+ * be referenced.
+ * </p>
+ * @author <a href="mailto:kulovits@emarsys.com">Michael "kULO" Kulovits</a>
+ */
+public class MailBodyStore
+{
+	private static final Logger log = 
+		LoggerFactory.getLogger( MailBodyStore.class );
+	
+	public static final String BODY_FILE_SUFFIX = "body";
+	/** the name of the header referencing the body */
+	public static final String REF_HEADER = "X-Dyson-Body";
+	
+	protected static final String HASH_ALGORITHM = "SHA-1";
+	protected static final int HASH_HEX_LENGTH = 40;
+	protected static final int LENGTH_HEX_LENGTH = 16;
+	protected static final byte[] NEWLINE = 
+		System.getProperty( "line.separator" ).getBytes();
+	protected static final String REF_PREFIX = REF_HEADER + ": ";
+	/** the length of the reference line, including its newline */
+	public static final int REF_LINE_LENGTH = REF_PREFIX.length() + 
+		HASH_HEX_LENGTH + 1 + LENGTH_HEX_LENGTH + NEWLINE.length;
+	
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+	/** the number of locks serializing storing and collecting bodies */
+	private static final int STRIPE_COUNT = 64;
+	
+	/**
+	 * The reference to a body read from a mail file.
+	 */
+	public static class Ref
+	{
+		protected final String hash;
+		protected final long length;
+		
+		protected Ref( String hash, long length )
+		{
+			this.hash = hash;
+			this.length = length;
+		}
+		
+		public String getHash()
+		{
+			return this.hash;
+		}
+		
+		public long getLength()
+		{
+			return this.length;
+		}
+	}//class Ref
+	
+	/**
+	 * Hashes and stores a single body, the body is buffered in memory up 
+	 * to the store's max. buffer size and written to a temporary file 
+	 * beyond.
+	 */
+	public class BodyWriter
+	{
+		protected final MessageDigest digest;
+		protected byte[] buffer = new byte[ Math.min( 8192, maxBufferedBytes ) ];
+		protected int buffered = 0;
+		protected File tempFile;
+		protected FileOutputStream tempOut;
+		protected boolean isPrepared = false;
+		protected long length = 0;
+		
+		protected BodyWriter()
+		{
+			try
+			{
+				this.digest = MessageDigest.getInstance( HASH_ALGORITHM );
+			}
+			catch( NoSuchAlgorithmException nsae )
+			{
+				throw new IllegalStateException( 
+						HASH_ALGORITHM + " is not supported", nsae );
+			}
+		}
+		
+		/**
+		 * Writes all remaining bytes of the passed buffer.
+		 */
+		public void write( ByteBuffer src ) throws IOException
+		{
+			int n = src.remaining();
+			this.digest.update( src.duplicate() );
+			this.length += n;
+			
+			if( this.tempOut == null && this.buffered + n <= maxBufferedBytes )
+			{
+				if( this.buffered + n > this.buffer.length )
+				{
+					byte[] grown = new byte[ Math.min( maxBufferedBytes, 
+							Math.max( this.buffer.length * 2, this.buffered + n ) ) ];
+					System.arraycopy( this.buffer, 0, grown, 0, this.buffered );
+					this.buffer = grown;
+				}
+				src.get( this.buffer, this.buffered, n );
+				this.buffered += n;
+				return;
+			}
+			
+			this.spill();
+			while( src.hasRemaining() )
+			{
+				this.tempOut.getChannel().write( src );
+			}
+		}
+		
+		/**
+		 * writes the buffered bytes to the temporary file, 
+		 * which is created if necessary
+		 */
+		protected void spill() throws IOException
+		{
+			if( this.tempOut != null )
+			{
+				return;
+			}
+			if( !dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory() )
+			{
+				throw new IOException( "cannot create body directory " + dir );
+			}
+			this.tempFile = File.createTempFile( "body", ".tmp", dir );
+			this.tempOut = new FileOutputStream( this.tempFile );
+			this.tempOut.write( this.buffer, 0, this.buffered );
+			this.buffer = null;
+			this.buffered = 0;
+		}
+		
+		/**
+		 * @return the length of the written body
+		 */
+		public long getLength()
+		{
+			return this.length;
+		}
+		
+		/**
+		 * Stores the written body unless there's already a body with the 
+		 * same hash.
+		 * 
+		 * @param forcingStorage - the storage {@link DysonStorage#force(
+		 * 		java.nio.channels.FileChannel) forcing} a newly stored body, 
+		 * 		<code>null</code> if it should not be forced
+		 * @return the hash of the body
+		 * @throws IOException - if the body cannot be stored
+		 */
+		public String commit( DysonStorage forcingStorage ) throws IOException
+		{
+			String hash = toHex( this.digest.digest() );
+			File bodyFile = getBodyFile( hash );
+			
+			mailCount.incrementAndGet();
+			rawBytes.addAndGet( this.length );
+			
+			boolean successful = false;
+			try
+			{
+				//write the body outside of the lock unless it's a duplicate
+				if( !bodyFile.exists() )
+				{
+					this.prepare( forcingStorage );
+				}
+				synchronized( getStripe( hash ) )
+				{
+					if( isCollecting )
+					{
+						pinnedHashes.add( hash );
+					}
+					if( bodyFile.exists() )
+					{
+						this.abort();
+						deduplicatedCount.incrementAndGet();
+						statistics.fire( MailEvent.MAIL_BODY_DEDUPLICATED );
+						successful = true;
+						return hash;
+					}
+					//collected meanwhile
+					this.prepare( forcingStorage );
+					
+					File parent = bodyFile.getParentFile();
+					if( !parent.isDirectory() && !parent.mkdirs() && 
+							!parent.isDirectory() )
+					{
+						throw new IOException( "cannot create body directory " + 
+								parent );
+					}
+					//a concurrently stored body with the same hash is identical
+					if( !this.tempFile.renameTo( bodyFile ) && !bodyFile.exists() )
+					{
+						throw new IOException( "cannot rename " + this.tempFile + 
+								" to " + bodyFile );
+					}
+				}
+				successful = true;
+			}
+			finally
+			{
+				if( !successful )
+				{
+					this.abort();
+				}
+			}
+			
+			storedCount.incrementAndGet();
+			storedBytes.addAndGet( this.length );
+			statistics.fire( MailEvent.MAIL_BODY_STORED );
+			return hash;
+		}
+		
+		/**
+		 * writes the body to its (forced and closed) temporary file, 
+		 * does nothing if it has already been prepared
+		 */
+		protected void prepare( DysonStorage forcingStorage ) throws IOException
+		{
+			if( this.isPrepared )
+			{
+				return;
+			}
+			this.spill();
+			if( forcingStorage != null )
+			{
+				forcingStorage.force( this.tempOut.getChannel() );
+			}
+			this.tempOut.close();
+			this.isPrepared = true;
+		}
+		
+		/**
+		 * discards the written body
+		 */
+		public void abort()
+		{
+			this.buffer = null;
+			if( this.tempOut != null )
+			{
+				IOUtil.silentClose( this.tempOut );
+				if( this.tempFile.exists() && !this.tempFile.delete() )
+				{
+					log.warn( "cannot delete temporary body file \'{}\'", 
+							this.tempFile );
+				}
+			}
+		}
+	}//class BodyWriter
+	
+	protected final File dir;
+	protected final int maxBufferedBytes;
+	protected final DysonStatistics statistics;
+	
+	/** 
+	 * shared by the writers of referencing mails, exclusively held while 
+	 * {@link #collectGarbage(Collection) collecting} starts 
+	 */
+	protected final ReadWriteLock referenceLock = new ReentrantReadWriteLock();
+	/** serialize storing and collecting a body, chosen by its hash */
+	protected final Object[] stripes = new Object[ STRIPE_COUNT ];
+	/** whether a collection is in progress */
+	protected volatile boolean isCollecting = false;
+	/** the hashes of the bodies committed during the current collection */
+	protected final Set<String> pinnedHashes = 
+		Collections.newSetFromMap( new ConcurrentHashMap<String, Boolean>() );
+	
+	protected final AtomicLong mailCount = new AtomicLong( 0 );
+	protected final AtomicLong deduplicatedCount = new AtomicLong( 0 );
+	protected final AtomicLong storedCount = new AtomicLong( 0 );
+	protected final AtomicLong rawBytes = new AtomicLong( 0 );
+	protected final AtomicLong storedBytes = new AtomicLong( 0 );
+	protected final AtomicLong collectedCount = new AtomicLong( 0 );
+	
+	/**
+	 * @param dir - the directory the bodies are stored in
+	 * @param maxBufferedBytes - the maximum size of a body buffered 
+	 * 		in memory while hashing it
+	 * @param statistics - the statistics the stored and deduplicated 
+	 * 		bodies are reported to
+	 */
+	public MailBodyStore( 
+			File dir, int maxBufferedBytes, DysonStatistics statistics )
+	{
+		if( maxBufferedBytes <= 0 )
+		{
+			throw new IllegalArgumentException( 
+					"invalid max. buffer size: " + maxBufferedBytes );
+		}
+		this.dir = dir;
+		this.maxBufferedBytes = maxBufferedBytes;
+		this.statistics = statistics;
+		for( int i = 0; i < this.stripes.length; ++i )
+		{
+			this.stripes[ i ] = new Object();
+		}
+	}
+	
+	/**
+	 * @return the directory the bodies are stored in
+	 */
+	public File getDir()
+	{
+		return this.dir;
+	}
+	
+	/**
+	 * @return a new writer for a single body
+	 */
+	public BodyWriter openWriter()
+	{
+		return new BodyWriter();
+	}
+	
+	/**
+	 * <p>
+	 * Has to be called by the writer of a referencing mail before it 
+	 * commits the mail's body. The writer has to {@link #endReferencing() 
+	 * end} referencing once the mail file has got its final name, in the 
+	 * same thread.
+	 * </p><p>
+	 * Mails written meanwhile are guaranteed to be complete and found 
+	 * in place by a {@link #collectGarbage(Collection) collection}.
+	 * </p>
+	 */
+	public void beginReferencing()
+	{
+		this.referenceLock.readLock().lock();
+	}
+	
+	/**
+	 * @see #beginReferencing()
+	 */
+	public void endReferencing()
+	{
+		this.referenceLock.readLock().unlock();
+	}
+	
+	/**
+	 * <p>
+	 * Removes all bodies which are not referenced by any mail file in the 
+	 * passed directories (and their non-hidden subdirectories), i.e. the 
+	 * bodies of mails which have been deleted.
+	 * </p><p>
+	 * Mails may be written and moved while collecting: once all writers 
+	 * which {@link #beginReferencing() began referencing} before have 
+	 * finished, the passed directories are scanned in order. Bodies 
+	 * committed meanwhile are never removed. Mails must only be moved 
+	 * from a directory to a directory following it, e.g. from the 
+	 * incoming to the processed directory.
+	 * </p>
+	 * @param mailDirs - the directories holding referencing mails, 
+	 * 		in the order mails are moved through them
+	 * @return the number of removed bodies
+	 */
+	public synchronized int collectGarbage( Collection<File> mailDirs )
+	{
+		File[] shardDirs = this.dir.listFiles();
+		if( shardDirs == null )
+		{
+			return 0;
+		}
+		
+		this.referenceLock.writeLock().lock();
+		try
+		{
+			this.pinnedHashes.clear();
+			this.isCollecting = true;
+		}
+		finally
+		{
+			this.referenceLock.writeLock().unlock();
+		}
+		
+		try
+		{
+			Set<String> referenced = new HashSet<String>();
+			for( File mailDir : mailDirs )
+			{
+				this.collectReferences( mailDir, referenced );
+			}
+			
+			int collected = 0;
+			String suffix = "." + BODY_FILE_SUFFIX;
+			for( File shardDir : shardDirs )
+			{
+				File[] bodyFiles = shardDir.listFiles();
+				if( bodyFiles == null )
+				{
+					continue;
+				}
+				for( File bodyFile : bodyFiles )
+				{
+					String name = bodyFile.getName();
+					if( !name.endsWith( suffix ) )
+					{
+						continue;
+					}
+					String hash = name.substring( 
+							0, name.length() - suffix.length() );
+					if( !referenced.contains( hash ) && 
+							this.collect( hash, bodyFile ) )
+					{
+						++collected;
+					}
+				}
+			}
+			
+			this.collectedCount.addAndGet( collected );
+			log.info( "collected {} unreferenced bodies, {} are referenced", 
+					collected, referenced.size() );
+			return collected;
+		}
+		finally
+		{
+			this.isCollecting = false;
+			this.pinnedHashes.clear();
+		}
+	}
+	
+	/**
+	 * removes the passed unreferenced body unless it has 
+	 * been committed since the collection started
+	 */
+	protected boolean collect( String hash, File bodyFile )
+	{
+		synchronized( this.getStripe( hash ) )
+		{
+			if( this.pinnedHashes.contains( hash ) )
+			{
+				return false;
+			}
+			if( !bodyFile.delete() )
+			{
+				log.warn( "cannot delete unreferenced body '{}'", bodyFile );
+				return false;
+			}
+			return true;
+		}
+	}
+	
+	/**
+	 * adds the hashes of the bodies referenced by the mail files in the 
+	 * passed directory and its non-hidden subdirectories
+	 */
+	protected void collectReferences( File mailDir, Set<String> referenced )
+	{
+		File[] files = mailDir.listFiles();
+		if( files == null )
+		{
+			return;
+		}
+		for( File file : files )
+		{
+			if( file.getName().startsWith( "." ) )
+			{
+				continue;
+			}
+			if( file.isDirectory() )
+			{
+				this.collectReferences( file, referenced );
+				continue;
+			}
+			
+			InputStream data = null;
+			try
+			{
+				data = MailCompressor.open( file );
+				Ref ref = readRef( data );
+				if( ref != null )
+				{
+					referenced.add( ref.getHash() );
+				}
+			}
+			catch( IOException ioe )
+			{
+				//moved or deleted meanwhile
+				log.debug( "cannot read reference of '{}': {}", file, ioe );
+			}
+			finally
+			{
+				IOUtil.silentClose( data );
+			}
+		}
+	}
+	
+	/**
+	 * @return the lock serializing storing and collecting 
+	 * 		the body with the passed hash
+	 */
+	protected Object getStripe( String hash )
+	{
+		return this.stripes[ (hash.hashCode() & 0x7fffffff) % this.stripes.length ];
+	}
+	
+	/**
+	 * @return the file of the body with the passed hash, 
+	 * 		sharded by the first two digits of the hash
+	 */
+	public File getBodyFile( String hash )
+	{
+		return new File( new File( this.dir, hash.substring( 0, 2 ) ), 
+				hash + "." + BODY_FILE_SUFFIX );
+	}
+	
+	/**
+	 * @return the reference line to a body, 
+	 * 		exactly {@link #REF_LINE_LENGTH} bytes long
+	 */
+	public static byte[] getRefLine( String hash, long length )
+	{
+		String lengthHex = Long.toHexString( length );
+		StringBuilder line = new StringBuilder( REF_LINE_LENGTH );
+		line.append( REF_PREFIX ).append( hash ).append( ' ' );
+		for( int i = lengthHex.length(); i < LENGTH_HEX_LENGTH; ++i )
+		{
+			line.append( '0' );
+		}
+		line.append( lengthHex ).append( new String( NEWLINE ) );
+		return line.toString().getBytes();
+	}
+	
+	/**
+	 * @return the placeholder written in place of the reference line 
+	 * 		until the body has been stored
+	 */
+	public static byte[] getRefLinePlaceholder()
+	{
+		StringBuilder hash = new StringBuilder( HASH_HEX_LENGTH );
+		for( int i = 0; i < HASH_HEX_LENGTH; ++i )
+		{
+			hash.append( '0' );
+		}
+		return getRefLine( hash.toString(), 0 );
+	}
+	
+	/**
+	 * Reads the reference line from the start of a mail.
+	 * 
+	 * @param data - the mail data, positioned at its start
+	 * @return the reference or <code>null</code> if the mail does 
+	 * 		not start with a reference line
+	 * @throws IOException - if the data cannot be read
+	 */
+	public static Ref readRef( InputStream data ) throws IOException
+	{
+		byte[] line = new byte[ REF_LINE_LENGTH ];
+		int read = 0, n;
+		while( read < line.length && 
+				(n = data.read( line, read, line.length - read )) > 0 )
+		{
+			read += n;
+		}
+		if( read < line.length )
+		{
+			return null;
+		}
+		
+		String s = new String( line, "US-ASCII" );
+		int hashStart = REF_PREFIX.length();
+		int lengthStart = hashStart + HASH_HEX_LENGTH + 1;
+		if( !s.startsWith( REF_PREFIX ) || s.charAt( lengthStart - 1 ) != ' ' )
+		{
+			return null;
+		}
+		try
+		{
+			return new Ref( s.substring( hashStart, lengthStart - 1 ), 
+					Long.parseLong( s.substring( lengthStart, 
+					lengthStart + LENGTH_HEX_LENGTH ), 16 ) );
+		}
+		catch( NumberFormatException nfe )
+		{
+			return null;
+		}
+	}
+	
+	/**
+	 * @param mail - a mail file in the processed directory
+	 * @return the mail including its body if its file references a 
+	 * 		stored body, the passed mail otherwise
+	 * @throws IOException - if the mail file cannot be read
+	 */
+	public StoredMail resolve( FileStoredMail mail ) throws IOException
+	{
+		InputStream data = mail.openStream();
+		try
+		{
+			Ref ref = readRef( data );
+			if( ref == null )
+			{
+				return mail;
+			}
+			return new DeduplicatedStoredMail( mail, 
+					this.getBodyFile( ref.getHash() ), REF_LINE_LENGTH, 
+					ref.getLength() );
+		}
+		finally
+		{
+			IOUtil.silentClose( data );
+		}
+	}
+	
+	protected static String toHex( byte[] bytes )
+	{
+		char[] hex = new char[ bytes.length * 2 ];
+		for( int i = 0; i < bytes.length; ++i )
+		{
+			hex[ 2 * i ] = HEX[ (bytes[ i ] >> 4) & 0x0f ];
+			hex[ 2 * i + 1 ] = HEX[ bytes[ i ] & 0x0f ];
+		}
+		return new String( hex );
+	}
+	
+	/**
+	 * @return the number of bodies written
+	 */
+	public long getMailCount()
+	{
+		return this.mailCount.get();
+	}
+	
+	/**
+	 * @return the number of bodies which were already stored
+	 */
+	public long getDeduplicatedCount()
+	{
+		return this.deduplicatedCount.get();
+	}
+	
+	/**
+	 * @return the number of stored bodies
+	 */
+	public long getStoredCount()
+	{
+		return this.storedCount.get();
+	}
+	
+	/**
+	 * @return the size of all written bodies in bytes
+	 */
+	public long getRawBytes()
+	{
+		return this.rawBytes.get();
+	}
+	
+	/**
+	 * @return the size of the stored bodies in bytes
+	 */
+	public long getStoredBytes()
+	{
+		return this.storedBytes.get();
+	}
+	
+	/**
+	 * @return the number of {@link #collectGarbage(Collection) collected} 
+	 * 		bodies
+	 */
+	public long getCollectedCount()
+	{
+		return this.collectedCount.get();
+	}
+	
+}//class MailBodyStore
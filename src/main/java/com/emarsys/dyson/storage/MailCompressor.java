@@ -0,0 +1,282 @@
+/**
+ *   (c) Copyright 2007-2010 by emarsys eMarketing Systems AG
+ * 
+ *   This file is part of dyson.
+ *
+ *   dyson is free software; you can redistribute it and/or modify
+ *   it under the terms of the GNU Lesser General Public License as published by
+ *   the Free Software Foundation; either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   dyson is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.emarsys.dyson.storage;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.emarsys.dyson.DysonConfig;
+import com.emarsys.dyson.DysonStorage;
+import com.emarsys.ecommon.io.IOUtil;
+
+/**
+ * <p>
+ * Compresses mail files in the gzip format while moving them into the 
+ * processed directory (see {@link DysonConfig#STORAGE_COMPRESSION_ENABLED}).
+ * </p><p>
+ * Compressed mail files keep their names, they are recognized by the 
+ * gzip magic number, which never starts a mail. Their raw length is 
+ * read from the gzip trailer, so it's known without inflating them.
+ * </p>
+ * @author <a href="mailto:kulovits@emarsys.com">Michael "kULO" Kulovits</a>
+ */
+public class MailCompressor
+{
+	private static final Logger log = 
+		LoggerFactory.getLogger( MailCompressor.class );
+	
+	protected static final int GZIP_MAGIC_0 = 0x1f;
+	protected static final int GZIP_MAGIC_1 = 0x8b;
+	/** the length of the shortest gzip file: 10 bytes header, 
+	 *  2 bytes empty deflate stream and 8 bytes trailer */
+	protected static final int GZIP_MIN_LENGTH = 20;
+	protected static final int BUFFER_SIZE = 8192;
+	/** suffix of the temporary file written before renaming it */
+	protected static final String TEMP_FILE_SUFFIX = ".deflating";
+	
+	protected final int level;
+	
+	protected final AtomicLong compressedCount = new AtomicLong( 0 );
+	protected final AtomicLong rawBytes = new AtomicLong( 0 );
+	protected final AtomicLong storedBytes = new AtomicLong( 0 );
+	
+	/**
+	 * @param level - the deflate level, 
+	 * 		from {@link Deflater#BEST_SPEED} to {@link Deflater#BEST_COMPRESSION}
+	 */
+	public MailCompressor( int level )
+	{
+		if( level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION )
+		{
+			throw new IllegalArgumentException( 
+					"invalid compression level: " + level );
+		}
+		this.level = level;
+	}
+	
+	/**
+	 * <p>
+	 * Writes a compressed copy of the passed mail file to the target file 
+	 * and removes the mail file afterwards.
+	 * </p><p>
+	 * The copy is written to a uniquely named, hidden temporary file next 
+	 * to the target, which is renamed once it's complete, so the target 
+	 * never appears partially written. The target gets the modification 
+	 * time of the mail file, just like a renamed file. 
+	 * An existing target is never replaced.
+	 * </p>
+	 * @param mail - the mail file to compress
+	 * @param target - the compressed mail file
+	 * @param forcingStorage - the storage {@link DysonStorage#force(
+	 * 		java.nio.channels.FileChannel) forcing} the compressed file 
+	 * 		before the mail file is removed, <code>null</code> if the 
+	 * 		file should not be forced
+	 * @throws IOException - if the mail file cannot be compressed or the 
+	 * 		target exists, the mail file is left untouched in this case
+	 */
+	public void compress( File mail, File target, DysonStorage forcingStorage ) 
+		throws IOException
+	{
+		if( target.exists() )
+		{
+			throw new IOException( "cannot compress " + mail + 
+					", " + target + " already exists" );
+		}
+		
+		long raw = mail.length();
+		long lastModified = mail.lastModified();
+		boolean successful = false;
+		
+		InputStream in = new FileInputStream( mail );
+		File temp = null;
+		FileOutputStream fos = null;
+		try
+		{
+			temp = File.createTempFile( "." + target.getName() + ".", 
+					TEMP_FILE_SUFFIX, target.getParentFile() );
+			fos = new FileOutputStream( temp );
+			GZIPOutputStream out = new GZIPOutputStream( fos, BUFFER_SIZE )
+			{
+				{
+					this.def.setLevel( level );
+				}
+			};
+			byte[] buf = new byte[ BUFFER_SIZE ];
+			int read;
+			while( (read = in.read( buf )) >= 0 )
+			{
+				out.write( buf, 0, read );
+			}
+			out.finish();
+			if( forcingStorage != null )
+			{
+				forcingStorage.force( fos.getChannel() );
+			}
+			successful = true;
+		}
+		finally
+		{
+			IOUtil.silentClose( in );
+			IOUtil.silentClose( fos );
+			
+			if( !successful && temp != null && temp.exists() && !temp.delete() )
+			{
+				log.warn( "cannot delete partially compressed file \'{}\'", 
+						temp );
+			}
+		}
+		
+		temp.setLastModified( lastModified );
+		if( target.exists() )
+		{
+			temp.delete();
+			throw new IOException( "cannot rename " + temp + 
+					", " + target + " already exists" );
+		}
+		if( !temp.renameTo( target ) )
+		{
+			temp.delete();
+			throw new IOException( "cannot rename " + temp + " to " + target );
+		}
+		if( !mail.delete() )
+		{
+			log.warn( "cannot remove compressed mail file \'{}\'", mail );
+		}
+		
+		this.compressedCount.incrementAndGet();
+		this.rawBytes.addAndGet( raw );
+		this.storedBytes.addAndGet( target.length() );
+	}
+	
+	/**
+	 * @param file - a mail file
+	 * @return the raw length of the passed mail file if it's compressed, 
+	 * 		<code>-1</code> otherwise
+	 * @throws IOException - if the file cannot be read
+	 */
+	public static long readRawLength( File file ) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile( file, "r" );
+		try
+		{
+			long length = raf.length();
+			if( length < GZIP_MIN_LENGTH || 
+				raf.read() != GZIP_MAGIC_0 || raf.read() != GZIP_MAGIC_1 )
+			{
+				return -1;
+			}
+			
+			//the trailer ends with the raw length (modulo 2^32), little endian
+			raf.seek( length - 4 );
+			long rawLength = 0;
+			for( int i = 0; i < 4; ++i )
+			{
+				rawLength |= ((long) raf.read()) << (8 * i);
+			}
+			return rawLength;
+		}
+		finally
+		{
+			IOUtil.silentClose( raf );
+		}
+	}
+	
+	/**
+	 * Opens the passed mail file, inflating it if it's compressed.
+	 * 
+	 * @param file - a mail file
+	 * @return the raw mail data
+	 * @throws IOException - if the file cannot be opened
+	 */
+	public static InputStream open( File file ) throws IOException
+	{
+		return open( file, readRawLength( file ) >= 0 );
+	}
+	
+	/**
+	 * Opens the passed mail file.
+	 * 
+	 * @param file - a mail file
+	 * @param isCompressed - whether the file is compressed
+	 * @return the raw mail data
+	 * @throws IOException - if the file cannot be opened
+	 */
+	public static InputStream open( File file, boolean isCompressed ) 
+		throws IOException
+	{
+		InputStream in = new FileInputStream( file );
+		if( !isCompressed )
+		{
+			return in;
+		}
+		try
+		{
+			return new GZIPInputStream( in, BUFFER_SIZE );
+		}
+		catch( IOException ioe )
+		{
+			IOUtil.silentClose( in );
+			throw ioe;
+		}
+	}
+	
+	/**
+	 * @return the deflate level
+	 */
+	public int getLevel()
+	{
+		return this.level;
+	}
+	
+	/**
+	 * @return the number of compressed mails
+	 */
+	public long getCompressedCount()
+	{
+		return this.compressedCount.get();
+	}
+	
+	/**
+	 * @return the raw size of the compressed mails in bytes
+	 */
+	public long getRawBytes()
+	{
+		return this.rawBytes.get();
+	}
+	
+	/**
+	 * @return the compressed size of the compressed mails in bytes
+	 */
+	public long getStoredBytes()
+	{
+		return this.storedBytes.get();
+	}
+	
+}//class MailCompressor
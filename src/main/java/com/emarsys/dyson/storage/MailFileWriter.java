@@ -0,0 +1,383 @@
+/**
+ *   (c) Copyright 2007-2010 by emarsys eMarketing Systems AG
+ * 
+ *   This file is part of dyson.
+ *
+ *   dyson is free software; you can redistribute it and/or modify
+ *   it under the terms of the GNU Lesser General Public License as published by
+ *   the Free Software Foundation; either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   dyson is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.emarsys.dyson.storage;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.emarsys.dyson.DysonStorage;
+import com.emarsys.ecommon.io.IOUtil;
+import com.emarsys.ecommon.io.NewlineOutputStream;
+
+/**
+ * <p>
+ * Writes mails to files using a {@link FileChannel} and a pool of 
+ * reusable (direct) buffers, so writing a mail neither allocates 
+ * buffers nor issues a system call per byte.
+ * </p><p>
+ * At most <tt>poolSize</tt> direct buffers are ever allocated, if all 
+ * of them are in use (e.g. by more concurrent writers than expected) 
+ * a mail is written through short-lived heap buffers instead.
+ * </p><p>
+ * Newlines are normalized in-buffer the same way 
+ * {@link NewlineOutputStream} does: <tt>CR</tt>, <tt>LF</tt> and 
+ * <tt>CRLF</tt> are all converted to the platform's 
+ * <tt>line.separator</tt>.
+ * </p><p>
+ * Unlike the former <tt>PrintStream</tt> based write chain all write 
+ * errors are propagated to the caller. A partially written file is 
+ * removed if writing fails.
+ * </p>
+ * 
+ * @author <a href="mailto:kulovits@emarsys.com">Michael "kULO" Kulovits</a>
+ */
+public class MailFileWriter
+{
+	private static final Logger log = 
+		LoggerFactory.getLogger( MailFileWriter.class );
+	
+	private static final byte CR = '\r';
+	private static final byte LF = '\n';
+	private static final byte[] NEWLINE = 
+		System.getProperty( "line.separator" ).getBytes();
+	
+	/**
+	 * A pair of buffers used to write a single mail: a heap buffer 
+	 * the mail data is read into and a (pooled, direct) buffer holding 
+	 * the normalized data written to the file channel.
+	 */
+	protected static class WriteBuffers
+	{
+		protected final byte[] in;
+		protected final ByteBuffer out;
+		
+		protected WriteBuffers( int size, boolean direct )
+		{
+			this.in = new byte[ size ];
+			this.out = direct ? ByteBuffer.allocateDirect( size * NEWLINE.length ) 
+					: ByteBuffer.allocate( size * NEWLINE.length );
+		}
+		
+		protected boolean isPooled()
+		{
+			return this.out.isDirect();
+		}
+	}//class WriteBuffers
+	
+	protected final int bufferSize;
+	protected final int poolSize;
+	protected final BlockingQueue<WriteBuffers> pool;
+	/** the number of direct buffers allocated so far */
+	protected final AtomicInteger directBufferCount = new AtomicInteger( 0 );
+	
+	/**
+	 * @param bufferSize - the size of the read buffer in bytes
+	 * @param poolSize - the maximum number of pooled (direct) buffers, 
+	 * 		should correlate with the number of concurrent writers
+	 */
+	public MailFileWriter( int bufferSize, int poolSize )
+	{
+		if( bufferSize <= 0 || poolSize <= 0 )
+		{
+			throw new IllegalArgumentException( "invalid buffer size (" + 
+					bufferSize + ") or pool size (" + poolSize + ")" );
+		}
+		this.bufferSize = bufferSize;
+		this.poolSize = poolSize;
+		this.pool = new ArrayBlockingQueue<WriteBuffers>( poolSize );
+	}
+	
+	/**
+	 * Writes the passed data with normalized newlines to the passed 
+	 * file, an existing file is overwritten.
+	 * 
+	 * @param data - the mail data, it is not closed by this method
+	 * @param file - the file to write
+	 * @return the number of bytes written to the file
+	 * @throws IOException - if reading the data or writing the file fails
+	 */
+	public long write( InputStream data, File file ) throws IOException
+	{
+		return this.write( data, file, null );
+	}
+	
+	/**
+	 * Writes the passed data with normalized newlines to the passed 
+	 * file and {@link DysonStorage#force(FileChannel) forces} it to the 
+	 * storage device before closing it, an existing file is overwritten.
+	 * 
+	 * @param data - the mail data, it is not closed by this method
+	 * @param file - the file to write
+	 * @param forcingStorage - the storage forcing the written file, 
+	 * 		<code>null</code> if the file should not be forced
+	 * @return the number of bytes written to the file
+	 * @throws IOException - if reading the data, writing or forcing 
+	 * 		the file fails
+	 */
+	public long write( InputStream data, File file, DysonStorage forcingStorage ) 
+		throws IOException
+	{
+		return this.write( data, file, forcingStorage, null );
+	}
+	
+	/**
+	 * Writes the passed data with normalized newlines to the passed 
+	 * file like {@link #write(InputStream, File, DysonStorage)}, but stores 
+	 * the mail's body in the passed {@link MailBodyStore}: the file only 
+	 * holds the {@link MailBodyStore#getRefLine(String, long) reference} 
+	 * to the body followed by the mail's headers.
+	 * 
+	 * @param data - the mail data, it is not closed by this method
+	 * @param file - the file to write
+	 * @param forcingStorage - the storage forcing the written file and 
+	 * 		body, <code>null</code> if they should not be forced
+	 * @param bodies - the store of the mail bodies, 
+	 * 		<code>null</code> to write the whole mail to the file
+	 * @return the number of bytes written to the file
+	 * @throws IOException - if reading the data, writing or forcing 
+	 * 		the file or storing the body fails
+	 */
+	public long write( InputStream data, File file, 
+			DysonStorage forcingStorage, MailBodyStore bodies ) 
+		throws IOException
+	{
+		//the buffers are only acquired once the file is open
+		FileOutputStream fos = new FileOutputStream( file, false );
+		FileChannel channel = fos.getChannel();
+		WriteBuffers buffers = null;
+		MailBodyStore.BodyWriter body = null;
+		boolean successful = false;
+		
+		try
+		{
+			buffers = this.acquire();
+			long written;
+			if( bodies == null )
+			{
+				written = this.transfer( data, channel, buffers, null );
+			}
+			else
+			{
+				//the reference is written once the body has been stored
+				written = this.drainFully( ByteBuffer.wrap( 
+						MailBodyStore.getRefLinePlaceholder() ), channel, -1 );
+				body = bodies.openWriter();
+				written += this.transfer( data, channel, buffers, body );
+				long bodyLength = body.getLength();
+				String hash = body.commit( forcingStorage );
+				body = null;
+				this.drainFully( ByteBuffer.wrap( MailBodyStore.getRefLine( 
+						hash, bodyLength ) ), channel, 0 );
+			}
+			if( forcingStorage != null )
+			{
+				//the buffers are not needed while waiting for the fsync
+				this.release( buffers );
+				buffers = null;
+				forcingStorage.force( channel );
+			}
+			successful = true;
+			return written;
+		}
+		finally
+		{
+			IOUtil.silentClose( fos );
+			if( body != null )
+			{
+				body.abort();
+			}
+			if( buffers != null )
+			{
+				this.release( buffers );
+			}
+			
+			if( !successful && !file.delete() )
+			{
+				log.warn( "cannot delete partially written file \'{}\'", file );
+			}
+		}
+	}
+	
+	/**
+	 * Copies the data to the channel while normalizing newlines. If a 
+	 * body writer is passed, everything behind the empty line ending the 
+	 * headers is written to the body writer instead of the channel.
+	 * 
+	 * @return the number of bytes written to the channel
+	 */
+	protected long transfer( InputStream data, FileChannel channel, 
+			WriteBuffers buffers, MailBodyStore.BodyWriter body )
+		throws IOException
+	{
+		byte[] in = buffers.in;
+		ByteBuffer out = buffers.out;
+		int lastb = -1;
+		int len;
+		long written = 0;
+		//whether the last written byte ended a line (or nothing was written)
+		boolean atLineStart = true;
+		boolean inBody = false;
+		
+		while( (len = data.read( in ) ) > 0 )
+		{
+			//the position in the out buffer the body starts at
+			int bodyStart = inBody ? 0 : -1;
+			
+			for( int i = 0; i < len; ++i )
+			{
+				byte b = in[ i ];
+				boolean newline = false;
+				if( b == CR )
+				{
+					out.put( NEWLINE );
+					newline = true;
+				}
+				else if( b == LF )
+				{
+					if( lastb != CR )
+					{
+						out.put( NEWLINE );
+						newline = true;
+					}
+				}
+				else
+				{
+					out.put( b );
+					atLineStart = false;
+				}
+				lastb = b;
+				
+				if( newline && body != null && !inBody )
+				{
+					if( atLineStart )
+					{
+						inBody = true;
+						bodyStart = out.position();
+					}
+					atLineStart = true;
+				}
+			}
+			
+			if( bodyStart < 0 )
+			{
+				written += this.drain( out, channel );
+			}
+			else
+			{
+				out.flip();
+				ByteBuffer headers = out.duplicate();
+				headers.limit( bodyStart );
+				written += this.drainFully( headers, channel, -1 );
+				out.position( bodyStart );
+				body.write( out );
+				out.clear();
+			}
+		}
+		
+		return written;
+	}
+	
+	/**
+	 * Writes the whole content of the passed buffer to the channel.
+	 */
+	protected int drain( ByteBuffer buffer, FileChannel channel ) 
+		throws IOException
+	{
+		buffer.flip();
+		int written = this.drainFully( buffer, channel, -1 );
+		buffer.clear();
+		
+		return written;
+	}
+	
+	/**
+	 * Writes the remaining content of the passed buffer to the channel, 
+	 * either at its current position or at the passed one.
+	 * 
+	 * @param position - the file position to write at, 
+	 * 		<code>-1</code> for the channel's current position
+	 */
+	protected int drainFully( 
+			ByteBuffer buffer, FileChannel channel, long position ) 
+		throws IOException
+	{
+		int written = 0;
+		
+		while( buffer.hasRemaining() )
+		{
+			written += position < 0 ? channel.write( buffer ) : 
+				channel.write( buffer, position + written );
+		}
+		
+		return written;
+	}
+	
+	/**
+	 * Takes idle buffers from the pool, allocates new direct buffers 
+	 * as long as less than <tt>poolSize</tt> have been allocated and 
+	 * falls back to heap buffers otherwise.
+	 */
+	protected WriteBuffers acquire()
+	{
+		WriteBuffers buffers = this.pool.poll();
+		if( buffers != null )
+		{
+			return buffers;
+		}
+		
+		int count;
+		while( (count = this.directBufferCount.get()) < this.poolSize )
+		{
+			if( this.directBufferCount.compareAndSet( count, count + 1 ) )
+			{
+				return new WriteBuffers( this.bufferSize, true );
+			}
+		}
+		return new WriteBuffers( this.bufferSize, false );
+	}
+	
+	protected void release( WriteBuffers buffers )
+	{
+		if( buffers.isPooled() )
+		{
+			buffers.out.clear();
+			this.pool.offer( buffers );
+		}
+		//heap buffers are left to the garbage collector
+	}
+	
+	/**
+	 * @return the number of currently pooled (idle) buffers
+	 */
+	public int getPooledBufferCount()
+	{
+		return this.pool.size();
+	}
+	
+}//class MailFileWriter
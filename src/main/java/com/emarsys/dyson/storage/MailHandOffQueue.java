@@ -0,0 +1,126 @@
+/**
+ *   (c) Copyright 2007-2010 by emarsys eMarketing Systems AG
+ * 
+ *   This file is part of dyson.
+ *
+ *   dyson is free software; you can redistribute it and/or modify
+ *   it under the terms of the GNU Lesser General Public License as published by
+ *   the Free Software Foundation; either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   dyson is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.emarsys.dyson.storage;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>
+ * A bounded, lock-free queue used to hand off completely delivered 
+ * mail files from the {@link IncomingStorageMessageListener}s to the 
+ * {@link DefaultDysonStorage}'s delivered mail processor.
+ * </p><p>
+ * {@link #offer(Object) Offering} never blocks, if the queue is full 
+ * the element is rejected and it's up to the caller to take care of it 
+ * (e.g. by falling back to a scan of the incoming directory).
+ * </p>
+ * 
+ * @param <E> the type of the queued elements
+ * 
+ * @author <a href="mailto:kulovits@emarsys.com">Michael "kULO" Kulovits</a>
+ */
+public class MailHandOffQueue<E>
+{
+	protected final Queue<E> queue = new ConcurrentLinkedQueue<E>();
+	/**
+	 * the number of queued elements, maintained separately since
+	 * {@link ConcurrentLinkedQueue#size()} is not a constant-time operation 
+	 */
+	protected final AtomicInteger size = new AtomicInteger( 0 );
+	protected final int capacity;
+	
+	/**
+	 * @param capacity - the maximum number of queued elements
+	 */
+	public MailHandOffQueue( int capacity )
+	{
+		if( capacity <= 0 )
+		{
+			throw new IllegalArgumentException( 
+					"invalid hand-off queue capacity: " + capacity );
+		}
+		this.capacity = capacity;
+	}
+	
+	/**
+	 * Inserts the passed element if the queue is not full.
+	 * 
+	 * @param element - must not be <code>null</code>
+	 * @return <code>true</code> if the element has been queued, 
+	 * 		<code>false</code> if the queue is full
+	 */
+	public boolean offer( E element )
+	{
+		int current;
+		do
+		{
+			current = this.size.get();
+			if( current >= this.capacity )
+			{
+				return false;
+			}
+		}
+		while( !this.size.compareAndSet( current, current + 1 ) );
+		
+		this.queue.offer( element );
+		return true;
+	}
+	
+	/**
+	 * Retrieves and removes the head of this queue.
+	 * 
+	 * @return the head of this queue or <code>null</code> if it's empty
+	 */
+	public E poll()
+	{
+		E element = this.queue.poll();
+		if( element != null )
+		{
+			this.size.decrementAndGet();
+		}
+		return element;
+	}
+	
+	/**
+	 * @return <code>true</code> if there are no queued elements
+	 */
+	public boolean isEmpty()
+	{
+		return this.queue.isEmpty();
+	}
+	
+	/**
+	 * @return the (approximate) number of queued elements
+	 */
+	public int size()
+	{
+		return this.size.get();
+	}
+	
+	/**
+	 * @return the maximum number of queued elements
+	 */
+	public int getCapacity()
+	{
+		return this.capacity;
+	}
+	
+}//class MailHandOffQueue
@@ -0,0 +1,418 @@
+/**
+ *   (c) Copyright 2007-2010 by emarsys eMarketing Systems AG
+ * 
+ *   This file is part of dyson.
+ *
+ *   dyson is free software; you can redistribute it and/or modify
+ *   it under the terms of the GNU Lesser General Public License as published by
+ *   the Free Software Foundation; either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   dyson is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.emarsys.dyson.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MailDateFormat;
+import javax.mail.internet.MimeUtility;
+
+/**
+ * <p>
+ * A lightweight, read-only view on the header section of a mail.
+ * </p><p>
+ * In contrast to a {@link javax.mail.internet.MimeMessage} 
+ * {@link #read(InputStream) reading} {@link MailHeaders} stops at the 
+ * first empty line, i.e. the body of the mail is never read.
+ * Headers are not parsed eagerly either: requesting a header scans 
+ * the raw header bytes in place and only the value of the requested 
+ * header is decoded (and cached afterwards).
+ * </p>
+ * 
+ * @author <a href="mailto:kulovits@emarsys.com">Michael "kULO" Kulovits</a>
+ */
+public class MailHeaders
+{
+	public static final String HEADER_TO = "To";
+	public static final String HEADER_CC = "Cc";
+	public static final String HEADER_FROM = "From";
+	public static final String HEADER_SUBJECT = "Subject";
+	public static final String HEADER_MESSAGE_ID = "Message-ID";
+	public static final String HEADER_DATE = "Date";
+	
+	/** the initial size of the buffer for the header bytes */
+	protected static final int INITIAL_BUFFER_SIZE = 2048;
+	
+	/** marker for headers that have been looked up but are not present */
+	private static final String ABSENT = new String();
+	
+	protected final byte[] buf;
+	/** the number of header bytes in {@link #buf} */
+	protected final int length;
+	
+	/** the already decoded header values by (lower case) header name */
+	protected final Map<String, String> values = 
+		new HashMap<String, String>( 8 );
+	
+	/**
+	 * @param buf - the raw header bytes
+	 * @param length - the number of header bytes in the buffer
+	 */
+	protected MailHeaders( byte[] buf, int length )
+	{
+		this.buf = buf;
+		this.length = length;
+	}
+	
+	/**
+	 * Creates a new view on the headers in the passed buffer 
+	 * without copying it.
+	 * 
+	 * @param mail - the raw mail data starting with the headers
+	 * @param length - the number of valid bytes in the buffer
+	 * @return always a valid instance, never <code>null</code>
+	 */
+	public static MailHeaders wrap( byte[] mail, int length )
+	{
+		return new MailHeaders( mail, findEndOfHeaders( mail, 0, length ) );
+	}
+	
+	/**
+	 * <p>
+	 * Reads the header section of the mail from the passed stream.
+	 * </p><p>
+	 * Stops reading as soon as the end of the headers has been reached,
+	 * so at most one buffer-full of the body will be consumed from
+	 * the passed stream. The stream will not be closed.
+	 * </p>
+	 * @param in - the mail data
+	 * @return always a valid instance, never <code>null</code>
+	 * @throws IOException - on errors reading the stream
+	 */
+	public static MailHeaders read( InputStream in ) throws IOException
+	{
+		byte[] buf = new byte[ INITIAL_BUFFER_SIZE ];
+		int length = 0, scanned = 0, end, read;
+		
+		while( (read = in.read( buf, length, buf.length - length )) > 0 )
+		{
+			length += read;
+			//continue scanning with the last line break of the previous 
+			//chunk in order to recognize empty lines spanning two chunks
+			end = findEndOfHeaders( buf, Math.max( 0, scanned - 2 ), length );
+			if( end < length )
+			{
+				return new MailHeaders( buf, end );
+			}
+			scanned = length;
+			
+			if( length == buf.length )
+			{
+				byte[] larger = new byte[ buf.length * 2 ];
+				System.arraycopy( buf, 0, larger, 0, length );
+				buf = larger;
+			}
+		}
+		
+		return new MailHeaders( buf, length );
+	}
+	
+	/**
+	 * Finds the end of the headers, i.e. the index of the first empty line.
+	 * 
+	 * @return the index of the end of the headers or <code>length</code>
+	 * 		if there's no empty line
+	 */
+	protected static int findEndOfHeaders( byte[] buf, int from, int length )
+	{
+		for( int i = from; i < length; ++i )
+		{
+			if( buf[ i ] != '\n' )
+			{
+				continue;
+			}
+			boolean isEmptyLineFollowing = 
+				( i + 1 < length && buf[ i + 1 ] == '\n' ) ||
+				( i + 2 < length && buf[ i + 1 ] == '\r' && buf[ i + 2 ] == '\n' );
+			if( isEmptyLineFollowing )
+			{
+				return i + 1;
+			}
+		}
+		return length;
+	}
+	
+	/**
+	 * <p>
+	 * Returns the raw value of the first header with the passed name.
+	 * </p><p>
+	 * Folded header lines are unfolded, encoded words 
+	 * (RFC 2047) are not decoded.
+	 * </p>
+	 * @param name - the case-insensitive header name
+	 * @return the header value or <code>null</code> if there's no
+	 * 		such header
+	 */
+	public String getHeader( String name )
+	{
+		final String key = name.toLowerCase();
+		String value = this.values.get( key );
+		
+		if( value == null )
+		{
+			value = this.scanFor( name );
+			this.values.put( key, value == null ? ABSENT : value );
+		}
+		
+		return value == ABSENT ? null : value;
+	}
+	
+	/**
+	 * Scans the raw header bytes for the header with the passed name.
+	 */
+	protected String scanFor( String name )
+	{
+		int lineStart = 0;
+		
+		while( lineStart < this.length )
+		{
+			if( this.isHeaderLine( lineStart, name ) )
+			{
+				return this.decodeValue( lineStart + name.length() + 1 );
+			}
+			lineStart = this.nextLine( lineStart );
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Checks whether the line starting at the passed index is the 
+	 * first line of the header with the passed name.
+	 */
+	protected boolean isHeaderLine( int lineStart, String name )
+	{
+		final int nameLength = name.length();
+		
+		if( lineStart + nameLength >= this.length ||
+				this.buf[ lineStart + nameLength ] != ':' )
+		{
+			return false;
+		}
+		
+		for( int i = 0; i < nameLength; ++i )
+		{
+			char c = (char) ( this.buf[ lineStart + i ] & 0xff );
+			if( Character.toLowerCase( c ) != 
+				Character.toLowerCase( name.charAt( i ) ) )
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * @return the index of the start of the next line
+	 */
+	protected int nextLine( int from )
+	{
+		int i = from;
+		while( i < this.length && this.buf[ i ] != '\n' )
+		{
+			++i;
+		}
+		return i + 1;
+	}
+	
+	/**
+	 * Decodes the (possibly folded) header value starting at the 
+	 * passed index.
+	 */
+	protected String decodeValue( int valueStart )
+	{
+		StringBuilder value = new StringBuilder();
+		int i = valueStart;
+		
+		while( i < this.length )
+		{
+			byte b = this.buf[ i ];
+			if( b == '\n' )
+			{
+				//continuation lines start with whitespace
+				boolean isFolded = i + 1 < this.length && 
+					( this.buf[ i + 1 ] == ' ' || this.buf[ i + 1 ] == '\t' );
+				if( !isFolded )
+				{
+					break;
+				}
+			}
+			else if( b != '\r' )
+			{
+				value.append( (char) ( b & 0xff ) );
+			}
+			++i;
+		}
+		
+		return value.toString().trim();
+	}
+	
+	/**
+	 * @return the raw <tt>To</tt> header or <code>null</code>
+	 */
+	public String getTo()
+	{
+		return this.getHeader( HEADER_TO );
+	}
+	
+	/**
+	 * @return the raw <tt>From</tt> header or <code>null</code>
+	 */
+	public String getFrom()
+	{
+		return this.getHeader( HEADER_FROM );
+	}
+	
+	/**
+	 * @return the <tt>Message-ID</tt> header or <code>null</code>
+	 */
+	public String getMessageId()
+	{
+		return this.getHeader( HEADER_MESSAGE_ID );
+	}
+	
+	/**
+	 * @return the decoded <tt>Subject</tt> header or <code>null</code>
+	 */
+	public String getSubject()
+	{
+		String subject = this.getHeader( HEADER_SUBJECT );
+		try
+		{
+			return subject == null ? null : MimeUtility.decodeText( subject );
+		}
+		catch( UnsupportedEncodingException uee )
+		{
+			return subject;
+		}
+	}
+	
+	/**
+	 * @return the parsed <tt>Date</tt> header or <code>null</code> if 
+	 * 		it's missing or invalid
+	 */
+	public Date getDate()
+	{
+		String date = this.getHeader( HEADER_DATE );
+		try
+		{
+			return date == null ? null : new MailDateFormat().parse( date );
+		}
+		catch( ParseException pe )
+		{
+			return null;
+		}
+	}
+	
+	/**
+	 * @return the address of the first <tt>To</tt> recipient 
+	 * 		or <code>null</code> if there's none
+	 * @throws AddressException - if the <tt>To</tt> header is malformed
+	 */
+	public String getFirstToAddress() throws AddressException
+	{
+		return getFirstAddress( this.getTo() );
+	}
+	
+	/**
+	 * @return the address of the first <tt>From</tt> sender 
+	 * 		or <code>null</code> if there's none
+	 * @throws AddressException - if the <tt>From</tt> header is malformed
+	 */
+	public String getFirstFromAddress() throws AddressException
+	{
+		return getFirstAddress( this.getFrom() );
+	}
+	
+	/**
+	 * Returns the addresses of all <tt>To</tt> and <tt>Cc</tt> recipients, 
+	 * malformed headers are skipped.
+	 * 
+	 * @return always a valid list, never <code>null</code>
+	 */
+	public List<String> getRecipientAddresses()
+	{
+		List<String> recipients = new ArrayList<String>( 2 );
+		for( String header : new String[] { this.getTo(), 
+				this.getHeader( HEADER_CC ) } )
+		{
+			if( header == null )
+			{
+				continue;
+			}
+			try
+			{
+				for( InternetAddress address : 
+					InternetAddress.parseHeader( header, false ) )
+				{
+					if( address.getAddress() != null )
+					{
+						recipients.add( address.getAddress() );
+					}
+				}
+			}
+			catch( AddressException ae )
+			{
+				//not indexable
+			}
+		}
+		return recipients;
+	}
+	
+	protected static String getFirstAddress( String header ) 
+		throws AddressException
+	{
+		if( header == null )
+		{
+			return null;
+		}
+		InternetAddress[] addresses = 
+			InternetAddress.parseHeader( header, false );
+		return addresses.length == 0 ? null : addresses[ 0 ].getAddress();
+	}
+	
+	/**
+	 * @return the number of bytes of the header section
+	 */
+	public int getLength()
+	{
+		return this.length;
+	}
+	
+	/**
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString()
+	{
+		return "MailHeaders[" + HEADER_MESSAGE_ID + "=" + this.getMessageId() + 
+			", " + HEADER_TO + "=" + this.getTo() + "]";
+	}
+	
+}//class MailHeaders
@@ -0,0 +1,315 @@
+/**
+ *   (c) Copyright 2007-2010 by emarsys eMarketing Systems AG
+ * 
+ *   This file is part of dyson.
+ *
+ *   dyson is free software; you can redistribute it and/or modify
+ *   it under the terms of the GNU Lesser General Public License as published by
+ *   the Free Software Foundation; either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   dyson is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.emarsys.dyson.storage;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * A fixed size, off-heap ring buffer of mails used by the 
+ * {@link MemoryDysonStorage}.
+ * </p><p>
+ * Every mail occupies a contiguous region of the buffer, new mails are 
+ * written behind the newest one or, if there's not enough room left at 
+ * the end of the buffer, at its start. The oldest mails are 
+ * {@link #evictFor(int) evicted} to make room for new ones. A mail 
+ * replaces a resident mail with the same name.
+ * </p><p>
+ * The ring buffer is not thread-safe, it's guarded by its storage.
+ * </p>
+ * @author <a href="mailto:kulovits@emarsys.com">Michael "kULO" Kulovits</a>
+ */
+public class MailRingBuffer
+{
+	/**
+	 * The location of a mail in the ring buffer.
+	 */
+	public static class Entry
+	{
+		protected final String name;
+		protected final int offset;
+		protected final int length;
+		protected final long storedMillis;
+		/** <code>false</code> once the mail's region has been evicted */
+		protected boolean isResident = true;
+		
+		protected Entry( String name, int offset, int length, long storedMillis )
+		{
+			this.name = name;
+			this.offset = offset;
+			this.length = length;
+			this.storedMillis = storedMillis;
+		}
+		
+		public String getName()
+		{
+			return this.name;
+		}
+		
+		public int getLength()
+		{
+			return this.length;
+		}
+		
+		public long getStoredMillis()
+		{
+			return this.storedMillis;
+		}
+		
+		/**
+		 * @return the end of the region occupied by the mail, empty mails 
+		 * 		occupy a single byte to keep their region distinct
+		 */
+		protected int getEnd()
+		{
+			return this.offset + Math.max( this.length, 1 );
+		}
+	}//class Entry
+	
+	protected final ByteBuffer buffer;
+	/** the resident mails, oldest first */
+	protected final ArrayDeque<Entry> entries = new ArrayDeque<Entry>();
+	/** the resident mails which have not been replaced */
+	protected final Map<String, Entry> byName = new HashMap<String, Entry>();
+	protected long usedBytes = 0;
+	
+	/**
+	 * @param capacity - the size of the buffer in bytes
+	 */
+	public MailRingBuffer( int capacity )
+	{
+		if( capacity <= 0 )
+		{
+			throw new IllegalArgumentException( 
+					"invalid capacity: " + capacity );
+		}
+		this.buffer = ByteBuffer.allocateDirect( capacity );
+	}
+	
+	/**
+	 * @param length - the length of a mail
+	 * @return <code>true</code> if a mail of the passed length fits 
+	 * 		into the ring buffer at all
+	 */
+	public boolean fits( int length )
+	{
+		return Math.max( length, 1 ) <= this.buffer.capacity();
+	}
+	
+	/**
+	 * Evicts the oldest mails until a mail of the passed length can be 
+	 * {@link #put(String, byte[], int, long) put}. The evicted mails 
+	 * can be {@link #copy(Entry) copied} until the next put.
+	 * 
+	 * @param length - the length of the mail to put
+	 * @return the evicted mails which have not been replaced 
+	 * 		by a newer mail, oldest first
+	 * @throws IllegalArgumentException - if the mail doesn't 
+	 * 		{@link #fits(int) fit} at all
+	 */
+	public List<Entry> evictFor( int length )
+	{
+		if( !this.fits( length ) )
+		{
+			throw new IllegalArgumentException( "a mail of " + length + 
+					" bytes does not fit into " + this.buffer.capacity() );
+		}
+		
+		List<Entry> evicted = new ArrayList<Entry>();
+		while( this.findOffset( length ) < 0 )
+		{
+			Entry entry = this.entries.pollFirst();
+			entry.isResident = false;
+			this.usedBytes -= entry.length;
+			if( this.byName.get( entry.name ) == entry )
+			{
+				this.byName.remove( entry.name );
+				evicted.add( entry );
+			}
+		}
+		return evicted;
+	}
+	
+	/**
+	 * Puts the passed mail behind the newest one, the room has to be 
+	 * made by {@link #evictFor(int)} before. A mail with the same name 
+	 * is replaced, so callers which must keep both have to 
+	 * {@link MemoryDysonStorage#getUniqueMailName(String) make the name 
+	 * unique} before.
+	 * 
+	 * @return the entry of the mail
+	 * @throws IllegalStateException - if there's not enough room
+	 */
+	public Entry put( String name, byte[] data, int length, long storedMillis )
+	{
+		int offset = this.findOffset( length );
+		if( offset < 0 )
+		{
+			throw new IllegalStateException( "no room for a mail of " + 
+					length + " bytes" );
+		}
+		
+		ByteBuffer region = this.buffer.duplicate();
+		region.position( offset );
+		region.put( data, 0, length );
+		
+		Entry entry = new Entry( name, offset, length, storedMillis );
+		this.entries.addLast( entry );
+		this.byName.put( name, entry );
+		this.usedBytes += length;
+		return entry;
+	}
+	
+	/**
+	 * @return the offset a mail of the passed length would be put at 
+	 * 		or <code>-1</code> if there's not enough room
+	 */
+	protected int findOffset( int length )
+	{
+		int size = Math.max( length, 1 );
+		if( this.entries.isEmpty() )
+		{
+			return size <= this.buffer.capacity() ? 0 : -1;
+		}
+		
+		Entry oldest = this.entries.peekFirst();
+		Entry newest = this.entries.peekLast();
+		int head = newest.getEnd();
+		if( newest.offset >= oldest.offset )
+		{
+			//the resident mails are not wrapped around the end
+			if( this.buffer.capacity() - head >= size )
+			{
+				return head;
+			}
+			return oldest.offset >= size ? 0 : -1;
+		}
+		return oldest.offset - head >= size ? head : -1;
+	}
+	
+	/**
+	 * @return the resident mail with the passed name 
+	 * 		or <code>null</code> if there's none
+	 */
+	public Entry get( String name )
+	{
+		return this.byName.get( name );
+	}
+	
+	/**
+	 * Reads a range of the passed mail.
+	 * 
+	 * @param entry - the mail
+	 * @param position - the position within the mail to start at
+	 * @param count - the maximum number of bytes to read
+	 * @return the bytes or <code>null</code> if the mail has been evicted
+	 */
+	public byte[] read( Entry entry, long position, long count )
+	{
+		if( !entry.isResident )
+		{
+			return null;
+		}
+		
+		int start = (int) Math.min( Math.max( position, 0 ), entry.length );
+		int len = (int) Math.min( Math.max( count, 0 ), entry.length - start );
+		byte[] data = new byte[ len ];
+		
+		ByteBuffer region = this.buffer.duplicate();
+		region.position( entry.offset + start );
+		region.get( data );
+		return data;
+	}
+	
+	/**
+	 * Copies the whole passed mail, even if it has just been 
+	 * {@link #evictFor(int) evicted}.
+	 */
+	public byte[] copy( Entry entry )
+	{
+		byte[] data = new byte[ entry.length ];
+		
+		ByteBuffer region = this.buffer.duplicate();
+		region.position( entry.offset );
+		region.get( data );
+		return data;
+	}
+	
+	/**
+	 * @return the resident mails which have not been replaced
+	 */
+	public Collection<Entry> getEntries()
+	{
+		return this.byName.values();
+	}
+	
+	/**
+	 * Evicts all mails.
+	 * 
+	 * @return the evicted mails which have not been replaced, oldest first
+	 */
+	public List<Entry> clear()
+	{
+		List<Entry> evicted = new ArrayList<Entry>( this.byName.size() );
+		for( Entry entry : this.entries )
+		{
+			entry.isResident = false;
+			if( this.byName.get( entry.name ) == entry )
+			{
+				evicted.add( entry );
+			}
+		}
+		this.entries.clear();
+		this.byName.clear();
+		this.usedBytes = 0;
+		return evicted;
+	}
+	
+	/**
+	 * @return the number of resident mails which have not been replaced
+	 */
+	public int size()
+	{
+		return this.byName.size();
+	}
+	
+	/**
+	 * @return the number of bytes occupied by resident mails, 
+	 * 		including replaced ones
+	 */
+	public long getUsedBytes()
+	{
+		return this.usedBytes;
+	}
+	
+	/**
+	 * @return the size of the buffer in bytes
+	 */
+	public int getCapacity()
+	{
+		return this.buffer.capacity();
+	}
+	
+}//class MailRingBuffer
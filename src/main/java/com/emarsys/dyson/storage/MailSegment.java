@@ -0,0 +1,427 @@
+/**
+ *   (c) Copyright 2007-2010 by emarsys eMarketing Systems AG
+ * 
+ *   This file is part of dyson.
+ *
+ *   dyson is free software; you can redistribute it and/or modify
+ *   it under the terms of the GNU Lesser General Public License as published by
+ *   the Free Software Foundation; either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   dyson is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.emarsys.dyson.storage;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.emarsys.ecommon.io.IOUtil;
+
+/**
+ * <p>
+ * An append-only segment of the {@link SegmentDysonStorage}: a data file 
+ * holding the mails back to back and an index file holding an 
+ * {@link Entry} per mail.
+ * </p><p>
+ * The data of a mail is always written before its index entry and 
+ * {@link #force() forced} in the same order, so a forced index entry never 
+ * refers to data which is not durable. Entries torn by a crash are 
+ * discarded when the segment is {@link #open(File, long, List) opened} 
+ * again.
+ * </p><p>
+ * Appending is not thread-safe, reading is.
+ * </p>
+ * 
+ * @author <a href="mailto:kulovits@emarsys.com">Michael "kULO" Kulovits</a>
+ */
+public class MailSegment
+{
+	private static final Logger log = LoggerFactory.getLogger( MailSegment.class );
+	
+	public static final String DATA_FILE_SUFFIX = "seg";
+	public static final String INDEX_FILE_SUFFIX = "idx";
+	
+	/** the size of an index entry without its name */
+	protected static final int ENTRY_FIXED_SIZE = 2 + 8 + 4 + 8;
+	
+	/**
+	 * The location of a single mail in a segment.
+	 */
+	public static class Entry
+	{
+		protected final String name;
+		protected final long segmentId;
+		protected final long offset;
+		protected final int length;
+		protected final long storedMillis;
+		
+		protected Entry( 
+				String name, long segmentId, long offset, int length, 
+				long storedMillis )
+		{
+			this.name = name;
+			this.segmentId = segmentId;
+			this.offset = offset;
+			this.length = length;
+			this.storedMillis = storedMillis;
+		}
+		
+		/**
+		 * @return the name of the mail as resolved by the naming scheme
+		 */
+		public String getName()
+		{
+			return this.name;
+		}
+		
+		public long getSegmentId()
+		{
+			return this.segmentId;
+		}
+		
+		public long getOffset()
+		{
+			return this.offset;
+		}
+		
+		public int getLength()
+		{
+			return this.length;
+		}
+		
+		public long getStoredMillis()
+		{
+			return this.storedMillis;
+		}
+	}//class Entry
+	
+	protected final long id;
+	protected final File dataFile;
+	protected final File indexFile;
+	protected final RandomAccessFile dataRaf;
+	protected final RandomAccessFile indexRaf;
+	protected final FileChannel data;
+	protected final FileChannel index;
+	protected volatile long size;
+	
+	protected MailSegment( File dir, long id ) throws IOException
+	{
+		this.id = id;
+		this.dataFile = getDataFile( dir, id );
+		this.indexFile = new File( dir, getBaseName( id ) + "." + INDEX_FILE_SUFFIX );
+		this.dataRaf = new RandomAccessFile( this.dataFile, "rw" );
+		this.indexRaf = new RandomAccessFile( this.indexFile, "rw" );
+		this.data = this.dataRaf.getChannel();
+		this.index = this.indexRaf.getChannel();
+	}
+	
+	/**
+	 * Creates a new, empty segment.
+	 * 
+	 * @param dir - the directory of the segment files
+	 * @param id - the id of the segment
+	 * @return the segment
+	 * @throws IOException - if the segment files cannot be created
+	 */
+	public static MailSegment create( File dir, long id ) throws IOException
+	{
+		MailSegment segment = new MailSegment( dir, id );
+		segment.data.truncate( 0 );
+		segment.index.truncate( 0 );
+		segment.size = 0;
+		return segment;
+	}
+	
+	/**
+	 * Opens an existing segment and reads its index, torn entries at 
+	 * the end of the index are discarded.
+	 * 
+	 * @param dir - the directory of the segment files
+	 * @param id - the id of the segment
+	 * @param entries - the list the segment's entries are added to
+	 * @return the segment
+	 * @throws IOException - if the segment files cannot be read
+	 */
+	public static MailSegment open( File dir, long id, List<Entry> entries ) 
+		throws IOException
+	{
+		MailSegment segment = new MailSegment( dir, id );
+		long dataLength = segment.data.size();
+		long validIndexLength = 0;
+		long validDataLength = 0;
+		
+		DataInputStream in = new DataInputStream( new BufferedInputStream( 
+				new FileInputStream( segment.indexFile ) ) );
+		try
+		{
+			while( true )
+			{
+				byte[] name = new byte[ in.readUnsignedShort() ];
+				in.readFully( name );
+				long offset = in.readLong();
+				int length = in.readInt();
+				long storedMillis = in.readLong();
+				
+				if( offset + length > dataLength )
+				{
+					break;
+				}
+				entries.add( new Entry( new String( name, "UTF-8" ), 
+						id, offset, length, storedMillis ) );
+				validIndexLength += ENTRY_FIXED_SIZE + name.length;
+				validDataLength = Math.max( validDataLength, offset + length );
+			}
+		}
+		catch( EOFException eofe )
+		{
+			//end of the index (or a torn entry)
+		}
+		finally
+		{
+			IOUtil.silentClose( in );
+		}
+		
+		if( validIndexLength < segment.index.size() || 
+				validDataLength < dataLength )
+		{
+			log.warn( "discarding torn data of segment {}", segment.dataFile );
+			segment.index.truncate( validIndexLength );
+			segment.data.truncate( validDataLength );
+		}
+		segment.size = validDataLength;
+		return segment;
+	}
+	
+	/**
+	 * @param fileName - the name of a file in the segment directory
+	 * @return the id of the segment if it's a segment data file, 
+	 * 		<code>-1</code> otherwise
+	 */
+	public static long parseId( String fileName )
+	{
+		if( !fileName.endsWith( "." + DATA_FILE_SUFFIX ) )
+		{
+			return -1;
+		}
+		try
+		{
+			return Long.parseLong( fileName.substring( 
+					0, fileName.length() - DATA_FILE_SUFFIX.length() - 1 ) );
+		}
+		catch( NumberFormatException nfe )
+		{
+			return -1;
+		}
+	}
+	
+	protected static String getBaseName( long id )
+	{
+		String digits = String.valueOf( id );
+		StringBuilder name = new StringBuilder( 12 );
+		for( int i = digits.length(); i < 12; ++i )
+		{
+			name.append( '0' );
+		}
+		return name.append( digits ).toString();
+	}
+	
+	protected static File getDataFile( File dir, long id )
+	{
+		return new File( dir, getBaseName( id ) + "." + DATA_FILE_SUFFIX );
+	}
+	
+	/**
+	 * Appends a mail to this segment.
+	 * 
+	 * @param name - the name of the mail
+	 * @param mail - the buffer holding the mail
+	 * @param length - the length of the mail in the buffer
+	 * @param storedMillis - the time the mail has been stored
+	 * @return the index entry of the mail
+	 * @throws IOException - if the mail cannot be written
+	 */
+	public Entry append( String name, byte[] mail, int length, long storedMillis ) 
+		throws IOException
+	{
+		long offset = this.size;
+		ByteBuffer buf = ByteBuffer.wrap( mail, 0, length );
+		long position = offset;
+		while( buf.hasRemaining() )
+		{
+			position += this.data.write( buf, position );
+		}
+		
+		byte[] nameBytes = name.getBytes( "UTF-8" );
+		ByteArrayOutputStream entryBytes = 
+			new ByteArrayOutputStream( ENTRY_FIXED_SIZE + nameBytes.length );
+		DataOutputStream entry = new DataOutputStream( entryBytes );
+		entry.writeShort( nameBytes.length );
+		entry.write( nameBytes );
+		entry.writeLong( offset );
+		entry.writeInt( length );
+		entry.writeLong( storedMillis );
+		
+		ByteBuffer entryBuf = ByteBuffer.wrap( entryBytes.toByteArray() );
+		while( entryBuf.hasRemaining() )
+		{
+			this.index.write( entryBuf, this.index.size() );
+		}
+		
+		this.size = offset + length;
+		return new Entry( name, this.id, offset, length, storedMillis );
+	}
+	
+	/**
+	 * Forces the data and afterwards the index to the storage device.
+	 * 
+	 * @throws IOException
+	 */
+	public void force() throws IOException
+	{
+		this.data.force( false );
+		this.index.force( false );
+	}
+	
+	/**
+	 * Reads the mail of the passed entry.
+	 * 
+	 * @param entry - an entry of this segment
+	 * @return the mail's data
+	 * @throws IOException - if the mail cannot be read
+	 */
+	public byte[] read( Entry entry ) throws IOException
+	{
+		return this.read( entry, entry.length );
+	}
+	
+	/**
+	 * Reads the beginning of the mail of the passed entry.
+	 * 
+	 * @param entry - an entry of this segment
+	 * @param maxLength - the maximum number of bytes to read
+	 * @return the first (up to) <code>maxLength</code> bytes of the mail
+	 * @throws IOException - if the mail cannot be read
+	 */
+	public byte[] read( Entry entry, int maxLength ) throws IOException
+	{
+		byte[] mail = new byte[ Math.min( entry.length, maxLength ) ];
+		ByteBuffer buf = ByteBuffer.wrap( mail );
+		long position = entry.offset;
+		
+		while( buf.hasRemaining() )
+		{
+			int read = this.data.read( buf, position );
+			if( read < 0 )
+			{
+				throw new EOFException( "unexpected end of segment " + 
+						this.dataFile + " reading " + entry.name );
+			}
+			position += read;
+		}
+		return mail;
+	}
+	
+	/**
+	 * Transfers a range of the passed entry's mail straight from the 
+	 * segment file to the passed channel.
+	 * 
+	 * @param entry - an entry of this segment
+	 * @param position - the offset within the mail
+	 * @param count - the number of bytes to be transferred
+	 * @param target - the target channel
+	 * @return the number of bytes transferred
+	 * @throws IOException - if the mail cannot be read or written
+	 */
+	public long transferTo( 
+			Entry entry, long position, long count, 
+			WritableByteChannel target ) 
+		throws IOException
+	{
+		count = Math.min( count, entry.length - position );
+		long transferred = 0;
+		while( transferred < count )
+		{
+			long n = this.data.transferTo( 
+					entry.offset + position + transferred, 
+					count - transferred, target );
+			if( n <= 0 )
+			{
+				throw new EOFException( "unexpected end of segment " + 
+						this.dataFile + " reading " + entry.name );
+			}
+			transferred += n;
+		}
+		return transferred;
+	}
+	
+	/**
+	 * closes the segment's files
+	 */
+	public void close()
+	{
+		IOUtil.silentClose( this.dataRaf );
+		IOUtil.silentClose( this.indexRaf );
+	}
+	
+	public long getId()
+	{
+		return this.id;
+	}
+	
+	/**
+	 * @return the number of data bytes
+	 */
+	public long getSize()
+	{
+		return this.size;
+	}
+	
+	public File getDataFile()
+	{
+		return this.dataFile;
+	}
+	
+	/**
+	 * @param dir - the directory of the segment files
+	 * @return the ids of the segments in the passed directory, unsorted
+	 */
+	public static List<Long> listIds( File dir )
+	{
+		List<Long> ids = new ArrayList<Long>();
+		String[] names = dir.list();
+		if( names != null )
+		{
+			for( String name : names )
+			{
+				long id = parseId( name );
+				if( id >= 0 )
+				{
+					ids.add( id );
+				}
+			}
+		}
+		return ids;
+	}
+	
+}//class MailSegment
@@ -0,0 +1,563 @@
+/**
+ *   (c) Copyright 2007-2010 by emarsys eMarketing Systems AG
+ * 
+ *   This file is part of dyson.
+ *
+ *   dyson is free software; you can redistribute it and/or modify
+ *   it under the terms of the GNU Lesser General Public License as published by
+ *   the Free Software Foundation; either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   dyson is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.emarsys.dyson.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.emarsys.dyson.Dyson;
+import com.emarsys.dyson.DysonConfig;
+import com.emarsys.dyson.DysonStorage;
+import com.emarsys.dyson.StoredMail;
+import com.emarsys.ecommon.prefs.config.Configuration;
+
+/**
+ * <p>
+ * A {@link DysonStorage} for throwaway setups (e.g. CI runs) which keeps 
+ * the received mails in an off-heap {@link MailRingBuffer} of the 
+ * configured {@link DysonConfig#STORAGE_MEMORY_BUDGET_BYTES size} instead 
+ * of writing them to disk.
+ * </p><p>
+ * Once the budget is exceeded the oldest mails are spilled to the 
+ * {@link SegmentDysonStorage segment files} in the processed directory, 
+ * mails larger than the whole buffer are spilled right away. Spilled mails 
+ * are committed in the background, storing a mail never waits for an 
+ * fsync. On {@link #stop() stop} the mails still held in memory are 
+ * spilled as well unless {@link DysonConfig#STORAGE_MEMORY_SPILL_ON_STOP 
+ * disabled}.
+ * </p><p>
+ * Mails in memory and spilled mails are looked up by the same names, so 
+ * the storage serves the same views as the segment storage. A name is 
+ * never shared by a mail in memory and a spilled mail, colliding names 
+ * are made {@link #getUniqueMailName(String) unique}.
+ * </p>
+ * 
+ * @author <a href="mailto:kulovits@emarsys.com">Michael "kULO" Kulovits</a>
+ */
+public class MemoryDysonStorage extends SegmentDysonStorage
+{
+	private static final Logger log = 
+		LoggerFactory.getLogger( MemoryDysonStorage.class );
+	
+	/**
+	 * {@link StoredMail} held in the {@link #ring}, falls back to the 
+	 * spilled mail once it's evicted.
+	 */
+	protected class RingStoredMail extends StoredMail
+	{
+		protected final MailRingBuffer.Entry entry;
+		
+		protected RingStoredMail( MailRingBuffer.Entry entry )
+		{
+			super( entry.getName(), entry.getLength(), 
+					entry.getStoredMillis() );
+			this.entry = entry;
+		}
+
+		@Override
+		public long transferTo( 
+				long position, long count, WritableByteChannel target )
+			throws IOException
+		{
+			byte[] data = readResident( this.entry, position, count );
+			if( data == null )
+			{
+				return this.getSpilledMail().transferTo( 
+						position, count, target );
+			}
+			
+			ByteBuffer buf = ByteBuffer.wrap( data );
+			while( buf.hasRemaining() )
+			{
+				target.write( buf );
+			}
+			return data.length;
+		}
+
+		@Override
+		public InputStream openStream() throws IOException
+		{
+			byte[] data = readResident( 
+					this.entry, 0, this.entry.getLength() );
+			if( data == null )
+			{
+				return this.getSpilledMail().openStream();
+			}
+			return new ByteArrayInputStream( data );
+		}
+		
+		protected StoredMail getSpilledMail() throws IOException
+		{
+			StoredMail spilled = MemoryDysonStorage.super.getProcessedMail( 
+					this.getName() );
+			if( spilled == null )
+			{
+				throw new IOException( "mail " + this.getName() + 
+						" has been removed" );
+			}
+			return spilled;
+		}
+	}//class RingStoredMail
+	
+	/** guards the {@link #ring} */
+	protected final ReadWriteLock ringLock = new ReentrantReadWriteLock();
+	protected MailRingBuffer ring;
+	/** set on stop, further mails are spilled right away */
+	protected volatile boolean isSpillingAll = false;
+	
+	protected final AtomicLong spilledCount = new AtomicLong( 0 );
+	protected final AtomicLong spilledBytes = new AtomicLong( 0 );
+	
+	//cached settings
+	protected boolean spillOnStop;
+	
+	/**
+	 * 
+	 * @param dyson
+	 */
+	public MemoryDysonStorage( Dyson dyson )
+	{
+		super( dyson );
+	}
+	
+	/**
+	 * Additionally allocates the {@link #ring}.
+	 * 
+	 * @see SegmentDysonStorage#setupFileStorage()
+	 */
+	@Override
+	protected void setupFileStorage()
+	{
+		super.setupFileStorage();
+		
+		synchronized( this.lifecycleMonitor ) 
+		{
+			Configuration config = this.getDyson().getConfiguration();
+			
+			this.spillOnStop = config.get( 
+					DysonConfig.STORAGE_MEMORY_SPILL_ON_STOP ).getBooleanValue();
+			if( this.ring == null )
+			{
+				this.ring = new MailRingBuffer( config.get( 
+						DysonConfig.STORAGE_MEMORY_BUDGET_BYTES ).getIntValue() );
+			}
+		}
+	}
+	
+	/**
+	 * @see SegmentDysonStorage#startStorageServices()
+	 */
+	@Override
+	protected void startStorageServices()
+	{
+		this.isSpillingAll = false;
+		super.startStorageServices();
+	}
+	
+	/**
+	 * Spills the mails held in memory, if 
+	 * {@link DysonConfig#STORAGE_MEMORY_SPILL_ON_STOP configured}, 
+	 * after stopping the storage.
+	 * 
+	 * @see SegmentDysonStorage#stop()
+	 */
+	@Override
+	public void stop()
+	{
+		super.stop();
+		
+		if( this.spillOnStop )
+		{
+			this.spillAll();
+		}
+	}
+	
+	/**
+	 * Additionally spills the mails held in memory, if 
+	 * {@link DysonConfig#STORAGE_MEMORY_SPILL_ON_STOP configured}, 
+	 * since the storage may be stopped asynchronously.
+	 * 
+	 * @see DefaultDysonStorage#awaitTermination(int, TimeUnit)
+	 */
+	@Override
+	public void awaitTermination( int timeOut, TimeUnit unit )
+	{
+		super.awaitTermination( timeOut, unit );
+		
+		if( this.spillOnStop && !this.isRunning() )
+		{
+			this.spillAll();
+		}
+	}
+	
+	/**
+	 * Spills all mails held in memory and all further mails right away.
+	 */
+	protected void spillAll()
+	{
+		int spilled;
+		this.ringLock.writeLock().lock();
+		try
+		{
+			this.isSpillingAll = true;
+			List<MailRingBuffer.Entry> entries = this.ring.clear();
+			for( MailRingBuffer.Entry entry : entries )
+			{
+				this.spillQuietly( entry );
+			}
+			spilled = entries.size();
+		}
+		finally
+		{
+			this.ringLock.writeLock().unlock();
+		}
+		
+		this.commit();
+		if( spilled > 0 )
+		{
+			log.info( "spilled {} mails held in memory", spilled );
+		}
+	}
+	
+	/**
+	 * Puts the passed mail into the {@link #ring}, spilling the oldest 
+	 * mails if necessary.
+	 * 
+	 * @see SegmentDysonStorage#store(InputStream, long)
+	 */
+	@Override
+	public String store( InputStream data, long acceptMillis ) 
+		throws IOException
+	{
+		HeaderCapturingInputStream headerCapturingData = 
+			new HeaderCapturingInputStream( data );
+		MailBuffer mail = this.readMail( headerCapturingData );
+		long storedMillis = System.currentTimeMillis();
+		String name = this.getMailName( headerCapturingData.getHeaders() );
+		
+		this.processedDirLock.readLock().lock();
+		try
+		{
+			name = this.put( name, mail.getBuffer(), mail.size(), storedMillis );
+		}
+		finally
+		{
+			this.processedDirLock.readLock().unlock();
+		}
+		
+		this.fireMailStored( name, 
+				MailHeaders.wrap( mail.getBuffer(), mail.size() ), storedMillis );
+		this.fireMailProcessed( acceptMillis, storedMillis );
+		return name;
+	}
+	
+	/**
+	 * Puts a mail into the {@link #ring} or spills it right away if it 
+	 * doesn't fit at all or the storage has been stopped.
+	 * 
+	 * @return the {@link #getUniqueMailName(String) unique} name 
+	 * 		of the mail
+	 * @throws IOException - if a mail which has to be spilled right 
+	 * 		away cannot be appended
+	 */
+	protected String put( 
+			String name, byte[] data, int length, long storedMillis ) 
+		throws IOException
+	{
+		this.ringLock.writeLock().lock();
+		try
+		{
+			if( this.isSpillingAll || !this.ring.fits( length ) )
+			{
+				return this.spill( name, data, length, storedMillis );
+			}
+			
+			for( MailRingBuffer.Entry evicted : this.ring.evictFor( length ) )
+			{
+				this.spillQuietly( evicted );
+			}
+			String uniqueName;
+			synchronized( this.appendMonitor )
+			{
+				uniqueName = this.getUniqueMailName( name );
+			}
+			this.ring.put( uniqueName, data, length, storedMillis );
+			return uniqueName;
+		}
+		finally
+		{
+			this.ringLock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * appends a mail to the segments and requests its commit, 
+	 * has to be called while holding the {@link #ringLock}
+	 * 
+	 * @return the name the mail has been appended under
+	 */
+	protected String spill( 
+			String name, byte[] data, int length, long storedMillis ) 
+		throws IOException
+	{
+		AppendedMail appended = this.append( name, data, length, storedMillis );
+		this.requestCommit( appended.seq );
+		
+		this.spilledCount.incrementAndGet();
+		this.spilledBytes.addAndGet( length );
+		return appended.name;
+	}
+	
+	/**
+	 * Holds the {@link #ringLock} while appending, so the mails in memory 
+	 * cannot change while the name of the appended mail is made unique. 
+	 * The {@link #ringLock} is always acquired before the 
+	 * {@link #appendMonitor}.
+	 * 
+	 * @see SegmentDysonStorage#append(String, byte[], int, long)
+	 */
+	@Override
+	protected AppendedMail append( 
+			String name, byte[] data, int length, long storedMillis ) 
+		throws IOException
+	{
+		this.ringLock.readLock().lock();
+		try
+		{
+			return super.append( name, data, length, storedMillis );
+		}
+		finally
+		{
+			this.ringLock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Additionally checks the mails in memory, has to be called while 
+	 * holding the {@link #ringLock}.
+	 * 
+	 * @see SegmentDysonStorage#isMailNameTaken(String)
+	 */
+	@Override
+	protected boolean isMailNameTaken( String name )
+	{
+		return this.ring.get( name ) != null || super.isMailNameTaken( name );
+	}
+	
+	/**
+	 * spills an evicted mail, which is lost if it cannot be appended
+	 */
+	protected void spillQuietly( MailRingBuffer.Entry evicted )
+	{
+		try
+		{
+			this.spill( evicted.getName(), this.ring.copy( evicted ), 
+					evicted.getLength(), evicted.getStoredMillis() );
+		}
+		catch( IOException ioe )
+		{
+			log.error( "cannot spill mail " + evicted.getName() + 
+					", it is lost: " + ioe, ioe );
+		}
+	}
+	
+	/**
+	 * @return a range of the passed mail or <code>null</code> 
+	 * 		if it has been evicted
+	 */
+	protected byte[] readResident( 
+			MailRingBuffer.Entry entry, long position, long count )
+	{
+		this.ringLock.readLock().lock();
+		try
+		{
+			return this.ring.read( entry, position, count );
+		}
+		finally
+		{
+			this.ringLock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * @return the names of the mails in memory and the spilled mails
+	 * @see SegmentDysonStorage#getProcessedMailNames()
+	 */
+	@Override
+	public Collection<String> getProcessedMailNames()
+	{
+		this.ringLock.readLock().lock();
+		try
+		{
+			Set<String> names = new HashSet<String>( this.mailIndex.keySet() );
+			for( MailRingBuffer.Entry entry : this.ring.getEntries() )
+			{
+				names.add( entry.getName() );
+			}
+			return Collections.unmodifiableSet( names );
+		}
+		finally
+		{
+			this.ringLock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * @see SegmentDysonStorage#openProcessedMail(String)
+	 */
+	@Override
+	public InputStream openProcessedMail( String name ) throws IOException
+	{
+		this.ringLock.readLock().lock();
+		try
+		{
+			MailRingBuffer.Entry entry = this.ring.get( name );
+			if( entry != null )
+			{
+				return new ByteArrayInputStream( 
+						this.ring.read( entry, 0, entry.getLength() ) );
+			}
+			return super.openProcessedMail( name );
+		}
+		finally
+		{
+			this.ringLock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * @see SegmentDysonStorage#getProcessedMail(String)
+	 */
+	@Override
+	public StoredMail getProcessedMail( String name )
+	{
+		this.ringLock.readLock().lock();
+		try
+		{
+			MailRingBuffer.Entry entry = this.ring.get( name );
+			if( entry != null )
+			{
+				return new RingStoredMail( entry );
+			}
+			return super.getProcessedMail( name );
+		}
+		finally
+		{
+			this.ringLock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * @return the number of mails in memory and spilled mails
+	 * @see SegmentDysonStorage#getProcessedMailCount()
+	 */
+	@Override
+	public int getProcessedMailCount()
+	{
+		this.ringLock.readLock().lock();
+		try
+		{
+			return this.ring.size() + super.getProcessedMailCount();
+		}
+		finally
+		{
+			this.ringLock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Discards the mails in memory, too.
+	 * 
+	 * @see SegmentDysonStorage#clearProcessedDir()
+	 */
+	@Override
+	public void clearProcessedDir() throws IOException
+	{
+		this.processedDirLock.writeLock().lock();
+		try
+		{
+			this.ringLock.writeLock().lock();
+			try
+			{
+				this.ring.clear();
+			}
+			finally
+			{
+				this.ringLock.writeLock().unlock();
+			}
+			super.clearProcessedDir();
+		}
+		finally
+		{
+			this.processedDirLock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Adds the memory gauges.
+	 * 
+	 * @see SegmentDysonStorage#getRuntimeInformation()
+	 */
+	@Override
+	public Map<String, String> getRuntimeInformation()
+	{
+		Map<String, String> info = super.getRuntimeInformation();
+		
+		int mails, budget;
+		long used;
+		this.ringLock.readLock().lock();
+		try
+		{
+			mails = this.ring.size();
+			used = this.ring.getUsedBytes();
+			budget = this.ring.getCapacity();
+		}
+		finally
+		{
+			this.ringLock.readLock().unlock();
+		}
+		
+		info.put( "storage.memory.budget.bytes", String.valueOf( budget ) );
+		info.put( "storage.memory.used.bytes", String.valueOf( used ) );
+		info.put( "storage.memory.mail.count", String.valueOf( mails ) );
+		info.put( "storage.memory.spilled.mail.count", 
+				String.valueOf( this.spilledCount.get() ) );
+		info.put( "storage.memory.spilled.bytes", 
+				String.valueOf( this.spilledBytes.get() ) );
+		
+		return info;
+	}
+	
+}//class MemoryDysonStorage
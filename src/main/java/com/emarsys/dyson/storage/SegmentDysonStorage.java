@@ -0,0 +1,1001 @@
+/**
+ *   (c) Copyright 2007-2010 by emarsys eMarketing Systems AG
+ * 
+ *   This file is part of dyson.
+ *
+ *   dyson is free software; you can redistribute it and/or modify
+ *   it under the terms of the GNU Lesser General Public License as published by
+ *   the Free Software Foundation; either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   dyson is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.emarsys.dyson.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.emarsys.dyson.Dyson;
+import com.emarsys.dyson.DysonConfig;
+import com.emarsys.dyson.DysonException;
+import com.emarsys.dyson.DysonStorage;
+import com.emarsys.dyson.StoredMail;
+import com.emarsys.ecommon.concurrent.Threads;
+import com.emarsys.ecommon.io.IOUtil;
+import com.emarsys.ecommon.io.NewlineOutputStream;
+import com.emarsys.ecommon.prefs.config.Configuration;
+import com.emarsys.ecommon.util.StopableRunnable;
+
+/**
+ * <p>
+ * A log-structured {@link DysonStorage}: instead of storing every mail 
+ * in its own file the mails are appended to large, rolling 
+ * {@link MailSegment segment files} in the processed directory, each 
+ * with a compact index of the offsets of its mails.
+ * </p><p>
+ * The message listeners {@link #store(InputStream, long) store} the mails 
+ * directly, the incoming directory is only used for mails delivered by 
+ * listeners which don't support direct storage (and for mails left over 
+ * by the file storage), they are appended by the delivered mail 
+ * processors and removed afterwards.
+ * </p><p>
+ * Appended mails are made durable by a {@link GroupCommitter}, which 
+ * forces all mails appended within the 
+ * {@link DysonConfig#STORAGE_SEGMENT_COMMIT_INTERVAL_MILLIS commit interval}
+ * by a single fsync. Storing a mail blocks until it's durable.
+ * </p><p>
+ * The mails are named by the configured 
+ * {@link DysonStorage#getProcessedMailFileNamingScheme() naming scheme}, 
+ * relative to the processed directory, and can be 
+ * {@link #getProcessedMailNames() listed} and 
+ * {@link #openProcessedMail(String) read} by their names. As with the 
+ * file storage a mail never replaces an earlier mail with the same name, 
+ * it's given a {@link #getUniqueMailName(String) unique} name instead.
+ * </p>
+ * 
+ * @author <a href="mailto:kulovits@emarsys.com">Michael "kULO" Kulovits</a>
+ */
+public class SegmentDysonStorage extends DefaultDysonStorage
+{
+	private static final Logger log = 
+		LoggerFactory.getLogger( SegmentDysonStorage.class );
+	
+	/**
+	 * A buffer for a single mail exposing its internal array, 
+	 * so it can be appended without copying.
+	 */
+	protected static class MailBuffer extends ByteArrayOutputStream
+	{
+		protected MailBuffer()
+		{
+			super( 8192 );
+		}
+		
+		protected byte[] getBuffer()
+		{
+			return this.buf;
+		}
+	}//class MailBuffer
+	
+	/**
+	 * The unique name a mail has been appended under and the sequence 
+	 * number to {@link SegmentDysonStorage#awaitCommit(long) await}.
+	 */
+	protected static class AppendedMail
+	{
+		protected final String name;
+		protected final long seq;
+		
+		protected AppendedMail( String name, long seq )
+		{
+			this.name = name;
+			this.seq = seq;
+		}
+	}//class AppendedMail
+	
+	/**
+	 * Forces the appended mails to the storage device, waits up to 
+	 * the {@link DysonConfig#STORAGE_SEGMENT_COMMIT_INTERVAL_MILLIS commit 
+	 * interval} for further mails before each commit.
+	 * 
+	 * @author <a href="mailto:kulovits@emarsys.com">Michael "kULO" Kulovits</a>
+	 */
+	protected class GroupCommitter implements StopableRunnable
+	{
+		private volatile boolean shouldStop = false;
+		private volatile boolean isRunning = false;
+		
+		/**
+		 * @see com.emarsys.ecommon.util.StopableRunnable#stop()
+		 */
+		public void stop()
+		{
+			synchronized( commitMonitor )
+			{
+				this.shouldStop = true;
+				commitMonitor.notifyAll();
+			}
+		}
+		
+		/**
+		 * @see java.lang.Runnable#run()
+		 */
+		public void run()
+		{
+			try
+			{
+				log.info( "started group committer" );
+				
+				while( this.awaitUncommittedMails() )
+				{
+					if( commitIntervalMillis > 0 )
+					{
+						Threads.sleepSilently( commitIntervalMillis );
+					}
+					commit();
+				}
+			}
+			finally
+			{
+				this.isRunning = false;
+				synchronized( commitMonitor )
+				{
+					commitMonitor.notifyAll();
+				}
+				log.info( "stopped group committer!" );
+			}
+		}
+		
+		/**
+		 * @return <code>false</code> if the committer should stop 
+		 * 		and all mails are committed
+		 */
+		protected boolean awaitUncommittedMails()
+		{
+			synchronized( commitMonitor )
+			{
+				try
+				{
+					while( committedSeq >= requestedSeq )
+					{
+						if( this.shouldStop )
+						{
+							return false;
+						}
+						commitMonitor.wait();
+					}
+					return true;
+				}
+				catch( InterruptedException ie )
+				{
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+		}
+		
+		public boolean isRunning()
+		{
+			return this.isRunning;
+		}
+		
+		/**
+		 * starts this committer in its own thread
+		 */
+		protected void start()
+		{
+			this.isRunning = true;
+			Thread th = new Thread( this, "GroupCommitter" );
+			th.start();
+		}
+	}//class GroupCommitter
+	
+	/**
+	 * {@link StoredMail} located in a {@link MailSegment}.
+	 */
+	protected static class SegmentStoredMail extends StoredMail
+	{
+		protected final MailSegment segment;
+		protected final MailSegment.Entry entry;
+		
+		protected SegmentStoredMail( 
+				MailSegment segment, MailSegment.Entry entry )
+		{
+			super( entry.getName(), entry.getLength(), 
+					entry.getStoredMillis() );
+			this.segment = segment;
+			this.entry = entry;
+		}
+
+		@Override
+		public long transferTo( 
+				long position, long count, WritableByteChannel target )
+			throws IOException
+		{
+			return this.segment.transferTo( 
+					this.entry, position, count, target );
+		}
+
+		@Override
+		public InputStream openStream() throws IOException
+		{
+			return new ByteArrayInputStream( this.segment.read( this.entry ) );
+		}
+		
+	}//class SegmentStoredMail
+	
+	/** the maximum number of bytes read per mail for indexing it */
+	protected static final int MAX_INDEXED_HEADER_SIZE = 
+		HeaderCapturingInputStream.DEFAULT_MAX_HEADER_SIZE;
+	
+	/** guards the {@link #currentSegment} and the {@link #appendedSeq} */
+	protected final Object appendMonitor = new Object();
+	/** guards the {@link #committedSeq} and {@link #requestedSeq} */
+	protected final Object commitMonitor = new Object();
+	
+	protected final ConcurrentSkipListMap<Long, MailSegment> segments = 
+		new ConcurrentSkipListMap<Long, MailSegment>();
+	protected final ConcurrentMap<String, MailSegment.Entry> mailIndex = 
+		new ConcurrentHashMap<String, MailSegment.Entry>();
+	protected MailSegment currentSegment;
+	
+	/** the number of appended mails */
+	protected long appendedSeq = 0;
+	/** the number of appended mails waited for by {@link #awaitCommit(long)} */
+	protected long requestedSeq = 0;
+	/** the number of committed mails */
+	protected long committedSeq = 0;
+	protected volatile GroupCommitter committer;
+	
+	protected final AtomicLong commitCount = new AtomicLong( 0 );
+	protected final AtomicLong committedMailCount = new AtomicLong( 0 );
+	
+	//cached settings
+	protected long segmentSizeBytes;
+	protected int commitIntervalMillis;
+	
+	/**
+	 * 
+	 * @param dyson
+	 */
+	public SegmentDysonStorage( Dyson dyson )
+	{
+		super( dyson );
+	}
+	
+	/**
+	 * @see DefaultDysonStorage#setupFileStorage()
+	 */
+	@Override
+	protected void setupFileStorage()
+	{
+		super.setupFileStorage();
+		
+		synchronized( this.lifecycleMonitor ) 
+		{
+			Configuration config = this.getDyson().getConfiguration();
+			
+			this.segmentSizeBytes = config.get( 
+					DysonConfig.STORAGE_SEGMENT_SIZE_BYTES ).getLongValue();
+			this.commitIntervalMillis = config.get( 
+					DysonConfig.STORAGE_SEGMENT_COMMIT_INTERVAL_MILLIS 
+					).getIntValue();
+		}
+	}
+	
+	/**
+	 * Opens the segments and starts the {@link #committer} 
+	 * before starting the storage services.
+	 * 
+	 * @see DefaultDysonStorage#startStorageServices()
+	 */
+	@Override
+	protected void startStorageServices()
+	{
+		this.openSegments();
+		if( this.committer == null || !this.committer.isRunning() )
+		{
+			this.committer = new GroupCommitter();
+			this.committer.start();
+		}
+		super.startStorageServices();
+	}
+	
+	/**
+	 * Stops the {@link #committer} after committing the appended mails,
+	 * too.
+	 * 
+	 * @see DefaultDysonStorage#stop()
+	 */
+	@Override
+	public void stop()
+	{
+		super.stop();
+		
+		GroupCommitter groupCommitter = this.committer;
+		if( groupCommitter != null )
+		{
+			groupCommitter.stop();
+		}
+	}
+	
+	/**
+	 * Opens the segments in the processed directory, unless they are 
+	 * already open. New mails are appended to the last segment unless 
+	 * it's full.
+	 * 
+	 * @throws DysonException - if the segments cannot be opened
+	 */
+	protected void openSegments() throws DysonException
+	{
+		synchronized( this.appendMonitor )
+		{
+			if( this.currentSegment != null )
+			{
+				return;
+			}
+			
+			File dir = new File( this.getProcessedDirName() );
+			List<Long> ids = MailSegment.listIds( dir );
+			Collections.sort( ids );
+			
+			try
+			{
+				List<MailSegment.Entry> entries = 
+					new ArrayList<MailSegment.Entry>();
+				for( Long id : ids )
+				{
+					entries.clear();
+					MailSegment segment = MailSegment.open( dir, id, entries );
+					this.segments.put( id, segment );
+					for( MailSegment.Entry entry : entries )
+					{
+						this.mailIndex.put( entry.getName(), entry );
+					}
+				}
+				
+				//continue appending to the last segment if it's not full
+				MailSegment last = this.segments.isEmpty() ? 
+						null : this.segments.lastEntry().getValue();
+				if( last != null && last.getSize() < this.segmentSizeBytes )
+				{
+					this.currentSegment = last;
+				}
+				else
+				{
+					long nextId = last == null ? 1 : last.getId() + 1;
+					this.currentSegment = MailSegment.create( dir, nextId );
+					this.segments.put( nextId, this.currentSegment );
+				}
+				
+				log.info( "opened {} segments holding {} mails", 
+						this.segments.size(), this.mailIndex.size() );
+			}
+			catch( IOException ioe )
+			{
+				throw new DysonException( 
+						"cannot open segments in " + dir + ": " + ioe, ioe );
+			}
+		}
+	}
+	
+	/**
+	 * Closes all segments and forgets their mails.
+	 */
+	protected void closeSegments()
+	{
+		synchronized( this.appendMonitor )
+		{
+			this.commit();
+			for( MailSegment segment : this.segments.values() )
+			{
+				segment.close();
+			}
+			this.segments.clear();
+			this.mailIndex.clear();
+			this.currentSegment = null;
+		}
+	}
+	
+	/**
+	 * @return <code>true</code>
+	 * @see DysonStorage#isDirectStorageEnabled()
+	 */
+	@Override
+	public boolean isDirectStorageEnabled()
+	{
+		return true;
+	}
+	
+	/**
+	 * Appends the passed mail with normalized newlines to the current 
+	 * segment and blocks until it's committed.
+	 * 
+	 * @see DysonStorage#store(InputStream, long)
+	 */
+	@Override
+	public String store( InputStream data, long acceptMillis ) 
+		throws IOException
+	{
+		HeaderCapturingInputStream headerCapturingData = 
+			new HeaderCapturingInputStream( data );
+		MailBuffer mail = this.readMail( headerCapturingData );
+		long storedMillis = System.currentTimeMillis();
+		String name = this.getMailName( headerCapturingData.getHeaders() );
+		
+		AppendedMail appended;
+		this.processedDirLock.readLock().lock();
+		try
+		{
+			appended = this.append( name, mail, storedMillis );
+		}
+		finally
+		{
+			this.processedDirLock.readLock().unlock();
+		}
+		this.awaitCommit( appended.seq );
+		
+		this.fireMailStored( appended.name, 
+				MailHeaders.wrap( mail.getBuffer(), mail.size() ), storedMillis );
+		this.fireMailProcessed( acceptMillis, storedMillis );
+		return appended.name;
+	}
+	
+	/**
+	 * Appends the passed mail files to the current segment and 
+	 * removes them once they are committed.
+	 * 
+	 * @see DefaultDysonStorage#moveMails(List, File)
+	 */
+	@Override
+	protected void moveMails( List<File> mails, File toDir )
+	{
+		List<File> appended = new ArrayList<File>( mails.size() );
+		List<String> names = new ArrayList<String>( mails.size() );
+		List<MailHeaders> headers = new ArrayList<MailHeaders>( mails.size() );
+		long seq = -1;
+		
+		for( File mail : mails )
+		{
+			InputStream data = null;
+			try
+			{
+				long storedMillis = mail.lastModified();
+				data = new FileInputStream( mail );
+				HeaderCapturingInputStream headerCapturingData = 
+					new HeaderCapturingInputStream( data );
+				MailBuffer buf = this.readMail( headerCapturingData );
+				String name = this.getMailName( 
+						headerCapturingData.getHeaders() );
+				
+				AppendedMail appendedMail;
+				this.processedDirLock.readLock().lock();
+				try
+				{
+					appendedMail = this.append( name, buf, storedMillis );
+				}
+				finally
+				{
+					this.processedDirLock.readLock().unlock();
+				}
+				seq = appendedMail.seq;
+				appended.add( mail );
+				names.add( appendedMail.name );
+				headers.add( this.processedMailIndex == null ? null : 
+					MailHeaders.read( headerCapturingData.getHeaders() ) );
+			}
+			catch( Exception ex )
+			{
+				log.error( "cannot append " + mail.getAbsolutePath() + 
+						": " + ex, ex );
+			}
+			finally
+			{
+				IOUtil.silentClose( data );
+			}
+		}
+		
+		if( seq < 0 )
+		{
+			return;
+		}
+		
+		try
+		{
+			this.awaitCommit( seq );
+		}
+		catch( IOException ioe )
+		{
+			log.error( "cannot commit " + appended.size() + " mails, " +
+					"keeping them in the incoming dir: " + ioe, ioe );
+			return;
+		}
+		
+		for( int i = 0; i < appended.size(); ++i )
+		{
+			File mail = appended.get( i );
+			long storedMillis = mail.lastModified();
+			if( !mail.delete() )
+			{
+				log.warn( "cannot remove appended mail {}", mail );
+			}
+			if( headers.get( i ) != null )
+			{
+				this.fireMailStored( names.get( i ), headers.get( i ), 
+						storedMillis );
+			}
+			this.fireMailProcessed( mail, storedMillis );
+		}
+	}
+	
+	/**
+	 * reads the passed mail data with normalized newlines
+	 */
+	protected MailBuffer readMail( InputStream data ) throws IOException
+	{
+		MailBuffer mail = new MailBuffer();
+		NewlineOutputStream out = new NewlineOutputStream( mail );
+		byte[] buf = new byte[ 4096 ];
+		int read;
+		
+		while( (read = data.read( buf )) >= 0 )
+		{
+			out.write( buf, 0, read );
+		}
+		out.flush();
+		return mail;
+	}
+	
+	/**
+	 * @return the name of a mail with the passed headers, 
+	 * 		relative to the processed directory
+	 */
+	protected String getMailName( InputStream headers )
+	{
+		return this.getProcessedMailName( this.namingScheme.getMailFile( 
+				new File( this.getProcessedDirName() ), headers ) );
+	}
+	
+	/**
+	 * Returns the passed name if it's not taken, otherwise the first 
+	 * free name made by appending <code>-&lt;n&gt;</code> to its base 
+	 * name, like {@link #getUniqueMailFile(File, java.util.Set)} does for the 
+	 * file storage.
+	 * Has to be called while holding the {@link #appendMonitor}.
+	 * 
+	 * @param name - the name of a mail, relative to the processed directory
+	 * @return the passed name or a free variant of it
+	 */
+	protected String getUniqueMailName( String name )
+	{
+		if( !this.isMailNameTaken( name ) )
+		{
+			return name;
+		}
+		
+		String suffix = "." + this.getMailFileSuffix();
+		if( !name.endsWith( suffix ) )
+		{
+			suffix = "";
+		}
+		String baseName = name.substring( 0, name.length() - suffix.length() );
+		
+		for( int n = 1; ; ++n )
+		{
+			String variant = baseName + "-" + n + suffix;
+			if( !this.isMailNameTaken( variant ) )
+			{
+				return variant;
+			}
+		}
+	}
+	
+	/**
+	 * @return <code>true</code> if a stored mail has the passed name
+	 */
+	protected boolean isMailNameTaken( String name )
+	{
+		return this.mailIndex.containsKey( name );
+	}
+	
+	/**
+	 * Appends a mail to the current segment, which is rolled over if it 
+	 * reached the {@link DysonConfig#STORAGE_SEGMENT_SIZE_BYTES segment size}.
+	 * A mail whose name is taken is appended under a 
+	 * {@link #getUniqueMailName(String) unique} name.
+	 * 
+	 * @return the name of the mail and the sequence number to 
+	 * 		{@link #awaitCommit(long) await}
+	 * @throws IOException - if the mail cannot be appended
+	 */
+	protected AppendedMail append( 
+			String name, MailBuffer mail, long storedMillis ) 
+		throws IOException
+	{
+		return this.append( name, mail.getBuffer(), mail.size(), storedMillis );
+	}
+	
+	/**
+	 * Appends the first <tt>length</tt> bytes of the passed array as 
+	 * a mail to the current segment.
+	 * 
+	 * @see #append(String, MailBuffer, long)
+	 */
+	protected AppendedMail append( 
+			String name, byte[] data, int length, long storedMillis ) 
+		throws IOException
+	{
+		synchronized( this.appendMonitor )
+		{
+			if( this.currentSegment == null )
+			{
+				throw new IOException( "segments are not open" );
+			}
+			if( this.currentSegment.getSize() > 0 && 
+					this.currentSegment.getSize() + length > 
+					this.segmentSizeBytes )
+			{
+				this.rollSegment();
+			}
+			
+			String uniqueName = this.getUniqueMailName( name );
+			if( !uniqueName.equals( name ) )
+			{
+				log.debug( "{} is already taken, appending mail as {}", 
+						name, uniqueName );
+			}
+			MailSegment.Entry entry = this.currentSegment.append( 
+					uniqueName, data, length, storedMillis );
+			this.mailIndex.put( uniqueName, entry );
+			return new AppendedMail( uniqueName, ++this.appendedSeq );
+		}
+	}
+	
+	/**
+	 * forces the current segment and starts a new one, 
+	 * has to be called while holding the {@link #appendMonitor}
+	 */
+	protected void rollSegment() throws IOException
+	{
+		MailSegment sealed = this.currentSegment;
+		sealed.force();
+		
+		long id = sealed.getId() + 1;
+		this.currentSegment = MailSegment.create( sealed.getDataFile().getParentFile(), id );
+		this.segments.put( id, this.currentSegment );
+		
+		log.debug( "rolled segment {} ({} bytes)", sealed.getDataFile(), 
+				sealed.getSize() );
+	}
+	
+	/**
+	 * Blocks until the mail with the passed sequence number is committed.
+	 * 
+	 * @param seq - the sequence number returned by 
+	 * 		{@link #append(String, MailBuffer, long)}
+	 * @throws IOException - if the committer stopped before
+	 */
+	protected void awaitCommit( long seq ) throws IOException
+	{
+		synchronized( this.commitMonitor )
+		{
+			this.requestCommit( seq );
+			
+			try
+			{
+				while( this.committedSeq < seq )
+				{
+					GroupCommitter groupCommitter = this.committer;
+					if( groupCommitter == null || !groupCommitter.isRunning() )
+					{
+						throw new IOException( "group committer is not running" );
+					}
+					this.commitMonitor.wait( 
+							QUIESCENCE_POLLING_MILLIS + this.commitIntervalMillis );
+				}
+			}
+			catch( InterruptedException ie )
+			{
+				Thread.currentThread().interrupt();
+				throw new IOException( "interrupted while awaiting commit" );
+			}
+		}
+	}
+	
+	/**
+	 * Requests the mail with the passed sequence number to be committed 
+	 * without waiting for it.
+	 * 
+	 * @param seq - the sequence number returned by 
+	 * 		{@link #append(String, MailBuffer, long)}
+	 */
+	protected void requestCommit( long seq )
+	{
+		synchronized( this.commitMonitor )
+		{
+			if( seq > this.requestedSeq )
+			{
+				this.requestedSeq = seq;
+				this.commitMonitor.notifyAll();
+			}
+		}
+	}
+	
+	/**
+	 * Forces all appended mails and notifies the threads 
+	 * {@link #awaitCommit(long) awaiting} their commit.
+	 */
+	protected void commit()
+	{
+		long seq;
+		MailSegment segment;
+		synchronized( this.appendMonitor )
+		{
+			seq = this.appendedSeq;
+			segment = this.currentSegment;
+		}
+		
+		try
+		{
+			if( segment != null )
+			{
+				segment.force();
+			}
+		}
+		catch( ClosedChannelException cce )
+		{
+			//closed segments have been forced before
+		}
+		catch( IOException ioe )
+		{
+			log.error( "cannot force segment " + segment.getDataFile() + 
+					": " + ioe, ioe );
+			return;
+		}
+		
+		synchronized( this.commitMonitor )
+		{
+			if( seq > this.committedSeq )
+			{
+				this.commitCount.incrementAndGet();
+				this.committedMailCount.addAndGet( seq - this.committedSeq );
+				this.committedSeq = seq;
+			}
+			this.commitMonitor.notifyAll();
+		}
+	}
+	
+	/**
+	 * @return the names of all processed mails, 
+	 * 		relative to the processed directory
+	 * @see DysonStorage#getProcessedMailNames()
+	 */
+	@Override
+	public Collection<String> getProcessedMailNames()
+	{
+		return Collections.unmodifiableSet( this.mailIndex.keySet() );
+	}
+	
+	/**
+	 * @throws UnsupportedOperationException - always, the mails are 
+	 * 	kept in segments, see {@link #getProcessedMailNames()}
+	 * @see DysonStorage#getProcessedMailFiles()
+	 */
+	@Override
+	public Collection<File> getProcessedMailFiles()
+		throws UnsupportedOperationException
+	{
+		throw new UnsupportedOperationException( 
+				this.getClass().getName() + " keeps its mails in segments, " +
+				"they can only be listed by name" );
+	}
+	
+	/**
+	 * @param name - the name of a processed mail
+	 * @return the mail's data or <code>null</code> if there's no such mail
+	 * @throws IOException - if the mail cannot be read
+	 */
+	public InputStream openProcessedMail( String name ) throws IOException
+	{
+		MailSegment.Entry entry = this.mailIndex.get( name );
+		if( entry == null )
+		{
+			return null;
+		}
+		MailSegment segment = this.segments.get( entry.getSegmentId() );
+		if( segment == null )
+		{
+			return null;
+		}
+		return new ByteArrayInputStream( segment.read( entry ) );
+	}
+	
+	/**
+	 * @return a handle transferring the mail straight from its segment
+	 * @see DysonStorage#getProcessedMail(String)
+	 */
+	@Override
+	public StoredMail getProcessedMail( String name )
+	{
+		MailSegment.Entry entry = this.mailIndex.get( name );
+		if( entry == null )
+		{
+			return null;
+		}
+		MailSegment segment = this.segments.get( entry.getSegmentId() );
+		if( segment == null )
+		{
+			return null;
+		}
+		return new SegmentStoredMail( segment, entry );
+	}
+	
+	/**
+	 * Loads the newest mails in the segments, newest first, 
+	 * reading their headers from the segments.
+	 * 
+	 * @see DefaultDysonStorage#loadProcessedMails(int)
+	 */
+	@Override
+	protected void loadProcessedMails( int generation )
+	{
+		List<MailSegment.Entry> entries = 
+			new ArrayList<MailSegment.Entry>( this.mailIndex.values() );
+		Collections.sort( entries, new Comparator<MailSegment.Entry>() 
+		{
+			public int compare( MailSegment.Entry e1, MailSegment.Entry e2 )
+			{
+				if( e1.getSegmentId() != e2.getSegmentId() )
+				{
+					return e1.getSegmentId() > e2.getSegmentId() ? -1 : 1;
+				}
+				return e1.getOffset() > e2.getOffset() ? -1 : 
+					e1.getOffset() == e2.getOffset() ? 0 : 1;
+			}
+		});
+		
+		for( MailSegment.Entry entry : entries )
+		{
+			MailSegment segment = this.segments.get( entry.getSegmentId() );
+			if( segment == null )
+			{
+				continue;
+			}
+			try
+			{
+				byte[] head = segment.read( entry, MAX_INDEXED_HEADER_SIZE );
+				if( !this.fireMailLoaded( generation, entry.getName(), 
+						MailHeaders.wrap( head, head.length ), 
+						entry.getStoredMillis() ) )
+				{
+					return;
+				}
+			}
+			catch( IOException ioe )
+			{
+				log.debug( "cannot index mail {}: {}", entry.getName(), ioe );
+			}
+		}
+	}
+	
+	/**
+	 * @return the number of mails in the segments
+	 * @see DysonStorage#getProcessedMailCount()
+	 */
+	@Override
+	public int getProcessedMailCount()
+	{
+		return this.mailIndex.size();
+	}
+	
+	/**
+	 * Closes the segments, clears the processed directory and 
+	 * opens a new segment.
+	 * 
+	 * @see DefaultDysonStorage#clearProcessedDir()
+	 */
+	@Override
+	public void clearProcessedDir() throws IOException
+	{
+		this.processedDirLock.writeLock().lock();
+		try
+		{
+			boolean wereOpen;
+			synchronized( this.appendMonitor )
+			{
+				wereOpen = this.currentSegment != null;
+				this.closeSegments();
+			}
+			super.clearProcessedDir();
+			if( wereOpen )
+			{
+				this.openSegments();
+			}
+		}
+		finally
+		{
+			this.processedDirLock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Additionally requires all appended mails to be committed.
+	 * 
+	 * @see DefaultDysonStorage#isQuiescent()
+	 */
+	@Override
+	public boolean isQuiescent()
+	{
+		long appended;
+		synchronized( this.appendMonitor )
+		{
+			appended = this.appendedSeq;
+		}
+		synchronized( this.commitMonitor )
+		{
+			if( this.committedSeq < appended )
+			{
+				return false;
+			}
+		}
+		return super.isQuiescent();
+	}
+	
+	/**
+	 * Adds the segment and group commit gauges.
+	 * 
+	 * @see DefaultDysonStorage#getRuntimeInformation()
+	 */
+	@Override
+	public Map<String, String> getRuntimeInformation()
+	{
+		Map<String, String> info = super.getRuntimeInformation();
+		
+		long size = 0;
+		for( MailSegment segment : this.segments.values() )
+		{
+			size += segment.getSize();
+		}
+		long commits = this.commitCount.get();
+		long committedMails = this.committedMailCount.get();
+		
+		info.put( "storage.segment.count", 
+				String.valueOf( this.segments.size() ) );
+		info.put( "storage.segment.size.bytes", String.valueOf( size ) );
+		info.put( "storage.segment.mail.count", 
+				String.valueOf( this.mailIndex.size() ) );
+		info.put( "storage.segment.commit.count", String.valueOf( commits ) );
+		info.put( "storage.segment.committed.mail.count", 
+				String.valueOf( committedMails ) );
+		info.put( "storage.segment.mails.per.commit", 
+				String.valueOf( commits > 0 ? committedMails / commits : 0 ) );
+		
+		return info;
+	}
+	
+}//class SegmentDysonStorage
@@ -0,0 +1,354 @@
+/**
+ *   (c) Copyright 2007-2010 by emarsys eMarketing Systems AG
+ * 
+ *   This file is part of dyson.
+ *
+ *   dyson is free software; you can redistribute it and/or modify
+ *   it under the terms of the GNU Lesser General Public License as published by
+ *   the Free Software Foundation; either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   dyson is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.emarsys.dyson.storage;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.emarsys.dyson.DysonConfig;
+import com.emarsys.dyson.DysonException;
+
+/**
+ * <p>
+ * Recovers the incoming directory of a {@link DefaultDysonStorage} 
+ * left behind by a crashed dyson before the storage's delivered mail 
+ * processors are started.
+ * </p><p>
+ * The shards of the incoming directory are recovered in parallel, each 
+ * by a single task which
+ * <ul>
+ * 	<li>handles the partially written mails as configured by 
+ * 		{@link DysonConfig#STORAGE_RECOVERY_PART_FILES}, and</li>
+ * 	<li>moves the completely written mails (including the completed 
+ * 		partial ones) in batches into the processed directory, in the 
+ * 		order they have been accepted.</li>
+ * </ul>
+ * </p>
+ * @author <a href="mailto:kulovits@emarsys.com">Michael "kULO" Kulovits</a>
+ */
+public class StartupRecovery
+{
+	private static final Logger log = 
+		LoggerFactory.getLogger( StartupRecovery.class );
+	
+	/**
+	 * What to do with partially written mails.
+	 * 
+	 * @see DysonConfig#STORAGE_RECOVERY_PART_FILES
+	 */
+	public enum PartFileRecovery
+	{
+		/** move them to the quarantine directory */
+		QUARANTINE,
+		/** process them as if they had been written completely */
+		COMPLETE,
+		/** delete them */
+		DELETE;
+	}//enum PartFileRecovery
+	
+	/**
+	 * A mail file with its accept time parsed once, as parsing it on 
+	 * every comparison would dominate sorting a large shard.
+	 */
+	protected static class ArrivedMail implements Comparable<ArrivedMail>
+	{
+		protected final File file;
+		protected final String name;
+		protected final long acceptTime;
+		
+		protected ArrivedMail( File file )
+		{
+			this.file = file;
+			this.name = file.getName();
+			this.acceptTime = IncomingFileNameGenerator.parseAcceptTime( this.name );
+		}
+		
+		/** orders by accept time, i.e. by arrival */
+		public int compareTo( ArrivedMail other )
+		{
+			if( this.acceptTime != other.acceptTime )
+			{
+				return this.acceptTime < other.acceptTime ? -1 : 1;
+			}
+			return this.name.compareTo( other.name );
+		}
+	}//class ArrivedMail
+	
+	protected final DefaultDysonStorage storage;
+	protected final PartFileRecovery partFileRecovery;
+	protected final File quarantineDir;
+	
+	protected final AtomicInteger partFileCount = new AtomicInteger();
+	protected final AtomicInteger mailCount = new AtomicInteger();
+	protected final AtomicLong durationMillis = new AtomicLong();
+	
+	/**
+	 * @param storage - the storage to recover
+	 * @param partFileRecovery - what to do with partially written mails
+	 * @param quarantineDir - where to move quarantined mails to
+	 */
+	public StartupRecovery( 
+			DefaultDysonStorage storage, PartFileRecovery partFileRecovery, 
+			File quarantineDir )
+	{
+		this.storage = storage;
+		this.partFileRecovery = partFileRecovery;
+		this.quarantineDir = quarantineDir;
+	}
+	
+	/**
+	 * Recovers the passed shards of the incoming directory in parallel 
+	 * and returns once all of them are recovered.
+	 * 
+	 * @param shardDirs - the directories of the shards
+	 */
+	public void recover( List<File> shardDirs )
+	{
+		long start = System.currentTimeMillis();
+		int threads = Math.max( 1, Math.min( shardDirs.size(), 
+				Runtime.getRuntime().availableProcessors() ) );
+		
+		ExecutorService executor = Executors.newFixedThreadPool( 
+				threads, new ThreadFactory()
+				{
+					private final AtomicInteger count = new AtomicInteger();
+					
+					public Thread newThread( Runnable r )
+					{
+						Thread th = new Thread( r, "StartupRecovery-" + 
+								this.count.incrementAndGet() );
+						th.setDaemon( true );
+						return th;
+					}
+				});
+		try
+		{
+			List<Callable<Object>> tasks = 
+				new ArrayList<Callable<Object>>( shardDirs.size() );
+			for( final File shardDir : shardDirs )
+			{
+				tasks.add( new Callable<Object>()
+				{
+					public Object call()
+					{
+						recoverShard( shardDir );
+						return null;
+					}
+				});
+			}
+			executor.invokeAll( tasks );
+		}
+		catch( InterruptedException ie )
+		{
+			Thread.currentThread().interrupt();
+			throw new DysonException( "interrupted recovering " + 
+					shardDirs, ie );
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+		
+		this.durationMillis.set( System.currentTimeMillis() - start );
+		if( this.partFileCount.get() > 0 || this.mailCount.get() > 0 )
+		{
+			log.info( "recovered {} mails and {} partially written mails " +
+					"in {}ms", new Object[] { this.mailCount.get(), 
+					this.partFileCount.get(), this.durationMillis.get() } );
+		}
+	}
+	
+	/**
+	 * Recovers the partial and complete mail files of a single shard.
+	 */
+	protected void recoverShard( File shardDir )
+	{
+		String mailSuffix = "." + this.storage.getMailFileSuffix();
+		String partSuffix = this.storage.getMailPartialFileSuffix();
+		List<File> mails = new ArrayList<File>();
+		List<File> partFiles = new ArrayList<File>();
+		this.listFiles( shardDir, mailSuffix, mails, partSuffix, partFiles );
+		
+		for( File partFile : partFiles )
+		{
+			this.partFileCount.incrementAndGet();
+			File completed = this.recoverPartFile( partFile, partSuffix );
+			if( completed != null )
+			{
+				mails.add( completed );
+			}
+		}
+		
+		sortByArrival( mails );
+		this.mailCount.addAndGet( mails.size() );
+		
+		File processedDir = new File( this.storage.getProcessedDirName() );
+		int batchSize = Math.max( 1, this.storage.moverBatchSize );
+		for( int from = 0; from < mails.size(); from += batchSize )
+		{
+			this.storage.moveBatch( new ArrayList<File>( mails.subList( 
+					from, Math.min( mails.size(), from + batchSize ) ) ), 
+					processedDir );
+		}
+	}
+	
+	/**
+	 * Sorts the passed mail files by their accept time, i.e. by arrival.
+	 */
+	protected static void sortByArrival( List<File> mails )
+	{
+		List<ArrivedMail> arrived = new ArrayList<ArrivedMail>( mails.size() );
+		for( File mail : mails )
+		{
+			arrived.add( new ArrivedMail( mail ) );
+		}
+		Collections.sort( arrived );
+		
+		mails.clear();
+		for( ArrivedMail mail : arrived )
+		{
+			mails.add( mail.file );
+		}
+	}
+	
+	/**
+	 * Collects the complete and the partial mail files in the passed 
+	 * directory and its (non-hidden) subdirectories in a single pass.
+	 */
+	protected void listFiles( 
+			File dir, String mailSuffix, List<File> mails, 
+			String partSuffix, List<File> partFiles )
+	{
+		File[] files = dir.listFiles();
+		if( files == null )
+		{
+			return;
+		}
+		for( File file : files )
+		{
+			String name = file.getName();
+			if( name.endsWith( mailSuffix ) )
+			{
+				mails.add( file );
+			}
+			else if( name.endsWith( partSuffix ) )
+			{
+				partFiles.add( file );
+			}
+			else if( !name.startsWith( "." ) && file.isDirectory() )
+			{
+				this.listFiles( file, mailSuffix, mails, partSuffix, partFiles );
+			}
+		}
+	}
+	
+	/**
+	 * Handles a single partially written mail.
+	 * 
+	 * @return the completed mail file to be moved or <code>null</code>
+	 */
+	protected File recoverPartFile( File partFile, String partSuffix )
+	{
+		switch( this.partFileRecovery )
+		{
+			case COMPLETE:
+				String name = partFile.getName();
+				File mailFile = new File( partFile.getParentFile(), 
+						name.substring( 0, name.length() - partSuffix.length() ) + 
+						"." + this.storage.getMailFileSuffix() );
+				if( partFile.renameTo( mailFile ) )
+				{
+					log.warn( "completed partially written mail {}", mailFile );
+					return mailFile;
+				}
+				log.error( "cannot complete partially written mail {}", partFile );
+				return null;
+				
+			case DELETE:
+				if( partFile.delete() )
+				{
+					log.warn( "deleted partially written mail {}", partFile );
+				}
+				else
+				{
+					log.error( "cannot delete partially written mail {}", partFile );
+				}
+				return null;
+				
+			default:
+				this.storage.createDirsIfNotPresent( this.quarantineDir.getPath() );
+				File quarantined = new File( 
+						this.quarantineDir, partFile.getName() );
+				if( partFile.renameTo( quarantined ) )
+				{
+					log.warn( "quarantined partially written mail {}", quarantined );
+				}
+				else
+				{
+					log.error( "cannot quarantine partially written mail {} " +
+							"to {}", partFile, this.quarantineDir );
+				}
+				return null;
+		}
+	}
+	
+	/**
+	 * @return the directory quarantined mails are moved to
+	 */
+	public File getQuarantineDir()
+	{
+		return this.quarantineDir;
+	}
+	
+	/**
+	 * @return the number of partially written mails found
+	 */
+	public int getPartFileCount()
+	{
+		return this.partFileCount.get();
+	}
+	
+	/**
+	 * @return the number of mails moved into the processed directory
+	 */
+	public int getMailCount()
+	{
+		return this.mailCount.get();
+	}
+	
+	/**
+	 * @return the duration of the last {@link #recover(List) recovery}
+	 */
+	public long getDurationMillis()
+	{
+		return this.durationMillis.get();
+	}
+	
+}//class StartupRecovery
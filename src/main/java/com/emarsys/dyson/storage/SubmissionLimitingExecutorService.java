@@ -0,0 +1,156 @@
+/**
+ *   (c) Copyright 2007-2010 by emarsys eMarketing Systems AG
+ * 
+ *   This file is part of dyson.
+ *
+ *   dyson is free software; you can redistribute it and/or modify
+ *   it under the terms of the GNU Lesser General Public License as published by
+ *   the Free Software Foundation; either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   dyson is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.emarsys.dyson.storage;
+
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * An {@link ExecutorService} that limits the number of tasks being 
+ * submitted to but not yet completed by an otherwise unbounded 
+ * delegate executor (e.g. a thread-per-task executor).
+ * </p><p>
+ * If the limit is reached, {@link #execute(Runnable) submitting} 
+ * further tasks blocks for up to the configured timeout before the
+ * task is rejected with a {@link RejectedExecutionException}.
+ * </p>
+ * 
+ * @author <a href="mailto:kulovits@emarsys.com">Michael "kULO" Kulovits</a>
+ */
+public class SubmissionLimitingExecutorService extends AbstractExecutorService
+{
+	protected final ExecutorService delegate;
+	protected final Semaphore permits;
+	protected final long timeoutMillis;
+	
+	/**
+	 * @param delegate - the executor actually running the tasks
+	 * @param maxPendingTasks - the maximum number of submitted but 
+	 * 		not yet completed tasks
+	 * @param timeoutMillis - the maximum time to block on submission
+	 */
+	public SubmissionLimitingExecutorService( ExecutorService delegate, 
+			int maxPendingTasks, long timeoutMillis )
+	{
+		this.delegate = delegate;
+		this.permits = new Semaphore( maxPendingTasks );
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	/**
+	 * @see java.util.concurrent.Executor#execute(java.lang.Runnable)
+	 */
+	public void execute( final Runnable task )
+	{
+		if( this.isShutdown() )
+		{
+			throw new RejectedExecutionException( 
+					"executor has been shut down" );
+		}
+		
+		try
+		{
+			if( !this.permits.tryAcquire( 
+					this.timeoutMillis, TimeUnit.MILLISECONDS ) )
+			{
+				throw new RejectedExecutionException( 
+						"executor is still saturated after " + 
+						this.timeoutMillis + "ms" );
+			}
+		}
+		catch( InterruptedException ie )
+		{
+			Thread.currentThread().interrupt();
+			throw new RejectedExecutionException( 
+					"interrupted while waiting for the saturated executor", ie );
+		}
+		
+		Runnable releasingTask = new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					task.run();
+				}
+				finally
+				{
+					permits.release();
+				}
+			}
+		};
+		
+		try
+		{
+			this.delegate.execute( releasingTask );
+		}
+		catch( RejectedExecutionException ree )
+		{
+			this.permits.release();
+			throw ree;
+		}
+	}
+
+	/**
+	 * @see java.util.concurrent.ExecutorService#shutdown()
+	 */
+	public void shutdown()
+	{
+		this.delegate.shutdown();
+	}
+
+	/**
+	 * @see java.util.concurrent.ExecutorService#shutdownNow()
+	 */
+	public List<Runnable> shutdownNow()
+	{
+		return this.delegate.shutdownNow();
+	}
+
+	/**
+	 * @see java.util.concurrent.ExecutorService#isShutdown()
+	 */
+	public boolean isShutdown()
+	{
+		return this.delegate.isShutdown();
+	}
+
+	/**
+	 * @see java.util.concurrent.ExecutorService#isTerminated()
+	 */
+	public boolean isTerminated()
+	{
+		return this.delegate.isTerminated();
+	}
+
+	/**
+	 * @see java.util.concurrent.ExecutorService#awaitTermination(long, java.util.concurrent.TimeUnit)
+	 */
+	public boolean awaitTermination( long timeout, TimeUnit unit )
+		throws InterruptedException
+	{
+		return this.delegate.awaitTermination( timeout, unit );
+	}
+	
+}//class SubmissionLimitingExecutorService
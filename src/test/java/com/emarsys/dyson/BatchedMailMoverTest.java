@@ -0,0 +1,117 @@
+/**
+ *   (c) Copyright 2007-2010 by emarsys eMarketing Systems AG
+ *
+ *   This file is part of dyson.
+ *
+ *   dyson is free software; you can redistribute it and/or modify
+ *   it under the terms of the GNU Lesser General Public License as published by
+ *   the Free Software Foundation; either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   dyson is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.emarsys.dyson;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Message.RecipientType;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that batches of mails to the same recipient, whose storage 
+ * locations resolve to the same file, are all kept in the processed 
+ * directory.
+ *
+ * @author <a href="mailto:kulovits@emarsys.com">Michael "kULO" Kulovits</a>
+ */
+@Test
+public class BatchedMailMoverTest
+{
+	protected static final String BASE_DIR = "./tmp/mover";
+	protected static final int NBR_OF_MAILS = 500;
+	
+	private DysonServer server;
+	private final Properties props = new Properties();
+	
+	@AfterMethod
+	public void stopServer() throws IOException
+	{
+		if( this.server != null )
+		{
+			this.server.getStorage().clearIncomingDir();
+			this.server.getStorage().clearProcessedDir();
+			this.server.stop();
+			this.server.getStorage().awaitTermination( 5, TimeUnit.SECONDS );
+			this.server = null;
+		}
+		for( Object key : this.props.keySet() )
+		{
+			System.clearProperty( key.toString() );
+		}
+	}
+	
+	@Test
+	public void testSameRecipientBatches() throws Exception
+	{
+		FileUtils.deleteDirectory( new File( BASE_DIR ) );
+		
+		this.props.setProperty( DysonConfig.REST_SERVER_PORT, "16080" );
+		this.props.setProperty( DysonConfig.SMTP_PORT, "16025" );
+		this.props.setProperty( DysonConfig.SMTP_DISCARD_RECIPIENTS_ENABLED, "false" );
+		this.props.setProperty( DysonConfig.STORAGE_PROCESSOR_MODE, "POLLING" );
+		this.props.setProperty( DysonConfig.STORAGE_MOVER_BATCH_SIZE, "256" );
+		this.props.setProperty( DysonConfig.STORAGE_DIR_INCOMING, BASE_DIR + "/incoming" );
+		this.props.setProperty( DysonConfig.STORAGE_DIR_PROCESSED, BASE_DIR + "/processed" );
+		this.props.setProperty( DysonConfig.STORAGE_DIR_QUARANTINE, BASE_DIR + "/quarantine" );
+		System.getProperties().putAll( this.props );
+		
+		this.server = new DysonServer();
+		this.server.start();
+		
+		Session session = this.server.getJMailSession();
+		Transport transport = session.getTransport( "smtp" );
+		transport.connect();
+		try
+		{
+			for( int i = 0; i < NBR_OF_MAILS; ++i )
+			{
+				MimeMessage mail = new MimeMessage( session );
+				mail.setFrom( new InternetAddress( "dyson.mover@example.org" ) );
+				mail.setRecipient( RecipientType.TO, 
+						new InternetAddress( "same.recipient@example.org" ) );
+				mail.setSubject( "dyson mover test " + i );
+				mail.setText( "mail #" + i );
+				mail.saveChanges();
+				transport.sendMessage( mail, mail.getAllRecipients() );
+			}
+		}
+		finally
+		{
+			transport.close();
+		}
+		
+		DysonStorage storage = this.server.getStorage();
+		Assert.assertTrue( storage.awaitQuiescence( 60, TimeUnit.SECONDS ), 
+				"storage did not finish processing" );
+		Assert.assertEquals( storage.getIncomingMailFiles().size(), 0 );
+		Assert.assertEquals( storage.getProcessedMailCount(), NBR_OF_MAILS );
+	}
+	
+}//class BatchedMailMoverTest
@@ -0,0 +1,357 @@
+/**
+ *   (c) Copyright 2007-2010 by emarsys eMarketing Systems AG
+ * 
+ *   This file is part of dyson.
+ *
+ *   dyson is free software; you can redistribute it and/or modify
+ *   it under the terms of the GNU Lesser General Public License as published by
+ *   the Free Software Foundation; either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   dyson is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.emarsys.dyson;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.Message.RecipientType;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.emarsys.dyson.DysonStatistics.Latency;
+import com.emarsys.dyson.DysonStatistics.MailEvent;
+
+/**
+ * <p>
+ * An end-to-end capacity test for dyson: starts a {@link DysonServer}, 
+ * sends mails from several concurrent SMTP connections, 
+ * {@link DysonStorage#awaitQuiescence(long, TimeUnit) waits} until all 
+ * of them have been processed and reports the sustained throughput as 
+ * well as the percentiles of the {@link Latency#ACCEPTED_TO_PROCESSED 
+ * accept to processed latency}.
+ * </p><p>
+ * The harness is configured using system properties: the dyson server 
+ * by the usual {@link DysonConfig settings}, the load by:
+ * <ul>
+ * 	<li>{@value #NBR_OF_MAILS} - the total number of mails 
+ * 		(default: {@value #NBR_OF_MAILS_DEFAULT})</li>
+ * 	<li>{@value #CONCURRENCY} - the number of concurrent SMTP connections 
+ * 		(default: {@value #CONCURRENCY_DEFAULT})</li>
+ * 	<li>{@value #MAIL_SIZES} - the distribution of the mail sizes as 
+ * 		comma separated <tt>size in bytes:weight</tt> pairs
+ * 		(default: {@value #MAIL_SIZES_DEFAULT})</li>
+ * 	<li>{@value #TIMEOUT_SECONDS} - how long to wait for the mails to 
+ * 		be processed (default: {@value #TIMEOUT_SECONDS_DEFAULT})</li>
+ * </ul>
+ * </p>
+ * 
+ * @author <a href="mailto:kulovits@emarsys.com">Michael "kULO" Kulovits</a>
+ */
+public class DysonLoadHarness
+{
+	private static final Logger log = 
+		LoggerFactory.getLogger( DysonLoadHarness.class );
+	
+	public static final String NBR_OF_MAILS = "dyson.load.nbr.of.mails";
+	public static final String NBR_OF_MAILS_DEFAULT = "10000";
+	public static final String CONCURRENCY = "dyson.load.concurrency";
+	public static final String CONCURRENCY_DEFAULT = "16";
+	public static final String MAIL_SIZES = "dyson.load.mail.sizes";
+	public static final String MAIL_SIZES_DEFAULT = "1024:80,10240:15,51200:5";
+	public static final String TIMEOUT_SECONDS = "dyson.load.timeout.seconds";
+	public static final String TIMEOUT_SECONDS_DEFAULT = "600";
+	
+	/**
+	 * The result of a load run.
+	 */
+	public static class Result
+	{
+		public int sent;
+		public int failed;
+		public int processed;
+		public boolean quiescent;
+		public long elapsedMillis;
+		public Map<String, String> runtimeInformation;
+		
+		/**
+		 * @return the sustained number of processed mails per second
+		 */
+		public double getMailsPerSecond()
+		{
+			return this.elapsedMillis == 0 ? 0.0 : 
+				this.processed * 1000.0 / this.elapsedMillis;
+		}
+		
+		/**
+		 * @param percentile - e.g. <tt>p99</tt>
+		 * @return the accept to processed latency at the passed percentile
+		 */
+		public String getLatency( String percentile )
+		{
+			return this.runtimeInformation.get( 
+					Latency.ACCEPTED_TO_PROCESSED.getKey() + 
+					"." + percentile + ".millis" );
+		}
+		
+		@Override
+		public String toString()
+		{
+			return String.format( "sent=%d, failed=%d, processed=%d, " +
+					"quiescent=%b, elapsed=%dms, throughput=%.1f mails/s, " +
+					"latency p50=%sms, p99=%sms, p999=%sms, max=%sms", 
+					this.sent, this.failed, this.processed, this.quiescent, 
+					this.elapsedMillis, this.getMailsPerSecond(), 
+					this.getLatency( "p50" ), this.getLatency( "p99" ), 
+					this.getLatency( "p999" ), this.runtimeInformation.get( 
+							Latency.ACCEPTED_TO_PROCESSED.getKey() + ".max.millis" ) );
+		}
+	}//class Result
+	
+	protected final int nbrOfMails;
+	protected final int concurrency;
+	protected final int[] mailSizes;
+	protected final int[] cumulativeWeights;
+	protected final long timeoutSeconds;
+	
+	/**
+	 * Creates a harness configured by the system properties.
+	 */
+	public DysonLoadHarness()
+	{
+		this( Integer.getInteger( NBR_OF_MAILS, 
+					Integer.parseInt( NBR_OF_MAILS_DEFAULT ) ), 
+			Integer.getInteger( CONCURRENCY, 
+					Integer.parseInt( CONCURRENCY_DEFAULT ) ),
+			System.getProperty( MAIL_SIZES, MAIL_SIZES_DEFAULT ),
+			Long.getLong( TIMEOUT_SECONDS, 
+					Long.parseLong( TIMEOUT_SECONDS_DEFAULT ) ) );
+	}
+	
+	/**
+	 * @param nbrOfMails - the total number of mails to send
+	 * @param concurrency - the number of concurrent SMTP connections
+	 * @param mailSizes - the mail size distribution, 
+	 * 		e.g. <tt>1024:80,102400:20</tt>
+	 * @param timeoutSeconds - the maximum time to wait for the 
+	 * 		mails to be processed
+	 */
+	public DysonLoadHarness( int nbrOfMails, int concurrency, 
+			String mailSizes, long timeoutSeconds )
+	{
+		String[] sizes = mailSizes.split( "," );
+		
+		this.nbrOfMails = nbrOfMails;
+		this.concurrency = concurrency;
+		this.timeoutSeconds = timeoutSeconds;
+		this.mailSizes = new int[ sizes.length ];
+		this.cumulativeWeights = new int[ sizes.length ];
+		
+		for( int i = 0, weights = 0; i < sizes.length; ++i )
+		{
+			String[] sizeAndWeight = sizes[ i ].trim().split( ":" );
+			this.mailSizes[ i ] = Integer.parseInt( sizeAndWeight[ 0 ] );
+			weights += sizeAndWeight.length > 1 ? 
+					Integer.parseInt( sizeAndWeight[ 1 ] ) : 1;
+			this.cumulativeWeights[ i ] = weights;
+		}
+	}
+	
+	/**
+	 * Sends the mails to the passed (running) server and waits until 
+	 * they have been processed.
+	 * 
+	 * @param server - a started dyson server with an empty storage
+	 * @return the result of the run
+	 */
+	public Result run( DysonServer server ) 
+		throws MessagingException, InterruptedException
+	{
+		final Session session = server.getJMailSession();
+		final List<MimeMessage> mails = this.newMails( session );
+		final AtomicInteger remaining = new AtomicInteger( this.nbrOfMails );
+		final AtomicInteger sent = new AtomicInteger( 0 );
+		final AtomicInteger failed = new AtomicInteger( 0 );
+		final CountDownLatch finished = new CountDownLatch( this.concurrency );
+		
+		log.info( "sending {} mails using {} connections", 
+				this.nbrOfMails, this.concurrency );
+		long start = System.currentTimeMillis();
+		
+		for( int i = 0; i < this.concurrency; ++i )
+		{
+			final Random random = new Random( i );
+			Thread sender = new Thread( "dyson-load-sender-" + i )
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						sendMails( session, mails, random, remaining, sent, failed );
+					}
+					finally
+					{
+						finished.countDown();
+					}
+				}
+			};
+			sender.start();
+		}
+		
+		finished.await();
+		log.info( "sent {} mails ({} failed), waiting for processing", 
+				sent.get(), failed.get() );
+		
+		Result result = new Result();
+		result.quiescent = server.getStorage().awaitQuiescence( 
+				this.timeoutSeconds, TimeUnit.SECONDS );
+		result.elapsedMillis = System.currentTimeMillis() - start;
+		result.sent = sent.get();
+		result.failed = failed.get();
+		result.runtimeInformation = server.getRuntimeInformation();
+		result.processed = Integer.parseInt( result.runtimeInformation.get( 
+				MailEvent.MAIL_PROCESSED.getKey() ) );
+		
+		return result;
+	}
+	
+	/**
+	 * Sends mails using a single SMTP connection until there are no 
+	 * more mails remaining.
+	 */
+	protected void sendMails( Session session, List<MimeMessage> mails, 
+			Random random, AtomicInteger remaining, 
+			AtomicInteger sent, AtomicInteger failed )
+	{
+		Transport transport = null;
+		try
+		{
+			transport = session.getTransport( "smtp" );
+			transport.connect();
+			
+			while( remaining.getAndDecrement() > 0 )
+			{
+				MimeMessage mail = mails.get( this.nextMailIndex( random ) );
+				try
+				{
+					transport.sendMessage( mail, mail.getAllRecipients() );
+					sent.incrementAndGet();
+				}
+				catch( MessagingException me )
+				{
+					log.warn( "cannot send mail: " + me );
+					failed.incrementAndGet();
+				}
+			}
+		}
+		catch( MessagingException me )
+		{
+			log.error( "cannot connect to dyson: " + me, me );
+		}
+		finally
+		{
+			if( transport != null )
+			{
+				try
+				{
+					transport.close();
+				}
+				catch( MessagingException me )
+				{
+					log.warn( "cannot close connection: " + me );
+				}
+			}
+		}
+	}
+	
+	/**
+	 * @return the index of a mail size chosen by the size distribution
+	 */
+	protected int nextMailIndex( Random random )
+	{
+		int value = random.nextInt( 
+				this.cumulativeWeights[ this.cumulativeWeights.length - 1 ] );
+		for( int i = 0; i < this.cumulativeWeights.length; ++i )
+		{
+			if( value < this.cumulativeWeights[ i ] )
+			{
+				return i;
+			}
+		}
+		return this.cumulativeWeights.length - 1;
+	}
+	
+	/**
+	 * @return a mail per configured mail size
+	 */
+	protected List<MimeMessage> newMails( Session session ) 
+		throws MessagingException
+	{
+		List<MimeMessage> mails = new ArrayList<MimeMessage>();
+		
+		for( int size : this.mailSizes )
+		{
+			StringBuilder text = new StringBuilder( size );
+			while( text.length() < size )
+			{
+				text.append( "dyson load harness - the quick brown fox " +
+						"jumps over the lazy dog\r\n" );
+			}
+			text.setLength( size );
+			
+			MimeMessage mail = new MimeMessage( session );
+			mail.setFrom( new InternetAddress( "dyson.load@example.org" ) );
+			mail.setRecipient( RecipientType.TO, 
+					new InternetAddress( "load" + size + "@example.org" ) );
+			mail.setSubject( "dyson load test, " + size + " bytes" );
+			mail.setText( text.toString() );
+			mail.saveChanges();
+			mails.add( mail );
+		}
+		return mails;
+	}
+	
+	/**
+	 * Runs the harness against a new {@link DysonServer} configured by 
+	 * the system properties and logs the result.
+	 */
+	public static void main( String[] args ) 
+		throws MessagingException, InterruptedException, IOException
+	{
+		DysonServer server = new DysonServer();
+		server.getStorage().clearIncomingDir();
+		server.getStorage().clearProcessedDir();
+		server.start();
+		
+		try
+		{
+			Result result = new DysonLoadHarness().run( server );
+			log.info( "load test result: {}", result );
+		}
+		finally
+		{
+			server.stop();
+			server.getStorage().awaitTermination( 5, TimeUnit.SECONDS );
+		}
+	}
+	
+}//class DysonLoadHarness
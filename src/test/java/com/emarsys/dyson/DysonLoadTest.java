@@ -32,7 +32,6 @@ import org.testng.annotations.AfterMethod;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
-import com.emarsys.ecommon.concurrent.Threads;
 import com.emarsys.ecommon.mail.test.SmtpBomber;
 import com.emarsys.ecommon.test.TestData;
 import com.emarsys.ecommon.time.Dates;
@@ -143,6 +142,63 @@ public class DysonLoadTest
 		props.setProperty( SmtpBomber.SMTP_BOMBER_SEND_DELAY_MILLIS, "0" );
 		data.addParams( props );
 		
+		//#4 virtual threads (falls back to a bounded pool before java 21)
+		props = new Properties();
+		props.setProperty( DysonConfig.REST_SERVER_PORT, "14080" );
+		props.setProperty( DysonConfig.SMTP_PORT, "14025" );
+		props.setProperty( DysonConfig.SMTP_MAX_CONNECTIONS, "10000" ); 
+		props.setProperty( DysonConfig.STORAGE_EXECUTOR, "VIRTUAL" ); 
+		props.setProperty( DysonConfig.STORAGE_DIR_INCOMING, "./tmp/4/incoming" );
+		props.setProperty( DysonConfig.STORAGE_DIR_PROCESSED, "./tmp/4/processed" );
+		props.setProperty( SmtpBomber.SMTP_BOMBER_NBR_OF_MAILS, "1000" );
+		props.setProperty( SmtpBomber.SMTP_BOMBER_MAIL_TEXT_SIZE, "1000" );
+		props.setProperty( SmtpBomber.SMTP_BOMBER_SEND_DELAY_MILLIS, "0" );
+		data.addParams( props );
+		
+		//#5 durable writes, forcing the mail files and their renames
+		props = new Properties();
+		props.setProperty( DysonConfig.REST_SERVER_PORT, "15080" );
+		props.setProperty( DysonConfig.SMTP_PORT, "15125" );
+		props.setProperty( DysonConfig.SMTP_MAX_CONNECTIONS, "10000" ); 
+		props.setProperty( DysonConfig.SMTP_DISCARD_RECIPIENTS_ENABLED, "false" );
+		props.setProperty( DysonConfig.STORAGE_DURABLE_WRITE_ENABLED, "true" ); 
+		props.setProperty( DysonConfig.STORAGE_DIR_INCOMING, "./tmp/5/incoming" );
+		props.setProperty( DysonConfig.STORAGE_DIR_PROCESSED, "./tmp/5/processed" );
+		props.setProperty( SmtpBomber.SMTP_BOMBER_NBR_OF_MAILS, "200" );
+		props.setProperty( SmtpBomber.SMTP_BOMBER_MAIL_TEXT_SIZE, "1000" );
+		props.setProperty( SmtpBomber.SMTP_BOMBER_SEND_DELAY_MILLIS, "0" );
+		data.addParams( props );
+		
+		//#6 segment storage, counted by name as it has no mail files
+		props = new Properties();
+		props.setProperty( DysonConfig.REST_SERVER_PORT, "17080" );
+		props.setProperty( DysonConfig.SMTP_PORT, "17025" );
+		props.setProperty( DysonConfig.SMTP_MAX_CONNECTIONS, "10000" ); 
+		props.setProperty( DysonConfig.SMTP_DISCARD_RECIPIENTS_ENABLED, "false" );
+		props.setProperty( DysonConfig.STORAGE_CLASS, 
+				"com.emarsys.dyson.storage.SegmentDysonStorage" ); 
+		props.setProperty( DysonConfig.STORAGE_DIR_INCOMING, "./tmp/6/incoming" );
+		props.setProperty( DysonConfig.STORAGE_DIR_PROCESSED, "./tmp/6/processed" );
+		props.setProperty( SmtpBomber.SMTP_BOMBER_NBR_OF_MAILS, "200" );
+		props.setProperty( SmtpBomber.SMTP_BOMBER_MAIL_TEXT_SIZE, "1000" );
+		props.setProperty( SmtpBomber.SMTP_BOMBER_SEND_DELAY_MILLIS, "0" );
+		data.addParams( props );
+		
+		//#7 memory storage, counted by name as it has no mail files
+		props = new Properties();
+		props.setProperty( DysonConfig.REST_SERVER_PORT, "18080" );
+		props.setProperty( DysonConfig.SMTP_PORT, "18025" );
+		props.setProperty( DysonConfig.SMTP_MAX_CONNECTIONS, "10000" ); 
+		props.setProperty( DysonConfig.SMTP_DISCARD_RECIPIENTS_ENABLED, "false" );
+		props.setProperty( DysonConfig.STORAGE_CLASS, 
+				"com.emarsys.dyson.storage.MemoryDysonStorage" ); 
+		props.setProperty( DysonConfig.STORAGE_DIR_INCOMING, "./tmp/7/incoming" );
+		props.setProperty( DysonConfig.STORAGE_DIR_PROCESSED, "./tmp/7/processed" );
+		props.setProperty( SmtpBomber.SMTP_BOMBER_NBR_OF_MAILS, "200" );
+		props.setProperty( SmtpBomber.SMTP_BOMBER_MAIL_TEXT_SIZE, "1000" );
+		props.setProperty( SmtpBomber.SMTP_BOMBER_SEND_DELAY_MILLIS, "0" );
+		data.addParams( props );
+		
 		return data.toArray();
 	}
 	
@@ -168,7 +224,7 @@ public class DysonLoadTest
 		
 		//check number of files
 		int processedFileCount = 
-			this.server.getStorage().getProcessedMailFiles().size();
+			this.server.getStorage().getProcessedMailCount();
 		int incomingFileCount = 
 			this.server.getStorage().getIncomingMailFiles().size();
 		
@@ -188,17 +244,18 @@ public class DysonLoadTest
 
 	protected void waitForMailsToBeProcessed() 
 	{
-		//TODO get proper state handling in dyson storage in order to be able to wait for it to finish processing
-		int sleepTime = this.bomber.getConfiguration().get(
+		int timeOut = this.bomber.getConfiguration().get(
 				SmtpBomber.SMTP_BOMBER_NBR_OF_MAILS ).getIntValue() * 10;
-		if( sleepTime / Dates.SECOND_IN_MILLIS <= 3 )
+		if( timeOut / Dates.SECOND_IN_MILLIS <= 30 )
 		{
-			sleepTime = Dates.SECOND_IN_MILLIS * 3;
+			timeOut = Dates.SECOND_IN_MILLIS * 30;
 		}
 
-		log.info( "waiting {} seconds for mails to be processed", 
-				sleepTime / Dates.SECOND_IN_MILLIS );
-		Threads.sleepSilently( sleepTime );
+		log.info( "waiting up to {} seconds for mails to be processed", 
+				timeOut / Dates.SECOND_IN_MILLIS );
+		Assert.assertTrue( this.server.getStorage().awaitQuiescence( 
+				timeOut, TimeUnit.MILLISECONDS ), 
+				"storage did not finish processing in time" );
 	}
 	
 }//class DysonLoadTest
@@ -0,0 +1,376 @@
+/**
+ *   (c) Copyright 2007-2010 by emarsys eMarketing Systems AG
+ *
+ *   This file is part of dyson.
+ *
+ *   dyson is free software; you can redistribute it and/or modify
+ *   it under the terms of the GNU Lesser General Public License as published by
+ *   the Free Software Foundation; either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   dyson is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.emarsys.dyson;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.Message.RecipientType;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import com.emarsys.dyson.storage.DefaultDysonStorage;
+import com.emarsys.dyson.storage.FileStoredMail;
+import com.emarsys.dyson.storage.MailBodyStore;
+import com.emarsys.dyson.storage.MailFileWriter;
+import com.emarsys.ecommon.io.IOUtil;
+
+/**
+ * Tests the deduplicating storage mode while the processed directory
+ * is cleared during ingestion: no stored mail may lose its body.
+ *
+ * @author <a href="mailto:kulovits@emarsys.com">Michael "kULO" Kulovits</a>
+ */
+@Test
+public class MailBodyDeduplicationTest
+{
+	private static Logger log =
+		LoggerFactory.getLogger( MailBodyDeduplicationTest.class );
+
+	protected static final String BASE_DIR = "./tmp/dedup";
+	protected static final int NBR_OF_SENDERS = 8;
+	protected static final int MAILS_PER_SENDER = 100;
+	protected static final String BODY_TEXT =
+		"dyson deduplication test - the quick brown fox jumps over the lazy dog";
+
+	private DysonServer server;
+	private final Properties props = new Properties();
+
+	@AfterMethod
+	public void stopServer() throws IOException
+	{
+		if( this.server != null )
+		{
+			this.server.getStorage().clearIncomingDir();
+			this.server.getStorage().clearProcessedDir();
+			this.server.stop();
+			this.server.getStorage().awaitTermination( 5, TimeUnit.SECONDS );
+			this.server = null;
+		}
+		for( Object key : this.props.keySet() )
+		{
+			System.clearProperty( key.toString() );
+		}
+	}
+
+	protected void startDyson( int smtpPort ) throws IOException
+	{
+		FileUtils.deleteDirectory( new File( BASE_DIR ) );
+		this.configure( smtpPort, BASE_DIR );
+
+		this.server = new DysonServer();
+		this.server.start();
+	}
+	
+	/**
+	 * sets the system properties configuring a dyson server with its 
+	 * mail directories in the passed directory
+	 */
+	protected void configure( int smtpPort, String mailDir )
+	{
+		this.props.setProperty( DysonConfig.REST_SERVER_PORT,
+				String.valueOf( smtpPort + 1 ) );
+		this.props.setProperty( DysonConfig.SMTP_PORT,
+				String.valueOf( smtpPort ) );
+		this.props.setProperty( DysonConfig.SMTP_DISCARD_RECIPIENTS_ENABLED, "false" );
+		this.props.setProperty( DysonConfig.STORAGE_DEDUP_ENABLED, "true" );
+		this.props.setProperty( DysonConfig.STORAGE_PROCESSOR_MODE, "EVENT_DRIVEN" );
+		this.props.setProperty( DysonConfig.STORAGE_DIR_INCOMING, mailDir + "/incoming" );
+		this.props.setProperty( DysonConfig.STORAGE_DIR_PROCESSED, mailDir + "/processed" );
+		this.props.setProperty( DysonConfig.STORAGE_DIR_QUARANTINE, mailDir + "/quarantine" );
+		this.props.setProperty( DysonConfig.STORAGE_DIR_BODIES, BASE_DIR + "/bodies" );
+		System.getProperties().putAll( this.props );
+	}
+
+	@Test
+	public void testClearProcessedDirDuringIngestion() throws Exception
+	{
+		this.startDyson( 15025 );
+
+		final Session session = this.server.getJMailSession();
+		final AtomicInteger failed = new AtomicInteger( 0 );
+		final CountDownLatch finished = new CountDownLatch( NBR_OF_SENDERS );
+
+		for( int i = 0; i < NBR_OF_SENDERS; ++i )
+		{
+			final int sender = i;
+			new Thread( "dyson-dedup-sender-" + i )
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						sendMails( session, sender, failed );
+					}
+					finally
+					{
+						finished.countDown();
+					}
+				}
+			}.start();
+		}
+
+		int clearings = 0;
+		while( !finished.await( 20, TimeUnit.MILLISECONDS ) )
+		{
+			this.server.getStorage().clearProcessedDir();
+			++clearings;
+		}
+		//the bodies of these mails have been collected before
+		this.sendMails( session, NBR_OF_SENDERS, failed );
+		Assert.assertEquals( failed.get(), 0, "mails could not be sent" );
+		Assert.assertTrue( this.server.getStorage().awaitQuiescence( 
+				60, TimeUnit.SECONDS ), "storage did not finish processing" );
+		log.info( "cleared the processed dir {} times", clearings );
+		
+		//waits for the collections triggered by the clearings
+		MailBodyStore bodies = ((DefaultDysonStorage) 
+				this.server.getStorage()).getDeduplicatingBodyStore();
+		List<File> mailDirs = new ArrayList<File>();
+		mailDirs.add( new File( this.server.getStorage().getIncomingDirName() ) );
+		mailDirs.add( new File( this.server.getStorage().getProcessedDirName() ) );
+		bodies.collectGarbage( mailDirs );
+		
+		int mails = this.assertBodiesResolvable();
+		Assert.assertTrue( mails >= MAILS_PER_SENDER, 
+				"only " + mails + " mails stored after the last clearing" );
+		Assert.assertTrue( bodies.getDeduplicatedCount() > 0 );
+		
+		//the body is no longer referenced once all mails are cleared
+		this.server.getStorage().clearProcessedDir();
+		bodies.collectGarbage( mailDirs );
+		Assert.assertTrue( bodies.getCollectedCount() > 0 );
+		Assert.assertTrue( FileUtils.listFiles( bodies.getDir(), 
+				new String[] { MailBodyStore.BODY_FILE_SUFFIX }, true ).isEmpty() );
+	}
+	
+	@Test
+	public void testCollectionAwaitsReferencingWriters() throws Exception
+	{
+		File baseDir = new File( BASE_DIR );
+		FileUtils.deleteDirectory( baseDir );
+		File mailDir = new File( baseDir, "processed" );
+		File stagingDir = new File( baseDir, "staging" );
+		mailDir.mkdirs();
+		stagingDir.mkdirs();
+		
+		final MailBodyStore bodies = new MailBodyStore( 
+				new File( baseDir, "bodies" ), 1024, new DysonServer().getStatistics() );
+		final List<File> mailDirs = new ArrayList<File>();
+		mailDirs.add( mailDir );
+		MailFileWriter writer = new MailFileWriter( 1024, 1 );
+		
+		bodies.beginReferencing();
+		File staged = new File( stagingDir, "1.mail" );
+		writer.write( new ByteArrayInputStream( ( "Subject: 1\n\n" + 
+				BODY_TEXT ).getBytes( "US-ASCII" ) ), staged, null, bodies );
+		
+		Thread collector = new Thread( "dyson-dedup-collector" )
+		{
+			@Override
+			public void run()
+			{
+				bodies.collectGarbage( mailDirs );
+			}
+		};
+		collector.start();
+		collector.join( 200 );
+		Assert.assertTrue( collector.isAlive(), 
+				"collection did not wait for the referencing writer" );
+		
+		File mail = new File( mailDir, "1.mail" );
+		Assert.assertTrue( staged.renameTo( mail ) );
+		bodies.endReferencing();
+		collector.join();
+		
+		Assert.assertEquals( bodies.getCollectedCount(), 0 );
+		StoredMail stored = bodies.resolve( new FileStoredMail( "1.mail", mail ) );
+		Assert.assertTrue( readFully( stored ).endsWith( BODY_TEXT ) );
+		
+		Assert.assertTrue( mail.delete() );
+		Assert.assertEquals( bodies.collectGarbage( mailDirs ), 1 );
+		FileUtils.deleteDirectory( baseDir );
+	}
+	
+	@Test
+	public void testBodiesDirIsLocked() throws Exception
+	{
+		this.startDyson( 15225 );
+		
+		//a second instance may not collect the bodies of the first one
+		this.configure( 15227, BASE_DIR + "/other" );
+		try
+		{
+			new DysonServer().start();
+			Assert.fail( "the body directory has been shared" );
+		}
+		catch( DysonException de )
+		{
+			//expected
+		}
+		Assert.assertFalse( new File( BASE_DIR + "/other/processed", 
+				DefaultDysonStorage.LOCK_FILE_NAME ).exists() );
+		Assert.assertTrue( new File( BASE_DIR + "/bodies", 
+				DefaultDysonStorage.LOCK_FILE_NAME ).exists() );
+	}
+	
+	@Test
+	public void testBodiesDirWithinProcessedDirIsRejected() throws Exception
+	{
+		FileUtils.deleteDirectory( new File( BASE_DIR ) );
+		this.configure( 15325, BASE_DIR );
+		this.props.setProperty( DysonConfig.STORAGE_DIR_BODIES, 
+				BASE_DIR + "/processed/bodies" );
+		System.getProperties().putAll( this.props );
+		
+		try
+		{
+			new DysonServer().start();
+			Assert.fail( "a body directory within the processed " + 
+					"directory has been accepted" );
+		}
+		catch( DysonException de )
+		{
+			//expected
+		}
+		Assert.assertFalse( new File( BASE_DIR + "/processed", 
+				DefaultDysonStorage.LOCK_FILE_NAME ).exists() );
+		FileUtils.deleteDirectory( new File( BASE_DIR ) );
+	}
+	
+	/**
+	 * sends {@link #MAILS_PER_SENDER} mails with the same body
+	 * to distinct recipients
+	 */
+	protected void sendMails( Session session, int sender, AtomicInteger failed )
+	{
+		try
+		{
+			Transport transport = session.getTransport( "smtp" );
+			transport.connect();
+			try
+			{
+				for( int i = 0; i < MAILS_PER_SENDER; ++i )
+				{
+					MimeMessage mail = new MimeMessage( session );
+					mail.setFrom( new InternetAddress( "dyson.dedup@example.org" ) );
+					mail.setRecipient( RecipientType.TO, new InternetAddress(
+							"dedup" + sender + "-" + i + "@example.org" ) );
+					mail.setSubject( "dyson dedup test " + sender + "-" + i );
+					mail.setText( BODY_TEXT );
+					mail.saveChanges();
+					transport.sendMessage( mail, mail.getAllRecipients() );
+				}
+			}
+			finally
+			{
+				transport.close();
+			}
+		}
+		catch( MessagingException me )
+		{
+			log.error( "cannot send mails: " + me, me );
+			failed.incrementAndGet();
+		}
+	}
+
+	/**
+	 * reads every processed mail including its body
+	 *
+	 * @return the number of processed mails
+	 */
+	protected int assertBodiesResolvable() throws IOException
+	{
+		DysonStorage storage = this.server.getStorage();
+		File processedDir = new File( storage.getProcessedDirName() );
+		List<File> mailFiles =
+			new ArrayList<File>( storage.getProcessedMailFiles() );
+
+		for( File mailFile : mailFiles )
+		{
+			String name = mailFile.getPath().substring(
+					processedDir.getPath().length() + 1 );
+
+			InputStream refData = new FileInputStream( mailFile );
+			try
+			{
+				Assert.assertNotNull( MailBodyStore.readRef( refData ),
+						name + " does not reference its body" );
+			}
+			finally
+			{
+				IOUtil.silentClose( refData );
+			}
+
+			StoredMail mail = storage.getProcessedMail( name );
+			Assert.assertNotNull( mail, name );
+			Assert.assertFalse( mail instanceof FileStoredMail, name );
+
+			String content = readFully( mail );
+			Assert.assertEquals( content.length(), mail.getLength(), name );
+			Assert.assertTrue( content.trim().endsWith( BODY_TEXT ), name );
+		}
+		return mailFiles.size();
+	}
+	
+	/**
+	 * @return the whole content of the passed mail
+	 */
+	protected static String readFully( StoredMail mail ) throws IOException
+	{
+		InputStream data = mail.openStream();
+		try
+		{
+			ByteArrayOutputStream content = new ByteArrayOutputStream();
+			byte[] buf = new byte[ 4096 ];
+			int read;
+			while( (read = data.read( buf )) >= 0 )
+			{
+				content.write( buf, 0, read );
+			}
+			return content.toString( "US-ASCII" );
+		}
+		finally
+		{
+			IOUtil.silentClose( data );
+		}
+	}
+
+}//class MailBodyDeduplicationTest
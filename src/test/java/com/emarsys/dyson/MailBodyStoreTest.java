@@ -0,0 +1,231 @@
+/**
+ *   (c) Copyright 2007-2010 by emarsys eMarketing Systems AG
+ *
+ *   This file is part of dyson.
+ *
+ *   dyson is free software; you can redistribute it and/or modify
+ *   it under the terms of the GNU Lesser General Public License as published by
+ *   the Free Software Foundation; either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   dyson is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.emarsys.dyson;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.security.MessageDigest;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import com.emarsys.dyson.storage.DeduplicatedStoredMail;
+import com.emarsys.dyson.storage.FileStoredMail;
+import com.emarsys.dyson.storage.MailBodyStore;
+import com.emarsys.dyson.storage.MailFileWriter;
+import com.emarsys.ecommon.io.IOUtil;
+
+/**
+ * Tests splitting mails into their headers and their deduplicated
+ * bodies while writing them, and resolving them again.
+ *
+ * @author <a href="mailto:kulovits@emarsys.com">Michael "kULO" Kulovits</a>
+ */
+@Test
+public class MailBodyStoreTest
+{
+	protected static final File BASE_DIR = new File( "./tmp/bodies" );
+	protected static final File MAIL_DIR = new File( BASE_DIR, "mails" );
+	protected static final File BODY_DIR = new File( BASE_DIR, "bodies" );
+	protected static final String NEWLINE = System.getProperty( "line.separator" );
+
+	protected static final String HEADERS =
+		"Subject: dedup\r\nFrom: a@example.org\nTo: b@example.org\r\n\r\n";
+	protected static final String BODY =
+		"the body\r\nspanning\rseveral\nlines\r\n\r\nand paragraphs\r\n";
+
+	private MailBodyStore bodies;
+
+	@BeforeMethod
+	public void createBaseDir() throws IOException
+	{
+		FileUtils.deleteDirectory( BASE_DIR );
+		MAIL_DIR.mkdirs();
+		this.bodies = new MailBodyStore(
+				BODY_DIR, 16, new DysonServer().getStatistics() );
+	}
+
+	@AfterMethod
+	public void deleteBaseDir() throws IOException
+	{
+		FileUtils.deleteDirectory( BASE_DIR );
+	}
+
+	@DataProvider( name = "bufferSizes" )
+	public Object[][] getBufferSizes()
+	{
+		return new Object[][] { { 1 }, { 2 }, { 3 }, { 7 }, { 8192 } };
+	}
+
+	@Test( dataProvider = "bufferSizes" )
+	public void testSplitAndResolve( int bufferSize ) throws Exception
+	{
+		File file = this.write( new MailFileWriter( bufferSize, 1 ),
+				"mail", HEADERS + BODY );
+
+		//the placeholder at the start has been replaced by the reference
+		String body = normalize( BODY );
+		byte[] refLine = MailBodyStore.getRefLine( sha1( body ), body.length() );
+		String content = FileUtils.readFileToString( file, "US-ASCII" );
+		Assert.assertEquals( content,
+				new String( refLine, "US-ASCII" ) + normalize( HEADERS ) );
+		Assert.assertEquals( FileUtils.readFileToString( this.bodies.getBodyFile(
+				sha1( body ) ), "US-ASCII" ), body );
+
+		StoredMail mail = this.bodies.resolve( new FileStoredMail( "mail", file ) );
+		Assert.assertTrue( mail instanceof DeduplicatedStoredMail );
+		assertContent( mail, normalize( HEADERS + BODY ) );
+	}
+
+	@Test
+	public void testDuplicateBodyIsStoredOnce() throws Exception
+	{
+		MailFileWriter writer = new MailFileWriter( 8192, 1 );
+		File first = this.write( writer, "first", HEADERS + BODY );
+		File second = this.write( writer, "second",
+				"Subject: other\r\n\r\n" + BODY );
+
+		Assert.assertEquals( this.bodies.getStoredCount(), 1 );
+		Assert.assertEquals( this.bodies.getDeduplicatedCount(), 1 );
+		Assert.assertEquals( FileUtils.listFiles( BODY_DIR, null, true ).size(), 1 );
+
+		assertContent( this.bodies.resolve( new FileStoredMail( "first", first ) ),
+				normalize( HEADERS + BODY ) );
+		assertContent( this.bodies.resolve( new FileStoredMail( "second", second ) ),
+				normalize( "Subject: other\r\n\r\n" + BODY ) );
+	}
+
+	@Test
+	public void testMailWithoutBody() throws Exception
+	{
+		String headersOnly = "Subject: no body\r\nFrom: a@example.org\r\n";
+		File file = this.write( new MailFileWriter( 4, 1 ), "mail", headersOnly );
+
+		InputStream data = new FileInputStream( file );
+		try
+		{
+			MailBodyStore.Ref ref = MailBodyStore.readRef( data );
+			Assert.assertNotNull( ref );
+			Assert.assertEquals( ref.getHash(), sha1( "" ) );
+			Assert.assertEquals( ref.getLength(), 0 );
+		}
+		finally
+		{
+			IOUtil.silentClose( data );
+		}
+		assertContent( this.bodies.resolve( new FileStoredMail( "mail", file ) ),
+				normalize( headersOnly ) );
+	}
+
+	@Test
+	public void testMailWithoutReferenceIsNotResolved() throws Exception
+	{
+		File file = new File( MAIL_DIR, "plain" );
+		new MailFileWriter( 8192, 1 ).write( new ByteArrayInputStream(
+				( HEADERS + BODY ).getBytes( "US-ASCII" ) ), file );
+
+		FileStoredMail mail = new FileStoredMail( "plain", file );
+		Assert.assertSame( this.bodies.resolve( mail ), mail );
+	}
+
+	/**
+	 * writes the passed mail to the mail directory, storing its body
+	 */
+	protected File write( MailFileWriter writer, String name, String mail )
+		throws IOException
+	{
+		File file = new File( MAIL_DIR, name );
+		writer.write( new ByteArrayInputStream( mail.getBytes( "US-ASCII" ) ),
+				file, null, this.bodies );
+		return file;
+	}
+
+	/**
+	 * checks the whole content of the passed mail as well as
+	 * every range transferred from it
+	 */
+	protected static void assertContent( StoredMail mail, String expected )
+		throws IOException
+	{
+		Assert.assertEquals( mail.getLength(), expected.length() );
+
+		InputStream data = mail.openStream();
+		try
+		{
+			ByteArrayOutputStream content = new ByteArrayOutputStream();
+			int b;
+			while( (b = data.read()) >= 0 )
+			{
+				content.write( b );
+			}
+			Assert.assertEquals( content.toString( "US-ASCII" ), expected );
+		}
+		finally
+		{
+			IOUtil.silentClose( data );
+		}
+
+		for( int position = 0; position <= expected.length(); position += 5 )
+		{
+			for( int count = 1; count <= 40; count += 13 )
+			{
+				ByteArrayOutputStream range = new ByteArrayOutputStream();
+				long transferred = mail.transferTo( position, count,
+						Channels.newChannel( range ) );
+				String expectedRange = expected.substring( position,
+						Math.min( expected.length(), position + count ) );
+				Assert.assertEquals( transferred, expectedRange.length() );
+				Assert.assertEquals( range.toString( "US-ASCII" ), expectedRange,
+						"position " + position + ", count " + count );
+			}
+		}
+	}
+
+	protected static String sha1( String data ) throws Exception
+	{
+		byte[] digest = MessageDigest.getInstance( "SHA-1" ).digest(
+				data.getBytes( "US-ASCII" ) );
+		StringBuilder hex = new StringBuilder();
+		for( byte b : digest )
+		{
+			hex.append( String.format( "%02x", b & 0xff ) );
+		}
+		return hex.toString();
+	}
+
+	/**
+	 * @return the passed data with <tt>CR</tt>, <tt>LF</tt> and
+	 * 		<tt>CRLF</tt> replaced by the <tt>line.separator</tt>
+	 */
+	protected static String normalize( String data )
+	{
+		return data.replace( "\r\n", "\n" ).replace( '\r', '\n' )
+			.replace( "\n", NEWLINE );
+	}
+
+}//class MailBodyStoreTest
@@ -0,0 +1,231 @@
+/**
+ *   (c) Copyright 2007-2010 by emarsys eMarketing Systems AG
+ *
+ *   This file is part of dyson.
+ *
+ *   dyson is free software; you can redistribute it and/or modify
+ *   it under the terms of the GNU Lesser General Public License as published by
+ *   the Free Software Foundation; either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   dyson is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.emarsys.dyson;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import com.emarsys.dyson.storage.MailFileWriter;
+
+/**
+ * Tests the {@link MailFileWriter}: written files have to hold the
+ * passed data with normalized newlines, regardless of where the
+ * read buffer splits a <tt>CRLF</tt>.
+ *
+ * @author <a href="mailto:kulovits@emarsys.com">Michael "kULO" Kulovits</a>
+ */
+@Test
+public class MailFileWriterTest
+{
+	protected static final File BASE_DIR = new File( "./tmp/writer" );
+	protected static final String NEWLINE = System.getProperty( "line.separator" );
+
+	protected static final String MAIL =
+		"Subject: crlf\r\nFrom: a@example.org\nTo: b@example.org\r" +
+		"\r\nbody with CRLF\r\nLF\nCR\rCR CRLF\r\r\nLF CR\n\rend\r";
+
+	@BeforeMethod
+	public void createBaseDir() throws IOException
+	{
+		FileUtils.deleteDirectory( BASE_DIR );
+		BASE_DIR.mkdirs();
+	}
+
+	@AfterMethod
+	public void deleteBaseDir() throws IOException
+	{
+		FileUtils.deleteDirectory( BASE_DIR );
+	}
+
+	@DataProvider( name = "bufferSizes" )
+	public Object[][] getBufferSizes()
+	{
+		return new Object[][] { { 1 }, { 2 }, { 3 }, { 5 }, { 8192 } };
+	}
+
+	@Test( dataProvider = "bufferSizes" )
+	public void testRoundTrip( int bufferSize ) throws IOException
+	{
+		MailFileWriter writer = new MailFileWriter( bufferSize, 1 );
+		File file = new File( BASE_DIR, "mail" );
+
+		long written = writer.write( toStream( MAIL ), file );
+
+		String expected = normalize( MAIL );
+		Assert.assertEquals( FileUtils.readFileToString( file, "US-ASCII" ),
+				expected );
+		Assert.assertEquals( written, file.length() );
+		Assert.assertEquals( writer.getPooledBufferCount(), 1 );
+	}
+
+	@Test( dataProvider = "bufferSizes" )
+	public void testCrLfAtEveryBufferBoundary( int bufferSize )
+		throws IOException
+	{
+		MailFileWriter writer = new MailFileWriter( bufferSize, 1 );
+		File file = new File( BASE_DIR, "mail" );
+
+		//shifts the CRLF over all positions of the read buffer
+		for( int shift = 0; shift <= bufferSize && shift < 16; ++shift )
+		{
+			StringBuilder mail = new StringBuilder();
+			for( int i = 0; i < shift; ++i )
+			{
+				mail.append( 'x' );
+			}
+			mail.append( "\r\n\r\ny\r\n" );
+
+			writer.write( toStream( mail.toString() ), file );
+			Assert.assertEquals( FileUtils.readFileToString( file, "US-ASCII" ),
+					normalize( mail.toString() ), "shift " + shift );
+		}
+	}
+
+	@Test
+	public void testOverwritesExistingFile() throws IOException
+	{
+		MailFileWriter writer = new MailFileWriter( 4, 1 );
+		File file = new File( BASE_DIR, "mail" );
+
+		writer.write( toStream( "a much longer mail\r\n" ), file );
+		writer.write( toStream( "short\r\n" ), file );
+
+		Assert.assertEquals( FileUtils.readFileToString( file, "US-ASCII" ),
+				"short" + NEWLINE );
+	}
+
+	@Test
+	public void testFailedWriteRemovesFile() throws IOException
+	{
+		MailFileWriter writer = new MailFileWriter( 4, 1 );
+		File file = new File( BASE_DIR, "mail" );
+		InputStream failing = new InputStream()
+		{
+			private int count = 0;
+
+			@Override
+			public int read() throws IOException
+			{
+				if( ++this.count > 10 )
+				{
+					throw new IOException( "connection lost" );
+				}
+				return 'x';
+			}
+		};
+
+		try
+		{
+			writer.write( failing, file );
+			Assert.fail( "the read error has not been propagated" );
+		}
+		catch( IOException ioe )
+		{
+			Assert.assertEquals( ioe.getMessage(), "connection lost" );
+		}
+		Assert.assertFalse( file.exists() );
+		Assert.assertEquals( writer.getPooledBufferCount(), 1 );
+	}
+
+	@Test
+	public void testFailedOpenKeepsBuffers() throws IOException
+	{
+		MailFileWriter writer = new MailFileWriter( 4, 1 );
+		try
+		{
+			writer.write( new ByteArrayInputStream( MAIL.getBytes( "US-ASCII" ) ),
+					new File( BASE_DIR, "missing/mail" ) );
+			Assert.fail( "a file in a missing directory has been opened" );
+		}
+		catch( IOException ioe )
+		{
+			//expected
+		}
+
+		//the only direct buffer is still available for the next mail
+		writer.write( new ByteArrayInputStream( MAIL.getBytes( "US-ASCII" ) ),
+				new File( BASE_DIR, "mail" ) );
+		Assert.assertEquals( writer.getPooledBufferCount(), 1 );
+	}
+
+	@Test
+	public void testFallsBackToHeapBuffers() throws IOException
+	{
+		final MailFileWriter writer = new MailFileWriter( 8, 1 );
+		final File inner = new File( BASE_DIR, "inner" );
+		File outer = new File( BASE_DIR, "outer" );
+
+		//writes a second mail while the only pooled buffer is in use
+		InputStream data = new ByteArrayInputStream(
+				"outer\r\n".getBytes( "US-ASCII" ) )
+		{
+			private boolean isFirstRead = true;
+
+			@Override
+			public synchronized int read( byte[] b, int off, int len )
+			{
+				if( this.isFirstRead )
+				{
+					this.isFirstRead = false;
+					try
+					{
+						writer.write( toStream( "inner\n" ), inner );
+					}
+					catch( IOException ioe )
+					{
+						throw new IllegalStateException( ioe );
+					}
+				}
+				return super.read( b, off, len );
+			}
+		};
+		writer.write( data, outer );
+
+		Assert.assertEquals( FileUtils.readFileToString( inner, "US-ASCII" ),
+				"inner" + NEWLINE );
+		Assert.assertEquals( FileUtils.readFileToString( outer, "US-ASCII" ),
+				"outer" + NEWLINE );
+		Assert.assertEquals( writer.getPooledBufferCount(), 1 );
+	}
+
+	protected static InputStream toStream( String data ) throws IOException
+	{
+		return new ByteArrayInputStream( data.getBytes( "US-ASCII" ) );
+	}
+
+	/**
+	 * @return the passed data with <tt>CR</tt>, <tt>LF</tt> and
+	 * 		<tt>CRLF</tt> replaced by the <tt>line.separator</tt>
+	 */
+	protected static String normalize( String data )
+	{
+		return data.replace( "\r\n", "\n" ).replace( '\r', '\n' )
+			.replace( "\n", NEWLINE );
+	}
+
+}//class MailFileWriterTest
@@ -0,0 +1,170 @@
+/**
+ *   (c) Copyright 2007-2010 by emarsys eMarketing Systems AG
+ *
+ *   This file is part of dyson.
+ *
+ *   dyson is free software; you can redistribute it and/or modify
+ *   it under the terms of the GNU Lesser General Public License as published by
+ *   the Free Software Foundation; either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   dyson is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.emarsys.dyson;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import com.emarsys.dyson.storage.MemoryDysonStorage;
+import com.emarsys.dyson.storage.SegmentDysonStorage;
+import com.emarsys.ecommon.io.IOUtil;
+
+/**
+ * Tests that the segment and memory storages never replace a stored
+ * mail by a later mail with the same name.
+ *
+ * @author <a href="mailto:kulovits@emarsys.com">Michael "kULO" Kulovits</a>
+ */
+@Test
+public class MailNameCollisionTest
+{
+	protected static final String BASE_DIR = "./tmp/collision";
+	protected static final int NBR_OF_MAILS = 5;
+
+	private DysonServer server;
+	private final Properties props = new Properties();
+
+	@AfterMethod
+	public void stopServer() throws IOException
+	{
+		if( this.server != null )
+		{
+			this.server.getStorage().clearIncomingDir();
+			this.server.getStorage().clearProcessedDir();
+			this.server.stop();
+			this.server.getStorage().awaitTermination( 5, TimeUnit.SECONDS );
+			this.server = null;
+		}
+		for( Object key : this.props.keySet() )
+		{
+			System.clearProperty( key.toString() );
+		}
+		this.props.clear();
+		FileUtils.deleteDirectory( new File( BASE_DIR ) );
+	}
+
+	/**
+	 * provides the storage classes, the memory storage once with a
+	 * budget forcing it to spill the mails
+	 */
+	@DataProvider( name = "storages" )
+	public Object[][] getStorages()
+	{
+		return new Object[][] {
+				{ SegmentDysonStorage.class, 16025, null },
+				{ MemoryDysonStorage.class, 16125, null },
+				{ MemoryDysonStorage.class, 16225, "150" } };
+	}
+
+	@Test( dataProvider = "storages" )
+	public void testCollidingNamesAreMadeUnique(
+			Class<?> storageClass, int smtpPort, String memoryBudget )
+		throws Exception
+	{
+		this.startDyson( storageClass, smtpPort, memoryBudget );
+		SegmentDysonStorage storage =
+			(SegmentDysonStorage) this.server.getStorage();
+
+		List<String> names = new ArrayList<String>();
+		for( int i = 0; i < NBR_OF_MAILS; ++i )
+		{
+			names.add( storage.store( new ByteArrayInputStream(
+					getMail( i ).getBytes( "US-ASCII" ) ),
+					System.currentTimeMillis() ) );
+		}
+
+		//the naming scheme has no timestamp, every mail collides
+		String suffix = "." + storage.getMailFileSuffix();
+		String baseName = names.get( 0 ).substring(
+				0, names.get( 0 ).length() - suffix.length() );
+		for( int i = 1; i < NBR_OF_MAILS; ++i )
+		{
+			Assert.assertEquals( names.get( i ), baseName + "-" + i + suffix );
+		}
+
+		Assert.assertEquals( new HashSet<String>(
+				storage.getProcessedMailNames() ), new HashSet<String>( names ) );
+		Assert.assertEquals( storage.getProcessedMailCount(), NBR_OF_MAILS );
+		for( int i = 0; i < NBR_OF_MAILS; ++i )
+		{
+			InputStream data = storage.openProcessedMail( names.get( i ) );
+			try
+			{
+				Assert.assertTrue( IOUtils.toString( data, "US-ASCII" )
+						.contains( "Subject: mail " + i ), names.get( i ) );
+			}
+			finally
+			{
+				IOUtil.silentClose( data );
+			}
+		}
+	}
+
+	protected void startDyson(
+			Class<?> storageClass, int smtpPort, String memoryBudget )
+		throws IOException
+	{
+		FileUtils.deleteDirectory( new File( BASE_DIR ) );
+		this.props.setProperty( DysonConfig.REST_SERVER_PORT,
+				String.valueOf( smtpPort + 1 ) );
+		this.props.setProperty( DysonConfig.SMTP_PORT,
+				String.valueOf( smtpPort ) );
+		this.props.setProperty( DysonConfig.STORAGE_CLASS,
+				storageClass.getName() );
+		this.props.setProperty(
+				DysonConfig.STORAGE_PROCESSED_MAIL_NAMING_SCHEME_TOKENS,
+				"RECIPIENT_DOMAIN,RECIPIENT_NAME" );
+		this.props.setProperty( DysonConfig.STORAGE_DIR_INCOMING,
+				BASE_DIR + "/incoming" );
+		this.props.setProperty( DysonConfig.STORAGE_DIR_PROCESSED,
+				BASE_DIR + "/processed" );
+		this.props.setProperty( DysonConfig.STORAGE_DIR_QUARANTINE,
+				BASE_DIR + "/quarantine" );
+		if( memoryBudget != null )
+		{
+			this.props.setProperty(
+					DysonConfig.STORAGE_MEMORY_BUDGET_BYTES, memoryBudget );
+		}
+		System.getProperties().putAll( this.props );
+
+		this.server = new DysonServer();
+		this.server.start();
+	}
+
+	protected static String getMail( int i )
+	{
+		return "To: bob@example.org\r\nSubject: mail " + i +
+			"\r\n\r\nthe body of mail " + i + "\r\n";
+	}
+
+}//class MailNameCollisionTest
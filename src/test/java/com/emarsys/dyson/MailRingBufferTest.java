@@ -0,0 +1,200 @@
+/**
+ *   (c) Copyright 2007-2010 by emarsys eMarketing Systems AG
+ *
+ *   This file is part of dyson.
+ *
+ *   dyson is free software; you can redistribute it and/or modify
+ *   it under the terms of the GNU Lesser General Public License as published by
+ *   the Free Software Foundation; either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   dyson is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.emarsys.dyson;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.emarsys.dyson.storage.MailRingBuffer;
+
+/**
+ * Tests the {@link MailRingBuffer}: mails have to keep their data while
+ * the buffer wraps around, evicting the oldest mails first.
+ *
+ * @author <a href="mailto:kulovits@emarsys.com">Michael "kULO" Kulovits</a>
+ */
+@Test
+public class MailRingBufferTest
+{
+	protected static final int CAPACITY = 100;
+
+	@Test
+	public void testWrapAroundEvictsOldestMails()
+	{
+		MailRingBuffer ring = new MailRingBuffer( CAPACITY );
+		MailRingBuffer.Entry a = put( ring, "a", 40 );
+		MailRingBuffer.Entry b = put( ring, "b", 40 );
+		Assert.assertEquals( ring.evictFor( 20 ), Collections.emptyList() );
+		MailRingBuffer.Entry c = put( ring, "c", 20 );
+
+		//no room left at the end, the next mail wraps around
+		Assert.assertEquals( ring.evictFor( 30 ), Arrays.asList( a ) );
+		Assert.assertNull( ring.read( a, 0, 40 ) );
+		Assert.assertEquals( ring.copy( a ), data( "a", 40 ) );
+		MailRingBuffer.Entry d = put( ring, "d", 30 );
+
+		assertResident( ring, b, "b", 40 );
+		assertResident( ring, c, "c", 20 );
+		assertResident( ring, d, "d", 30 );
+		Assert.assertEquals( ring.size(), 3 );
+		Assert.assertEquals( ring.getUsedBytes(), 90 );
+
+		//the wrapped mails may not grow into the oldest one
+		Assert.assertEquals( ring.evictFor( 20 ), Arrays.asList( b ) );
+		MailRingBuffer.Entry e = put( ring, "e", 20 );
+		assertResident( ring, c, "c", 20 );
+		assertResident( ring, d, "d", 30 );
+		assertResident( ring, e, "e", 20 );
+
+		//once the oldest mail is gone, the end of the buffer is free again
+		Assert.assertEquals( ring.evictFor( 50 ), Arrays.asList( c ) );
+		MailRingBuffer.Entry f = put( ring, "f", 50 );
+		assertResident( ring, d, "d", 30 );
+		assertResident( ring, e, "e", 20 );
+		assertResident( ring, f, "f", 50 );
+		Assert.assertEquals( ring.getUsedBytes(), CAPACITY );
+	}
+
+	@Test
+	public void testManyWrapArounds()
+	{
+		MailRingBuffer ring = new MailRingBuffer( CAPACITY );
+		for( int i = 0; i < 200; ++i )
+		{
+			int length = 7 + (i * 13) % 31;
+			ring.evictFor( length );
+			put( ring, "m" + i, length );
+			
+			//no mail may have been overwritten by another one
+			for( MailRingBuffer.Entry entry : ring.getEntries() )
+			{
+				assertResident( ring, entry, entry.getName(), entry.getLength() );
+			}
+			Assert.assertTrue( ring.getUsedBytes() <= CAPACITY );
+		}
+	}
+
+	@Test
+	public void testReplacedMailIsNotEvictedAgain()
+	{
+		MailRingBuffer ring = new MailRingBuffer( CAPACITY );
+		MailRingBuffer.Entry old = put( ring, "x", 30 );
+		ring.evictFor( 30 );
+		MailRingBuffer.Entry other = put( ring, "y", 30 );
+		ring.evictFor( 30 );
+		MailRingBuffer.Entry replacing = ring.put( "x", data( "z", 30 ), 30, 2 );
+
+		Assert.assertEquals( ring.size(), 2 );
+		Assert.assertSame( ring.get( "x" ), replacing );
+		Assert.assertEquals( ring.getUsedBytes(), 90 );
+
+		//evicting the replaced region does not report the name again
+		Assert.assertEquals( ring.evictFor( 30 ), Collections.emptyList() );
+		Assert.assertNull( ring.read( old, 0, 30 ) );
+		Assert.assertSame( ring.get( "x" ), replacing );
+		Assert.assertEquals( ring.read( replacing, 0, 30 ), data( "z", 30 ) );
+
+		Assert.assertEquals( ring.clear(), Arrays.asList( other, replacing ) );
+		Assert.assertEquals( ring.size(), 0 );
+		Assert.assertEquals( ring.getUsedBytes(), 0 );
+	}
+
+	@Test
+	public void testEmptyMailsOccupyAByte()
+	{
+		MailRingBuffer ring = new MailRingBuffer( 2 );
+		MailRingBuffer.Entry first = put( ring, "first", 0 );
+		put( ring, "second", 0 );
+
+		Assert.assertEquals( ring.evictFor( 0 ), Arrays.asList( first ) );
+		MailRingBuffer.Entry third = put( ring, "third", 0 );
+		Assert.assertEquals( ring.read( third, 0, 10 ).length, 0 );
+		Assert.assertEquals( ring.size(), 2 );
+	}
+
+	@Test
+	public void testReadRange()
+	{
+		MailRingBuffer ring = new MailRingBuffer( CAPACITY );
+		MailRingBuffer.Entry entry = ring.put( "r",
+				"0123456789".getBytes(), 10, 1 );
+
+		Assert.assertEquals( new String( ring.read( entry, 3, 4 ) ), "3456" );
+		Assert.assertEquals( new String( ring.read( entry, 8, 100 ) ), "89" );
+		Assert.assertEquals( ring.read( entry, 20, 5 ).length, 0 );
+	}
+
+	@Test
+	public void testMailsNotFitting()
+	{
+		MailRingBuffer ring = new MailRingBuffer( CAPACITY );
+		Assert.assertTrue( ring.fits( CAPACITY ) );
+		Assert.assertFalse( ring.fits( CAPACITY + 1 ) );
+		try
+		{
+			ring.evictFor( CAPACITY + 1 );
+			Assert.fail( "a mail larger than the buffer has been accepted" );
+		}
+		catch( IllegalArgumentException iae )
+		{
+			//expected
+		}
+
+		put( ring, "a", 60 );
+		try
+		{
+			put( ring, "b", 60 );
+			Assert.fail( "a mail has been put without making room" );
+		}
+		catch( IllegalStateException ise )
+		{
+			//expected
+		}
+		Assert.assertEquals( ring.size(), 1 );
+	}
+
+	protected static MailRingBuffer.Entry put(
+			MailRingBuffer ring, String name, int length )
+	{
+		return ring.put( name, data( name, length ), length, 1 );
+	}
+
+	protected static void assertResident(
+			MailRingBuffer ring, MailRingBuffer.Entry entry,
+			String name, int length )
+	{
+		Assert.assertSame( ring.get( name ), entry, name );
+		Assert.assertEquals( ring.read( entry, 0, length ),
+				data( name, length ), name );
+	}
+
+	/**
+	 * @return the data of a mail, filled with a byte derived from its name
+	 */
+	protected static byte[] data( String name, int length )
+	{
+		byte[] data = new byte[ length ];
+		Arrays.fill( data, (byte) name.hashCode() );
+		return data;
+	}
+
+}//class MailRingBufferTest
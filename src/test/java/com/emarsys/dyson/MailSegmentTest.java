@@ -0,0 +1,246 @@
+/**
+ *   (c) Copyright 2007-2010 by emarsys eMarketing Systems AG
+ *
+ *   This file is part of dyson.
+ *
+ *   dyson is free software; you can redistribute it and/or modify
+ *   it under the terms of the GNU Lesser General Public License as published by
+ *   the Free Software Foundation; either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   dyson is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.emarsys.dyson;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.emarsys.dyson.storage.MailSegment;
+import com.emarsys.ecommon.io.IOUtil;
+
+/**
+ * Tests the {@link MailSegment}, especially that entries torn by a
+ * crash are discarded when a segment is opened again.
+ *
+ * @author <a href="mailto:kulovits@emarsys.com">Michael "kULO" Kulovits</a>
+ */
+@Test
+public class MailSegmentTest
+{
+	protected static final File SEGMENT_DIR = new File( "./tmp/segments" );
+	protected static final long SEGMENT_ID = 42;
+	protected static final String[] MAILS = {
+		"Subject: first\r\n\r\nthe first mail\r\n",
+		"Subject: second\r\n\r\nthe second mail\r\n",
+		"Subject: third\r\n\r\nthe third mail\r\n" };
+
+	private MailSegment segment;
+
+	@BeforeMethod
+	public void createSegmentDir() throws IOException
+	{
+		FileUtils.deleteDirectory( SEGMENT_DIR );
+		SEGMENT_DIR.mkdirs();
+	}
+
+	@AfterMethod
+	public void deleteSegmentDir() throws IOException
+	{
+		if( this.segment != null )
+		{
+			this.segment.close();
+			this.segment = null;
+		}
+		FileUtils.deleteDirectory( SEGMENT_DIR );
+	}
+
+	@Test
+	public void testAppendAndReopen() throws IOException
+	{
+		List<MailSegment.Entry> appended = this.appendMails();
+		this.segment.close();
+
+		List<MailSegment.Entry> entries = new ArrayList<MailSegment.Entry>();
+		this.segment = MailSegment.open( SEGMENT_DIR, SEGMENT_ID, entries );
+
+		Assert.assertEquals( entries.size(), MAILS.length );
+		for( int i = 0; i < MAILS.length; ++i )
+		{
+			MailSegment.Entry entry = entries.get( i );
+			Assert.assertEquals( entry.getName(), "mail" + i );
+			Assert.assertEquals( entry.getOffset(), appended.get( i ).getOffset() );
+			Assert.assertEquals( entry.getStoredMillis(), 1000L + i );
+			Assert.assertEquals( new String( this.segment.read( entry ), "US-ASCII" ),
+					MAILS[ i ] );
+		}
+		Assert.assertEquals( this.segment.getSize(), this.getTotalLength() );
+	}
+
+	@Test
+	public void testTornIndexEntryIsDiscarded() throws IOException
+	{
+		List<MailSegment.Entry> appended = this.appendMails();
+		this.segment.close();
+		long indexLength = this.getIndexFile().length();
+		truncate( this.getIndexFile(), indexLength - 3 );
+
+		this.assertTruncatedToTwoMails( appended );
+	}
+
+	@Test
+	public void testEntryWithTornDataIsDiscarded() throws IOException
+	{
+		List<MailSegment.Entry> appended = this.appendMails();
+		this.segment.close();
+		truncate( this.segment.getDataFile(), this.getTotalLength() - 5 );
+
+		this.assertTruncatedToTwoMails( appended );
+	}
+
+	@Test
+	public void testDataWithoutEntryIsDiscarded() throws IOException
+	{
+		List<MailSegment.Entry> appended = this.appendMails();
+		long indexLength = this.getIndexFile().length();
+		this.segment.close();
+
+		//the data of a fourth mail, its entry has not been written
+		RandomAccessFile data = new RandomAccessFile(
+				this.segment.getDataFile(), "rw" );
+		try
+		{
+			data.seek( data.length() );
+			data.write( "Subject: lost\r\n".getBytes( "US-ASCII" ) );
+		}
+		finally
+		{
+			IOUtil.silentClose( data );
+		}
+
+		List<MailSegment.Entry> entries = new ArrayList<MailSegment.Entry>();
+		this.segment = MailSegment.open( SEGMENT_DIR, SEGMENT_ID, entries );
+
+		Assert.assertEquals( entries.size(), appended.size() );
+		Assert.assertEquals( this.segment.getDataFile().length(), this.getTotalLength() );
+		Assert.assertEquals( this.getIndexFile().length(), indexLength );
+	}
+
+	@Test
+	public void testTransferTo() throws IOException
+	{
+		List<MailSegment.Entry> appended = this.appendMails();
+		MailSegment.Entry second = appended.get( 1 );
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		long transferred = this.segment.transferTo( second, 9, 1000,
+				Channels.newChannel( out ) );
+
+		Assert.assertEquals( transferred, MAILS[ 1 ].length() - 9 );
+		Assert.assertEquals( out.toString( "US-ASCII" ), MAILS[ 1 ].substring( 9 ) );
+		Assert.assertEquals( new String( this.segment.read( second, 7 ), "US-ASCII" ),
+				"Subject" );
+	}
+
+	@Test
+	public void testListIds() throws IOException
+	{
+		this.appendMails();
+		new File( SEGMENT_DIR, "000000000042.idx.bak" ).createNewFile();
+		new File( SEGMENT_DIR, "notasegment.seg" ).createNewFile();
+
+		Assert.assertEquals( MailSegment.listIds( SEGMENT_DIR ),
+				Collections.singletonList( SEGMENT_ID ) );
+		Assert.assertEquals( MailSegment.parseId( "000000000007.seg" ), 7 );
+		Assert.assertEquals( MailSegment.parseId( "000000000007.idx" ), -1 );
+	}
+
+	/**
+	 * opens the segment whose third mail is torn, checks that only the
+	 * first two mails are left and that appending continues behind them
+	 */
+	protected void assertTruncatedToTwoMails( List<MailSegment.Entry> appended )
+		throws IOException
+	{
+		List<MailSegment.Entry> entries = new ArrayList<MailSegment.Entry>();
+		this.segment = MailSegment.open( SEGMENT_DIR, SEGMENT_ID, entries );
+
+		Assert.assertEquals( entries.size(), 2 );
+		long validLength = appended.get( 2 ).getOffset();
+		Assert.assertEquals( this.segment.getSize(), validLength );
+		Assert.assertEquals( this.segment.getDataFile().length(), validLength );
+
+		byte[] mail = MAILS[ 2 ].getBytes( "US-ASCII" );
+		MailSegment.Entry entry =
+			this.segment.append( "again", mail, mail.length, 2000L );
+		Assert.assertEquals( entry.getOffset(), validLength );
+		this.segment.close();
+
+		entries.clear();
+		this.segment = MailSegment.open( SEGMENT_DIR, SEGMENT_ID, entries );
+		Assert.assertEquals( entries.size(), 3 );
+		Assert.assertEquals( entries.get( 2 ).getName(), "again" );
+		Assert.assertEquals( new String( this.segment.read( entries.get( 2 ) ),
+				"US-ASCII" ), MAILS[ 2 ] );
+	}
+
+	protected List<MailSegment.Entry> appendMails() throws IOException
+	{
+		this.segment = MailSegment.create( SEGMENT_DIR, SEGMENT_ID );
+		List<MailSegment.Entry> entries = new ArrayList<MailSegment.Entry>();
+		for( int i = 0; i < MAILS.length; ++i )
+		{
+			byte[] mail = MAILS[ i ].getBytes( "US-ASCII" );
+			entries.add( this.segment.append( "mail" + i, mail, mail.length, 1000L + i ) );
+		}
+		this.segment.force();
+		return entries;
+	}
+
+	protected long getTotalLength()
+	{
+		long length = 0;
+		for( String mail : MAILS )
+		{
+			length += mail.length();
+		}
+		return length;
+	}
+
+	protected File getIndexFile()
+	{
+		return new File( SEGMENT_DIR, 
+				"000000000042." + MailSegment.INDEX_FILE_SUFFIX );
+	}
+
+	protected static void truncate( File file, long length ) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+		try
+		{
+			raf.setLength( length );
+		}
+		finally
+		{
+			IOUtil.silentClose( raf );
+		}
+	}
+
+}//class MailSegmentTest
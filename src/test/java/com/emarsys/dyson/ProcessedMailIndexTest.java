@@ -0,0 +1,119 @@
+/**
+ *   (c) Copyright 2007-2010 by emarsys eMarketing Systems AG
+ *
+ *   This file is part of dyson.
+ *
+ *   dyson is free software; you can redistribute it and/or modify
+ *   it under the terms of the GNU Lesser General Public License as published by
+ *   the Free Software Foundation; either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   dyson is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Lesser General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Lesser General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.emarsys.dyson;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests loading the {@link ProcessedMailIndex} in the background,
+ * i.e. adding older mails while newer mails are added at the same time.
+ *
+ * @author <a href="mailto:kulovits@emarsys.com">Michael "kULO" Kulovits</a>
+ */
+@Test
+public class ProcessedMailIndexTest
+{
+	protected static final String RECIPIENT = "bob@example.org";
+
+	@Test
+	public void testOldestMailsAreListedLast()
+	{
+		ProcessedMailIndex index = new ProcessedMailIndex( 10, 1000 );
+		add( index, "new1", 5000 );
+		add( index, "new2", 6000 );
+
+		//loaded newest first
+		Assert.assertTrue( addOldest( index, "old3", 3000 ) );
+		Assert.assertTrue( addOldest( index, "old2", 2000 ) );
+		Assert.assertTrue( addOldest( index, "old1", 1000 ) );
+
+		List<String> newestFirst =
+			Arrays.asList( "new2", "new1", "old3", "old2", "old1" );
+		Assert.assertEquals( getNames( index.query(
+				ProcessedMailIndex.Key.RECIPIENT, RECIPIENT, 0, 10 ) ),
+				newestFirst );
+		Assert.assertEquals( getNames( index.query(
+				ProcessedMailIndex.Key.DOMAIN, "example.org", 0, 10 ) ),
+				newestFirst );
+		Assert.assertEquals( getNames( index.querySince( 0, 0, 10 ) ),
+				newestFirst );
+	}
+
+	@Test
+	public void testOldestMailsNeverEvictNewerOnes()
+	{
+		ProcessedMailIndex index = new ProcessedMailIndex( 3, 1000 );
+		add( index, "new1", 5000 );
+		add( index, "new2", 6000 );
+
+		Assert.assertTrue( addOldest( index, "old2", 2000 ) );
+		Assert.assertFalse( addOldest( index, "old1", 1000 ) );
+
+		Assert.assertEquals( index.size(), 3 );
+		Assert.assertEquals( index.getEvictionCount(), 0 );
+		Assert.assertEquals( getNames( index.query(
+				ProcessedMailIndex.Key.RECIPIENT, RECIPIENT, 0, 10 ) ),
+				Arrays.asList( "new2", "new1", "old2" ) );
+	}
+
+	@Test
+	public void testOldestMailDoesNotReplaceNewerOne()
+	{
+		ProcessedMailIndex index = new ProcessedMailIndex( 10, 1000 );
+		add( index, "mail", 5000 );
+
+		Assert.assertTrue( addOldest( index, "mail", 1000 ) );
+
+		List<ProcessedMailIndex.Entry> entries = index.query(
+				ProcessedMailIndex.Key.RECIPIENT, RECIPIENT, 0, 10 ).getEntries();
+		Assert.assertEquals( entries.size(), 1 );
+		Assert.assertEquals( entries.get( 0 ).getStoredMillis(), 5000 );
+	}
+
+	protected static void add(
+			ProcessedMailIndex index, String name, long storedMillis )
+	{
+		index.add( name, storedMillis, "<" + name + "@example.org>",
+				"alice@example.org", Collections.singletonList( RECIPIENT ) );
+	}
+
+	protected static boolean addOldest(
+			ProcessedMailIndex index, String name, long storedMillis )
+	{
+		return index.addOldest( name, storedMillis, "<" + name + "@example.org>",
+				"alice@example.org", Collections.singletonList( RECIPIENT ) );
+	}
+
+	protected static List<String> getNames( ProcessedMailIndex.Page page )
+	{
+		List<String> names = new ArrayList<String>();
+		for( ProcessedMailIndex.Entry entry : page.getEntries() )
+		{
+			names.add( entry.getName() );
+		}
+		return names;
+	}
+
+}//class ProcessedMailIndexTest